@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.util.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.google.gson.Gson;
+
+import fr.mines_stetienne.ci.sparql_generate.FileConfigurations;
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocationMapperAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorFileAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * Executes the queries of the test resources of sparql-generate-jena with and
+ * without the optimizations of the {@link PlanFactory}, and checks that they
+ * generate the same graph, which is also the expected output. An empty
+ * expected output is not recorded, e.g., for the queries that generate a
+ * large graph, and is not compared.
+ *
+ * <p>
+ * The queries are executed here, as most of them use the iterators and
+ * functions of the other modules.
+ * </p>
+ *
+ * <p>
+ * The queries that read documents on the Web are only executed with system
+ * property {@code sparql-generate.test.remote} set to true. With system
+ * property {@code sparql-generate.test.regenerate} set to true, the expected
+ * outputs in the sources of sparql-generate-jena are replaced by the output
+ * of the optimized plans, which must then be reviewed.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+@RunWith(Parameterized.class)
+public class OptimizationsTest {
+
+	/**
+	 * The directories whose queries read documents on the Web.
+	 */
+	private static final Set<String> REMOTE = new HashSet<>(
+			Arrays.asList("capital", "cordis", "geojsontest1", "htmltest1"));
+
+	/**
+	 * The directories whose expected output is no longer generated, with or
+	 * without the optimizations: their queries call the function fun:bnode,
+	 * which was removed, or rely on the former behavior of blank nodes in
+	 * sub-queries, of LIST, of JSONPath filters or of XPath. Their output is
+	 * only compared with the output without the optimizations.
+	 */
+	private static final Set<String> OUTDATED = new HashSet<>(Arrays.asList("bnode", "bnode2", "chargingplan",
+			"chargingplan2", "generatelistjson", "poptest", "rmlLanguageMap", "rmlproeg1", "rmlproeg1small",
+			"rmlproeg2", "rmlproeg6", "xsparql1"));
+
+	/**
+	 * The directory of the test resources in the sources, relative to this
+	 * module.
+	 */
+	private static final File SOURCES = new File("../sparql-generate-jena/src/test/resources/generate");
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() throws URISyntaxException {
+		final File root = new File(OptimizationsTest.class.getResource("/generate").toURI());
+		final File[] dirs = root.listFiles(File::isDirectory);
+		Arrays.sort(dirs);
+		final List<Object[]> data = new ArrayList<>();
+		for (File dir : dirs) {
+			if (new File(dir, "sparql-generate-conf.json").isFile()) {
+				data.add(new Object[] { dir.getName(), dir });
+			}
+		}
+		return data;
+	}
+
+	private final String name;
+
+	private final File dir;
+
+	private boolean optimizing;
+
+	public OptimizationsTest(String name, File dir) {
+		this.name = name;
+		this.dir = dir;
+	}
+
+	@Before
+	public void saveOptimizing() {
+		optimizing = PlanFactory.isOptimizing();
+	}
+
+	@After
+	public void restoreOptimizing() {
+		PlanFactory.setOptimizing(optimizing);
+	}
+
+	@Test
+	public void testSameOutput() throws IOException {
+		assumeTrue("Set sparql-generate.test.remote to execute " + name,
+				!REMOTE.contains(name) || Boolean.getBoolean("sparql-generate.test.remote"));
+		final Model optimized = exec(true);
+		final Model plain = exec(false);
+		assertTrue("The optimizations change the output of " + name + "\nwith:\n" + toString(optimized)
+				+ "\nwithout:\n" + toString(plain), optimized.isIsomorphicWith(plain));
+		final File expectedFile = new File(dir, "expected_output.ttl");
+		if (REMOTE.contains(name) || OUTDATED.contains(name) || expectedFile.length() == 0) {
+			// the documents on the Web may change, and empty outputs are not recorded
+			return;
+		}
+		if (Boolean.getBoolean("sparql-generate.test.regenerate")) {
+			try (OutputStream out = new FileOutputStream(new File(new File(SOURCES, name), "expected_output.ttl"))) {
+				RDFDataMgr.write(out, optimized, Lang.TTL);
+			}
+			return;
+		}
+		final Model expected = RDFDataMgr.loadModel(expectedFile.getPath(), Lang.TTL);
+		assertTrue("Unexpected output for " + name + ":\n" + toString(optimized), optimized.isIsomorphicWith(expected));
+	}
+
+	private Model exec(final boolean optimizing) throws IOException {
+		PlanFactory.setOptimizing(optimizing);
+		final FileConfigurations conf;
+		try (InputStream in = new FileInputStream(new File(dir, "sparql-generate-conf.json"))) {
+			conf = new Gson().fromJson(IOUtils.toString(in, StandardCharsets.UTF_8), FileConfigurations.class);
+		}
+		final String queryString;
+		try (InputStream in = new FileInputStream(new File(dir, conf.query))) {
+			queryString = IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+		final SPARQLExtQuery query = (SPARQLExtQuery) QueryFactory.create(queryString, conf.base, SPARQLExt.SYNTAX);
+		if (!query.explicitlySetBaseURI()) {
+			query.setBaseURI(conf.base);
+		}
+		final RootPlan plan = PlanFactory.create(query);
+		final Context context = ContextUtils.build().setBase(conf.base).setPrefixMapping(query)
+				.setInputDataset(conf.loadDataset(dir)).setStreamManager(makeStreamManager(conf)).build();
+		try {
+			return plan.execGenerate(context);
+		} finally {
+			ContextUtils.close(context);
+		}
+	}
+
+	/**
+	 * Maps the documents of the directory, as the command line interface does.
+	 */
+	private SPARQLExtStreamManager makeStreamManager(final FileConfigurations conf) throws IOException {
+		final LocatorFileAccept locator = new LocatorFileAccept(dir.toURI().getPath());
+		final LocationMapperAccept mapper = new LocationMapperAccept();
+		final SPARQLExtStreamManager sm = SPARQLExtStreamManager.makeStreamManager(locator);
+		sm.setLocationMapper(mapper);
+		for (FileConfigurations.NamedQuery doc : conf.namedqueries) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, doc.mediatype), new LookUpRequest(doc.path));
+		}
+		for (FileConfigurations.NamedDocument doc : conf.documentset) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, doc.mediatype), new LookUpRequest(doc.path));
+		}
+		for (FileConfigurations.NamedGraph doc : conf.namedgraphs) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, Lang.TTL.getContentType().getContentTypeStr()),
+					new LookUpRequest(doc.path));
+		}
+		if (conf.base != null) {
+			final Path dirPath = dir.toPath();
+			try (Stream<Path> files = Files.walk(dirPath)) {
+				files.filter((p) -> p.toFile().isFile()).forEach((p) -> {
+					final String relativePath = dirPath.relativize(p).toString();
+					mapper.addAltEntry(conf.base + relativePath.replace("\\", "/"), p.toString());
+				});
+			}
+		}
+		return sm;
+	}
+
+	private static String toString(final Model model) {
+		final StringWriter sw = new StringWriter();
+		model.write(sw, "TTL");
+		return sw.toString();
+	}
+
+}
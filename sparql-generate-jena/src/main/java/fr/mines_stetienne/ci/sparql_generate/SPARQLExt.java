@@ -15,7 +15,17 @@
  */
 package fr.mines_stetienne.ci.sparql_generate;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.datatypes.TypeMapper;
@@ -39,6 +49,7 @@ import org.apache.jena.sparql.util.TranslationTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.mines_stetienne.ci.sparql_generate.function.FunctionFactoryLazy;
 import fr.mines_stetienne.ci.sparql_generate.function.FunctionLoader;
 import fr.mines_stetienne.ci.sparql_generate.function.library.FUN_CamelCase;
 import fr.mines_stetienne.ci.sparql_generate.function.library.FUN_Log;
@@ -55,6 +66,7 @@ import fr.mines_stetienne.ci.sparql_generate.function.library.ST_Concat;
 import fr.mines_stetienne.ci.sparql_generate.function.library.ST_Decr;
 import fr.mines_stetienne.ci.sparql_generate.function.library.ST_Format;
 import fr.mines_stetienne.ci.sparql_generate.function.library.ST_Incr;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionFactoryLazy;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionLoader;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
 import fr.mines_stetienne.ci.sparql_generate.iterator.library.ITER_Call_Select;
@@ -128,6 +140,35 @@ public final class SPARQLExt {
 	 */
 	public static final Symbol REGISTRY_ITERATORS = SystemARQ.allocSymbol(NS, "registryIterators");
 
+	/**
+	 * The index of the binding functions of a module. Each line contains the IRI
+	 * of a function and the name of the class that implements it. The class is
+	 * only loaded when the function is first used.
+	 */
+	public static final String INDEX_FUNCTIONS = "META-INF/sparql-generate/functions";
+
+	/**
+	 * The index of the binding functions of a module that have no side effect,
+	 * see {@link #isSideEffectFree(String)}. Each line contains the IRI of a
+	 * function.
+	 */
+	public static final String INDEX_SIDE_EFFECT_FREE_FUNCTIONS = "META-INF/sparql-generate/side-effect-free-functions";
+
+	/**
+	 * The namespaces of the standard functions, which have no side effect: the
+	 * XSD casts, and the XPath functions.
+	 */
+	private static final String[] SIDE_EFFECT_FREE_NAMESPACES = { "http://www.w3.org/2001/XMLSchema#",
+			"http://www.w3.org/2005/xpath-functions#", "http://www.w3.org/2005/xpath-functions/math#" };
+
+	private static final Set<String> SIDE_EFFECT_FREE_FUNCTIONS = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The index of the iterator functions of a module, with the same format as
+	 * {@link #INDEX_FUNCTIONS}.
+	 */
+	public static final String INDEX_ITERATORS = "META-INF/sparql-generate/iterators";
+
 	/**
 	 * Forces the initialization of SPARQL-Generate.
 	 */
@@ -150,6 +191,20 @@ public final class SPARQLExt {
 		fnreg.put(FUN_PrefixedIRI.URI, FUN_PrefixedIRI.class);
 		fnreg.put(FUN_Select_Call_Template.URI, FUN_Select_Call_Template.class);
 		fnreg.put(FUN_Log.URI, FUN_Log.class);
+		registerSideEffectFree(FUN_SplitAtPostion.URI);
+		registerSideEffectFree(FUN_regex.URI);
+		registerSideEffectFree(FUN_dateTime.URI);
+		registerSideEffectFree(FUN_Property.URI);
+		registerSideEffectFree(FUN_CamelCase.URI);
+		registerSideEffectFree(FUN_MixedCase.URI);
+		registerSideEffectFree(FUN_TitleCase.URI);
+		registerSideEffectFree(FUN_PrefixedIRI.URI);
+
+		final ClassLoader classLoader = SPARQLExt.class.getClassLoader();
+		loadIndex(classLoader, INDEX_FUNCTIONS,
+				(uri, className) -> fnreg.put(uri, new FunctionFactoryLazy(className, classLoader)));
+		loadIndex(classLoader, INDEX_SIDE_EFFECT_FREE_FUNCTIONS, 1,
+				(entry) -> registerSideEffectFree(entry[0]));
 
 		final ServiceLoader<FunctionLoader> functionLoaders = ServiceLoader.load(FunctionLoader.class);
 		functionLoaders.forEach((loader) -> {
@@ -170,6 +225,9 @@ public final class SPARQLExt {
 		itereg.put(ITER_DefaultGraphNamespaces.URI, ITER_DefaultGraphNamespaces.class);
 		itereg.put(ITER_Call_Select.URI, ITER_Call_Select.class);
 
+		loadIndex(classLoader, INDEX_ITERATORS,
+				(uri, className) -> itereg.put(uri, new IteratorFunctionFactoryLazy(className, classLoader)));
+
 		final ServiceLoader<IteratorFunctionLoader> iteratorFunctionLoaders = ServiceLoader
 				.load(IteratorFunctionLoader.class);
 		iteratorFunctionLoaders.forEach((loader) -> {
@@ -227,6 +285,88 @@ public final class SPARQLExt {
 		StreamManager.setGlobal(SPARQLExtStreamManager.makeStreamManager());
 	}
 
+	/**
+	 * Declares that a binding function has no side effect: it does not change
+	 * anything outside of the query, e.g., it does not send a request that
+	 * modifies a resource, and it does not log. Its calls may then be skipped
+	 * when their result is not used, or evaluated once for identical calls.
+	 * Functions are not side effect free unless they are declared so, with
+	 * this method or in an index {@link #INDEX_SIDE_EFFECT_FREE_FUNCTIONS}.
+	 *
+	 * @param iri the IRI of the function
+	 */
+	public static void registerSideEffectFree(final String iri) {
+		SIDE_EFFECT_FREE_FUNCTIONS.add(iri);
+	}
+
+	/**
+	 * Checks whether a binding function has no side effect, see
+	 * {@link #registerSideEffectFree(String)}.
+	 *
+	 * @param iri the IRI of the function
+	 * @return true if the function is known to have no side effect
+	 */
+	public static boolean isSideEffectFree(final String iri) {
+		for (String ns : SIDE_EFFECT_FREE_NAMESPACES) {
+			if (iri.startsWith(ns)) {
+				return true;
+			}
+		}
+		return SIDE_EFFECT_FREE_FUNCTIONS.contains(iri);
+	}
+
+	/**
+	 * Reads all the indexes of functions with a given name on the class path.
+	 *
+	 * @param classLoader the class loader
+	 * @param name the name of the index
+	 * @param register called with the IRI and the class name of each function
+	 */
+	private static void loadIndex(final ClassLoader classLoader, final String name,
+			final BiConsumer<String, String> register) {
+		loadIndex(classLoader, name, 2, (entry) -> register.accept(entry[0], entry[1]));
+	}
+
+	/**
+	 * Reads all the indexes with a given name on the class path.
+	 *
+	 * @param classLoader the class loader
+	 * @param name the name of the index
+	 * @param columns the number of columns of each line
+	 * @param register called with the columns of each line
+	 */
+	private static void loadIndex(final ClassLoader classLoader, final String name, final int columns,
+			final Consumer<String[]> register) {
+		final Enumeration<URL> indexes;
+		try {
+			indexes = classLoader.getResources(name);
+		} catch (IOException ex) {
+			LOG.warn("Could not look up the indexes " + name, ex);
+			return;
+		}
+		while (indexes.hasMoreElements()) {
+			final URL index = indexes.nextElement();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					final String[] entry = line.split("\\s+");
+					if (entry.length != columns) {
+						LOG.warn("Ignoring malformed line in " + index + ": " + line);
+						continue;
+					}
+					register.accept(entry);
+				}
+			} catch (IOException ex) {
+				LOG.warn("Could not read the index " + index, ex);
+			}
+		}
+	}
+
 	/**
 	 * This class must be used instead of class <code>Syntax</code>.
 	 *
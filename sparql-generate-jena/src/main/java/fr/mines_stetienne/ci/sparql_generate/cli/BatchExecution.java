@@ -0,0 +1,461 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanProfile;
+import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.stream.FingerprintRecorder;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * Executes one query over many input documents, on a pool of workers. The URI
+ * of each input document is bound to the input variable of the query, and
+ * each execution has its own context. Plans keep the environment of their
+ * execution, so every worker has its own plan.
+ *
+ * <p>
+ * If an output directory is set, the output of each input document is written
+ * to its own file, at the path of the input document relative to the working
+ * directory, with extension {@code .out}. Otherwise, the outputs are appended
+ * to the output of the request, or to the standard output, in the order in
+ * which the executions complete. The graphs of merged outputs are written in
+ * N-Triples, so that they can be concatenated.
+ * </p>
+ *
+ * <p>
+ * In incremental mode, the fingerprints of the documents opened to produce
+ * each output are stored in the output directory, and an input document is
+ * processed again only if one of these documents changed. The merged output,
+ * if set, is then rebuilt from the outputs of all the input documents.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class BatchExecution {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchExecution.class);
+
+	private final File workingDir;
+	private final CliRequest request;
+	private final CommandLine cl;
+	private final RootPlan plan;
+	private final SPARQLExtQuery query;
+	private final Dataset dataset;
+	private final SPARQLExtStreamManager sm;
+	private PlanProfile profile;
+
+	/**
+	 *
+	 * @param workingDir the working directory
+	 * @param request the request
+	 * @param cl the command line
+	 * @param plan the plan, used by the first worker, or by the only worker if
+	 * a profile is set
+	 * @param dataset the input dataset
+	 * @param sm the stream manager
+	 */
+	public BatchExecution(File workingDir, CliRequest request, CommandLine cl, RootPlan plan, Dataset dataset,
+			SPARQLExtStreamManager sm) {
+		this.workingDir = workingDir;
+		this.request = request;
+		this.cl = cl;
+		this.plan = plan;
+		this.query = plan.getQuery();
+		this.dataset = dataset;
+		this.sm = sm;
+	}
+
+	/**
+	 * Records the metrics of the executions in a profile, for EXPLAIN ANALYZE.
+	 *
+	 * @param profile the profile
+	 * @return this batch execution
+	 */
+	public BatchExecution setProfile(PlanProfile profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	/**
+	 * Executes the plan for each input document.
+	 *
+	 * @param binding the initial binding, to which the input variable is added
+	 */
+	public void exec(Binding binding) {
+		if (request.hdt) {
+			LOG.error("Option HDT is not supported in batch mode");
+			return;
+		}
+		final Var inputVar = getInputVar();
+		if (inputVar == null) {
+			return;
+		}
+		final List<Path> inputs;
+		try {
+			inputs = listInputs();
+		} catch (IOException ex) {
+			LOG.error("Error while listing the input documents.", ex);
+			return;
+		}
+		if (inputs.isEmpty()) {
+			LOG.warn("No input document matches " + String.join(" ", cl.getOptionValues(CMDConfigurations.ARG_INPUTS)));
+			return;
+		}
+		final File outputDir = getOutputDir();
+		final boolean incremental = cl.hasOption(CMDConfigurations.ARG_INCREMENTAL);
+		if (incremental && outputDir == null) {
+			LOG.error("Incremental mode requires option " + CMDConfigurations.ARG_OUTPUT_DIR_LONG);
+			return;
+		}
+		final IncrementalState state = incremental ? IncrementalState.load(outputDir) : null;
+		final String context = incremental ? getContextFingerprint(binding) : null;
+		final boolean mergedGraphs = outputDir == null || incremental && request.output != null;
+		if (mergedGraphs && query.isGenerateType() && !request.stream && request.outputFormat != null
+				&& !Lang.NTRIPLES.equals(RDFLanguages.nameToLang(request.outputFormat))) {
+			LOG.warn("The outputs are merged, they are written in N-Triples instead of " + request.outputFormat);
+		}
+		final int workers = profile != null ? 1 : getWorkers();
+		if (profile != null) {
+			LOG.info("Executing with a single worker, to profile a single plan");
+		}
+		final ThreadLocal<RootPlan> plans = getPlans();
+		LOG.info("Executing the query over " + inputs.size() + " input documents with " + workers + " workers");
+
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final ExecutorService service = Executors.newFixedThreadPool(workers,
+				new ThreadFactoryBuilder().setNameFormat("batch-%d").build());
+		try (OutputStream merged = outputDir == null ? openMergedOutput() : null) {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (Path input : inputs) {
+				futures.add(service.submit(() -> {
+					Binding b = Binding.builder(binding)
+							.add(inputVar, NodeFactory.createURI(input.toUri().toString())).build();
+					try {
+						if (outputDir == null) {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							exec(plans.get(), b, out, sm, true);
+							synchronized (merged) {
+								out.writeTo(merged);
+								merged.flush();
+							}
+						} else if (!incremental) {
+							File file = getOutput(outputDir, input);
+							try (OutputStream out = new FileOutputStream(file)) {
+								exec(plans.get(), b, out, sm, false);
+							}
+						} else {
+							File file = getOutput(outputDir, input);
+							String partition = outputDir.toPath().relativize(file.toPath()).toString()
+									.replace(File.separatorChar, '/');
+							if (state.isUpToDate(partition, context, file, sm)) {
+								skipped.incrementAndGet();
+								LOG.debug("Skipped " + input + ", which is up to date");
+								return;
+							}
+							FingerprintRecorder recorder = new FingerprintRecorder();
+							try (OutputStream out = new FileOutputStream(file)) {
+								exec(plans.get(), b, out, sm.recording(recorder), mergedGraphs);
+							} catch (Exception ex) {
+								state.remove(partition);
+								throw ex;
+							}
+							state.update(partition, context, recorder);
+						}
+						LOG.debug("Processed " + input);
+					} catch (Exception ex) {
+						failed.incrementAndGet();
+						LOG.error("Error while processing " + input, ex);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			if (incremental) {
+				state.save();
+				mergeOutputs(outputDir, inputs);
+			}
+		} catch (IOException ex) {
+			LOG.error("Error while opening the output file.", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted while executing the batch.", ex);
+		} catch (ExecutionException ex) {
+			LOG.error("Error while executing the batch.", ex);
+		} finally {
+			service.shutdownNow();
+		}
+		LOG.info("Processed " + (inputs.size() - failed.get() - skipped.get()) + " input documents, " + skipped.get()
+				+ " up to date, " + failed.get() + " failed");
+	}
+
+	/**
+	 * Gives the plan to the first worker, and a new plan for the normalized
+	 * query to each other worker.
+	 */
+	private ThreadLocal<RootPlan> getPlans() {
+		final AtomicInteger created = new AtomicInteger();
+		return ThreadLocal.withInitial(() -> created.getAndIncrement() == 0 ? plan : PlanFactory.create(query.copyQuery()));
+	}
+
+	/**
+	 * Executes the plan for one input document, and writes the output.
+	 *
+	 * @param merged true if the output is concatenated with other outputs
+	 */
+	private void exec(RootPlan plan, Binding binding, OutputStream out, SPARQLExtStreamManager sm, boolean merged)
+			throws IOException {
+		final List<Binding> bindings = new ArrayList<>();
+		bindings.add(binding);
+		final ContextUtils.Builder builder = ContextUtils.build().setBase(request.base).setPrefixMapping(query)
+				.setInputDataset(dataset).setStreamManager(sm).setDebugTemplate(request.debugTemplate)
+				.setProfile(profile);
+		if (query.isTemplateType()) {
+			IndentedWriter output = new IndentedWriter(out);
+			plan.execTemplateStream(bindings, builder.setTemplateOutput(output).build());
+			output.flush();
+		} else if (query.isGenerateType() && request.stream) {
+			PrintStream output = new PrintStream(out, false, StandardCharsets.UTF_8.name());
+			plan.execGenerateStream(bindings,
+					builder.setGenerateOutput(new ConsoleStreamRDF(output, query.getPrefixMapping())).build());
+			output.flush();
+		} else if (query.isGenerateType()) {
+			// blank node labels are unique, and there are no prefixes to repeat
+			Lang lang = merged ? Lang.NTRIPLES : RDFLanguages.nameToLang(
+					request.outputFormat == null ? RDFLanguages.strLangTurtle : request.outputFormat);
+			Model model = plan.execGenerate(bindings, builder.build());
+			model.write(out, lang.getLabel());
+		} else if (query.isSelectType()) {
+			ResultsFormat format = SPARQLExtCli.getResultsFormat(request);
+			if (request.stream) {
+				Context context = builder.setSelectOutput((result) -> output(out, result, format)).build();
+				plan.execSelectStream(bindings, context);
+			} else {
+				output(out, plan.execSelect(bindings, builder.build()), format);
+			}
+		} else {
+			throw new SPARQLExtException("Unsupported query type");
+		}
+	}
+
+	private void output(OutputStream out, ResultSet result, ResultsFormat format) {
+		if (format.equals(ResultsFormat.FMT_TEXT)) {
+			ResultSetFormatter.out(out, result);
+		} else {
+			ResultSetFormatter.output(out, result, format);
+		}
+	}
+
+	/**
+	 * Gets the output of an input document. Input documents outside the
+	 * working directory are in directory {@code external}, and their name is
+	 * prefixed by a hash of their path.
+	 */
+	private File getOutput(File outputDir, Path input) {
+		final Path root = getInputRoot();
+		final File file;
+		if (input.startsWith(root)) {
+			file = new File(outputDir, root.relativize(input) + ".out");
+		} else {
+			file = new File(new File(outputDir, "external"), hash(input.toString()) + "-" + input.getFileName() + ".out");
+		}
+		file.getParentFile().mkdirs();
+		return file;
+	}
+
+	private static String hash(String value) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Hex.encodeHexString(digest.digest(value.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private Path getInputRoot() {
+		return workingDir.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Rebuilds the merged output, if set, from the outputs of all the input
+	 * documents, in the order of the inputs.
+	 */
+	private void mergeOutputs(File outputDir, List<Path> inputs) throws IOException {
+		if (request.output == null) {
+			return;
+		}
+		try (OutputStream merged = new FileOutputStream(request.output, request.outputAppend)) {
+			for (Path input : inputs) {
+				File file = getOutput(outputDir, input);
+				if (file.isFile()) {
+					Files.copy(file.toPath(), merged);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The fingerprint of what, apart from the documents opened through the
+	 * stream manager, determines the output of an input document.
+	 */
+	private String getContextFingerprint(Binding binding) {
+		final List<String> parts = new ArrayList<>();
+		parts.add(query.toString());
+		parts.add(binding.toString());
+		parts.add(request.base + " " + request.outputFormat + " " + request.stream + " " + request.debugTemplate + " "
+				+ (request.output != null));
+		final List<String> graphs = new ArrayList<>();
+		graphs.add(request.graph != null ? request.graph : "dataset/default.ttl");
+		if (request.namedgraphs != null) {
+			request.namedgraphs.forEach((ng) -> {
+				parts.add(ng.uri);
+				graphs.add(ng.path);
+			});
+		}
+		for (String graph : graphs) {
+			parts.add(graph);
+			try (InputStream in = Files.newInputStream(new File(workingDir, graph).toPath())) {
+				parts.add(FingerprintRecorder.fingerprint(in));
+			} catch (IOException ex) {
+				parts.add("");
+			}
+		}
+		return IncrementalState.fingerprint(parts.toArray(new String[parts.size()]));
+	}
+
+	private Var getInputVar() {
+		String name = cl.getOptionValue(CMDConfigurations.ARG_INPUT_VAR);
+		if (name != null) {
+			return Var.alloc(name.startsWith("?") ? name.substring(1) : name);
+		}
+		if (query.getSignature() == null || query.getSignature().isEmpty()) {
+			LOG.error("In batch mode, the query must have a signature, or the input variable must be set with option "
+					+ CMDConfigurations.ARG_INPUT_VAR_LONG);
+			return null;
+		}
+		return query.getSignature().get(0);
+	}
+
+	private File getOutputDir() {
+		String name = cl.getOptionValue(CMDConfigurations.ARG_OUTPUT_DIR);
+		if (name == null) {
+			return null;
+		}
+		File dir = new File(workingDir, name);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private int getWorkers() {
+		String workers = cl.getOptionValue(CMDConfigurations.ARG_WORKERS);
+		if (workers != null) {
+			try {
+				return Math.max(1, Integer.parseInt(workers));
+			} catch (NumberFormatException ex) {
+				LOG.warn("Could not parse the number of workers " + workers);
+			}
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private OutputStream openMergedOutput() throws IOException {
+		if (request.output == null) {
+			return new CloseShieldOutputStream(System.out);
+		}
+		return new FileOutputStream(request.output, request.outputAppend);
+	}
+
+	/**
+	 * Lists the input documents, in the order of the arguments, without
+	 * duplicates.
+	 */
+	List<Path> listInputs() throws IOException {
+		final Path dir = getInputRoot();
+		final Set<Path> inputs = new LinkedHashSet<>();
+		for (String value : cl.getOptionValues(CMDConfigurations.ARG_INPUTS)) {
+			if (value.startsWith("@")) {
+				for (String line : Files.readAllLines(dir.resolve(value.substring(1)), StandardCharsets.UTF_8)) {
+					line = line.trim();
+					if (!line.isEmpty() && !line.startsWith("#")) {
+						inputs.add(dir.resolve(line).normalize());
+					}
+				}
+			} else if (value.matches(".*[*?\\[{].*")) {
+				final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + value);
+				try (Stream<Path> paths = Files.walk(dir)) {
+					inputs.addAll(paths.filter(Files::isRegularFile)
+							.filter((p) -> matcher.matches(dir.relativize(p)))
+							.sorted()
+							.collect(Collectors.toList()));
+				}
+			} else {
+				inputs.add(dir.resolve(value).normalize());
+			}
+		}
+		return new ArrayList<>(inputs);
+	}
+}
@@ -140,6 +140,75 @@ public class CMDConfigurations {
 	 */
 	public static final String ARG_DEBUG_TEMPLATE_MAN = "Debug the template output: insert warning identifiers that refer to the log.";
 
+	/** i */
+	public static final String ARG_INPUTS = "i";
+	/** inputs */
+	public static final String ARG_INPUTS_LONG = "inputs";
+	/**
+	 * Executes the query once per input document, in batch mode.
+	 */
+	public static final String ARG_INPUTS_MAN = "Batch mode: executes the query once per input document. Values are file names, glob patterns such as data/*.json, or @list.txt for a file that lists one input per line, relative to the working directory. The query is compiled once, and the URI of each input is bound to the input variable.";
+	/** iv */
+	public static final String ARG_INPUT_VAR = "iv";
+	/** input-var */
+	public static final String ARG_INPUT_VAR_LONG = "input-var";
+	/**
+	 * Name of the query parameter bound to the URI of each input document.
+	 */
+	public static final String ARG_INPUT_VAR_MAN = "Batch mode: name of the query parameter bound to the URI of each input document. Default is the first parameter of the query signature.";
+	/** od */
+	public static final String ARG_OUTPUT_DIR = "od";
+	/** output-dir */
+	public static final String ARG_OUTPUT_DIR_LONG = "output-dir";
+	/**
+	 * Directory where the output of each input document is stored.
+	 */
+	public static final String ARG_OUTPUT_DIR_MAN = "Batch mode: directory where the output of each input document is stored, at the path of the input relative to the working directory, with the extension '.out'. If not set, the outputs are merged in the output, and graphs are written in N-Triples.";
+	/** w */
+	public static final String ARG_WORKERS = "w";
+	/** workers */
+	public static final String ARG_WORKERS_LONG = "workers";
+	/**
+	 * Number of input documents processed in parallel.
+	 */
+	public static final String ARG_WORKERS_MAN = "Batch mode: number of input documents processed in parallel. Default is the number of processors.";
+
+	/** inc */
+	public static final String ARG_INCREMENTAL = "inc";
+	/** incremental */
+	public static final String ARG_INCREMENTAL_LONG = "incremental";
+	/**
+	 * Processes only the input documents whose output is out of date.
+	 */
+	public static final String ARG_INCREMENTAL_MAN = "Batch mode: processes only the input documents for which the query, the parameters, the dataset, or one of the documents opened to produce the output changed since the last execution. Requires option output-dir.";
+
+	/** m */
+	public static final String ARG_METRICS = "m";
+	/** metrics */
+	public static final String ARG_METRICS_LONG = "metrics";
+	/**
+	 * Location where the execution metrics are to be stored.
+	 */
+	public static final String ARG_METRICS_MAN = "Location where the execution metrics of each clause of the queries are to be stored, as JSON.";
+
+	/** ea */
+	public static final String ARG_EXPLAIN = "ea";
+	/** explain-analyze */
+	public static final String ARG_EXPLAIN_LONG = "explain-analyze";
+	/**
+	 * Prints the plan of the query annotated with the metrics of the execution.
+	 */
+	public static final String ARG_EXPLAIN_MAN = "After the execution, prints to the standard error the plan of the query, annotated with the actual number of rows, batches, and time of each clause.";
+
+	/** pc */
+	public static final String ARG_PLAN_CACHE = "pc";
+	/** plan-cache */
+	public static final String ARG_PLAN_CACHE_LONG = "plan-cache";
+	/**
+	 * Directory where the normalized queries are cached between executions.
+	 */
+	public static final String ARG_PLAN_CACHE_MAN = "Directory where the normalized queries are cached, so that the next executions do not normalize the same queries again.";
+
 	/** bind */
 	public static final String ARG_BIND_LONG = "B";
 	/**
@@ -167,6 +236,9 @@ public class CMDConfigurations {
 		Option bindingsOpt = Option.builder().numberOfArgs(2).valueSeparator().hasArgs().argName("param=value")
 				.longOpt(ARG_BIND_LONG).desc(ARG_BIND_MAN).build();
 
+		Option inputsOpt = Option.builder(ARG_INPUTS).longOpt(ARG_INPUTS_LONG).hasArgs().argName("inputs")
+				.desc(ARG_INPUTS_MAN).build();
+
 		return new Options().addOption(ARG_HELP, ARG_HELP_LONG, false, ARG_HELP_MAN)
 				.addOption(ARG_DIRECTORY, ARG_DIRECTORY_LONG, true, ARG_DIRECTORY_MAN)
 				.addOption(ARG_QUERY, ARG_QUERY_LONG, true, ARG_QUERY_MAN)
@@ -180,6 +252,14 @@ public class CMDConfigurations {
 				.addOption(ARG_BASE, ARG_BASE_LONG, true, ARG_BASE_MAN)
 				.addOption(ARG_DEBUG_TEMPLATE, ARG_DEBUG_TEMPLATE_LONG, false, ARG_DEBUG_TEMPLATE_MAN)
 				.addOption(ARG_SYNTAX, ARG_SYNTAX_LONG, false, ARG_SYNTAX_MAN)
+				.addOption(ARG_INPUT_VAR, ARG_INPUT_VAR_LONG, true, ARG_INPUT_VAR_MAN)
+				.addOption(ARG_OUTPUT_DIR, ARG_OUTPUT_DIR_LONG, true, ARG_OUTPUT_DIR_MAN)
+				.addOption(ARG_WORKERS, ARG_WORKERS_LONG, true, ARG_WORKERS_MAN)
+				.addOption(ARG_INCREMENTAL, ARG_INCREMENTAL_LONG, false, ARG_INCREMENTAL_MAN)
+				.addOption(ARG_METRICS, ARG_METRICS_LONG, true, ARG_METRICS_MAN)
+				.addOption(ARG_EXPLAIN, ARG_EXPLAIN_LONG, false, ARG_EXPLAIN_MAN)
+				.addOption(ARG_PLAN_CACHE, ARG_PLAN_CACHE_LONG, true, ARG_PLAN_CACHE_MAN)
+				.addOption(inputsOpt)
 				.addOption(sourcesOpt)
 				.addOption(bindingsOpt);
 	}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import fr.mines_stetienne.ci.sparql_generate.stream.FingerprintRecorder;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+
+/**
+ * The fingerprints of the documents used to produce each output partition of
+ * a batch execution, stored in the output directory. An output partition is up
+ * to date if it exists, if it was produced in the same execution context
+ * (query, parameters, dataset), and if none of the documents opened to produce
+ * it changed. An output partition that used a source that cannot be
+ * fingerprinted, e.g., a database, is never up to date.
+ *
+ * @author Maxime Lefrançois
+ */
+public class IncrementalState {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IncrementalState.class);
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	/** The name of the file where the state is stored */
+	public static final String FILE_NAME = ".sparql-generate-fingerprints.json";
+
+	private final File file;
+
+	private final State state;
+
+	private IncrementalState(File file, State state) {
+		this.file = file;
+		this.state = state;
+	}
+
+	/**
+	 * Loads the state of an output directory.
+	 *
+	 * @param outputDir the output directory
+	 * @return the state, empty if it was never saved or cannot be read
+	 */
+	public static IncrementalState load(File outputDir) {
+		final File file = new File(outputDir, FILE_NAME);
+		if (file.isFile()) {
+			try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				State state = GSON.fromJson(reader, State.class);
+				if (state != null && state.partitions != null) {
+					return new IncrementalState(file, state);
+				}
+			} catch (IOException | JsonParseException ex) {
+				LOG.warn("Could not read " + file + ", all the inputs will be processed.", ex);
+			}
+		}
+		return new IncrementalState(file, new State());
+	}
+
+	/**
+	 * Computes the fingerprint of an execution context.
+	 *
+	 * @param parts the parts of the context, e.g., the query and its parameters
+	 * @return the fingerprint
+	 */
+	public static String fingerprint(String... parts) {
+		try {
+			return FingerprintRecorder.fingerprint(
+					new ByteArrayInputStream(String.join("\n", parts).getBytes(StandardCharsets.UTF_8)));
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Checks whether an output partition is up to date.
+	 *
+	 * @param partition the name of the partition
+	 * @param context the fingerprint of the execution context
+	 * @param output the output of the partition
+	 * @param sm the stream manager used to open the documents again
+	 * @return true if the partition needs not be produced again
+	 */
+	public boolean isUpToDate(String partition, String context, File output, SPARQLExtStreamManager sm) {
+		final Partition p;
+		synchronized (this) {
+			p = state.partitions.get(partition);
+		}
+		if (p == null || !output.isFile() || !context.equals(p.context)) {
+			return false;
+		}
+		if (p.untracked != null && !p.untracked.isEmpty()) {
+			LOG.debug(partition + " used sources that cannot be fingerprinted: " + p.untracked);
+			return false;
+		}
+		for (Document doc : p.documents) {
+			if (doc.fingerprint == null) {
+				return false;
+			}
+			try (TypedInputStream tin = sm.open(new LookUpRequest(doc.uri, doc.accept))) {
+				if (tin == null) {
+					return false;
+				}
+				try (InputStream in = tin.getInputStream()) {
+					if (!doc.fingerprint.equals(FingerprintRecorder.fingerprint(in))) {
+						LOG.debug("Document " + doc.uri + " changed since " + partition + " was produced");
+						return false;
+					}
+				}
+			} catch (Exception ex) {
+				LOG.debug("Could not read document " + doc.uri, ex);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records the documents used to produce an output partition.
+	 *
+	 * @param partition the name of the partition
+	 * @param context the fingerprint of the execution context
+	 * @param recorder the fingerprints of the documents
+	 */
+	public void update(String partition, String context, FingerprintRecorder recorder) {
+		final Partition p = new Partition();
+		p.context = context;
+		for (Map.Entry<LookUpRequest, String> entry : recorder.getFingerprints().entrySet()) {
+			Document doc = new Document();
+			doc.uri = entry.getKey().getFilenameOrURI();
+			doc.accept = entry.getKey().getAccept();
+			doc.fingerprint = entry.getValue();
+			p.documents.add(doc);
+		}
+		p.untracked.addAll(recorder.getUntrackedSources());
+		synchronized (this) {
+			state.partitions.put(partition, p);
+		}
+	}
+
+	/**
+	 * Forgets an output partition, e.g., because producing it failed.
+	 *
+	 * @param partition the name of the partition
+	 */
+	public synchronized void remove(String partition) {
+		state.partitions.remove(partition);
+	}
+
+	/**
+	 * Saves the state in the output directory.
+	 *
+	 * @throws IOException if the state cannot be written
+	 */
+	public synchronized void save() throws IOException {
+		final File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			GSON.toJson(state, writer);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static class State {
+		private Map<String, Partition> partitions = new HashMap<>();
+	}
+
+	private static class Partition {
+		private String context;
+		private List<Document> documents = new ArrayList<>();
+		private List<String> untracked = new ArrayList<>();
+	}
+
+	private static class Document {
+		private String uri;
+		private String accept;
+		private String fingerprint;
+	}
+}
@@ -88,7 +88,10 @@ import com.google.gson.JsonSyntaxException;
 import fr.mines_stetienne.ci.sparql_generate.FileConfigurations;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanCache;
 import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanMetrics;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanProfile;
 import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.stream.LocationMapperAccept;
@@ -160,11 +163,23 @@ public class SPARQLExtCli {
 				throw new RuntimeException("Exception while initializing the log file", ex);
 			}
 		}
+		if (cl.hasOption(CMDConfigurations.ARG_METRICS)) {
+			PlanMetrics.setEnabled(true);
+		}
+		if (cl.hasOption(CMDConfigurations.ARG_PLAN_CACHE)) {
+			PlanCache.setDirectory(new File(dirFile, cl.getOptionValue(CMDConfigurations.ARG_PLAN_CACHE)));
+		}
 		try {
 
 //			exec(dirFile, r);
 			exec(dirFile, r, cl);
 
+			if (cl.hasOption(CMDConfigurations.ARG_METRICS)) {
+				File metricsFile = new File(dirFile, cl.getOptionValue(CMDConfigurations.ARG_METRICS));
+				Files.write(metricsFile.toPath(), PlanMetrics.dump().getBytes(StandardCharsets.UTF_8));
+				LOG.info("Metrics written to " + metricsFile);
+			}
+
 			long millis = Duration.between(start, Instant.now()).toMillis();
 			int min = (int) (millis / 60000);
 			int sec = (int) (millis % 60000 / 1000);
@@ -203,7 +218,17 @@ public class SPARQLExtCli {
 
 		RootPlan plan;
 		try {
-			plan = PlanFactory.create(q);
+			final PlanCache planCache = PlanCache.get();
+			if (planCache == null) {
+				plan = PlanFactory.create(q);
+			} else {
+				final String queryString = q.toString();
+				final SPARQLExtQuery cached = planCache.get(queryString, rq.base, false);
+				plan = PlanFactory.create(cached != null ? cached : q);
+				if (cached == null) {
+					planCache.put(queryString, rq.base, plan);
+				}
+			}
 		} catch (Exception ex) {
 			LOG.error("Error while creating the plan for the query.", ex);
 			return;
@@ -227,7 +252,13 @@ public class SPARQLExtCli {
 		// prepare initial binding
 		List<Binding> bindings = getBinding(cl);
 
-		if (q.isTemplateType()) {
+		// EXPLAIN ANALYZE
+		final PlanProfile profile = cl != null && cl.hasOption(CMDConfigurations.ARG_EXPLAIN) ? new PlanProfile() : null;
+		contextBuilder.setProfile(profile);
+
+		if (cl != null && cl.hasOption(CMDConfigurations.ARG_INPUTS)) {
+			new BatchExecution(workingDir, rq, cl, plan, ds, sm).setProfile(profile).exec(bindings.get(0));
+		} else if (q.isTemplateType()) {
 			if (rq.output == null) {
 				try (IndentedWriter output = IndentedWriter.stdout) {
 					Context context = contextBuilder.setTemplateOutput(output).build();
@@ -260,9 +291,14 @@ public class SPARQLExtCli {
 		} else {
 			LOG.error("Error: unsupported query type");
 		}
+
+		if (profile != null) {
+			System.err.print(profile.explain(plan));
+			System.err.flush();
+		}
 	}
 
-	private static List<Binding> getBinding(CommandLine cl) {
+	static List<Binding> getBinding(CommandLine cl) {
 		final BindingBuilder bindingBuilder = Binding.builder();
 		if(!cl.hasOption(CMDConfigurations.ARG_BIND_LONG)) {
 			ArrayList<Binding> bindings = new ArrayList<Binding>();
@@ -492,7 +528,7 @@ public class SPARQLExtCli {
 		return sm;
 	}
 
-	private static ResultsFormat getResultsFormat(CliRequest request) {
+	static ResultsFormat getResultsFormat(CliRequest request) {
 		if (request.outputFormat == null) {
 			return ResultsFormat.FMT_TEXT;
 		} else {
@@ -17,7 +17,7 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.util.Context;
@@ -41,18 +41,27 @@ public abstract class BindOrSourcePlan implements BindingsClausePlan {
      * @param values the values.
      * @param context the execution context.
      * 
-     * @return the new binding
+     * @return the values with a new column for the variable
      */
-    final public List<Binding> exec(
-            final List<Binding> values,
+    final public BindingBatch exec(
+            final BindingBatch values,
             final Context context) {
-        return values
-                .stream()
-                .map((binding) -> exec(binding, context))
-                .collect(Collectors.toList());
+        final List<Binding> bindings = values.asBindings();
+        final Node[] column = new Node[bindings.size()];
+        for (int i = 0; i < column.length; i++) {
+            column[i] = exec(bindings.get(i), context);
+        }
+        return values.withColumn(var, column);
     }
 
-    abstract protected Binding exec(
+    /**
+     * Evaluates the clause for one binding.
+     * @param binding the binding.
+     * @param context the execution context.
+     * 
+     * @return the value of the variable, or null if it remains unbound
+     */
+    abstract protected Node exec(
             final Binding binding,
             final Context context);
 
@@ -60,4 +69,4 @@ public abstract class BindOrSourcePlan implements BindingsClausePlan {
         return var;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
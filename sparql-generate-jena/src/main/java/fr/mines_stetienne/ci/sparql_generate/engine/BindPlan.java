@@ -17,6 +17,7 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import java.util.Objects;
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.NodeValue;
@@ -24,7 +25,6 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.function.FunctionEnvBase;
@@ -66,7 +66,7 @@ public class BindPlan extends BindOrSourcePlan {
     }
 
     @Override
-    protected final Binding exec(Binding binding, Context context) {
+    protected final Node exec(Binding binding, Context context) {
         LOG.debug("Start " + this);
         context.set(ARQConstants.sysCurrentTime, NodeFactoryExtra.nowAsDateTime());
         final FunctionEnv env = new FunctionEnvBase(context);
@@ -75,10 +75,10 @@ public class BindPlan extends BindOrSourcePlan {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("New binding " + var + " = " + LogUtils.compress(n.asNode()));
             }
-            return BindingFactory.binding(binding, var, n.asNode());
+            return n.asNode();
         } catch(ExprEvalException ex) {
             LOG.trace("No evaluation for " + this + " " + ex.getMessage());
-            return binding;
+            return null;
         }
     }
 
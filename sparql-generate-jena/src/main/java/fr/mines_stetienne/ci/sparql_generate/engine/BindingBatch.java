@@ -0,0 +1,541 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBase;
+
+/**
+ * A batch of solutions stored column by column: one array of nodes per
+ * variable, all the rows sharing the same list of variables. This is the unit
+ * of data passed between the ITERATOR, SOURCE and BIND clauses, the SELECT
+ * clause, and the GENERATE or TEMPLATE clause.
+ *
+ * <p>
+ * Batches are immutable. A BIND or SOURCE clause adds a column to a batch
+ * without copying the other columns, and a FILTER pushed down from the WHERE
+ * clause copies the rows it keeps. An ITERATOR clause builds a new batch
+ * with {@link #builder(BindingBatch, List)}, copying the cells of the rows it
+ * extends instead of chaining the bindings to their parent. The rows are
+ * exposed as ARQ {@link Binding}s, where looking up a variable is a map
+ * lookup and an array access, when a binding is needed: for evaluating
+ * expressions, for the initial values of the SELECT query, or for the
+ * iterator functions.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class BindingBatch {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final List<Var> vars;
+
+	private final Map<Var, Integer> index;
+
+	private final Node[][] columns;
+
+	private final int size;
+
+	private List<Binding> rows;
+
+	private BindingBatch(final List<Var> vars, final Map<Var, Integer> index, final Node[][] columns,
+			final int size) {
+		this.vars = vars;
+		this.index = index;
+		this.columns = columns;
+		this.size = size;
+	}
+
+	/**
+	 * Creates a batch from a list of bindings.
+	 *
+	 * @param variables the variables, may not contain all the variables bound
+	 * in the bindings
+	 * @param bindings the bindings
+	 * @return the batch
+	 */
+	public static BindingBatch of(final List<Var> variables, final List<Binding> bindings) {
+		final Collection<Var> vars = new LinkedHashSet<>(variables);
+		for (Binding binding : bindings) {
+			for (Iterator<Var> it = binding.vars(); it.hasNext();) {
+				vars.add(it.next());
+			}
+		}
+		final Builder builder = new Builder(new ArrayList<>(vars), bindings.size());
+		bindings.forEach(builder::add);
+		return builder.build();
+	}
+
+	/**
+	 * Creates a builder for a new batch.
+	 *
+	 * @param vars the variables of the new batch
+	 * @return the builder
+	 */
+	public static Builder builder(final List<Var> vars) {
+		return new Builder(new ArrayList<>(new LinkedHashSet<>(vars)), INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a builder for a new batch whose rows extend the rows of a parent
+	 * batch with values for new variables.
+	 *
+	 * @param parent the parent batch
+	 * @param extraVars the new variables
+	 * @return the builder
+	 */
+	public static ExtensionBuilder builder(final BindingBatch parent, final List<Var> extraVars) {
+		return new ExtensionBuilder(parent, extraVars);
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the batch has no row
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the variables of the batch, some of which may be unbound in all
+	 * the rows
+	 */
+	public List<Var> getVars() {
+		return Collections.unmodifiableList(vars);
+	}
+
+	/**
+	 * @return the variables that are bound in at least one row
+	 */
+	public List<Var> getBoundVars() {
+		final List<Var> bound = new ArrayList<>();
+		for (int c = 0; c < vars.size(); c++) {
+			final Node[] column = columns[c];
+			for (int r = 0; r < size; r++) {
+				if (column[r] != null) {
+					bound.add(vars.get(c));
+					break;
+				}
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * Gets the column of a variable.
+	 *
+	 * @param var the variable
+	 * @return the column, or -1 if the variable is not in the batch
+	 */
+	public int indexOf(final Var var) {
+		final Integer c = index.get(var);
+		return c == null ? -1 : c;
+	}
+
+	/**
+	 * Gets the value of a column in a row.
+	 *
+	 * @param row the row
+	 * @param column the column, see {@link #indexOf(Var)}
+	 * @return the value, or null if the variable is not bound in the row
+	 */
+	public Node get(final int row, final int column) {
+		return columns[column][row];
+	}
+
+	/**
+	 * Gets the value of a variable in a row.
+	 *
+	 * @param row the row
+	 * @param var the variable
+	 * @return the value, or null if the variable is not bound in the row
+	 */
+	public Node get(final int row, final Var var) {
+		final Integer c = index.get(var);
+		return c == null ? null : columns[c][row];
+	}
+
+	/**
+	 * Gets a row as a binding. The same binding is returned for the same row.
+	 *
+	 * @param row the row
+	 * @return the binding
+	 */
+	public Binding getBinding(final int row) {
+		return asBindings().get(row);
+	}
+
+	/**
+	 * Gets the rows as bindings, in order. The list is computed once.
+	 *
+	 * @return the bindings
+	 */
+	public List<Binding> asBindings() {
+		List<Binding> r = rows;
+		if (r == null) {
+			final Binding[] array = new Binding[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = new Row(i);
+			}
+			r = Collections.unmodifiableList(Arrays.asList(array));
+			rows = r;
+		}
+		return r;
+	}
+
+	/**
+	 * Creates a batch with one more column. The other columns are shared with
+	 * this batch.
+	 *
+	 * @param var the variable of the column
+	 * @param column the values of the variable, one per row
+	 * @return the new batch
+	 */
+	public BindingBatch withColumn(final Var var, final Node[] column) {
+		if (column.length < size) {
+			throw new IllegalArgumentException("Column has " + column.length + " values, expected " + size);
+		}
+		final Integer existing = index.get(var);
+		if (existing != null) {
+			final Node[][] newColumns = columns.clone();
+			newColumns[existing] = column;
+			return new BindingBatch(vars, index, newColumns, size);
+		}
+		final List<Var> newVars = new ArrayList<>(vars);
+		newVars.add(var);
+		final Map<Var, Integer> newIndex = new HashMap<>(index);
+		newIndex.put(var, vars.size());
+		final Node[][] newColumns = Arrays.copyOf(columns, columns.length + 1);
+		newColumns[columns.length] = column;
+		return new BindingBatch(newVars, newIndex, newColumns, size);
+	}
+
+	/**
+	 * Creates a batch with the same rows, restricted or extended to a list of
+	 * variables. The columns are shared with this batch.
+	 *
+	 * @param variables the variables of the new batch
+	 * @return the new batch
+	 */
+	public BindingBatch select(final List<Var> variables) {
+		final List<Var> newVars = new ArrayList<>(new LinkedHashSet<>(variables));
+		final Map<Var, Integer> newIndex = new HashMap<>();
+		final Node[][] newColumns = new Node[newVars.size()][];
+		Node[] empty = null;
+		for (int c = 0; c < newVars.size(); c++) {
+			final Var var = newVars.get(c);
+			newIndex.put(var, c);
+			final Integer old = index.get(var);
+			if (old != null) {
+				newColumns[c] = columns[old];
+			} else {
+				if (empty == null) {
+					empty = new Node[size];
+				}
+				newColumns[c] = empty;
+			}
+		}
+		return new BindingBatch(newVars, newIndex, newColumns, size);
+	}
+
+	/**
+	 * Creates a batch with some of the rows of this batch, in order.
+	 *
+	 * @param keep for each row, whether it is kept
+	 * @return the new batch, or this batch if all the rows are kept
+	 */
+	public BindingBatch filter(final boolean[] keep) {
+		int newSize = 0;
+		for (int r = 0; r < size; r++) {
+			if (keep[r]) {
+				newSize++;
+			}
+		}
+		if (newSize == size) {
+			return this;
+		}
+		final Node[][] newColumns = new Node[columns.length][newSize];
+		for (int c = 0; c < columns.length; c++) {
+			final Node[] column = columns[c];
+			final Node[] newColumn = newColumns[c];
+			for (int r = 0, i = 0; r < size; r++) {
+				if (keep[r]) {
+					newColumn[i++] = column[r];
+				}
+			}
+		}
+		return new BindingBatch(vars, index, newColumns, newSize);
+	}
+
+	@Override
+	public String toString() {
+		return "BindingBatch " + vars + " with " + size + " rows";
+	}
+
+	private static Map<Var, Integer> index(final List<Var> vars) {
+		final Map<Var, Integer> index = new HashMap<>();
+		for (int c = 0; c < vars.size(); c++) {
+			index.put(vars.get(c), c);
+		}
+		return index;
+	}
+
+	private static Node[][] grow(final Node[][] columns, final int capacity) {
+		final Node[][] newColumns = new Node[columns.length][];
+		for (int c = 0; c < columns.length; c++) {
+			newColumns[c] = Arrays.copyOf(columns[c], capacity);
+		}
+		return newColumns;
+	}
+
+	/**
+	 * Builds a batch row by row from bindings.
+	 */
+	public static final class Builder {
+
+		private final List<Var> vars;
+
+		private Node[][] columns;
+
+		private int capacity;
+
+		private int size;
+
+		private Builder(final List<Var> vars, final int capacity) {
+			this.vars = vars;
+			this.capacity = Math.max(capacity, 1);
+			this.columns = new Node[vars.size()][this.capacity];
+		}
+
+		/**
+		 * Adds a row with the values of the variables in a binding.
+		 *
+		 * @param binding the binding
+		 * @return this builder
+		 */
+		public Builder add(final Binding binding) {
+			if (size == capacity) {
+				capacity *= 2;
+				columns = grow(columns, capacity);
+			}
+			for (int c = 0; c < columns.length; c++) {
+				columns[c][size] = binding.get(vars.get(c));
+			}
+			size++;
+			return this;
+		}
+
+		/**
+		 * @return the number of rows added so far
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the batch
+		 */
+		public BindingBatch build() {
+			return new BindingBatch(vars, index(vars), columns, size);
+		}
+
+	}
+
+	/**
+	 * Builds a batch whose rows extend the rows of a parent batch.
+	 */
+	public static final class ExtensionBuilder {
+
+		private final BindingBatch parent;
+
+		private final List<Var> vars;
+
+		/**
+		 * The column of each extra variable in the new batch.
+		 */
+		private final int[] extraColumns;
+
+		private Node[][] columns;
+
+		private int capacity = INITIAL_CAPACITY;
+
+		private int size;
+
+		private ExtensionBuilder(final BindingBatch parent, final List<Var> extraVars) {
+			this.parent = parent;
+			this.vars = new ArrayList<>(parent.vars);
+			this.extraColumns = new int[extraVars.size()];
+			for (int i = 0; i < extraVars.size(); i++) {
+				final Var var = extraVars.get(i);
+				int c = vars.indexOf(var);
+				if (c < 0) {
+					c = vars.size();
+					vars.add(var);
+				}
+				extraColumns[i] = c;
+			}
+			this.columns = new Node[vars.size()][INITIAL_CAPACITY];
+		}
+
+		/**
+		 * Adds a row that extends a row of the parent batch.
+		 *
+		 * @param parentRow the row of the parent batch
+		 * @param values the values of the extra variables, in order. Null
+		 * values leave the variable unbound. Missing values are ignored.
+		 * @return this builder
+		 */
+		public ExtensionBuilder add(final int parentRow, final Node[] values) {
+			if (size == capacity) {
+				capacity *= 2;
+				columns = grow(columns, capacity);
+			}
+			final Node[][] parentColumns = parent.columns;
+			for (int c = 0; c < parentColumns.length; c++) {
+				columns[c][size] = parentColumns[c][parentRow];
+			}
+			for (int i = 0; i < extraColumns.length && i < values.length; i++) {
+				if (values[i] != null) {
+					columns[extraColumns[i]][size] = values[i];
+				}
+			}
+			size++;
+			return this;
+		}
+
+		/**
+		 * @return the number of rows added so far
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the batch
+		 */
+		public BindingBatch build() {
+			return new BindingBatch(vars, index(vars), columns, size);
+		}
+
+	}
+
+	/**
+	 * A row of the batch, seen as a binding without parent.
+	 */
+	private final class Row extends BindingBase {
+
+		private final int row;
+
+		private Row(final int row) {
+			super(null);
+			this.row = row;
+		}
+
+		@Override
+		protected Iterator<Var> vars1() {
+			return new Iterator<Var>() {
+
+				private int next = advance(0);
+
+				private int advance(int c) {
+					while (c < vars.size() && columns[c][row] == null) {
+						c++;
+					}
+					return c;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next < vars.size();
+				}
+
+				@Override
+				public Var next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					final Var var = vars.get(next);
+					next = advance(next + 1);
+					return var;
+				}
+			};
+		}
+
+		@Override
+		protected void forEach1(final BiConsumer<Var, Node> action) {
+			for (int c = 0; c < vars.size(); c++) {
+				final Node node = columns[c][row];
+				if (node != null) {
+					action.accept(vars.get(c), node);
+				}
+			}
+		}
+
+		@Override
+		protected int size1() {
+			int n = 0;
+			for (int c = 0; c < vars.size(); c++) {
+				if (columns[c][row] != null) {
+					n++;
+				}
+			}
+			return n;
+		}
+
+		@Override
+		protected boolean isEmpty1() {
+			for (int c = 0; c < vars.size(); c++) {
+				if (columns[c][row] != null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected boolean contains1(final Var var) {
+			return get1(var) != null;
+		}
+
+		@Override
+		protected Node get1(final Var var) {
+			return BindingBatch.this.get(row, var);
+		}
+
+	}
+
+}
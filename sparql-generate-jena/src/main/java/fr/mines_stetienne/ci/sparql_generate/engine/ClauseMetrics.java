@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+
+/**
+ * The metrics of one clause of a query, summed over all the executions of
+ * the query: the number of executions, of bindings in and out, of batches, the
+ * time spent in the clause with and without the clauses that follow, and the
+ * number of characters fetched by SOURCE clauses.
+ *
+ * @author Maxime Lefrançois
+ */
+public class ClauseMetrics implements ClauseMetricsMBean {
+
+	private final String query;
+	private final String kind;
+	private final String clause;
+
+	private final LongAdder executions = new LongAdder();
+	private final LongAdder bindingsIn = new LongAdder();
+	private final LongAdder bindingsOut = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAdder downstreamNanos = new LongAdder();
+	private final LongAdder charactersFetched = new LongAdder();
+
+	ClauseMetrics(String query, String kind, String clause) {
+		this.query = query;
+		this.kind = kind;
+		this.clause = clause;
+	}
+
+	/**
+	 * Records one execution of the clause.
+	 *
+	 * @param in the number of bindings in
+	 * @param out the number of bindings out, or 0 if they are counted by
+	 * batches
+	 * @param nanos the time spent in the clause
+	 */
+	void record(int in, int out, long nanos) {
+		executions.increment();
+		bindingsIn.add(in);
+		bindingsOut.add(out);
+		totalNanos.add(nanos);
+	}
+
+	/**
+	 * Records a batch of bindings emitted by the clause.
+	 *
+	 * @param out the number of bindings in the batch
+	 */
+	void recordBatch(int out) {
+		batches.increment();
+		bindingsOut.add(out);
+	}
+
+	/**
+	 * Records time spent in the clauses that follow, while this clause was
+	 * executing.
+	 *
+	 * @param nanos the time
+	 */
+	void recordDownstream(long nanos) {
+		downstreamNanos.add(nanos);
+	}
+
+	/**
+	 * Records the size of the documents bound by a SOURCE clause.
+	 */
+	void recordFetched(BindingBatch values, Var var) {
+		for (int i = 0; i < values.size(); i++) {
+			Node node = values.get(i, var);
+			if (node != null && node.isLiteral()) {
+				charactersFetched.add(node.getLiteralLexicalForm().length());
+			}
+		}
+	}
+
+	@Override
+	public String getQuery() {
+		return query;
+	}
+
+	@Override
+	public String getKind() {
+		return kind;
+	}
+
+	@Override
+	public String getClause() {
+		return clause;
+	}
+
+	@Override
+	public long getExecutions() {
+		return executions.sum();
+	}
+
+	@Override
+	public long getBindingsIn() {
+		return bindingsIn.sum();
+	}
+
+	@Override
+	public long getBindingsOut() {
+		return bindingsOut.sum();
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	@Override
+	public long getTotalTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getTotalNanos());
+	}
+
+	@Override
+	public long getSelfTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getSelfNanos());
+	}
+
+	long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	long getSelfNanos() {
+		return Math.max(0, totalNanos.sum() - downstreamNanos.sum());
+	}
+
+	@Override
+	public long getCharactersFetched() {
+		return charactersFetched.sum();
+	}
+
+	@Override
+	public void reset() {
+		executions.reset();
+		bindingsIn.reset();
+		bindingsOut.reset();
+		batches.reset();
+		totalNanos.reset();
+		downstreamNanos.reset();
+		charactersFetched.reset();
+	}
+
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2020 Ã‰cole des Mines de Saint-Ã‰tienne.
+ * Copyright 2020 MINES Saint-Étienne
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,20 +13,35 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package fr.mines_stetienne.ci.sparql_generate.ws;
-
-import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
-import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionLoader;
+package fr.mines_stetienne.ci.sparql_generate.engine;
 
 /**
+ * The JMX interface of {@link ClauseMetrics}.
  *
  * @author Maxime Lefrançois
  */
-public class FunctionsLoader implements IteratorFunctionLoader {
-    
-    @Override
-    public void load(IteratorFunctionRegistry itereg) {
-        itereg.put(ITER_WebSocket.URI, ITER_WebSocket.class);
-    }
-    
+public interface ClauseMetricsMBean {
+
+	String getQuery();
+
+	String getKind();
+
+	String getClause();
+
+	long getExecutions();
+
+	long getBindingsIn();
+
+	long getBindingsOut();
+
+	long getBatches();
+
+	long getTotalTimeMillis();
+
+	long getSelfTimeMillis();
+
+	long getCharactersFetched();
+
+	void reset();
+
 }
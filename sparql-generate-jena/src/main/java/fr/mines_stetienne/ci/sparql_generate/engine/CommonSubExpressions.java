@@ -0,0 +1,686 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_BNode;
+import org.apache.jena.sparql.expr.E_Call;
+import org.apache.jena.sparql.expr.E_Coalesce;
+import org.apache.jena.sparql.expr.E_Conditional;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_LogicalAnd;
+import org.apache.jena.sparql.expr.E_LogicalOr;
+import org.apache.jena.sparql.expr.E_Now;
+import org.apache.jena.sparql.expr.E_OneOfBase;
+import org.apache.jena.sparql.expr.E_Random;
+import org.apache.jena.sparql.expr.E_StrUUID;
+import org.apache.jena.sparql.expr.E_UUID;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.PatternVars;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.expr.E_URIParam;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSource;
+import fr.mines_stetienne.ci.sparql_generate.utils.VarUtils;
+
+/**
+ * Rewrites a normalized query so that the deterministic sub-expressions it
+ * repeats are evaluated once per binding.
+ *
+ * <p>
+ * Only the expressions that are deterministic and free of side effects are
+ * shared, so that the functions that change something outside of the query,
+ * e.g., that send a POST request, are called as many times as before. The
+ * extension functions have side effects unless they are declared otherwise,
+ * see {@link SPARQLExt#isSideEffectFree(String)}.
+ * </p>
+ *
+ * <p>
+ * The expressions of the BIND and ITERATOR clauses, of the top-level FILTER
+ * and BIND of the WHERE clause, and of the GENERATE or PERFORM clause (the
+ * expressions that the generated SELECT query projects) are rewritten as
+ * follows:
+ * </p>
+ * <ul>
+ * <li>an expression that a BIND clause already evaluates is replaced by the
+ * variable of that clause;</li>
+ * <li>a function call that is repeated is evaluated by a new BIND clause
+ * inserted before its first use, or by a new projected expression if it is
+ * only used in the GENERATE or PERFORM clause, and is replaced by the new
+ * variable. Only the calls that are always evaluated are counted: not those
+ * in the branches of IF, or in the arguments of COALESCE, ||, &amp;&amp;, IN
+ * and NOT IN after the first one.</li>
+ * </ul>
+ * <p>
+ * The WHERE clause and the projected expressions are only rewritten with
+ * variables of the binding clauses that the WHERE pattern does not bind, so
+ * that the expression and the variable have the same value where the
+ * expression is evaluated. They are not rewritten for SELECT queries and for
+ * queries with aggregates or a GROUP BY clause.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+final class CommonSubExpressions {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CommonSubExpressions.class);
+
+	private static final String PREFIX = "cse_";
+
+	private final List<Element> clauses;
+
+	private final List<Var> projectVars = new ArrayList<>();
+
+	private final Map<Var, Expr> projectExprs = new HashMap<>();
+
+	private final List<Element> pattern;
+
+	private final boolean rewriteProjection;
+
+	/**
+	 * The variables bound by the WHERE clause.
+	 */
+	private final Set<Var> patternVars = new HashSet<>();
+
+	/**
+	 * The variables already used by the query.
+	 */
+	private final Set<Var> usedVars = new HashSet<>();
+
+	/**
+	 * The expressions evaluated by the binding clauses, with their variable.
+	 */
+	private final Map<Key, Var> bound = new HashMap<>();
+
+	private boolean changed = false;
+
+	private boolean patternChanged = false;
+
+	private CommonSubExpressions(final SPARQLExtQuery query) {
+		clauses = query.hasBindingClauses() ? new ArrayList<>(query.getBindingClauses()) : new ArrayList<>();
+		rewriteProjection = !query.isSelectType() && !query.hasAggregators() && !query.hasGroupBy();
+		if (rewriteProjection) {
+			query.getPostSelect().forEachVarExpr((v, e) -> {
+				projectVars.add(v);
+				projectExprs.put(v, e);
+			});
+		}
+		if (query.getQueryPattern() instanceof ElementGroup) {
+			pattern = new ArrayList<>(((ElementGroup) query.getQueryPattern()).getElements());
+			patternVars.addAll(PatternVars.vars(query.getQueryPattern()));
+		} else {
+			pattern = null;
+			if (query.getQueryPattern() != null) {
+				patternVars.addAll(PatternVars.vars(query.getQueryPattern()));
+			}
+		}
+		if (query.hasValues()) {
+			patternVars.addAll(query.getValuesVariables());
+		}
+		usedVars.addAll(patternVars);
+		for (Element clause : clauses) {
+			usedVars.addAll(getBoundVars(clause));
+			for (Expr expr : getExprs(clause)) {
+				usedVars.addAll(expr.getVarsMentioned());
+			}
+		}
+		for (Var var : projectVars) {
+			usedVars.add(var);
+			if (projectExprs.get(var) != null) {
+				usedVars.addAll(projectExprs.get(var).getVarsMentioned());
+			}
+		}
+	}
+
+	/**
+	 * Rewrites a normalized query so that the deterministic sub-expressions it
+	 * repeats are evaluated once per binding.
+	 *
+	 * @param query the normalized query
+	 * @return the query if nothing is rewritten, or a rewritten copy
+	 */
+	static SPARQLExtQuery eliminate(final SPARQLExtQuery query) {
+		final CommonSubExpressions cse = new CommonSubExpressions(query);
+		cse.reuseBindClauses();
+		cse.shareInBindingClauses();
+		cse.reuseInProjection();
+		cse.shareInProjection();
+		if (!cse.changed) {
+			return query;
+		}
+		final SPARQLExtQuery output = query.copyQuery();
+		if (query.hasBindingClauses()) {
+			output.setBindingClauses(cse.clauses);
+		}
+		if (cse.rewriteProjection) {
+			output.getPostSelect().clear();
+			for (Var var : cse.projectVars) {
+				output.addPostSelect(var, cse.projectExprs.get(var));
+			}
+		}
+		if (cse.patternChanged) {
+			final ElementGroup group = new ElementGroup();
+			cse.pattern.forEach(group::addElement);
+			output.setQueryPattern(group);
+		}
+		LOG.trace("Shared the common sub-expressions of the query\n" + output);
+		return output;
+	}
+
+	/**
+	 * Replaces the expressions that a previous BIND clause evaluates by the
+	 * variable of that clause.
+	 */
+	private void reuseBindClauses() {
+		for (int i = 0; i < clauses.size(); i++) {
+			final Element clause = clauses.get(i);
+			if (clause instanceof ElementBind) {
+				final ElementBind bind = (ElementBind) clause;
+				final Expr expr = replace(bind.getExpr(), bound, true);
+				if (expr != bind.getExpr()) {
+					clauses.set(i, new ElementBind(bind.getVar(), expr));
+					changed = true;
+				}
+				forget(bind.getVar());
+				if (isShareable(bind.getExpr()) && !bind.getExpr().getVarsMentioned().contains(bind.getVar())) {
+					bound.put(new Key(bind.getExpr()), bind.getVar());
+				}
+			} else if (clause instanceof ElementIterator) {
+				final ElementIterator iterator = (ElementIterator) clause;
+				final Expr expr = replace(iterator.getExpr(), bound, false);
+				if (expr != iterator.getExpr()) {
+					clauses.set(i, new ElementIterator(expr, iterator.getVars()));
+					changed = true;
+				}
+				iterator.getVars().forEach(this::forget);
+			} else if (clause instanceof ElementSource) {
+				forget(((ElementSource) clause).getVar());
+			}
+		}
+	}
+
+	/**
+	 * Binds the function calls that the binding clauses repeat, or use once
+	 * along with the projection, to a new variable before their first use.
+	 */
+	private void shareInBindingClauses() {
+		final Map<Key, Integer> counts = new LinkedHashMap<>();
+		for (Element clause : clauses) {
+			for (Expr expr : getExprs(clause)) {
+				count(expr, counts, !(clause instanceof ElementBind));
+			}
+		}
+		final Map<Key, Integer> projectCounts = new LinkedHashMap<>();
+		for (Var var : projectVars) {
+			if (projectExprs.get(var) != null) {
+				count(projectExprs.get(var), projectCounts, true);
+			}
+		}
+		final List<Expr> candidates = new ArrayList<>();
+		counts.forEach((key, count) -> {
+			if (count + (isVisibleInProjection(key.expr) ? projectCounts.getOrDefault(key, 0) : 0) >= 2) {
+				candidates.add(key.expr);
+			}
+		});
+		candidates.sort(Comparator.comparingInt(CommonSubExpressions::size).reversed());
+		for (Expr candidate : candidates) {
+			final Key key = new Key(candidate);
+			int first = -1;
+			int count = 0;
+			for (int i = 0; i < clauses.size(); i++) {
+				final Map<Key, Integer> c = new HashMap<>();
+				for (Expr expr : getExprs(clauses.get(i))) {
+					count(expr, c, !(clauses.get(i) instanceof ElementBind));
+				}
+				if (c.containsKey(key)) {
+					first = first == -1 ? i : first;
+					count += c.get(key);
+				}
+			}
+			if (first == -1 || !isBoundBefore(candidate, first)) {
+				continue;
+			}
+			if (isVisibleInProjection(candidate)) {
+				count += countInProjection(candidate);
+			}
+			if (count < 2) {
+				continue;
+			}
+			final Var var = allocVar(candidate);
+			final Map<Key, Var> replacement = Collections.singletonMap(key, var);
+			for (int i = first; i < clauses.size(); i++) {
+				clauses.set(i, replace(clauses.get(i), replacement));
+			}
+			clauses.add(first, new ElementBind(var, candidate));
+			bound.put(key, var);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Replaces the expressions of the projection and of the top-level FILTER
+	 * and BIND of the WHERE clause that a binding clause evaluates by the
+	 * variable of that clause.
+	 */
+	private void reuseInProjection() {
+		final Map<Key, Var> visible = new HashMap<>();
+		bound.forEach((key, var) -> {
+			if (!patternVars.contains(var) && isVisibleInProjection(key.expr)) {
+				visible.put(key, var);
+			}
+		});
+		if (visible.isEmpty()) {
+			return;
+		}
+		if (pattern != null) {
+			for (int i = 0; i < pattern.size(); i++) {
+				final Element el = pattern.get(i);
+				if (el instanceof ElementFilter) {
+					final Expr expr = ((ElementFilter) el).getExpr();
+					final Expr newExpr = replace(expr, visible, true);
+					if (newExpr != expr) {
+						pattern.set(i, new ElementFilter(newExpr));
+						changed = patternChanged = true;
+					}
+				} else if (el instanceof ElementBind) {
+					final ElementBind bind = (ElementBind) el;
+					final Expr newExpr = replace(bind.getExpr(), visible, true);
+					if (newExpr != bind.getExpr()) {
+						pattern.set(i, new ElementBind(bind.getVar(), newExpr));
+						changed = patternChanged = true;
+					}
+				}
+			}
+		}
+		for (Var var : projectVars) {
+			final Expr expr = projectExprs.get(var);
+			if (expr == null) {
+				continue;
+			}
+			final Expr newExpr = replace(expr, visible, true);
+			if (newExpr != expr) {
+				projectExprs.put(var, newExpr);
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Binds the function calls that the projection repeats to a new projected
+	 * variable, before their first use.
+	 */
+	private void shareInProjection() {
+		final Map<Key, Integer> counts = new LinkedHashMap<>();
+		for (Var var : projectVars) {
+			if (projectExprs.get(var) != null) {
+				count(projectExprs.get(var), counts, true);
+			}
+		}
+		final List<Expr> candidates = new ArrayList<>();
+		counts.forEach((key, count) -> {
+			if (count >= 2) {
+				candidates.add(key.expr);
+			}
+		});
+		candidates.sort(Comparator.comparingInt(CommonSubExpressions::size).reversed());
+		for (Expr candidate : candidates) {
+			if (countInProjection(candidate) < 2) {
+				continue;
+			}
+			final Var var = allocVar(candidate);
+			final Map<Key, Var> replacement = Collections.singletonMap(new Key(candidate), var);
+			int first = -1;
+			for (int i = 0; i < projectVars.size(); i++) {
+				final Expr expr = projectExprs.get(projectVars.get(i));
+				if (expr == null) {
+					continue;
+				}
+				final Expr newExpr = replace(expr, replacement, true);
+				if (newExpr != expr) {
+					projectExprs.put(projectVars.get(i), newExpr);
+					first = first == -1 ? i : first;
+				}
+			}
+			projectVars.add(first, var);
+			projectExprs.put(var, candidate);
+			changed = true;
+		}
+	}
+
+	private int countInProjection(final Expr candidate) {
+		final Map<Key, Integer> counts = new HashMap<>();
+		for (Var var : projectVars) {
+			if (projectExprs.get(var) != null) {
+				count(projectExprs.get(var), counts, true);
+			}
+		}
+		return counts.getOrDefault(new Key(candidate), 0);
+	}
+
+	/**
+	 * Checks that the variables of an expression are bound before a binding
+	 * clause, and are not bound again by that clause or the clauses that
+	 * follow.
+	 */
+	private boolean isBoundBefore(final Expr expr, final int index) {
+		final Set<Var> vars = expr.getVarsMentioned();
+		for (int i = index; i < clauses.size(); i++) {
+			if (!Collections.disjoint(vars, getBoundVars(clauses.get(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that an expression has the same value in the binding clauses and
+	 * in the WHERE clause, i.e., that the WHERE pattern does not bind its
+	 * variables.
+	 */
+	private boolean isVisibleInProjection(final Expr expr) {
+		return rewriteProjection && Collections.disjoint(expr.getVarsMentioned(), patternVars);
+	}
+
+	private void forget(final Var var) {
+		bound.entrySet().removeIf((e) -> e.getValue().equals(var) || e.getKey().expr.getVarsMentioned().contains(var));
+	}
+
+	private Var allocVar(final Expr expr) {
+		final String base = PREFIX + Integer.toHexString(expr.hashCode());
+		Var var = VarUtils.allocVar(base);
+		for (int i = 1; usedVars.contains(var); i++) {
+			var = VarUtils.allocVar(base + "_" + i);
+		}
+		usedVars.add(var);
+		return var;
+	}
+
+	private static Collection<Var> getBoundVars(final Element clause) {
+		if (clause instanceof ElementBind) {
+			return Collections.singleton(((ElementBind) clause).getVar());
+		} else if (clause instanceof ElementIterator) {
+			return ((ElementIterator) clause).getVars();
+		} else if (clause instanceof ElementSource) {
+			return Collections.singleton(((ElementSource) clause).getVar());
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Gets the expressions of a binding clause: the expression of a BIND, or
+	 * the arguments of an ITERATOR.
+	 */
+	private static List<Expr> getExprs(final Element clause) {
+		if (clause instanceof ElementBind) {
+			return Collections.singletonList(((ElementBind) clause).getExpr());
+		} else if (clause instanceof ElementIterator) {
+			final Expr expr = ((ElementIterator) clause).getExpr();
+			if (expr.isFunction()) {
+				return expr.getFunction().getArgs();
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	private static Element replace(final Element clause, final Map<Key, Var> replacement) {
+		if (clause instanceof ElementBind) {
+			final ElementBind bind = (ElementBind) clause;
+			final Expr expr = replace(bind.getExpr(), replacement, true);
+			return expr == bind.getExpr() ? clause : new ElementBind(bind.getVar(), expr);
+		} else if (clause instanceof ElementIterator) {
+			final ElementIterator iterator = (ElementIterator) clause;
+			final Expr expr = replace(iterator.getExpr(), replacement, false);
+			return expr == iterator.getExpr() ? clause : new ElementIterator(expr, iterator.getVars());
+		}
+		return clause;
+	}
+
+	/**
+	 * Replaces the sub-expressions of an expression by variables, the largest
+	 * first.
+	 *
+	 * @param expr the expression
+	 * @param replacement the variable of each sub-expression to replace
+	 * @param root whether the expression itself may be replaced
+	 * @return the expression if nothing is replaced, or a new expression
+	 */
+	private static Expr replace(final Expr expr, final Map<Key, Var> replacement, final boolean root) {
+		final Var var = root ? replacement.get(new Key(expr)) : null;
+		if (var != null) {
+			return new ExprVar(var);
+		}
+		if (!(expr instanceof ExprFunction) || expr instanceof ExprFunctionOp) {
+			return expr;
+		}
+		final ExprFunction function = (ExprFunction) expr;
+		final List<Expr> args = new ArrayList<>();
+		boolean replaced = false;
+		for (Expr arg : function.getArgs()) {
+			final Expr newArg = replace(arg, replacement, true);
+			replaced |= newArg != arg;
+			args.add(newArg);
+		}
+		if (!replaced) {
+			return expr;
+		}
+		if (function instanceof ExprFunction1) {
+			return ((ExprFunction1) function).copy(args.get(0));
+		} else if (function instanceof ExprFunction2) {
+			return ((ExprFunction2) function).copy(args.get(0), args.get(1));
+		} else if (function instanceof ExprFunction3) {
+			return ((ExprFunction3) function).copy(args.get(0), args.get(1), args.get(2));
+		} else if (function instanceof ExprFunctionN) {
+			return ((ExprFunctionN) function).copy(new ExprList(args));
+		}
+		return expr;
+	}
+
+	/**
+	 * Counts the function calls of an expression that may be shared.
+	 *
+	 * @param expr the expression
+	 * @param counts the counts
+	 * @param root whether the expression itself is counted
+	 */
+	private static void count(final Expr expr, final Map<Key, Integer> counts, final boolean root) {
+		if (root && isShareable(expr) && hasFunctionCall(expr)) {
+			counts.merge(new Key(expr), 1, Integer::sum);
+		}
+		if (expr instanceof ExprFunction && !(expr instanceof ExprFunctionOp)) {
+			final List<Expr> args = ((ExprFunction) expr).getArgs();
+			final int evaluated = isShortCircuit(expr) ? Math.min(1, args.size()) : args.size();
+			for (int i = 0; i < evaluated; i++) {
+				count(args.get(i), counts, true);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an expression may skip the evaluation of its arguments
+	 * after the first one. The function calls of these arguments are not
+	 * counted, as binding them to a variable would evaluate them for every
+	 * binding, e.g., the branch of an IF that is not taken.
+	 */
+	private static boolean isShortCircuit(final Expr expr) {
+		return expr instanceof E_Conditional || expr instanceof E_Coalesce || expr instanceof E_LogicalOr
+				|| expr instanceof E_LogicalAnd || expr instanceof E_OneOfBase;
+	}
+
+	/**
+	 * Checks whether the value of an expression may be bound to a variable
+	 * and reused: it is a function call that returns the same value when it
+	 * is evaluated twice with the same binding, and has no side effect.
+	 */
+	private static boolean isShareable(final Expr expr) {
+		return expr instanceof ExprFunction && !(expr instanceof E_URIParam) && isDeterministic(expr)
+				&& isSideEffectFree(expr);
+	}
+
+	/**
+	 * Checks whether an expression returns the same value when it is
+	 * evaluated twice with the same binding.
+	 */
+	static boolean isDeterministic(final Expr expr) {
+		if (expr instanceof ExprFunctionOp || expr instanceof ExprAggregator || expr instanceof E_Random
+				|| expr instanceof E_UUID || expr instanceof E_StrUUID || expr instanceof E_BNode
+				|| expr instanceof E_Now) {
+			return false;
+		}
+		if (expr instanceof ExprFunction) {
+			for (Expr arg : ((ExprFunction) expr).getArgs()) {
+				if (!isDeterministic(arg)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether evaluating an expression changes nothing outside of the
+	 * query, so that it may be skipped, or evaluated a different number of
+	 * times. The built-in functions have no side effect. The extension
+	 * functions, and the functions called by IRI or by the patterns of EXISTS,
+	 * have side effects unless they are declared otherwise, see
+	 * {@link SPARQLExt#isSideEffectFree(String)}.
+	 */
+	static boolean isSideEffectFree(final Expr expr) {
+		if (expr instanceof ExprFunctionOp || expr instanceof E_Call) {
+			return false;
+		}
+		if (expr instanceof E_Function && !SPARQLExt.isSideEffectFree(((E_Function) expr).getFunctionIRI())) {
+			return false;
+		}
+		if (expr instanceof ExprFunction) {
+			for (Expr arg : ((ExprFunction) expr).getArgs()) {
+				if (!isSideEffectFree(arg)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether an expression calls a function that is not built-in,
+	 * which is worth evaluating only once.
+	 */
+	private static boolean hasFunctionCall(final Expr expr) {
+		if (expr instanceof E_Function) {
+			return true;
+		}
+		if (expr instanceof ExprFunction) {
+			for (Expr arg : ((ExprFunction) expr).getArgs()) {
+				if (hasFunctionCall(arg)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int size(final Expr expr) {
+		int size = 1;
+		if (expr instanceof ExprFunction) {
+			for (Expr arg : ((ExprFunction) expr).getArgs()) {
+				size += size(arg);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Checks whether two equal expressions call the same functions. The
+	 * equality of the Jena expressions ignores the IRI of the functions they
+	 * call, e.g., {@code ex:f(?x)} equals {@code ex:g(?x)}.
+	 */
+	private static boolean callSameFunctions(final Expr expr, final Expr other) {
+		if (expr instanceof E_Function
+				&& !((E_Function) expr).getFunctionIRI().equals(((E_Function) other).getFunctionIRI())) {
+			return false;
+		}
+		if (expr instanceof ExprFunction) {
+			final List<Expr> args = ((ExprFunction) expr).getArgs();
+			final List<Expr> otherArgs = ((ExprFunction) other).getArgs();
+			for (int i = 0; i < args.size(); i++) {
+				if (!callSameFunctions(args.get(i), otherArgs.get(i))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * An expression used as a key, equal to the expressions that are equal and
+	 * call the same functions.
+	 */
+	private static final class Key {
+
+		private final Expr expr;
+
+		private Key(final Expr expr) {
+			this.expr = expr;
+		}
+
+		@Override
+		public int hashCode() {
+			return expr.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return expr.equals(other.expr) && callSameFunctions(expr, other.expr);
+		}
+
+	}
+
+}
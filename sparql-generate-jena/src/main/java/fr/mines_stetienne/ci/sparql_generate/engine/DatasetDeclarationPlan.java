@@ -183,4 +183,28 @@ public class DatasetDeclarationPlan {
 		Context newContext = ContextUtils.fork(context).setGenerateOutput(dest).fork();
 		queryExecutor.execGenerateFromQuery(generate, binding, newContext);
 	}
+
+	@Override
+	public String toString() {
+		if (fromClauses == null || fromClauses.isEmpty()) {
+			return "FROM the input dataset";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (FromClause fromClause : fromClauses) {
+			if (sb.length() > 0) {
+				sb.append(" ");
+			}
+			sb.append(fromClause.isNamed() ? "FROM NAMED " : "FROM ");
+			if (fromClause.getGenerate() != null) {
+				sb.append("GENERATE { ... }");
+				if (fromClause.getName() != null) {
+					sb.append(" ");
+				}
+			}
+			if (fromClause.getName() != null) {
+				sb.append(fromClause.getName());
+			}
+		}
+		return sb.toString();
+	}
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.Objects;
+import org.apache.jena.sparql.ARQConstants;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes a {@code FILTER( <expr> )} of the WHERE clause that only depends on
+ * the variables of the binding clauses, right after the last of these clauses,
+ * so that the rows it rejects are neither passed to the following clauses nor
+ * to the SELECT query.
+ *
+ * @author Maxime Lefrançois
+ */
+public class FilterPlan implements BindingsClausePlan {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(FilterPlan.class);
+
+    /**
+     * The expression.
+     */
+    private final Expr expr;
+
+    /**
+     * The execution plan of a {@code FILTER( <expr> )}.
+     *
+     * @param expr The expression. Must not be null.
+     */
+    public FilterPlan(final Expr expr) {
+        Objects.requireNonNull(expr, "Expression must not be null");
+        this.expr = expr;
+    }
+
+    /**
+     * Keeps the rows of a batch for which the expression evaluates to true.
+     * As in the WHERE clause, an evaluation error rejects the row.
+     *
+     * @param values the batch
+     * @param context the execution context
+     * @return the rows that satisfy the expression
+     */
+    final BindingBatch exec(final BindingBatch values, final Context context) {
+        LOG.debug("Start " + this);
+        context.set(ARQConstants.sysCurrentTime, NodeFactoryExtra.nowAsDateTime());
+        final FunctionEnv env = new FunctionEnvBase(context);
+        final boolean[] keep = new boolean[values.size()];
+        for (int i = 0; i < keep.length; i++) {
+            keep[i] = expr.isSatisfied(values.getBinding(i), env);
+        }
+        final BindingBatch newValues = values.filter(keep);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Kept " + newValues.size() + " of " + values.size() + " rows for " + this);
+        }
+        return newValues;
+    }
+
+    @Override
+    public String toString() {
+        return "FILTER( " + expr + " )";
+    }
+
+}
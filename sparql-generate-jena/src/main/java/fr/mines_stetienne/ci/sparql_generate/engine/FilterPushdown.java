@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.PatternVars;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSource;
+
+/**
+ * The FILTERs of the WHERE clause of a normalized query that can be evaluated
+ * in the binding clauses, and the query that remains for the generated SELECT
+ * query.
+ *
+ * <p>
+ * A FILTER at the top level of the WHERE clause is pushed down if it is
+ * deterministic and has no side effect, as it is then evaluated for a
+ * different number of bindings, and if none of the variables it mentions are bound by the
+ * graph patterns of the WHERE clause or by the VALUES clause. It is then
+ * evaluated right after the last binding clause that binds one of its
+ * variables, or before the first binding clause if there is none. Only
+ * GENERATE, TEMPLATE and PERFORM queries without aggregates or GROUP BY are
+ * rewritten, as the other queries do not pass all the variables of the
+ * binding clauses to the SELECT query.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+final class FilterPushdown {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FilterPushdown.class);
+
+	/**
+	 * The query without the FILTERs that are pushed down.
+	 */
+	private final SPARQLExtQuery selectQuery;
+
+	/**
+	 * The FILTERs evaluated before the first binding clause.
+	 */
+	private final List<Expr> first;
+
+	/**
+	 * The FILTERs evaluated after each binding clause.
+	 */
+	private final List<List<Expr>> after;
+
+	private FilterPushdown(final SPARQLExtQuery selectQuery, final List<Expr> first,
+			final List<List<Expr>> after) {
+		this.selectQuery = selectQuery;
+		this.first = first;
+		this.after = after;
+	}
+
+	/**
+	 * Finds the FILTERs of a normalized query that can be pushed down.
+	 *
+	 * @param query the normalized query
+	 * @return the FILTERs and the remaining query
+	 */
+	static FilterPushdown of(final SPARQLExtQuery query) {
+		final FilterPushdown none = none(query);
+		if (!query.isGenerateType() && !query.isTemplateType() && !query.isPerformType()) {
+			return none;
+		}
+		if (query.hasAggregators() || query.hasGroupBy() || !query.hasBindingClauses()) {
+			return none;
+		}
+		if (!(query.getQueryPattern() instanceof ElementGroup)) {
+			return none;
+		}
+		final ElementGroup where = (ElementGroup) query.getQueryPattern();
+		final Set<Var> patternVars = new HashSet<>(PatternVars.vars(where));
+		if (query.hasValues()) {
+			patternVars.addAll(query.getValuesVariables());
+		}
+		final List<Element> clauses = query.getBindingClauses();
+		final List<Expr> first = new ArrayList<>();
+		final List<List<Expr>> after = new ArrayList<>();
+		for (int i = 0; i < clauses.size(); i++) {
+			after.add(new ArrayList<>());
+		}
+		final ElementGroup remaining = new ElementGroup();
+		for (Element el : where.getElements()) {
+			if (!(el instanceof ElementFilter)) {
+				remaining.addElement(el);
+				continue;
+			}
+			final Expr expr = ((ElementFilter) el).getExpr();
+			final Set<Var> vars = expr.getVarsMentioned();
+			if (!CommonSubExpressions.isDeterministic(expr) || !CommonSubExpressions.isSideEffectFree(expr)
+					|| !Collections.disjoint(vars, patternVars)) {
+				remaining.addElement(el);
+				continue;
+			}
+			int last = -1;
+			for (int i = 0; i < clauses.size(); i++) {
+				if (!Collections.disjoint(getBoundVars(clauses.get(i)), vars)) {
+					last = i;
+				}
+			}
+			LOG.trace("Pushing down FILTER " + expr + " after binding clause " + last);
+			if (last == -1) {
+				first.add(expr);
+			} else {
+				after.get(last).add(expr);
+			}
+		}
+		if (remaining.size() == where.size()) {
+			return none;
+		}
+		final SPARQLExtQuery selectQuery = query.copyQuery();
+		selectQuery.setQueryPattern(remaining);
+		return new FilterPushdown(selectQuery, first, after);
+	}
+
+	/**
+	 * @param query the normalized query
+	 * @return no FILTER pushed down, and the query
+	 */
+	static FilterPushdown none(final SPARQLExtQuery query) {
+		return new FilterPushdown(query, Collections.emptyList(), null);
+	}
+
+	private static Collection<Var> getBoundVars(final Element el) {
+		if (el instanceof ElementIterator) {
+			return ((ElementIterator) el).getVars();
+		} else if (el instanceof ElementSource) {
+			return Collections.singleton(((ElementSource) el).getVar());
+		} else if (el instanceof ElementBind) {
+			return Collections.singleton(((ElementBind) el).getVar());
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * @return the query without the FILTERs that are pushed down
+	 */
+	SPARQLExtQuery getSelectQuery() {
+		return selectQuery;
+	}
+
+	/**
+	 * @return the FILTERs evaluated before the first binding clause
+	 */
+	List<Expr> getFiltersBefore() {
+		return first;
+	}
+
+	/**
+	 * @param index the index of a binding clause
+	 * @return the FILTERs evaluated after the binding clause
+	 */
+	List<Expr> getFiltersAfter(final int index) {
+		return after == null ? Collections.emptyList() : after.get(index);
+	}
+
+}
@@ -21,16 +21,19 @@ import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.sparql.core.BasicPattern;
 import org.apache.jena.sparql.core.Substitute;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.modify.TemplateLib;
 import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.FmtUtils;
 import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +62,21 @@ public class GenerateFormPlan implements GeneratePlan {
     private static final Node FIRST = RDF.first.asNode();
     private static final Node REST = RDF.rest.asNode();
 
+    /**
+     * Kinds of the nodes of the basic pattern, other than the column of a
+     * variable in a batch.
+     */
+    private static final int CONSTANT = -1;
+    private static final int BLANK = -2;
+    private static final int UNBOUND = -3;
+    private static final int OTHER = -4;
+
+    /**
+     * Whether the values of the variables are read from their column of the
+     * batch, instead of being substituted from the binding of each row.
+     */
+    private final boolean readColumns;
+
     /**
      * Constructor.
      *
@@ -66,14 +84,22 @@ public class GenerateFormPlan implements GeneratePlan {
      * @param subQueries the sub queries.
      */
     public GenerateFormPlan(final BasicPattern basicGraphPattern, List<RootPlan> subQueries) {
+        this(basicGraphPattern, subQueries, true);
+    }
+
+    GenerateFormPlan(final BasicPattern basicGraphPattern, List<RootPlan> subQueries, boolean readColumns) {
         this.bgp = basicGraphPattern;
         this.subQueries = subQueries;
+        this.readColumns = readColumns;
+    }
+
+    List<RootPlan> getSubQueries() {
+        return subQueries;
     }
 
     @Override
     public void exec(
-            final List<Var> variables,
-            final List<Binding> values,
+            final BindingBatch values,
             final Context context) {
     	final StreamRDF outputStream = ContextUtils.getGenerateOutput(context);
         final StringBuilder sb = new StringBuilder("Output triples");
@@ -82,15 +108,21 @@ public class GenerateFormPlan implements GeneratePlan {
                 .setSize(size)
                 .fork();
 
+        final List<Triple> triples = bgp.getList();
+        final int[] slots = compile(triples, values);
+        final Map<Node, Node> bNodeMap = new HashMap<>();
         for (int i = 0; i < size; i++) {
-            final Map<Node, Node> bNodeMap = new HashMap<>();
-            final Binding binding = values.get(i);
-            for (Triple t : bgp.getList()) {
+            bNodeMap.clear();
+            final Binding binding = values.getBinding(i);
+            for (int j = 0; j < triples.size(); j++) {
+                final Triple t = triples.get(j);
                 if (t.getObject() instanceof Node_List) {
                     substAndOutputForList(t.getSubject(), t.getPredicate(), (Node_List) t.getObject(), sb, binding, outputStream, newContext, i, bNodeMap);
                 } else {
-                    Triple t2 = TemplateLib.subst(t, binding, bNodeMap);
-                    outputIfConcrete(sb, outputStream, t2);
+                    final Node s = subst(t.getSubject(), slots[3 * j], values, i, binding, bNodeMap);
+                    final Node p = subst(t.getPredicate(), slots[3 * j + 1], values, i, binding, bNodeMap);
+                    final Node o = subst(t.getObject(), slots[3 * j + 2], values, i, binding, bNodeMap);
+                    outputIfConcrete(sb, outputStream, new Triple(s, p, o));
                 }
             }
 
@@ -101,7 +133,64 @@ public class GenerateFormPlan implements GeneratePlan {
 
         for (int i = 0; i < subQueries.size(); i++) {
             RootPlan subPlan = subQueries.get(i);
-            subPlan.execGenerateStream(values, newContext);
+            subPlan.execGenerateStreamBatch(values, newContext);
+        }
+    }
+
+    /**
+     * Computes, for each node of the basic pattern, the column of the batch
+     * where the value of the variable is, or the kind of the node. The values
+     * of the variables are then read by index instead of being looked up by
+     * variable for each row.
+     */
+    private int[] compile(final List<Triple> triples, final BindingBatch values) {
+        final int[] slots = new int[3 * triples.size()];
+        for (int j = 0; j < triples.size(); j++) {
+            final Triple t = triples.get(j);
+            slots[3 * j] = compile(t.getSubject(), values);
+            slots[3 * j + 1] = compile(t.getPredicate(), values);
+            slots[3 * j + 2] = compile(t.getObject(), values);
+        }
+        return slots;
+    }
+
+    private int compile(final Node n, final BindingBatch values) {
+        if (n.isBlank() || Var.isBlankNodeVar(n)) {
+            return BLANK;
+        }
+        if (Var.isVar(n) && readColumns) {
+            final int column = values.indexOf(Var.alloc(n));
+            return column >= 0 ? column : UNBOUND;
+        }
+        if (n.isConcrete() && !n.isNodeTriple()) {
+            return CONSTANT;
+        }
+        return OTHER;
+    }
+
+    /**
+     * Substitutes a node of the basic pattern, like
+     * {@link TemplateLib#subst(Triple, Binding, Map)}.
+     */
+    private Node subst(
+            final Node n,
+            final int slot,
+            final BindingBatch values,
+            final int row,
+            final Binding binding,
+            final Map<Node, Node> bNodeMap) {
+        if (slot >= 0) {
+            final Node value = values.get(row, slot);
+            return value != null ? value : n;
+        }
+        switch (slot) {
+            case CONSTANT:
+            case UNBOUND:
+                return n;
+            case BLANK:
+                return subst(n, bNodeMap);
+            default:
+                return Substitute.substitute(n, binding);
         }
     }
 
@@ -159,4 +248,11 @@ public class GenerateFormPlan implements GeneratePlan {
         return n;
     }
 
+    @Override
+    public String toString() {
+        return "GENERATE { " + bgp.getList().stream()
+                .map((t) -> FmtUtils.stringForTriple(t, (PrefixMapping) null))
+                .collect(Collectors.joining(" . ")) + " }";
+    }
+
 }
@@ -24,7 +24,6 @@ import org.apache.jena.graph.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.jena.riot.system.StreamRDF;
-import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprList;
@@ -59,12 +58,11 @@ public class GenerateNamedPlan implements GeneratePlan {
      */
     @Override
     public void exec(
-            final List<Var> variables,
-            final List<Binding> values,
+            final BindingBatch values,
             final Context context) {
         final QueryExecutor queryExecutor = ContextUtils.getQueryExecutor(context);
         final FunctionEnv env = new FunctionEnvBase(context);
-        final Map<String, List<Binding>> splitValues = EvalUtils.splitBindingsForQuery(name, values, env);
+        final Map<String, List<Binding>> splitValues = EvalUtils.splitBindingsForQuery(name, values.asBindings(), env);
         for (String queryName : splitValues.keySet()) {
             final List<Binding> queryValues = splitValues.get(queryName);
             final List<List<Node>> queryCall = EvalUtils.eval(callParameters, queryValues, env);
@@ -72,4 +70,8 @@ public class GenerateNamedPlan implements GeneratePlan {
         }
     }
 
+    @Override
+    public String toString() {
+        return "GENERATE " + name + "(" + (callParameters != null ? callParameters : "") + ")";
+    }
 }
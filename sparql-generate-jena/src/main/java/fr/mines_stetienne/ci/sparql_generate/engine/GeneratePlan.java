@@ -15,10 +15,6 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
-import java.util.List;
-
-import org.apache.jena.sparql.core.Var;
-import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.util.Context;
 
 /**
@@ -32,13 +28,11 @@ public interface GeneratePlan {
     /**
      * Executes a GENERATE plan. Method is blocking.
      *
-     * @param variables the list of variables.
-     * @param values the list of bindings.
+     * @param values the batch of bindings.
      * @param context the execution context
      */
     void exec(
-            final List<Var> variables,
-            final List<Binding> values,
+            final BindingBatch values,
             final Context context);
 
 }
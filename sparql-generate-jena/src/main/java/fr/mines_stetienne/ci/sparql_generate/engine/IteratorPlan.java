@@ -16,22 +16,25 @@
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
-import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorBatchFunction;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunction;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionFactory;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorProjectionFunction;
+import fr.mines_stetienne.ci.sparql_generate.jfr.IteratorBatchEvent;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingBuilder;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
@@ -71,6 +74,11 @@ public class IteratorPlan implements BindingsClausePlan {
      */
     private final List<Var> vars;
 
+    /**
+     * The outputs bound to a variable that is used, or null if all are used.
+     */
+    private final BitSet usedOutputs;
+
     /**
      * The constructor.
      *
@@ -84,9 +92,29 @@ public class IteratorPlan implements BindingsClausePlan {
             final String iri,
             final ExprList e,
             final List<Var> vars) {
+        this(iri, e, vars, null);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param iri - The SPARQL-Generate iterator iri.
+     * @param e - The list of expressions on which to evaluate the iterator
+     * function.
+     * @param vars - The list of variables that will be bound to each result of
+     * the iterator function evaluation.
+     * @param usedOutputs - The outputs bound to a variable that is used by the
+     * query, or null if all are used. The other variables are left unbound.
+     */
+    public IteratorPlan(
+            final String iri,
+            final ExprList e,
+            final List<Var> vars,
+            final BitSet usedOutputs) {
         this.iri = iri;
         this.exprList = e;
         this.vars = vars;
+        this.usedOutputs = usedOutputs;
     }
 
     public IteratorFunction getIterator(Context context) {
@@ -100,6 +128,9 @@ public class IteratorPlan implements BindingsClausePlan {
         }
         iterator = factory.create(iri);
         iterator.build(exprList);
+        if (usedOutputs != null && iterator instanceof IteratorProjectionFunction) {
+            ((IteratorProjectionFunction) iterator).setUsedOutputs(usedOutputs);
+        }
         return iterator;
     }
 
@@ -110,23 +141,28 @@ public class IteratorPlan implements BindingsClausePlan {
     /**
      * Updates the values block. Method is blocking
      *
-     * @param variables the current variables.
      * @param values the existing bindings.
-     * @param listBindingStream where new bindings are emited.
      * @param context the execution context.
+     * @param listBindingStream where new batches of bindings are emited.
      */
     public void exec(
-            List<Var> variables,
-            List<Binding> values,
+            BindingBatch values,
             Context context,
-            Consumer<List<Binding>> listBindingStream) {
+            Consumer<BindingBatch> listBindingStream) {
         context.set(ARQConstants.sysCurrentTime, NodeFactoryExtra.nowAsDateTime());
         final IteratorFunction iterator = getIterator(context);
         final FunctionEnv env = new FunctionEnvBase(context);
         final IteratorPlan.Batches batches = new IteratorPlan.Batches(values, listBindingStream);
-        for (Binding binding : values) {
+        if (iterator instanceof IteratorBatchFunction) {
+            execBatch((IteratorBatchFunction) iterator, values, env, context, batches);
+            return;
+        }
+        final List<Binding> bindings = values.asBindings();
+        for (int i = 0; i < bindings.size(); i++) {
+            final Binding binding = bindings.get(i);
+            final int row = i;
             try {
-            	iterator.exec(binding, exprList, env, (nodeValues) -> batches.add(binding, nodeValues));
+            	iterator.exec(binding, exprList, env, (nodeValues) -> batches.add(binding, row, nodeValues));
             } catch (ExprEvalException ex) {
                 LOG.debug("No evaluation for " + this + ", caused by " + ex.getMessage());
                 if (ContextUtils.isFailOnException(context)) {
@@ -142,56 +178,81 @@ public class IteratorPlan implements BindingsClausePlan {
         LOG.trace("some batches are incomplete ?");
         batches.allExecutionComplete();
     }
+
+    /**
+     * Evaluates the iterator once for all the bindings. The iterator emits
+     * values along with their originating binding.
+     */
+    private void execBatch(
+            final IteratorBatchFunction iterator,
+            final BindingBatch values,
+            final FunctionEnv env,
+            final Context context,
+            final IteratorPlan.Batches batches) {
+        final List<Binding> bindings = values.asBindings();
+        final Map<Binding, Integer> rows = new IdentityHashMap<>();
+        for (int i = 0; i < bindings.size(); i++) {
+            rows.put(bindings.get(i), i);
+        }
+        try {
+            iterator.exec(bindings, exprList, env, (binding, nodeValues) -> {
+                Integer row = rows.get(binding);
+                if (row == null) {
+                    row = bindings.indexOf(binding);
+                }
+                if (row < 0) {
+                    LOG.warn("Ignoring values emitted for an unknown binding " + binding);
+                    return;
+                }
+                batches.add(bindings.get(row), row, nodeValues);
+            });
+        } catch (ExprEvalException ex) {
+            LOG.debug("No evaluation for " + this + ", caused by " + ex.getMessage());
+            if (ContextUtils.isFailOnException(context)) {
+                throw ex;
+            }
+        } catch (Exception ex) {
+            LOG.warn("Unanticipated exception for " + toString(), ex);
+            if (ContextUtils.isFailOnException(context)) {
+                throw ex;
+            }
+        }
+        LOG.trace("some batches are incomplete ?");
+        batches.allExecutionComplete();
+    }
     protected class Batches {
 
-        final Consumer<List<Binding>> listBindingStream;
+        final BindingBatch values;
+        final Consumer<BindingBatch> listBindingStream;
         final List<Binding> uncompleteExecutions = Collections.synchronizedList(new ArrayList<>());
         final List<Batch> uncompleteBatches = Collections.synchronizedList(new ArrayList<>());
-        final Map<Binding, Batch> lastBatch = Collections.synchronizedMap(new HashMap<>());
+        final Map<Binding, Batch> lastBatch = Collections.synchronizedMap(new IdentityHashMap<>());
+        IteratorBatchEvent event = new IteratorBatchEvent();
 
-        Batches(final List<Binding> executions,
-                final Consumer<List<Binding>> listBindingStream) {
-            uncompleteExecutions.addAll(executions);
+        Batches(final BindingBatch values,
+                final Consumer<BindingBatch> listBindingStream) {
+            this.values = values;
+            uncompleteExecutions.addAll(values.asBindings());
             this.listBindingStream = listBindingStream;
+            event.begin();
         }
 
         void add(
                 final Binding binding,
+                final int row,
                 final List<List<NodeValue>> nodeValues) {
-            final List<Binding> bindings = getListBinding(binding, nodeValues);
             final Batch batch = getNextBatch(binding);
             lastBatch.put(binding, batch);
-            if (batch.addAndCheckIfEmpty(binding, bindings)) {
+            if (batch.addAndCheckIfEmpty(binding, row, nodeValues)) {
                 batchComplete(batch);
             }
         }
 
-        List<Binding> getListBinding(
-                final Binding binding,
-                final List<List<NodeValue>> nodeValues) {
-            final List<Binding> listBindings = new ArrayList<>();
-            nodeValues.forEach((listNodeValues) -> {
-                if (vars.size() > listNodeValues.size()) {
-                    LOG.warn("Too many variables, some will not be bound: " + listNodeValues);
-                    return;
-                }
-                final BindingBuilder bindingBuilder = Binding.builder(binding);
-                for (int i = 0; i < vars.size(); i++) {
-                    if (listNodeValues.get(i) != null) {
-                        Node n = listNodeValues.get(i).asNode();
-                        bindingBuilder.add(vars.get(i), n);
-                    }
-                }
-                listBindings.add(bindingBuilder.build());
-            });
-            return listBindings;
-        }
-
         synchronized Batch getNextBatch(final Binding execution) {
             Batch last = lastBatch.get(execution);
             if (last == null) {
                 if (uncompleteBatches.isEmpty()) {
-                    final Batch batch = new Batch(uncompleteExecutions);
+                    final Batch batch = new Batch(values, uncompleteExecutions);
                     uncompleteBatches.add(batch);
                     return batch;
                 } else {
@@ -200,7 +261,7 @@ public class IteratorPlan implements BindingsClausePlan {
             } else {
                 int index = uncompleteBatches.indexOf(last);
                 if (index == uncompleteBatches.size() - 1) {
-                    final Batch batch = new Batch(uncompleteExecutions);
+                    final Batch batch = new Batch(values, uncompleteExecutions);
                     uncompleteBatches.add(batch);
                     return batch;
                 } else {
@@ -216,7 +277,7 @@ public class IteratorPlan implements BindingsClausePlan {
             for (Batch batch : uncompleteBatches) {
                 batch.expectedExecutions.clear();
                 LOG.trace("A batch is complete " + batch);
-                listBindingStream.accept(batch.bindings);
+                emit(batch.build());
             }
             uncompleteExecutions.clear();
             uncompleteBatches.clear();
@@ -228,7 +289,32 @@ public class IteratorPlan implements BindingsClausePlan {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("A batch is complete " + batch);
             }
-            listBindingStream.accept(batch.bindings);
+            emit(batch.build());
+        }
+
+        /**
+         * Emits a batch downstream, and records the time it took to produce it.
+         */
+        private void emit(final BindingBatch bindings) {
+            final IteratorBatchEvent current;
+            synchronized (this) {
+                current = event;
+                event = null;
+            }
+            if (current != null) {
+                current.end();
+                if (current.shouldCommit()) {
+                    current.clause = IteratorPlan.this.toString();
+                    current.batchSize = bindings.size();
+                    current.commit();
+                }
+            }
+            listBindingStream.accept(bindings);
+            final IteratorBatchEvent next = new IteratorBatchEvent();
+            next.begin();
+            synchronized (this) {
+                event = next;
+            }
         }
 
         @Override
@@ -240,21 +326,42 @@ public class IteratorPlan implements BindingsClausePlan {
 
     private class Batch {
 
-        final List<Binding> expectedExecutions = new ArrayList<>();
-        final List<Binding> bindings = new ArrayList<>();
+        final Set<Binding> expectedExecutions = Collections.newSetFromMap(new IdentityHashMap<>());
+        final BindingBatch.ExtensionBuilder bindings;
 
-        Batch(final List<Binding> uncompleteExecutions) {
-            expectedExecutions.addAll(uncompleteExecutions);
+        Batch(final BindingBatch values, final List<Binding> uncompleteExecutions) {
+            synchronized (uncompleteExecutions) {
+                expectedExecutions.addAll(uncompleteExecutions);
+            }
+            bindings = BindingBatch.builder(values, vars);
         }
 
         synchronized boolean addAndCheckIfEmpty(
                 final Binding iterator,
-                final List<Binding> bindings) {
+                final int row,
+                final List<List<NodeValue>> nodeValues) {
             expectedExecutions.remove(iterator);
-            this.bindings.addAll(bindings);
+            for (List<NodeValue> listNodeValues : nodeValues) {
+                if (vars.size() > listNodeValues.size()) {
+                    LOG.warn("Too many variables, some will not be bound: " + listNodeValues);
+                    continue;
+                }
+                final Node[] nodes = new Node[vars.size()];
+                for (int i = 0; i < vars.size(); i++) {
+                    final NodeValue nodeValue = listNodeValues.get(i);
+                    if (nodeValue != null && (usedOutputs == null || usedOutputs.get(i))) {
+                        nodes[i] = nodeValue.asNode();
+                    }
+                }
+                bindings.add(row, nodes);
+            }
             return expectedExecutions.isEmpty();
         }
 
+        synchronized BindingBatch build() {
+            return bindings.build();
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("Batch ");
@@ -266,7 +373,7 @@ public class IteratorPlan implements BindingsClausePlan {
                 sb.append(expectedExecutions.size());
                 sb.append(" and has ");
             }
-            sb.append(LogUtils.log(bindings));
+            sb.append(bindings.size()).append(" bindings");
             return sb.toString();
         }
 
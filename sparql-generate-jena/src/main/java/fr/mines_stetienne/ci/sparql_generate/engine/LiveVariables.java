@@ -0,0 +1,510 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementAssign;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
+import org.apache.jena.sparql.syntax.ElementService;
+import org.apache.jena.sparql.syntax.ElementSubQuery;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.syntax.ElementVisitorBase;
+import org.apache.jena.sparql.syntax.ElementWalker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.graph.Node_Extended;
+import fr.mines_stetienne.ci.sparql_generate.graph.Node_List;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementGenerateTriplesBlock;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementPerform;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSource;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSubExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.FromClause;
+
+/**
+ * The variables of a normalized GENERATE query that are used after each of
+ * its binding clauses, and after its generated SELECT query.
+ *
+ * <p>
+ * A variable is used if it is mentioned by a later binding clause, by the
+ * WHERE clause, by the expressions of the generated SELECT query, by the
+ * GENERATE clause, or by the sub-queries of the GENERATE clause. The
+ * sub-queries, the WHERE clause and the queries embedded in expressions are
+ * not analyzed: all the variables they mention are used. For other queries,
+ * and for GENERATE queries that are not normalized, all the variables are
+ * used.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+final class LiveVariables {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LiveVariables.class);
+
+	/**
+	 * The variables used after the generated SELECT query, or null if all the
+	 * variables are used.
+	 */
+	private final Set<Var> outputVars;
+
+	/**
+	 * The variables used after each binding clause, or null if all the
+	 * variables are used.
+	 */
+	private final List<Set<Var>> liveAfter;
+
+	private LiveVariables(final Set<Var> outputVars, final List<Set<Var>> liveAfter) {
+		this.outputVars = outputVars;
+		this.liveAfter = liveAfter;
+	}
+
+	/**
+	 * Computes the variables of a normalized query that are used after each of
+	 * its binding clauses, and after its generated SELECT query.
+	 *
+	 * @param query the normalized query
+	 * @return the live variables
+	 */
+	static LiveVariables of(final SPARQLExtQuery query) {
+		if (!query.isGenerateType()) {
+			return new LiveVariables(null, null);
+		}
+		final VarCollector output = new VarCollector(new HashSet<>());
+		addOutputVars(query, output);
+		if (!output.complete) {
+			return new LiveVariables(null, null);
+		}
+		final VarCollector live = new VarCollector(new HashSet<>(output.vars));
+		addSelectVars(query, live);
+		final List<Element> clauses = query.hasBindingClauses() ? query.getBindingClauses()
+				: Collections.emptyList();
+		final List<Set<Var>> liveAfter = new ArrayList<>(Collections.nCopies(clauses.size(), null));
+		for (int i = clauses.size() - 1; i >= 0; i--) {
+			liveAfter.set(i, new HashSet<>(live.vars));
+			if (!isDead(clauses.get(i), live.vars)) {
+				live.addClause(clauses.get(i));
+			}
+		}
+		if (!live.complete) {
+			return new LiveVariables(null, null);
+		}
+		return new LiveVariables(output.vars, liveAfter);
+	}
+
+	/**
+	 * @return the live variables if all the variables are used
+	 */
+	static LiveVariables all() {
+		return new LiveVariables(null, null);
+	}
+
+	/**
+	 * Removes the BIND and SOURCE clauses of a normalized query that bind a
+	 * variable that is never used.
+	 *
+	 * @param query the normalized query
+	 * @return the query if no clause is removed, or a copy without the dead
+	 * clauses
+	 */
+	static SPARQLExtQuery eliminate(final SPARQLExtQuery query) {
+		final LiveVariables live = of(query);
+		if (live.liveAfter == null || !query.hasBindingClauses()) {
+			return query;
+		}
+		final List<Element> clauses = query.getBindingClauses();
+		final List<Element> liveClauses = new ArrayList<>();
+		for (int i = 0; i < clauses.size(); i++) {
+			if (isDead(clauses.get(i), live.liveAfter.get(i))) {
+				LOG.debug("Removing dead clause " + clauses.get(i));
+			} else {
+				liveClauses.add(clauses.get(i));
+			}
+		}
+		if (liveClauses.size() == clauses.size()) {
+			return query;
+		}
+		final SPARQLExtQuery output = query.copyQuery();
+		output.setBindingClauses(liveClauses);
+		return output;
+	}
+
+	/**
+	 * Gets the variables used after the generated SELECT query.
+	 *
+	 * @return the variables, or null if all the variables are used
+	 */
+	Set<Var> getOutputVars() {
+		return outputVars;
+	}
+
+	/**
+	 * Gets the outputs of an ITERATOR clause that are bound to a variable that
+	 * is used.
+	 *
+	 * @param index the index of the clause
+	 * @param vars the variables of the clause
+	 * @return the used outputs, or null if all the outputs are used
+	 */
+	BitSet getUsedOutputs(final int index, final List<Var> vars) {
+		if (liveAfter == null) {
+			return null;
+		}
+		final BitSet outputs = new BitSet(vars.size());
+		for (int i = 0; i < vars.size(); i++) {
+			if (liveAfter.get(index).contains(vars.get(i))) {
+				outputs.set(i);
+			}
+		}
+		return outputs.cardinality() == vars.size() ? null : outputs;
+	}
+
+	/**
+	 * Checks whether a binding clause binds a variable that is never used. A
+	 * BIND clause whose expression may have a side effect, e.g., that logs or
+	 * sends a POST request, is never dead. ITERATOR clauses are never dead, as
+	 * they change the number of bindings.
+	 */
+	private static boolean isDead(final Element clause, final Set<Var> live) {
+		if (clause instanceof ElementBind) {
+			final ElementBind bind = (ElementBind) clause;
+			return !live.contains(bind.getVar()) && CommonSubExpressions.isSideEffectFree(bind.getExpr());
+		} else if (clause instanceof ElementSource) {
+			return !live.contains(((ElementSource) clause).getVar());
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the variables used after the generated SELECT query.
+	 */
+	private static void addOutputVars(final SPARQLExtQuery query, final VarCollector vars) {
+		if (query.hasSignature()) {
+			vars.vars.addAll(query.getSignature());
+		}
+		if (query.getName() != null) {
+			vars.addExpr(query.getName());
+		}
+		if (query.hasCallParameters()) {
+			vars.addExprs(query.getCallParameters().getList());
+		}
+		if (query.hasGenerateClause()) {
+			query.getGenerateClause().forEach(vars::addOutput);
+		}
+	}
+
+	/**
+	 * Adds the variables used by the generated SELECT query.
+	 */
+	private static void addSelectVars(final SPARQLExtQuery query, final VarCollector vars) {
+		if (query.getQueryPattern() != null) {
+			vars.addPattern(query.getQueryPattern());
+		}
+		vars.addExprs(query.getPostSelect());
+		if (query.hasGroupBy()) {
+			vars.addExprs(query.getGroupBy());
+		}
+		if (query.hasHaving()) {
+			vars.addExprs(query.getHavingExprs());
+		}
+		if (query.hasOrderBy()) {
+			for (SortCondition sc : query.getOrderBy()) {
+				vars.addExpr(sc.getExpression());
+			}
+		}
+		if (query.hasValues()) {
+			vars.vars.addAll(query.getValuesVariables());
+		}
+		for (FromClause from : query.getFromClauses()) {
+			vars.addFrom(from);
+		}
+	}
+
+	/**
+	 * Collects the variables mentioned by expressions, nodes, patterns and
+	 * queries. The variables of the patterns are collected while walking
+	 * them, and the variables of the sub-queries and of the queries embedded
+	 * in expressions are all the variables they mention.
+	 */
+	private static final class VarCollector extends ElementVisitorBase {
+
+		private final Set<Var> vars;
+
+		/**
+		 * false if some variables could not be determined.
+		 */
+		private boolean complete = true;
+
+		private VarCollector(final Set<Var> vars) {
+			this.vars = vars;
+		}
+
+		/**
+		 * Adds the variables that a binding clause uses.
+		 */
+		private void addClause(final Element clause) {
+			if (clause instanceof ElementBind) {
+				addExpr(((ElementBind) clause).getExpr());
+			} else if (clause instanceof ElementIterator) {
+				addExpr(((ElementIterator) clause).getExpr());
+			} else if (clause instanceof ElementSource) {
+				final ElementSource source = (ElementSource) clause;
+				addNode(source.getSource());
+				addNode(source.getAccept());
+			}
+		}
+
+		/**
+		 * Adds the variables of an element of a GENERATE or PERFORM clause.
+		 */
+		private void addOutput(final Element element) {
+			if (element instanceof ElementGenerateTriplesBlock) {
+				for (Triple t : ((ElementGenerateTriplesBlock) element).getPattern()) {
+					addTriple(t);
+				}
+			} else if (element instanceof ElementSubExtQuery) {
+				addQuery(((ElementSubExtQuery) element).getQuery());
+			} else if (element instanceof ElementPerform) {
+				addNode(((ElementPerform) element).getName());
+				addExprs(((ElementPerform) element).getParams().getList());
+			} else {
+				complete = false;
+			}
+		}
+
+		private void addFrom(final FromClause from) {
+			if (from.getName() != null) {
+				addExpr(from.getName());
+			}
+			if (from.getGenerate() != null) {
+				addQuery(from.getGenerate());
+			}
+		}
+
+		/**
+		 * Adds all the variables mentioned by a query.
+		 */
+		private void addQuery(final Query query) {
+			if (query.getQueryPattern() != null) {
+				addPattern(query.getQueryPattern());
+			}
+			addExprs(query.getProject());
+			if (query.hasGroupBy()) {
+				addExprs(query.getGroupBy());
+			}
+			if (query.hasHaving()) {
+				addExprs(query.getHavingExprs());
+			}
+			if (query.hasOrderBy()) {
+				for (SortCondition sc : query.getOrderBy()) {
+					addExpr(sc.getExpression());
+				}
+			}
+			if (query.hasValues()) {
+				vars.addAll(query.getValuesVariables());
+			}
+			if (query instanceof SPARQLExtQuery) {
+				addExtQuery((SPARQLExtQuery) query);
+			}
+		}
+
+		private void addExtQuery(final SPARQLExtQuery query) {
+			addOutputVars(query, this);
+			if (query.hasBindingClauses()) {
+				for (Element clause : query.getBindingClauses()) {
+					addClause(clause);
+					if (clause instanceof ElementBind) {
+						vars.add(((ElementBind) clause).getVar());
+					} else if (clause instanceof ElementIterator) {
+						vars.addAll(((ElementIterator) clause).getVars());
+					} else if (clause instanceof ElementSource) {
+						vars.add(((ElementSource) clause).getVar());
+					}
+				}
+			}
+			for (FromClause from : query.getFromClauses()) {
+				addFrom(from);
+			}
+			addExprs(query.getPostSelect());
+			if (query.hasPerformClause()) {
+				query.getPerformClause().forEach(this::addOutput);
+			}
+			if (query.hasFunctionExpression()) {
+				addExpr(query.getFunctionExpression());
+			}
+			if (query.hasTemplateClause() || query.hasTemplateClauseBefore() || query.hasTemplateClauseSeparator()
+					|| query.hasTemplateClauseAfter()) {
+				complete = false;
+			}
+		}
+
+		private void addPattern(final Element pattern) {
+			ElementWalker.walk(pattern, this);
+		}
+
+		private void addTriple(final Triple t) {
+			addNode(t.getSubject());
+			addNode(t.getPredicate());
+			addNode(t.getObject());
+		}
+
+		private void addNode(final Node node) {
+			if (node == null) {
+				return;
+			} else if (node instanceof Node_Extended) {
+				complete = false;
+			} else if (node instanceof Node_List) {
+				addExpr(((Node_List) node).getExpr());
+			} else if (node.isNodeTriple()) {
+				addTriple(node.getTriple());
+			} else if (node.isVariable()) {
+				vars.add(Var.alloc(node));
+			}
+		}
+
+		private void addExprs(final VarExprList exprs) {
+			exprs.forEachVarExpr((v, e) -> {
+				vars.add(v);
+				if (e != null) {
+					addExpr(e);
+				}
+			});
+		}
+
+		private void addExprs(final List<Expr> exprs) {
+			exprs.forEach(this::addExpr);
+		}
+
+		/**
+		 * Adds the variables of an expression, and all the variables mentioned
+		 * by the patterns and queries it embeds.
+		 */
+		private void addExpr(final Expr expr) {
+			if (expr.isVariable()) {
+				vars.add(expr.asVar());
+			} else if (expr instanceof ExprAggregator) {
+				final ExprList args = ((ExprAggregator) expr).getAggregator().getExprList();
+				if (args != null) {
+					addExprs(args.getList());
+				}
+			} else if (expr instanceof ExprFunctionOp) {
+				final Element element = ((ExprFunctionOp) expr).getElement();
+				if (element != null) {
+					addPattern(element);
+				} else {
+					complete = false;
+				}
+			} else if (expr instanceof ExprFunction) {
+				addExprs(((ExprFunction) expr).getArgs());
+			} else if (expr instanceof NodeValue) {
+				final Node node = ((NodeValue) expr).asNode();
+				if (node.isLiteral() && SPARQLExt.MEDIA_TYPE_URI.equals(node.getLiteralDatatypeURI())) {
+					addEmbeddedQuery(node.getLiteralLexicalForm());
+				}
+			}
+		}
+
+		private void addEmbeddedQuery(final String queryString) {
+			try {
+				addQuery(QueryFactory.create(queryString, SPARQLExt.SYNTAX));
+			} catch (QueryException ex) {
+				LOG.debug("Could not parse the embedded query, all the variables are used", ex);
+				complete = false;
+			}
+		}
+
+		@Override
+		public void visit(ElementTriplesBlock el) {
+			el.getPattern().forEach(this::addTriple);
+		}
+
+		@Override
+		public void visit(ElementPathBlock el) {
+			for (TriplePath tp : el.getPattern()) {
+				addNode(tp.getSubject());
+				addNode(tp.getPredicate());
+				addNode(tp.getObject());
+			}
+		}
+
+		@Override
+		public void visit(ElementFilter el) {
+			addExpr(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementAssign el) {
+			vars.add(el.getVar());
+			addExpr(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementBind el) {
+			vars.add(el.getVar());
+			addExpr(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementData el) {
+			vars.addAll(el.getVars());
+		}
+
+		@Override
+		public void visit(ElementNamedGraph el) {
+			addNode(el.getGraphNameNode());
+		}
+
+		@Override
+		public void visit(ElementService el) {
+			addNode(el.getServiceNode());
+		}
+
+		@Override
+		public void visit(ElementSubQuery el) {
+			addQuery(el.getQuery());
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.jena.query.QueryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.lang.ParserSPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.stream.FingerprintRecorder;
+
+/**
+ * A cache of normalized queries in a local directory, so that successive
+ * processes, e.g., successive runs of the CLI, do not normalize the same
+ * queries again.
+ *
+ * <p>
+ * Plans reference Jena objects that cannot be persisted, so an entry contains
+ * the text of the normalized query, i.e., the query of the {@link RootPlan},
+ * which is parsed without being normalized again when the entry is used. The
+ * entries are keyed by the SHA-256 of the query string and of the base URI,
+ * so a query that changed never uses the entry of its previous version. The
+ * keys also contain the version of sparql-generate-jena, and for snapshots
+ * the fingerprint of its code, so an entry written by another version, whose
+ * normalizers may differ, is never used. The
+ * queries called by name are cached separately, under the hash of their own
+ * string, when the {@link QueryExecutor} loads them.
+ * </p>
+ *
+ * <p>
+ * The cache is disabled by default, and is enabled with system property
+ * {@code sparql-generate.plan-cache} set to the directory, or with
+ * {@link #setDirectory(File)}. In the entries, the expressions that build the
+ * extended IRIs and literals are serialized as the equivalent standard
+ * functions, and are fused again into templates when an entry is loaded.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class PlanCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PlanCache.class);
+
+	private static final String POM_PROPERTIES = "/META-INF/maven/fr.mines-stetienne.ci.sparql-generate/sparql-generate-jena/pom.properties";
+
+	/**
+	 * The version of the format of the entries and of the code that normalizes
+	 * the queries, part of the keys.
+	 */
+	private static final String VERSION = "1-" + getCodeVersion();
+
+	private static volatile PlanCache instance = init(System.getProperty("sparql-generate.plan-cache"));
+
+	private final File directory;
+
+	private PlanCache(File directory) {
+		this.directory = directory;
+	}
+
+	private static PlanCache init(String directory) {
+		if (directory == null || directory.isEmpty()) {
+			return null;
+		}
+		return new PlanCache(new File(directory));
+	}
+
+	/**
+	 * @return the cache, or null if it is disabled
+	 */
+	public static PlanCache get() {
+		return instance;
+	}
+
+	/**
+	 * Enables the cache in a directory, or disables it.
+	 *
+	 * @param directory the directory, or null to disable the cache
+	 */
+	public static void setDirectory(File directory) {
+		instance = directory == null ? null : new PlanCache(directory);
+	}
+
+	/**
+	 * Gets the normalized query for a query string.
+	 *
+	 * @param queryString the query string
+	 * @param base the base URI, may be null
+	 * @param subQuery true if the query string is parsed as a sub-query
+	 * @return the normalized query, or null if it is not in the cache
+	 */
+	public SPARQLExtQuery get(String queryString, String base, boolean subQuery) {
+		final File file = getFile(queryString, base, subQuery);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			final String normalized = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			final SPARQLExtQuery query;
+			if (subQuery) {
+				query = (SPARQLExtQuery) ParserSPARQLExt.parseSubQuery(new SPARQLExtQuery(), normalized);
+			} else {
+				query = (SPARQLExtQuery) QueryFactory.create(normalized, base, SPARQLExt.SYNTAX);
+				if (base != null && !query.explicitlySetBaseURI()) {
+					query.setBaseURI(base);
+				}
+			}
+			if (query.hasEmbeddedExpressions()) {
+				LOG.debug("Ignoring " + file + ", the query is not normalized");
+				return null;
+			}
+			TemplateFusion.fuse(query);
+			LOG.trace("Loaded the normalized query from " + file);
+			return query;
+		} catch (IOException | RuntimeException ex) {
+			LOG.debug("Ignoring " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the normalized query of a plan.
+	 *
+	 * @param queryString the query string
+	 * @param base the base URI, may be null
+	 * @param plan the plan of the query
+	 */
+	public void put(String queryString, String base, RootPlan plan) {
+		final SPARQLExtQuery query = plan.getQuery();
+		final File file = getFile(queryString, base, query.isSubQuery());
+		File tmp = null;
+		try {
+			Files.createDirectories(directory.toPath());
+			tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			Files.write(tmp.toPath(), query.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException ex) {
+			LOG.warn("Could not store the normalized query in " + file, ex);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Gets the version of sparql-generate-jena. The fingerprint of its jar is
+	 * added for the snapshots, or the fingerprint of its class files when it
+	 * does not run from a jar, e.g., in an IDE.
+	 */
+	private static String getCodeVersion() {
+		String version = "unknown";
+		try (InputStream in = PlanCache.class.getResourceAsStream(POM_PROPERTIES)) {
+			if (in != null) {
+				final Properties properties = new Properties();
+				properties.load(in);
+				version = properties.getProperty("version", version);
+			}
+		} catch (IOException ex) {
+			LOG.debug("Could not read " + POM_PROPERTIES, ex);
+		}
+		if (!version.equals("unknown") && !version.endsWith("-SNAPSHOT")) {
+			return version;
+		}
+		try {
+			final Path code = Paths.get(PlanCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			return version + "-" + fingerprint(code);
+		} catch (IOException | URISyntaxException | RuntimeException ex) {
+			LOG.warn("Could not fingerprint the code, the plan cache may use the entries of another build", ex);
+			return version;
+		}
+	}
+
+	private static String fingerprint(Path code) throws IOException {
+		if (Files.isRegularFile(code)) {
+			try (InputStream in = Files.newInputStream(code)) {
+				return FingerprintRecorder.fingerprint(in);
+			}
+		}
+		final String classFiles;
+		try (Stream<Path> files = Files.walk(code)) {
+			classFiles = files.filter((p) -> p.toString().endsWith(".class")).sorted().map((p) -> {
+				final File file = p.toFile();
+				return code.relativize(p) + " " + file.length() + " " + file.lastModified();
+			}).collect(Collectors.joining("\n"));
+		}
+		return FingerprintRecorder.fingerprint(new ByteArrayInputStream(classFiles.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private File getFile(String queryString, String base, boolean subQuery) {
+		final String key = String.join("\n", VERSION, subQuery ? "sub" : "main", base == null ? "" : base,
+				queryString);
+		try {
+			final String hash = FingerprintRecorder
+					.fingerprint(new ByteArrayInputStream(key.getBytes(StandardCharsets.UTF_8)));
+			return new File(directory, hash + ".rqg");
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+}
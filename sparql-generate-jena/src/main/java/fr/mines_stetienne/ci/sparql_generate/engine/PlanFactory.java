@@ -16,8 +16,11 @@
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.jena.graph.Node;
@@ -25,24 +28,31 @@ import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.QueryParseException;
 import org.apache.jena.sparql.core.BasicPattern;
 import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
 import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_IRI;
 import org.apache.jena.sparql.expr.E_Str;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprAggregator;
 import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
 import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprTransformCopy;
+import org.apache.jena.sparql.expr.ExprTransformer;
 import org.apache.jena.sparql.expr.aggregate.AggGroupConcat;
 import org.apache.jena.sparql.expr.aggregate.AggGroupConcatDistinct;
 import org.apache.jena.sparql.expr.aggregate.Aggregator;
 import org.apache.jena.sparql.expr.nodevalue.NodeValueString;
 import org.apache.jena.sparql.syntax.Element;
 import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
-import fr.mines_stetienne.ci.sparql_generate.lang.ParserSPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.normalizer.xexpr.TemplateUtils;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.syntax.ElementBox;
@@ -78,6 +88,14 @@ public class PlanFactory {
      */
     private static final Logger LOG = LoggerFactory.getLogger(PlanFactory.class);
 
+    /**
+     * Whether the queries are rewritten and the plans are optimized. Disabled
+     * with system property {@code sparql-generate.optimize} set to false, e.g.,
+     * to check that an optimization does not change the output.
+     */
+    private static volatile boolean optimizing = !"false"
+            .equalsIgnoreCase(System.getProperty("sparql-generate.optimize"));
+
     private PlanFactory() {
 
     }
@@ -150,31 +168,79 @@ public class PlanFactory {
         Objects.requireNonNull(query, "The query must not be null");
         if (query.hasEmbeddedExpressions()) {
             LOG.debug("Query has embedded expressions:\n" + query);
-            String qs = query.toString();
-            SPARQLExtQuery query2;
-            if (query.isSubQuery()) {
-                query2 = (SPARQLExtQuery) ParserSPARQLExt.parseSubQuery(query, qs);
-                query2.normalizeXExpr();
-                query2.normalizeAggregates();
-            } else {
-                query2 = (SPARQLExtQuery) QueryFactory.create(qs, SPARQLExt.SYNTAX);
-                query2.normalizeXExpr();
+            // normalize a copy, the query may be a key of the caches of the
+            // QueryExecutor. Sub-queries are copied when they are normalized.
+            final SPARQLExtQuery query2 = query.copyQuery();
+            query2.normalizeXExpr();
+            if (!query2.isSubQuery()) {
                 query2.normalizeBNode();
-                query2.normalizeAggregates();
             }
+            query2.normalizeAggregates();
             return make(query2);
         }
-        
+        return makeNormalized(optimize(query));
+    }
+
+    /**
+     * Rewrites a normalized query into an equivalent query that is cheaper to
+     * execute. The query is copied if it is rewritten, as it may be a key of
+     * the caches of the QueryExecutor.
+     *
+     * @param query the normalized query
+     * @return the query, or a rewritten copy
+     */
+    private static SPARQLExtQuery optimize(final SPARQLExtQuery query) {
+        if (!optimizing) {
+            return query;
+        }
+        return LiveVariables.eliminate(CommonSubExpressions.eliminate(query));
+    }
+
+    /**
+     * @return true if the queries are rewritten and the plans are optimized
+     */
+    static boolean isOptimizing() {
+        return optimizing;
+    }
+
+    /**
+     * Enables or disables the rewriting of the queries and the optimization of
+     * the plans made afterwards: the common sub-expressions, the unused
+     * variables and clauses, the FILTERs evaluated in the binding clauses, the
+     * WHERE clauses evaluated without a SELECT query, and the columns read
+     * directly by the GENERATE clause.
+     *
+     * @param optimizing false to make plans that evaluate the query as written
+     */
+    static void setOptimizing(final boolean optimizing) {
+        PlanFactory.optimizing = optimizing;
+    }
+
+    /**
+     * Makes a {@code RootPlan} for a query without embedded expressions.
+     *
+     * @param query the Query.
+     * @return the RootPlan.
+     */
+    private static RootPlan makeNormalized(final SPARQLExtQuery query) {
         LOG.trace("Making plan for query without embedded expressions\n" + query);
         DatasetDeclarationPlan datasetDeclarationPlan = new DatasetDeclarationPlan(query);
 
+        final LiveVariables live = optimizing ? LiveVariables.of(query) : LiveVariables.all();
+        final FilterPushdown filters = optimizing ? FilterPushdown.of(query) : FilterPushdown.none(query);
         List<BindingsClausePlan> iteratorAndSourcePlans = new ArrayList<>();
+        for (Expr expr : filters.getFiltersBefore()) {
+            iteratorAndSourcePlans.add(new FilterPlan(expr));
+        }
         if (query.hasBindingClauses()) {
-            for (Element el : query.getBindingClauses()) {
+            final List<Element> bindingClauses = query.getBindingClauses();
+            for (int i = 0; i < bindingClauses.size(); i++) {
+                final Element el = bindingClauses.get(i);
                 BindingsClausePlan iteratorOrSourcePlan;
                 if (el instanceof ElementIterator) {
                     ElementIterator elementIterator = (ElementIterator) el;
-                    iteratorOrSourcePlan = makeIteratorPlan(elementIterator);
+                    iteratorOrSourcePlan = makeIteratorPlan(elementIterator,
+                            live.getUsedOutputs(i, elementIterator.getVars()));
                 } else if (el instanceof ElementSource) {
                     ElementSource elementSource = (ElementSource) el;
                     iteratorOrSourcePlan = makeSourcePlan(elementSource);
@@ -186,6 +252,9 @@ public class PlanFactory {
                             + " this point");
                 }
                 iteratorAndSourcePlans.add(iteratorOrSourcePlan);
+                for (Expr expr : filters.getFiltersAfter(i)) {
+                    iteratorAndSourcePlans.add(new FilterPlan(expr));
+                }
             }
         }
 
@@ -193,7 +262,16 @@ public class PlanFactory {
         * TEMPLATE queries are translated into a SELECT with project 
         * variable ?out.
          */
-        final SelectPlan selectPlan = makeSelectPlan(query);
+        final SelectPlan selectPlan;
+        final List<BindingsClausePlan> nativeSelectPlans = !optimizing ? null
+                : makeNativeSelectPlans(filters.getSelectQuery(), live.getOutputVars());
+        if (nativeSelectPlans != null) {
+            LOG.trace("The SELECT query is evaluated in the binding clauses");
+            iteratorAndSourcePlans.addAll(nativeSelectPlans);
+            selectPlan = null;
+        } else {
+            selectPlan = makeSelectPlan(filters.getSelectQuery(), live.getOutputVars());
+        }
 
         if (query.isTemplateType()) {
 	        final TemplatePlan templatePlan = makeTemplatePlan(query);
@@ -219,10 +297,13 @@ public class PlanFactory {
      * Makes the plan for a SPARQL ITERATOR clause.
      *
      * @param elementIterator the SPARQL ITERATOR
+     * @param usedOutputs the outputs bound to a variable that is used, or
+     * null if all are used
      * @return -
      */
     static IteratorPlan makeIteratorPlan(
-            final ElementIterator elementIterator)
+            final ElementIterator elementIterator,
+            final BitSet usedOutputs)
             throws SPARQLExtException {
         Objects.requireNonNull(elementIterator, "The Iterator must not be null");
 
@@ -237,7 +318,7 @@ public class PlanFactory {
         ExprFunction function = expr.getFunction();
         String iri = function.getFunctionIRI();
         ExprList exprList = new ExprList(function.getArgs());
-        return new IteratorPlan(iri, exprList, vars);
+        return new IteratorPlan(iri, exprList, vars, usedOutputs);
     }
 
     /**
@@ -324,7 +405,133 @@ public class PlanFactory {
                 throw new SPARQLExtException("should not reach this point");
             }
         }
-        return new GenerateFormPlan(bgp, subQueriesPlans);
+        return new GenerateFormPlan(bgp, subQueriesPlans, optimizing);
+    }
+
+    /**
+     * Makes the plans that evaluate the generated SELECT query after the
+     * binding clauses, without executing a SELECT query, if the WHERE clause
+     * only contains BIND and FILTER elements, and if there is no solution
+     * modifier. The BINDs of the WHERE clause are evaluated first, then its
+     * FILTERs, then the expressions of the SELECT clause.
+     *
+     * @param query the SPARQL-Generate query, without the FILTERs that are
+     * pushed down
+     * @param outputVars the variables used after the SELECT query, or null if
+     * all are used
+     * @return the plans, or null if the SELECT query must be executed
+     */
+    private static List<BindingsClausePlan> makeNativeSelectPlans(
+            final SPARQLExtQuery query,
+            final Set<Var> outputVars) {
+        if (!query.isGenerateType() && !query.isTemplateType() && !query.isPerformType()) {
+            return null;
+        }
+        if (query.hasAggregators() || query.hasGroupBy() || query.hasHaving()
+                || query.hasOrderBy() || query.hasLimit() || query.hasOffset()
+                || query.hasValues() || query.isDistinct() || query.isReduced()) {
+            return null;
+        }
+        // a variable that is already bound cannot be bound again
+        final Set<Var> bound = new HashSet<>();
+        if (query.hasSignature()) {
+            bound.addAll(query.getSignature());
+        }
+        if (query.hasBindingClauses()) {
+            for (Element el : query.getBindingClauses()) {
+                if (el instanceof ElementIterator) {
+                    bound.addAll(((ElementIterator) el).getVars());
+                } else if (el instanceof ElementSource) {
+                    bound.add(((ElementSource) el).getVar());
+                } else if (el instanceof ElementBind) {
+                    bound.add(((ElementBind) el).getVar());
+                }
+            }
+        }
+        final String base = query.getBaseURI();
+        final List<BindingsClausePlan> plans = new ArrayList<>();
+        final List<BindingsClausePlan> filterPlans = new ArrayList<>();
+        final Element pattern = query.getQueryPattern();
+        if (pattern != null) {
+            if (!(pattern instanceof ElementGroup)) {
+                return null;
+            }
+            for (Element el : ((ElementGroup) pattern).getElements()) {
+                if (el instanceof ElementBind) {
+                    final ElementBind elementBind = (ElementBind) el;
+                    if (!isNative(elementBind.getExpr()) || !bound.add(elementBind.getVar())) {
+                        return null;
+                    }
+                    plans.add(new BindPlan(withBase(elementBind.getExpr(), base), elementBind.getVar()));
+                } else if (el instanceof ElementFilter) {
+                    final Expr expr = ((ElementFilter) el).getExpr();
+                    if (!isNative(expr)) {
+                        return null;
+                    }
+                    filterPlans.add(new FilterPlan(withBase(expr, base)));
+                } else {
+                    return null;
+                }
+            }
+        }
+        plans.addAll(filterPlans);
+        if (query.hasPostSelect()) {
+            final VarExprList postSelect = query.getPostSelect();
+            for (Var var : postSelect.getVars()) {
+                final Expr expr = postSelect.getExpr(var);
+                if (expr == null) {
+                    continue;
+                }
+                if (!isNative(expr) || !bound.add(var)) {
+                    return null;
+                }
+                // the unused expressions are skipped, unless they may have a side effect
+                if (outputVars != null && !outputVars.contains(var)
+                        && CommonSubExpressions.isSideEffectFree(expr)) {
+                    continue;
+                }
+                plans.add(new BindPlan(withBase(expr, base), var));
+            }
+        }
+        return plans;
+    }
+
+    /**
+     * Resolves the IRIs built by an expression against the base of the query.
+     * When the SELECT query is executed, they are resolved against the base of
+     * the current query of the context, which the binding clauses do not set.
+     */
+    private static Expr withBase(final Expr expr, final String base) {
+        if (base == null) {
+            return expr;
+        }
+        return ExprTransformer.transform(new ExprTransformCopy() {
+            @Override
+            public Expr transform(final ExprFunction1 func, final Expr expr1) {
+                if (func instanceof E_IRI && ((E_IRI) func).getParserBase() == null) {
+                    return new E_IRI(base, expr1);
+                }
+                return super.transform(func, expr1);
+            }
+        }, expr);
+    }
+
+    /**
+     * Checks that an expression can be evaluated without the dataset and
+     * without grouping.
+     */
+    private static boolean isNative(final Expr expr) {
+        if (expr instanceof ExprFunctionOp || expr instanceof ExprAggregator) {
+            return false;
+        }
+        if (expr instanceof ExprFunction) {
+            for (Expr arg : ((ExprFunction) expr).getArgs()) {
+                if (!isNative(arg)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -332,9 +539,11 @@ public class PlanFactory {
      * on the existing SPARQL engine to do most of the job.
      *
      * @param query the SPARQL-Generate query
+     * @param outputVars the variables used after the SELECT query, or null if
+     * all are used
      * @return the SPARQL SELECT Query.
      */
-    private static SelectPlan makeSelectPlan(final SPARQLExtQuery query) {
+    private static SelectPlan makeSelectPlan(final SPARQLExtQuery query, final Set<Var> outputVars) {
         Objects.requireNonNull(query, "The query must not be null");
         SelectExtractionVisitor selectExtractionVisitor = new SelectExtractionVisitor(query);
         query.visit(selectExtractionVisitor);
@@ -348,8 +557,37 @@ public class PlanFactory {
                 query.getSignature().forEach(newQuery::addGroupBy);
             }
         }
+        if (outputVars != null && query.hasBindingClauses()) {
+            // the variables of the binding clauses that are not used after
+            // the SELECT query need not be projected
+            final Set<Var> deadVars = new HashSet<>();
+            for (Element el : query.getBindingClauses()) {
+                if (el instanceof ElementIterator) {
+                    deadVars.addAll(((ElementIterator) el).getVars());
+                } else if (el instanceof ElementSource) {
+                    deadVars.add(((ElementSource) el).getVar());
+                } else if (el instanceof ElementBind) {
+                    deadVars.add(((ElementBind) el).getVar());
+                }
+            }
+            deadVars.removeAll(outputVars);
+            final VarExprList project = newQuery.getProject();
+            final VarExprList liveProject = new VarExprList();
+            project.forEachVarExpr((v, e) -> {
+                if (deadVars.contains(v)) {
+                    return;
+                }
+                if (e == null) {
+                    liveProject.add(v);
+                } else {
+                    liveProject.add(v, e);
+                }
+            });
+            project.clear();
+            project.addAll(liveProject);
+        }
         LOG.trace(String.format("Generated SELECT query\n%s", newQuery.toString()));
-        return new SelectPlan(newQuery, query.isSelectType(), query.getSignature());
+        return new SelectPlan(newQuery, query.isSelectType(), query.getSignature(), outputVars);
     }
     
     private static TemplatePlan makeTemplatePlan(final SPARQLExtQuery query) {
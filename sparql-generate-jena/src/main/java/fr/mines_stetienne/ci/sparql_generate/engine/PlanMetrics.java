@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
+
+/**
+ * The metrics of the clauses of a query, summed over all the plans created for
+ * the same query text.
+ *
+ * <p>
+ * Metrics are disabled by default, and are enabled with system property
+ * {@code sparql-generate.metrics} or with {@link #setEnabled(boolean)}, before
+ * the plans are created. When enabled, the metrics of each clause are also
+ * registered as a JMX MBean with domain
+ * {@code fr.mines_stetienne.ci.sparql_generate}, and {@link #dump()} returns
+ * all of them, along with the statistics of the caches of the
+ * {@link QueryExecutor}s, as JSON.
+ * </p>
+ *
+ * <p>
+ * The metrics of at most {@code sparql-generate.metrics.size} query texts
+ * (1000 by default) are kept. The metrics of the least recently used query
+ * text are then dropped, and their MBeans are unregistered.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class PlanMetrics {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PlanMetrics.class);
+
+	private static final String DOMAIN = "fr.mines_stetienne.ci.sparql_generate";
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private static volatile boolean enabled = Boolean.getBoolean("sparql-generate.metrics");
+
+	private static final Cache<String, PlanMetrics> PLANS = CacheBuilder.newBuilder()
+			.maximumSize(Integer.getInteger("sparql-generate.metrics.size", 1000))
+			.<String, PlanMetrics>removalListener((notification) -> notification.getValue().unregister())
+			.build();
+
+	private static final AtomicInteger IDS = new AtomicInteger();
+
+	private static final Set<QueryExecutor> EXECUTORS = Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+	private final int id;
+
+	private final String query;
+
+	private final List<ClauseMetrics> bindingClauses = new ArrayList<>();
+
+	private final ClauseMetrics select;
+
+	private final ClauseMetrics output;
+
+	private final List<ObjectName> names = new ArrayList<>();
+
+	PlanMetrics(final RootPlan plan, final String queryString, final boolean register) {
+		this.id = IDS.incrementAndGet();
+		this.query = LogUtils.abbreviate(queryString, 120);
+		for (BindingsClausePlan clause : plan.getIteratorAndSourcePlans()) {
+			final String kind;
+			if (clause instanceof IteratorPlan) {
+				kind = "ITERATOR";
+			} else if (clause instanceof SourcePlan) {
+				kind = "SOURCE";
+			} else if (clause instanceof FilterPlan) {
+				kind = "FILTER";
+			} else {
+				kind = "BIND";
+			}
+			bindingClauses.add(new ClauseMetrics(query, kind, LogUtils.abbreviate(clause.toString(), 120)));
+		}
+		select = new ClauseMetrics(query, "SELECT", "WHERE");
+		final SPARQLExtQuery q = plan.getQuery();
+		final String kind = q.isGenerateType() ? "GENERATE" : q.isTemplateType() ? "TEMPLATE" : "OUTPUT";
+		output = new ClauseMetrics(query, kind, kind);
+		if (register) {
+			register();
+		}
+	}
+
+	/**
+	 * @return true if the metrics are recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables the metrics of the plans created afterwards.
+	 *
+	 * @param enabled true to enable the metrics
+	 */
+	public static void setEnabled(boolean enabled) {
+		PlanMetrics.enabled = enabled;
+	}
+
+	/**
+	 * Gets the metrics for the query of a plan.
+	 *
+	 * @param plan the plan
+	 * @return the metrics, or null if they are disabled
+	 */
+	static PlanMetrics of(final RootPlan plan) {
+		if (!enabled) {
+			return null;
+		}
+		return PLANS.asMap().computeIfAbsent(plan.getQuery().toString(), (q) -> new PlanMetrics(plan, q, true));
+	}
+
+	/**
+	 * Keeps track of the caches of a query executor.
+	 *
+	 * @param executor the query executor
+	 */
+	static void register(final QueryExecutor executor) {
+		if (enabled) {
+			EXECUTORS.add(executor);
+		}
+	}
+
+	ClauseMetrics getClause(int i) {
+		return bindingClauses.get(i);
+	}
+
+	ClauseMetrics getSelect() {
+		return select;
+	}
+
+	ClauseMetrics getOutput() {
+		return output;
+	}
+
+	private void register() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final List<ClauseMetrics> all = getAll();
+		for (int i = 0; i < all.size(); i++) {
+			final ClauseMetrics clause = all.get(i);
+			try {
+				ObjectName name = new ObjectName(DOMAIN + ":type=Clause,query=q" + id + ",clause="
+						+ String.format("%02d", i) + "-" + clause.getKind());
+				server.registerMBean(clause, name);
+				names.add(name);
+			} catch (JMException ex) {
+				LOG.debug("Could not register the metrics of " + clause.getClause(), ex);
+			}
+		}
+	}
+
+	private void unregister() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : names) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException ex) {
+				LOG.debug("Could not unregister " + name, ex);
+			}
+		}
+		names.clear();
+	}
+
+	List<ClauseMetrics> getAll() {
+		final List<ClauseMetrics> all = new ArrayList<>(bindingClauses);
+		all.add(select);
+		all.add(output);
+		return all;
+	}
+
+	/**
+	 * Resets all the metrics.
+	 */
+	public static void reset() {
+		PLANS.asMap().values().forEach((plan) -> plan.getAll().forEach(ClauseMetrics::reset));
+	}
+
+	/**
+	 * Gets all the metrics as JSON.
+	 *
+	 * @return the metrics
+	 */
+	public static String dump() {
+		final Map<String, Object> dump = new LinkedHashMap<>();
+		final List<Object> queries = new ArrayList<>();
+		PLANS.asMap().values().stream().sorted((p1, p2) -> Integer.compare(p1.id, p2.id)).forEach((plan) -> {
+			final Map<String, Object> q = new LinkedHashMap<>();
+			q.put("id", "q" + plan.id);
+			q.put("query", plan.query);
+			final List<Object> clauses = new ArrayList<>();
+			for (ClauseMetrics clause : plan.getAll()) {
+				if (clause.getExecutions() == 0) {
+					continue;
+				}
+				final Map<String, Object> c = new LinkedHashMap<>();
+				c.put("kind", clause.getKind());
+				c.put("clause", clause.getClause());
+				c.put("executions", clause.getExecutions());
+				c.put("bindingsIn", clause.getBindingsIn());
+				c.put("bindingsOut", clause.getBindingsOut());
+				c.put("batches", clause.getBatches());
+				c.put("totalTimeMillis", clause.getTotalTimeMillis());
+				c.put("selfTimeMillis", clause.getSelfTimeMillis());
+				c.put("charactersFetched", clause.getCharactersFetched());
+				clauses.add(c);
+			}
+			q.put("clauses", clauses);
+			queries.add(q);
+		});
+		dump.put("queries", queries);
+		final Map<String, CacheStats> caches = new LinkedHashMap<>();
+		synchronized (EXECUTORS) {
+			for (QueryExecutor executor : EXECUTORS) {
+				executor.getCacheStats().forEach((name, stats) -> caches.merge(name, stats, CacheStats::plus));
+			}
+		}
+		final Map<String, Object> cacheDump = new LinkedHashMap<>();
+		caches.forEach((name, stats) -> {
+			final Map<String, Object> c = new LinkedHashMap<>();
+			c.put("hitCount", stats.hitCount());
+			c.put("missCount", stats.missCount());
+			c.put("evictionCount", stats.evictionCount());
+			c.put("hitRate", stats.hitRate());
+			cacheDump.put(name, c);
+		});
+		dump.put("caches", cacheDump);
+		return GSON.toJson(dump);
+	}
+
+}
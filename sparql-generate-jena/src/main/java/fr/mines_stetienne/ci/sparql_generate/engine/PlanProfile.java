@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The actual row counts, batch counts and timings of the plans executed with
+ * one context, for EXPLAIN ANALYZE.
+ *
+ * <p>
+ * Set a profile on the context with
+ * {@link ContextUtils.Builder#setProfile(PlanProfile)}, execute the plan, then
+ * call {@link #explain(RootPlan)} to get the plan tree annotated with what
+ * happened during the execution: the dataset declaration, the binding clauses,
+ * the generated SELECT query, the GENERATE or TEMPLATE clause and the
+ * sub-queries of the GENERATE clause, followed by the queries that were called
+ * by name.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class PlanProfile {
+
+	private static final String INDENT = "  ";
+
+	private final Map<RootPlan, PlanMetrics> plans = new LinkedHashMap<>();
+
+	synchronized PlanMetrics get(final RootPlan plan) {
+		return plans.computeIfAbsent(plan, (p) -> new PlanMetrics(p, p.getQuery().toString(), false));
+	}
+
+	private synchronized PlanMetrics getIfPresent(final RootPlan plan) {
+		return plans.get(plan);
+	}
+
+	/**
+	 * Gets the plan tree, annotated with the metrics of the execution if the
+	 * plan was executed with this profile.
+	 *
+	 * @param plan the plan
+	 * @return the annotated plan tree
+	 */
+	public String explain(final RootPlan plan) {
+		final StringBuilder sb = new StringBuilder();
+		final Set<RootPlan> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		explain(sb, plan, 0, visited);
+		final List<RootPlan> called = new ArrayList<>();
+		synchronized (this) {
+			for (RootPlan p : plans.keySet()) {
+				if (!visited.contains(p)) {
+					called.add(p);
+				}
+			}
+		}
+		if (!called.isEmpty()) {
+			sb.append("Called queries:\n");
+			for (RootPlan p : called) {
+				explain(sb, p, 1, visited);
+			}
+		}
+		return sb.toString();
+	}
+
+	private void explain(final StringBuilder sb, final RootPlan plan, final int indent, final Set<RootPlan> visited) {
+		if (!visited.add(plan)) {
+			return;
+		}
+		final PlanMetrics metrics = getIfPresent(plan);
+		final SPARQLExtQuery query = plan.getQuery();
+		final String type = query.isGenerateType() ? "GENERATE"
+				: query.isSelectType() ? "SELECT" : query.isTemplateType() ? "TEMPLATE" : "QUERY";
+		line(sb, indent, type + " query" + (query.getName() != null ? " " + query.getName() : "")
+				+ (metrics == null ? " (never executed)" : ""));
+		line(sb, indent + 1, plan.getDatasetDeclarationPlan().toString());
+		final List<BindingsClausePlan> clauses = plan.getIteratorAndSourcePlans();
+		for (int i = 0; i < clauses.size(); i++) {
+			line(sb, indent + 1, clauses.get(i) + annotate(metrics != null ? metrics.getClause(i) : null));
+		}
+		if (plan.selectPlan != null) {
+			line(sb, indent + 1, "SELECT" + annotate(metrics != null ? metrics.getSelect() : null));
+			for (String selectLine : plan.selectPlan.toString().split("\\R")) {
+				if (!selectLine.trim().isEmpty()) {
+					line(sb, indent + 2, selectLine);
+				}
+			}
+		}
+		final ClauseMetrics output = metrics != null ? metrics.getOutput() : null;
+		if (plan.getGeneratePlan() != null) {
+			final GeneratePlan generatePlan = plan.getGeneratePlan();
+			line(sb, indent + 1, generatePlan + annotate(output));
+			if (generatePlan instanceof GenerateFormPlan) {
+				for (RootPlan subQuery : ((GenerateFormPlan) generatePlan).getSubQueries()) {
+					explain(sb, subQuery, indent + 2, visited);
+				}
+			}
+		} else if (plan.getTemplatePlan() != null) {
+			line(sb, indent + 1, plan.getTemplatePlan() + annotate(output));
+		}
+	}
+
+	private static String annotate(final ClauseMetrics clause) {
+		if (clause == null) {
+			return "";
+		}
+		if (clause.getExecutions() == 0) {
+			return " (never executed)";
+		}
+		final StringBuilder sb = new StringBuilder(" (executions=").append(clause.getExecutions())
+				.append(" rows in=").append(clause.getBindingsIn())
+				.append(" rows out=").append(clause.getBindingsOut());
+		if (clause.getBatches() > 0) {
+			sb.append(" batches=").append(clause.getBatches());
+		}
+		sb.append(String.format(" time=%.3f ms", clause.getTotalNanos() / 1e6));
+		if (clause.getSelfNanos() != clause.getTotalNanos()) {
+			sb.append(String.format(" self=%.3f ms", clause.getSelfNanos() / 1e6));
+		}
+		if (clause.getCharactersFetched() > 0) {
+			sb.append(" characters=").append(clause.getCharactersFetched());
+		}
+		return sb.append(")").toString();
+	}
+
+	private static void line(final StringBuilder sb, final int indent, final String line) {
+		for (int i = 0; i < indent; i++) {
+			sb.append(INDENT);
+		}
+		sb.append(line).append("\n");
+	}
+
+}
@@ -19,7 +19,9 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +47,7 @@ import com.google.common.cache.CacheStats;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.jfr.QueryExecutionEvent;
 import fr.mines_stetienne.ci.sparql_generate.lang.ParserSPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
@@ -61,12 +64,30 @@ public class QueryExecutor {
      */
     private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
 
-    private final Cache<String, SPARQLExtQuery> loadedQueries = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).build();
-    private final Cache<SPARQLExtQuery, RootPlan> loadedPlans = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).build();
+    private final Cache<String, SPARQLExtQuery> loadedQueries = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).recordStats().build();
+    private final Cache<SPARQLExtQuery, RootPlan> loadedPlans = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).recordStats().build();
     private final Cache<ExecutionKey, String> templateExecutions = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.SECONDS).maximumSize(200_000).recordStats().build();
     private final Cache<ExecutionKey, ResultSetRewindable> selectExecutions = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.SECONDS).maximumSize(200_000).recordStats().build();
     static int nbselect = 0, nbtemplate = 0, nbgenerate = 0;
 
+    public QueryExecutor() {
+        PlanMetrics.register(this);
+    }
+
+    /**
+     * Gets the statistics of the caches of this executor.
+     *
+     * @return the statistics, by cache name
+     */
+    public Map<String, CacheStats> getCacheStats() {
+        final Map<String, CacheStats> stats = new LinkedHashMap<>();
+        stats.put("queries", loadedQueries.stats());
+        stats.put("plans", loadedPlans.stats());
+        stats.put("templateExecutions", templateExecutions.stats());
+        stats.put("selectExecutions", selectExecutions.stats());
+        return stats;
+    }
+
     /**
      *
      * @param queryName
@@ -89,9 +110,16 @@ public class QueryExecutor {
                     } catch (IOException ex) {
                         throw new SPARQLExtException("Error while loading the query file " + queryName, ex);
                     }
+                    final String base = ContextUtils.getBase(context);
+                    final PlanCache planCache = PlanCache.get();
+                    if (planCache != null) {
+                        final SPARQLExtQuery cached = planCache.get(qString, base, false);
+                        if (cached != null) {
+                            return cached;
+                        }
+                    }
                     final SPARQLExtQuery q;
                     try {
-                    	String base = ContextUtils.getBase(context);
                         q = (SPARQLExtQuery) QueryFactory.create(qString, 
                         		base,
                                 SPARQLExt.SYNTAX);
@@ -101,6 +129,9 @@ public class QueryExecutor {
                     } catch (QueryParseException ex) {
                         throw new SPARQLExtException("Error while parsing the query file " + queryName, ex);
                     }
+                    if (planCache != null) {
+                        planCache.put(qString, base, getPlan(q));
+                    }
                     return q;
                 }
             });
@@ -120,12 +151,24 @@ public class QueryExecutor {
             final String base) {
         try {
             return loadedQueries.get(queryString, () -> {
+                final PlanCache planCache = PlanCache.get();
+                if (planCache != null) {
+                    final SPARQLExtQuery cached = planCache.get(queryString, null, true);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+                final SPARQLExtQuery q;
                 try {
                 	SPARQLExtQuery query = new SPARQLExtQuery();
-                    return (SPARQLExtQuery) ParserSPARQLExt.parseSubQuery(query, queryString);
+                    q = (SPARQLExtQuery) ParserSPARQLExt.parseSubQuery(query, queryString);
                 } catch (QueryParseException ex) {
                     throw new SPARQLExtException("Error while parsing the query " + LogUtils.compress(queryString), ex);
                 }
+                if (planCache != null) {
+                    planCache.put(queryString, null, getPlan(q));
+                }
+                return q;
             });
         } catch (ExecutionException ex) {
             throw (SPARQLExtException) ex.getCause();
@@ -221,7 +264,11 @@ public class QueryExecutor {
         if (++nbgenerate % 2000 == 00) {
             LOG.info(String.format("Called generates %s times.", nbgenerate));
         }
+        final QueryExecutionEvent event = new QueryExecutionEvent();
+        event.begin();
         plan.execGenerateStream(values, context);
+        event.end();
+        commit(event, "GENERATE", plan, values, false);
     }
     /**
      *
@@ -284,7 +331,10 @@ public class QueryExecutor {
 
             LOG.info("call select " + nbselect + " count " + stats.loadCount() + " - hit count " + stats.hitCount() + " - rate " + stats.hitRate());
         }
+        final QueryExecutionEvent event = new QueryExecutionEvent();
+        event.begin();
         ResultSetRewindable resultSet = selectExecutions.getIfPresent(key);
+        final boolean cached = resultSet != null;
         if (resultSet != null) {
             resultSet.reset();
         } else {
@@ -292,6 +342,8 @@ public class QueryExecutor {
             resultSet = ResultSetFactory.copyResults(memResultSet);
             selectExecutions.put(key, resultSet);
         }
+        event.end();
+        commit(event, "SELECT", plan, newValues, cached);
         ContextUtils.getSelectOutput(context).accept(resultSet);
     }
 
@@ -361,7 +413,22 @@ public class QueryExecutor {
         if (++nbtemplate % 2000 == 00) {
             LOG.info(String.format("Called templates %s times.", nbtemplate));
         }
+        final QueryExecutionEvent event = new QueryExecutionEvent();
+        event.begin();
         plan.execTemplateStream(newValues, context);
+        event.end();
+        commit(event, "TEMPLATE", plan, newValues, false);
+    }
+
+    private void commit(QueryExecutionEvent event, String queryType, RootPlan plan, List<Binding> values, boolean cached) {
+        if (event.shouldCommit()) {
+            final SPARQLExtQuery query = plan.getQuery();
+            event.queryType = queryType;
+            event.query = query.getName() != null ? query.getName().toString() : LogUtils.abbreviate(query.toString(), 200);
+            event.bindings = values.size();
+            event.cached = cached;
+            event.commit();
+        }
     }
 
     private List<Var> getSignature(SPARQLExtQuery query) {
@@ -17,6 +17,7 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -42,7 +43,6 @@ import org.slf4j.LoggerFactory;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
-import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
 
 /**
  * Entry point to a SPARQL-Generate query execution.
@@ -86,10 +86,40 @@ public class RootPlan {
 	 */
 	private final TemplatePlan templatePlan;
 
+	/**
+	 * The metrics of the clauses, or null if they are disabled.
+	 */
+	private final PlanMetrics metrics;
+
 	public SPARQLExtQuery getQuery() {
 		return query;
 	}
 
+	DatasetDeclarationPlan getDatasetDeclarationPlan() {
+		return datasetDeclarationPlan;
+	}
+
+	List<BindingsClausePlan> getIteratorAndSourcePlans() {
+		return iteratorAndSourcePlans;
+	}
+
+	GeneratePlan getGeneratePlan() {
+		return generatePlan;
+	}
+
+	TemplatePlan getTemplatePlan() {
+		return templatePlan;
+	}
+
+	/**
+	 * Gets the metrics of the profile of the context if there is one, else the
+	 * global metrics of the query.
+	 */
+	private PlanMetrics getMetrics(final Context context) {
+		final PlanProfile profile = ContextUtils.getProfile(context);
+		return profile != null ? profile.get(this) : metrics;
+	}
+
 	/**
 	 * Constructor
 	 *
@@ -106,6 +136,7 @@ public class RootPlan {
 		this.selectPlan = selectPlan;
 		this.generatePlan = null;
 		this.templatePlan = null;
+		this.metrics = PlanMetrics.of(this);
 	}
 
 	/**
@@ -126,6 +157,7 @@ public class RootPlan {
 		this.selectPlan = selectPlan;
 		this.generatePlan = generatePlan;
 		this.templatePlan = null;
+		this.metrics = PlanMetrics.of(this);
 	}
 
 	/**
@@ -146,6 +178,7 @@ public class RootPlan {
 		this.selectPlan = selectPlan;
 		this.generatePlan = null;
 		this.templatePlan = templatePlan;
+		this.metrics = PlanMetrics.of(this);
 	}
 
 	/**
@@ -206,10 +239,29 @@ public class RootPlan {
 		}
 		final List<Var> variables = getVariables(values);
 		final List<Binding> newValues = getValues(variables, values);
-		exec(variables, newValues, context);
+		exec(BindingBatch.of(variables, newValues), context);
 	}
 
 	
+	/**
+	 * Executes a GENERATE query for a batch of bindings of the calling query,
+	 * and emits generated triples to the stream of the context.
+	 *
+	 * @param values
+	 *            the values for the query signature.
+	 * @param context
+	 *            the execution context
+	 */
+	void execGenerateStreamBatch(final BindingBatch values, final Context context) {
+		Objects.requireNonNull(context);
+		Objects.requireNonNull(ContextUtils.getGenerateOutput(context));
+		if (!query.isGenerateType()) {
+			throw new SPARQLExtException("Query is not a GENERATE query.");
+		}
+		final List<Var> variables = getSignatureVariables(values.getBoundVars());
+		exec(values.select(variables), context);
+	}
+
 	/**
 	 * Executes a SELECT query and returns the results.
 	 *
@@ -261,7 +313,7 @@ public class RootPlan {
 		}
 		final List<Var> variables = getVariables(values);
 		final List<Binding> newValues = getValues(variables, values);
-		exec(variables, newValues, context);
+		exec(BindingBatch.of(variables, newValues), context);
 	}
 
 	/**
@@ -319,7 +371,7 @@ public class RootPlan {
 		}
 		final List<Var> variables = getVariables(values);
 		final List<Binding> newValues = getValues(variables, values);
-		exec(variables, newValues, context);
+		exec(BindingBatch.of(variables, newValues), context);
 	}
 
 	private List<Var> getVariables(List<Binding> values) {
@@ -331,6 +383,10 @@ public class RootPlan {
 				}
 			}
 		}
+		return getSignatureVariables(variables);
+	}
+
+	private List<Var> getSignatureVariables(Collection<Var> variables) {
 		List<Var> signature = query.getSignature();
 		if (signature == null) {
 			return new ArrayList<>(variables);
@@ -355,7 +411,7 @@ public class RootPlan {
 		return values;
 	}
 
-	private void exec(final List<Var> variables, final List<Binding> values, final Context context) {
+	private void exec(final BindingBatch values, final Context context) {
 		if (Thread.interrupted()) {
 			LOG.warn("Interrupted " + System.identityHashCode(this));
 			return;
@@ -376,9 +432,9 @@ public class RootPlan {
 			LOG.trace("Starting sub-execution");
 		}
 
-		Binding binding = values.size() > 0 ? values.get(0) : null;
+		Binding binding = values.size() > 0 ? values.getBinding(0) : null;
 		Context newContext = datasetDeclarationPlan.prepareDataset(binding, context);
-		execIteratorAndSourcePlans(variables, values, newContext, 0);
+		execIteratorAndSourcePlans(values, newContext, 0);
 
 		if (ContextUtils.isRootContext(context)) {
 			StreamRDF outputGenerate = ContextUtils.getGenerateOutput(context);
@@ -392,63 +448,106 @@ public class RootPlan {
 		}
 	}
 
-	private void execIteratorAndSourcePlans(final List<Var> variables, final List<Binding> values,
-			final Context context, final int i) {
+	private void execIteratorAndSourcePlans(final BindingBatch values, final Context context, final int i) {
 		if (i < iteratorAndSourcePlans.size()) {
 			final BindingsClausePlan plan = iteratorAndSourcePlans.get(i);
+			final PlanMetrics planMetrics = getMetrics(context);
+			final ClauseMetrics clauseMetrics = planMetrics != null ? planMetrics.getClause(i) : null;
 			if (plan instanceof BindOrSourcePlan) {
 				final BindOrSourcePlan bindOrSourcePlan = (BindOrSourcePlan) plan;
-				variables.add(bindOrSourcePlan.getVar());
-				final List<Binding> newValues = bindOrSourcePlan.exec(values, context);
-				execIteratorAndSourcePlans(variables, newValues, context, i + 1);
+				final long start = System.nanoTime();
+				final BindingBatch newValues = bindOrSourcePlan.exec(values, context);
+				if (clauseMetrics != null) {
+					clauseMetrics.record(values.size(), newValues.size(), System.nanoTime() - start);
+					if (plan instanceof SourcePlan) {
+						clauseMetrics.recordFetched(newValues, bindOrSourcePlan.getVar());
+					}
+				}
+				execIteratorAndSourcePlans(newValues, context, i + 1);
 				LOG.debug("Finished plan " + bindOrSourcePlan);
+			} else if (plan instanceof FilterPlan) {
+				final FilterPlan filterPlan = (FilterPlan) plan;
+				final long start = System.nanoTime();
+				final BindingBatch newValues = filterPlan.exec(values, context);
+				if (clauseMetrics != null) {
+					clauseMetrics.record(values.size(), newValues.size(), System.nanoTime() - start);
+				}
+				execIteratorAndSourcePlans(newValues, context, i + 1);
+				LOG.debug("Finished plan " + filterPlan);
 			} else {
 				IteratorPlan iteratorPlan = (IteratorPlan) plan;
-				iteratorPlan.exec(variables, values, context, (newValues) -> {
-					final List<Var> newVariables = new ArrayList<>(variables);
-					newVariables.addAll(iteratorPlan.getVars());
-					execIteratorAndSourcePlans(newVariables, newValues, context, i + 1);
+				final long start = System.nanoTime();
+				iteratorPlan.exec(values, context, (newValues) -> {
+					final long downstream = System.nanoTime();
+					execIteratorAndSourcePlans(newValues, context, i + 1);
+					if (clauseMetrics != null) {
+						clauseMetrics.recordBatch(newValues.size());
+						clauseMetrics.recordDownstream(System.nanoTime() - downstream);
+					}
 					LOG.debug("Finished batch for " + iteratorPlan);
 				});
+				if (clauseMetrics != null) {
+					clauseMetrics.record(values.size(), 0, System.nanoTime() - start);
+				}
 				LOG.debug("Finished plan " + iteratorPlan);
 			}
 		} else {
-			execSelectPlan(variables, values, context);
+			execSelectPlan(values, context);
 		}
 	}
 
-	private void execSelectPlan(final List<Var> variables, final List<Binding> values, final Context context) {
+	private void execSelectPlan(final BindingBatch values, final Context context) {
 		if (selectPlan == null) {
 			if (query.isSelectType()) {
-				final List<String> listVar = variables.stream().map(Var::getVarName).collect(Collectors.toList());
+				final List<String> listVar = values.getVars().stream().map(Var::getVarName)
+						.collect(Collectors.toList());
 				final Model model = ContextUtils.getDataset(context).getDefaultModel();
-				final ResultSet resultSet = ResultSetStream.create(listVar, model, values.iterator());
+				final ResultSet resultSet = ResultSetStream.create(listVar, model, values.asBindings().iterator());
 				ContextUtils.getSelectOutput(context).accept(resultSet);
-			} else if(query.isGenerateType()) {
-				generatePlan.exec(variables, values, context);
-			} else if(query.isTemplateType()) {
-				templatePlan.exec(variables, values, context);
+			} else {
+				execOutputPlan(values, context);
 			}
 		} else {
-			selectPlan.exec(variables, values, context, resultSet -> {
+			final long start = System.nanoTime();
+			final long[] downstream = new long[1];
+			final int[] out = new int[1];
+			selectPlan.exec(values, context, resultSet -> {
+				final long downstreamStart = System.nanoTime();
 				if (query.isSelectType()) {
 					ContextUtils.getSelectOutput(context).accept(resultSet);
 				} else {
 					final List<Var> newVariables = new ArrayList<>();
-					newVariables.addAll(variables); // can we delete this?
+					newVariables.addAll(values.getVars()); // can we delete this?
 					newVariables.addAll(selectPlan.getVars());
-					final List<Binding> newValues = new ArrayList<>();
+					resultSet.getResultVars().forEach((v) -> newVariables.add(Var.alloc(v)));
+					final BindingBatch.Builder newValues = BindingBatch.builder(newVariables);
 					while (resultSet.hasNext()) {
-						final Binding p = EvalUtils.createBinding(resultSet.next());
-						newValues.add(p);
-					}
-					if(query.isGenerateType()) {
-						generatePlan.exec(newVariables, newValues, context);
-					} else if(query.isTemplateType()) {
-						templatePlan.exec(newVariables, newValues, context);
+						newValues.add(resultSet.nextBinding());
 					}
+					out[0] += newValues.size();
+					execOutputPlan(newValues.build(), context);
 				}
+				downstream[0] += System.nanoTime() - downstreamStart;
 			});
+			final PlanMetrics planMetrics = getMetrics(context);
+			if (planMetrics != null) {
+				final ClauseMetrics selectMetrics = planMetrics.getSelect();
+				selectMetrics.record(values.size(), out[0], System.nanoTime() - start);
+				selectMetrics.recordDownstream(downstream[0]);
+			}
+		}
+	}
+
+	private void execOutputPlan(final BindingBatch values, final Context context) {
+		final long start = System.nanoTime();
+		if (query.isGenerateType()) {
+			generatePlan.exec(values, context);
+		} else if (query.isTemplateType()) {
+			templatePlan.exec(values, context);
+		}
+		final PlanMetrics planMetrics = getMetrics(context);
+		if (planMetrics != null) {
+			planMetrics.getOutput().record(values.size(), 0, System.nanoTime() - start);
 		}
 	}
 
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -39,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.jfr.SelectExecutionEvent;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
@@ -62,6 +64,11 @@ public class SelectPlan {
 
 	private final List<Var> signature;
 
+	/**
+	 * The variables used after the query, or null if all are used.
+	 */
+	private final Set<Var> outputVars;
+
 	/**
 	 * Constructor.
 	 *
@@ -73,12 +80,31 @@ public class SelectPlan {
 	 *            the signature of the query
 	 */
 	public SelectPlan(final SPARQLExtQuery query, final boolean isSelectType, final List<Var> signature) {
+		this(query, isSelectType, signature, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param query
+	 *            the SPARQL SELECT part of the query.
+	 * @param isSelectType
+	 *            if the query itself is a SELECT query
+	 * @param signature
+	 *            the signature of the query
+	 * @param outputVars
+	 *            the variables of the initial values that are used after the
+	 *            query and need be projected, or null if all are used
+	 */
+	public SelectPlan(final SPARQLExtQuery query, final boolean isSelectType, final List<Var> signature,
+			final Set<Var> outputVars) {
 		if (!query.isSelectType()) {
 			throw new SPARQLExtException("Should be select query. " + query);
 		}
 		this.select = query;
 		this.isSelectType = isSelectType;
 		this.signature = signature;
+		this.outputVars = outputVars;
 	}
 
 	public List<Var> getVars() {
@@ -88,18 +114,29 @@ public class SelectPlan {
 	/**
 	 * Updates a values block with the execution of a SPARQL SELECT query.
 	 *
-	 * @param variables
-	 *            the variables
-	 * @param values
-	 *            the list of bindings.
+	 * @param batch
+	 *            the batch of bindings.
 	 * @param context
 	 *            the execution context.
-	 * @return the new list of bindings
+	 * @param output
+	 *            where the results are emitted
 	 */
-	final public void exec(final List<Var> variables, final List<Binding> values, final Context context, Consumer<ResultSet> output) {
+	final public void exec(final BindingBatch batch, final Context context, Consumer<ResultSet> output) {
 		if (Thread.interrupted()) {
 			throw new SPARQLExtException(new InterruptedException());
 		}
+		final List<Var> variables = batch.getVars();
+		final List<Binding> values = batch.asBindings();
+		output.accept(execSelect(variables, values, context));
+	}
+
+	/**
+	 * Executes the SPARQL SELECT query. The JFR event only covers the
+	 * execution of this query, not the plans that consume its results.
+	 */
+	private ResultSet execSelect(final List<Var> variables, final List<Binding> values, final Context context) {
+		final SelectExecutionEvent event = new SelectExecutionEvent();
+		event.begin();
 		final Query q = createQuery(select, variables, values, context);
 		final Dataset inputDataset = ContextUtils.getDataset(context);
 		if (LOG.isTraceEnabled()) {
@@ -144,11 +181,19 @@ public class SelectPlan {
 					ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
 					resultSet = rewindable;
 				}				
-				output.accept(resultSet);
+				event.results = ((ResultSetRewindable) resultSet).size();
+				return resultSet;
 			}
 		} catch (Exception ex) {
 			LOG.error("Error while executing SELECT Query " + q, ex);
 			throw new SPARQLExtException("Error while executing SELECT Query " + q, ex);
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.query = LogUtils.abbreviate(select.toString(), 200);
+				event.bindings = values.size();
+				event.commit();
+			}
 		}
 	}
 
@@ -161,7 +206,7 @@ public class SelectPlan {
 		Query q = cloner.getOutput();
 		if (!isSelectType && !q.hasGroupBy() && !q.hasAggregators()) {
 			variables.forEach(v -> {
-				if (!q.getProjectVars().contains(v)) {
+				if (!q.getProjectVars().contains(v) && (outputVars == null || outputVars.contains(v))) {
 					q.getProject().add(v);
 				}
 			});
@@ -241,4 +286,9 @@ public class SelectPlan {
 	private List<Var> getVariables(List<String> varNames) {
 		return varNames.stream().map(VarUtils::allocVar).collect(Collectors.toList());
 	}
+
+	@Override
+	public String toString() {
+		return select.toString();
+	}
 }
@@ -31,12 +31,12 @@ import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.riot.SysRIOT;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.jfr.SourceFetchEvent;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
@@ -93,7 +93,7 @@ public class SourcePlan extends BindOrSourcePlan {
 		this.accept = accept;
 	}
 
-	final protected Binding exec(final Binding binding, final Context context) {
+	final protected Node exec(final Binding binding, final Context context) {
 
 		LOG.debug("Start " + this);
 		Objects.nonNull(binding);
@@ -102,19 +102,23 @@ public class SourcePlan extends BindOrSourcePlan {
 		final String acceptHeader = getAcceptHeader(binding);
 		LOG.trace("... resolved to SOURCE <" + sourceUri + "> ACCEPT " + acceptHeader + " AS " + var);
 		if (sourceUri == null) {
-			return BindingFactory.binding(binding, var, null);
+			return null;
 		}
 		final LookUpRequest request = new LookUpRequest(sourceUri, acceptHeader);
 		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
 		Objects.requireNonNull(sm);
+		final SourceFetchEvent event = new SourceFetchEvent();
+		event.begin();
 		try (TypedInputStream stream = sm.open(request)) {
 			if (stream == null) {
 				LOG.info(
 						"Exec SOURCE <" + sourceUri + "> ACCEPT " + acceptHeader + " AS " + var + " returned nothing.");
-				return BindingFactory.binding(binding);
+				return null;
 			}
 			try (InputStream in = stream.getInputStream()) {
 				final String literal = IOUtils.toString(in, "UTF-8");
+				event.found = true;
+				event.characters = literal.length();
 				final RDFDatatype dt;
 				if (stream.getMediaType() != null && stream.getMediaType().getContentTypeStr() != null) {
 					dt = tm.getSafeTypeByName(
@@ -127,11 +131,19 @@ public class SourcePlan extends BindOrSourcePlan {
 				if (LOG.isTraceEnabled()) {
 					LOG.trace("Exec " + this + " returned\n" + LogUtils.compress(n));
 				}
-				return BindingFactory.binding(binding, var, n);
+				return n;
 			}
 		} catch (IOException | DatatypeFormatException ex) {
 			LOG.warn("Exception while looking up " + sourceUri + ":", ex);
-			return BindingFactory.binding(binding);
+			return null;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.clause = toString();
+				event.uri = sourceUri;
+				event.accept = acceptHeader;
+				event.commit();
+			}
 		}
 
 	}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementMinus;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementOptional;
+import org.apache.jena.sparql.syntax.ElementSubQuery;
+import org.apache.jena.sparql.syntax.ElementUnion;
+
+import fr.mines_stetienne.ci.sparql_generate.expr.E_LiteralTemplate;
+import fr.mines_stetienne.ci.sparql_generate.expr.E_URITemplate;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSubExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.FromClause;
+
+/**
+ * Rewrites the expressions of a parsed normalized query that are the
+ * serialization of an {@link E_URITemplate} or of an {@link E_LiteralTemplate}
+ * back into that template, so that a query loaded from the {@link PlanCache}
+ * builds the extended IRIs and literals as the query it was stored from.
+ *
+ * <p>
+ * The query is rewritten in place, along with its sub-queries of the GENERATE
+ * and PERFORM clauses, of the FROM clauses and of the WHERE clause.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+final class TemplateFusion {
+
+	private TemplateFusion() {
+	}
+
+	/**
+	 * Fuses the templates of a query and of its sub-queries.
+	 *
+	 * @param query the parsed normalized query, rewritten in place
+	 */
+	static void fuse(final SPARQLExtQuery query) {
+		if (query.hasName()) {
+			query.setName(fuse(query.getName()));
+		}
+		if (query.hasCallParameters()) {
+			query.setCallParameters(fuse(query.getCallParameters()));
+		}
+		if (query.getFromClauses() != null) {
+			query.getFromClauses().replaceAll(TemplateFusion::fuse);
+		}
+		if (query.hasBindingClauses()) {
+			final List<Element> bindingClauses = new ArrayList<>(query.getBindingClauses());
+			bindingClauses.replaceAll(TemplateFusion::fuse);
+			query.setBindingClauses(bindingClauses);
+		}
+		if (query.getQueryPattern() != null) {
+			query.setQueryPattern(fuse(query.getQueryPattern()));
+		}
+		fuse(query.getProject());
+		fuse(query.getPostSelect());
+		if (query.hasGroupBy()) {
+			fuse(query.getGroupBy());
+		}
+		if (query.hasHaving()) {
+			query.getHavingExprs().replaceAll(TemplateFusion::fuse);
+		}
+		if (query.hasOrderBy()) {
+			query.getOrderBy().replaceAll((sc) -> new SortCondition(fuse(sc.getExpression()), sc.getDirection()));
+		}
+		if (query.hasGenerateClause()) {
+			query.getGenerateClause().forEach(TemplateFusion::fuseSubQuery);
+		}
+		if (query.hasPerformClause()) {
+			query.getPerformClause().forEach(TemplateFusion::fuseSubQuery);
+		}
+		if (query.hasTemplateClauseBefore()) {
+			query.setTemplateClauseBefore(fuse(query.getTemplateClauseBefore()));
+		}
+		if (query.hasTemplateClauseSeparator()) {
+			query.setTemplateClauseSeparator(fuse(query.getTemplateClauseSeparator()));
+		}
+		if (query.hasTemplateClauseAfter()) {
+			query.setTemplateClauseAfter(fuse(query.getTemplateClauseAfter()));
+		}
+		if (query.hasFunctionExpression()) {
+			query.setFunctionExpression(fuse(query.getFunctionExpression()));
+		}
+	}
+
+	private static void fuseSubQuery(final Element element) {
+		if (element instanceof ElementSubExtQuery) {
+			fuse(((ElementSubExtQuery) element).getQuery());
+		}
+	}
+
+	private static FromClause fuse(final FromClause fromClause) {
+		if (fromClause.getGenerate() == null) {
+			return new FromClause(fromClause.isNamed(), fuse(fromClause.getName()));
+		}
+		fuse(fromClause.getGenerate());
+		if (!fromClause.isNamed()) {
+			return fromClause;
+		}
+		return new FromClause(fromClause.getGenerate(), fuse(fromClause.getName()));
+	}
+
+	private static void fuse(final VarExprList exprs) {
+		if (exprs == null || exprs.getExprs().isEmpty()) {
+			return;
+		}
+		final VarExprList fused = new VarExprList();
+		for (Var var : exprs.getVars()) {
+			if (exprs.hasExpr(var)) {
+				fused.add(var, fuse(exprs.getExpr(var)));
+			} else {
+				fused.add(var);
+			}
+		}
+		exprs.clear();
+		exprs.addAll(fused);
+	}
+
+	private static ExprList fuse(final ExprList exprs) {
+		final List<Expr> fused = new ArrayList<>();
+		for (Expr expr : exprs) {
+			fused.add(fuse(expr));
+		}
+		return new ExprList(fused);
+	}
+
+	/**
+	 * Fuses the templates of a binding clause, or of an element of the WHERE
+	 * clause.
+	 */
+	private static Element fuse(final Element element) {
+		if (element instanceof ElementBind) {
+			final ElementBind bind = (ElementBind) element;
+			return new ElementBind(bind.getVar(), fuse(bind.getExpr()));
+		} else if (element instanceof ElementIterator) {
+			final ElementIterator iterator = (ElementIterator) element;
+			return new ElementIterator(fuse(iterator.getExpr()), iterator.getVars());
+		} else if (element instanceof ElementFilter) {
+			return new ElementFilter(fuse(((ElementFilter) element).getExpr()));
+		} else if (element instanceof ElementGroup) {
+			((ElementGroup) element).getElements().replaceAll(TemplateFusion::fuse);
+		} else if (element instanceof ElementUnion) {
+			((ElementUnion) element).getElements().replaceAll(TemplateFusion::fuse);
+		} else if (element instanceof ElementOptional) {
+			return new ElementOptional(fuse(((ElementOptional) element).getOptionalElement()));
+		} else if (element instanceof ElementMinus) {
+			return new ElementMinus(fuse(((ElementMinus) element).getMinusElement()));
+		} else if (element instanceof ElementNamedGraph) {
+			final ElementNamedGraph graph = (ElementNamedGraph) element;
+			return new ElementNamedGraph(graph.getGraphNameNode(), fuse(graph.getElement()));
+		} else if (element instanceof ElementSubQuery) {
+			final Query query = ((ElementSubQuery) element).getQuery();
+			if (query instanceof SPARQLExtQuery) {
+				fuse((SPARQLExtQuery) query);
+			}
+		}
+		return element;
+	}
+
+	/**
+	 * Fuses the templates of an expression, the outermost first: the CONCAT of
+	 * a STRLANG is part of the literal template, not a simple literal.
+	 *
+	 * @param expr the expression
+	 * @return the expression if nothing is fused, or a new expression
+	 */
+	static Expr fuse(final Expr expr) {
+		if (!(expr instanceof ExprFunction) || expr instanceof ExprFunctionOp) {
+			return expr;
+		}
+		Expr template = E_URITemplate.fromEquivalentExpr(expr);
+		if (template == null) {
+			template = E_LiteralTemplate.fromEquivalentExpr(expr);
+		}
+		final ExprFunction function = (ExprFunction) (template == null ? expr : template);
+		final List<Expr> args = new ArrayList<>();
+		boolean fused = template != null;
+		for (Expr arg : function.getArgs()) {
+			final Expr newArg = fuse(arg);
+			fused |= newArg != arg;
+			args.add(newArg);
+		}
+		if (!fused) {
+			return expr;
+		}
+		if (function instanceof ExprFunction1) {
+			return ((ExprFunction1) function).copy(args.get(0));
+		} else if (function instanceof ExprFunction2) {
+			return ((ExprFunction2) function).copy(args.get(0), args.get(1));
+		} else if (function instanceof ExprFunction3) {
+			return ((ExprFunction3) function).copy(args.get(0), args.get(1), args.get(2));
+		} else if (function instanceof ExprFunctionN) {
+			return ((ExprFunctionN) function).copy(new ExprList(args));
+		}
+		return function;
+	}
+
+}
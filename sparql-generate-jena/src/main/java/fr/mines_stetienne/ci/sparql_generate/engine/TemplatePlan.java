@@ -16,11 +16,9 @@
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import java.util.Iterator;
-import java.util.List;
 import java.util.Objects;
 
 import org.apache.jena.atlas.io.IndentedWriter;
-import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
@@ -53,12 +51,12 @@ public class TemplatePlan {
 		this.after = after;
 	}
 
-	public void exec(List<Var> variables, List<Binding> values, Context context) {
+	public void exec(BindingBatch values, Context context) {
 		final IndentedWriter writer = ContextUtils.getTemplateOutput(context);
 		boolean first = true;
 		final FunctionEnv env = new FunctionEnvBase(context);
 		String result;
-		for(Iterator<Binding> it=values.iterator(); it.hasNext();) {
+		for(Iterator<Binding> it=values.asBindings().iterator(); it.hasNext();) {
 			Binding binding = it.next();
 			if (first && before != null) {
 				result = getExprEval(before, binding, context, env);
@@ -95,4 +93,10 @@ public class TemplatePlan {
 		return nv.asNode().getLiteralLexicalForm();
 	}
 
+	@Override
+	public String toString() {
+		return "TEMPLATE " + (before != null ? "BEFORE=" + before + " " : "") + "{ " + expr + " }"
+				+ (separator != null ? " SEPARATOR=" + separator : "") + (after != null ? " AFTER=" + after : "");
+	}
+
 }
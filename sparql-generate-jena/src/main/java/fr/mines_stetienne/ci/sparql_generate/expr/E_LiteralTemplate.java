@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.expr;
+
+import java.util.List;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_Str;
+import org.apache.jena.sparql.expr.E_StrConcat;
+import org.apache.jena.sparql.expr.E_StrDatatype;
+import org.apache.jena.sparql.expr.E_StrLang;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * The extended literal
+ * {@link fr.mines_stetienne.ci.sparql_generate.graph.Node_ExtendedLiteral},
+ * built in one step: the string values of the parts are appended to a single
+ * buffer, and the literal is created with its language tag or datatype,
+ * instead of evaluating one STR per part, a CONCAT of the intermediate values,
+ * and a STRLANG or STRDT.
+ *
+ * <p>
+ * The first argument is the language tag, the empty string for a simple
+ * literal, or the expression of the datatype IRI. The other arguments are the
+ * parts of the literal. This expression is equivalent to, and is serialized
+ * as, {@link #getEquivalentExpr()}, and {@link #fromEquivalentExpr(Expr)}
+ * gives it back from that expression.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class E_LiteralTemplate extends ExprFunctionN {
+
+    private static final String symbol = "e_literaltemplate";
+
+    private final String lang;
+
+    private final Expr datatype;
+
+    private final RDFDatatype constantDatatype;
+
+    /**
+     * @param format the language tag, the empty string, or the datatype
+     * @param components the parts of the literal
+     */
+    public E_LiteralTemplate(Expr format, ExprList components) {
+        super(symbol, args(format, components));
+        if (format.isConstant() && format.getConstant().isString()) {
+            final String tag = format.getConstant().getString();
+            lang = tag.isEmpty() ? null : tag;
+            datatype = null;
+            constantDatatype = null;
+        } else {
+            lang = null;
+            datatype = format;
+            if (format.isConstant() && format.getConstant().isIRI()) {
+                constantDatatype = TypeMapper.getInstance()
+                        .getSafeTypeByName(format.getConstant().asNode().getURI());
+            } else {
+                constantDatatype = null;
+            }
+        }
+    }
+
+    private static ExprList args(Expr format, ExprList components) {
+        final ExprList args = new ExprList(format);
+        args.addAll(components);
+        return args;
+    }
+
+    /**
+     * @return the STRLANG or STRDT of the CONCAT of the STR of the parts
+     */
+    public Expr getEquivalentExpr() {
+        final List<Expr> args = getArgs();
+        final ExprList strs = new ExprList();
+        for (int i = 1; i < args.size(); i++) {
+            strs.add(new E_Str(args.get(i)));
+        }
+        final Expr str = new E_StrConcat(strs);
+        if (lang != null) {
+            return new E_StrLang(str, args.get(0));
+        } else if (datatype != null) {
+            return new E_StrDatatype(str, datatype);
+        } else {
+            return str;
+        }
+    }
+
+    /**
+     * The inverse of {@link #getEquivalentExpr()}.
+     *
+     * @param expr an expression
+     * @return the template, if the expression is a CONCAT of STR, possibly in
+     * a STRLANG with a constant language tag or in a STRDT, or null
+     */
+    public static E_LiteralTemplate fromEquivalentExpr(Expr expr) {
+        final Expr format;
+        final Expr str;
+        if (expr instanceof E_StrLang) {
+            format = ((E_StrLang) expr).getArg2();
+            if (!format.isConstant() || !format.getConstant().isString()
+                    || format.getConstant().getString().isEmpty()) {
+                return null;
+            }
+            str = ((E_StrLang) expr).getArg1();
+        } else if (expr instanceof E_StrDatatype) {
+            format = ((E_StrDatatype) expr).getArg2();
+            // a constant string would be read as a language tag
+            if (format.isConstant() && format.getConstant().isString()) {
+                return null;
+            }
+            str = ((E_StrDatatype) expr).getArg1();
+        } else {
+            format = NodeValue.nvEmptyString;
+            str = expr;
+        }
+        if (!(str instanceof E_StrConcat)) {
+            return null;
+        }
+        final ExprList components = new ExprList();
+        for (Expr arg : ((E_StrConcat) str).getArgs()) {
+            if (!(arg instanceof E_Str)) {
+                return null;
+            }
+            components.add(((E_Str) arg).getArg());
+        }
+        return components.isEmpty() ? null : new E_LiteralTemplate(format, components);
+    }
+
+    @Override
+    public NodeValue evalSpecial(Binding binding, FunctionEnv env) {
+        final List<Expr> args = getArgs();
+        final StringBuilder sb = Templates.acquire();
+        for (int i = 1; i < args.size(); i++) {
+            Templates.appendStr(sb, Templates.get(args.get(i), binding, env));
+        }
+        final String lex = Templates.release(sb);
+        if (datatype != null && constantDatatype == null) {
+            return makeLiteral(lex, datatype.eval(binding, env));
+        }
+        return makeLiteral(lex, null);
+    }
+
+    @Override
+    public NodeValue eval(List<NodeValue> args) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < args.size(); i++) {
+            Templates.appendStr(sb, args.get(i).asNode());
+        }
+        return makeLiteral(sb.toString(), datatype != null ? args.get(0) : null);
+    }
+
+    private NodeValue makeLiteral(String lex, NodeValue dt) {
+        if (lang != null) {
+            return NodeValue.makeNode(NodeFactory.createLiteral(lex, lang));
+        } else if (constantDatatype != null) {
+            return NodeValue.makeNode(NodeFactory.createLiteral(lex, constantDatatype));
+        } else if (dt != null) {
+            if (!dt.isIRI()) {
+                throw new ExprEvalException("Datatype is not an IRI: " + dt);
+            }
+            return NodeValue.makeNode(lex, null, dt.asNode().getURI());
+        } else {
+            return NodeValue.makeString(lex);
+        }
+    }
+
+    @Override
+    public Expr copy(ExprList newArgs) {
+        final ExprList components = new ExprList();
+        for (int i = 1; i < newArgs.size(); i++) {
+            components.add(newArgs.get(i));
+        }
+        return new E_LiteralTemplate(newArgs.get(0), components);
+    }
+}
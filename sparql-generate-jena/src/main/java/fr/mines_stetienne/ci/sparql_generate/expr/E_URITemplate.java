@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.expr;
+
+import java.util.List;
+
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_StrConcat;
+import org.apache.jena.sparql.expr.E_StrEncodeForURI;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * The string of an extended IRI
+ * {@link fr.mines_stetienne.ci.sparql_generate.graph.Node_ExtendedURI}, built
+ * in one step: the constant parts and the encoded values of the
+ * {@link E_URIParam} parts are appended to a single buffer, instead of
+ * evaluating one ENCODE_FOR_URI per part and a CONCAT of the intermediate
+ * values.
+ *
+ * <p>
+ * This expression is equivalent to, and is serialized as,
+ * {@link #getEquivalentExpr()}, and {@link #fromEquivalentExpr(Expr)} gives it
+ * back from that expression.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class E_URITemplate extends ExprFunctionN {
+
+    private static final String symbol = "e_uritemplate";
+
+    /**
+     * @param args the constant parts and the {@link E_URIParam} parts
+     */
+    public E_URITemplate(ExprList args) {
+        super(symbol, args);
+    }
+
+    /**
+     * @return the CONCAT of the arguments, where the {@link E_URIParam} are
+     * replaced by ENCODE_FOR_URI
+     */
+    public Expr getEquivalentExpr() {
+        final ExprList args = new ExprList();
+        for (Expr arg : getArgs()) {
+            if (arg instanceof E_URIParam) {
+                args.add(new E_StrEncodeForURI(((E_URIParam) arg).getArg()));
+            } else {
+                args.add(arg);
+            }
+        }
+        return new E_StrConcat(args);
+    }
+
+    /**
+     * The inverse of {@link #getEquivalentExpr()}.
+     *
+     * @param expr an expression
+     * @return the template, if the expression is a CONCAT of constants and of
+     * at least one ENCODE_FOR_URI, or null
+     */
+    public static E_URITemplate fromEquivalentExpr(Expr expr) {
+        if (!(expr instanceof E_StrConcat)) {
+            return null;
+        }
+        final ExprList args = new ExprList();
+        boolean hasParam = false;
+        for (Expr arg : ((E_StrConcat) expr).getArgs()) {
+            if (arg instanceof E_StrEncodeForURI) {
+                args.add(new E_URIParam(((E_StrEncodeForURI) arg).getArg()));
+                hasParam = true;
+            } else if (arg.isConstant()) {
+                args.add(arg);
+            } else {
+                return null;
+            }
+        }
+        return hasParam ? new E_URITemplate(args) : null;
+    }
+
+    @Override
+    public NodeValue evalSpecial(Binding binding, FunctionEnv env) {
+        final StringBuilder sb = Templates.acquire();
+        for (Expr arg : getArgs()) {
+            if (arg instanceof E_URIParam || arg instanceof E_StrEncodeForURI) {
+                Templates.appendEncoded(sb, Templates.get(((ExprFunction1) arg).getArg(), binding, env));
+            } else if (arg.isConstant()) {
+                Templates.appendString(sb, arg.getConstant());
+            } else {
+                Templates.appendString(sb, arg.eval(binding, env));
+            }
+        }
+        return NodeValue.makeString(Templates.release(sb));
+    }
+
+    @Override
+    public NodeValue eval(List<NodeValue> args) {
+        final StringBuilder sb = new StringBuilder();
+        for (NodeValue nv : args) {
+            Templates.appendString(sb, nv);
+        }
+        return NodeValue.makeString(sb.toString());
+    }
+
+    @Override
+    public Expr copy(ExprList newArgs) {
+        return new E_URITemplate(newArgs);
+    }
+}
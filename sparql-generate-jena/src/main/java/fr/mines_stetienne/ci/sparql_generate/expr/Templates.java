@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.expr;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_StrEncodeForURI;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.VariableNotBoundException;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * Helpers shared by {@link E_URITemplate} and {@link E_LiteralTemplate}: a
+ * reusable buffer per thread, direct access to the variables of the binding,
+ * and ENCODE_FOR_URI and STR applied while appending to the buffer.
+ *
+ * @author Maxime Lefrançois
+ */
+final class Templates {
+
+    private static final E_StrEncodeForURI ENCODER = new E_StrEncodeForURI(NodeValue.nvEmptyString);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final String[] ASCII = new String[128];
+
+    private static final int MAX_BUFFER = 8192;
+
+    private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<>();
+
+    /**
+     * true if encoding inline gives the same result as ENCODE_FOR_URI.
+     */
+    private static final boolean INLINE;
+
+    static {
+        for (int c = 0; c < ASCII.length; c++) {
+            ASCII[c] = encode(NodeValue.makeString(String.valueOf((char) c)));
+        }
+        final String sample = "a-b_c.d~e f/g?h=i&j#k%l+m:n@o\u00e9\u20ac\uD83D\uDE00";
+        final StringBuilder sb = new StringBuilder();
+        INLINE = encodeInline(sb, sample) && sb.toString().equals(encode(NodeValue.makeString(sample)));
+    }
+
+    private Templates() {
+    }
+
+    /**
+     * Gets the buffer of the current thread, or a new buffer if it is already
+     * in use, e.g., by an enclosing template.
+     */
+    static StringBuilder acquire() {
+        final StringBuilder sb = BUFFERS.get();
+        if (sb == null) {
+            return new StringBuilder(64);
+        }
+        BUFFERS.set(null);
+        return sb;
+    }
+
+    /**
+     * Gets the content of the buffer and gives it back to the current thread.
+     */
+    static String release(StringBuilder sb) {
+        final String s = sb.toString();
+        if (sb.capacity() <= MAX_BUFFER) {
+            sb.setLength(0);
+            BUFFERS.set(sb);
+        }
+        return s;
+    }
+
+    /**
+     * Evaluates an expression, reading variables directly from the binding.
+     */
+    static Node get(Expr expr, Binding binding, FunctionEnv env) {
+        if (expr instanceof ExprVar) {
+            final Var var = ((ExprVar) expr).asVar();
+            final Node node = binding.get(var);
+            if (node == null) {
+                throw new VariableNotBoundException("Unbound variable: " + var.getVarName());
+            }
+            return node;
+        }
+        return expr.eval(binding, env).asNode();
+    }
+
+    /**
+     * Appends a string literal, as CONCAT does.
+     */
+    static void appendString(StringBuilder sb, NodeValue nv) {
+        if (!nv.isString() && !nv.isLangString()) {
+            throw new ExprEvalException("Not a string: " + nv);
+        }
+        sb.append(nv.asNode().getLiteralLexicalForm());
+    }
+
+    /**
+     * Appends a node, as STR does.
+     */
+    static void appendStr(StringBuilder sb, Node node) {
+        if (node.isLiteral()) {
+            sb.append(node.getLiteralLexicalForm());
+        } else if (node.isURI()) {
+            sb.append(node.getURI());
+        } else {
+            throw new ExprEvalException("Not valid for STR: " + node);
+        }
+    }
+
+    /**
+     * Appends a node, as ENCODE_FOR_URI does.
+     */
+    static void appendEncoded(StringBuilder sb, Node node) {
+        if (INLINE && node.isLiteral()
+                && XSDDatatype.XSDstring.getURI().equals(node.getLiteralDatatypeURI())) {
+            final int mark = sb.length();
+            if (encodeInline(sb, node.getLiteralLexicalForm())) {
+                return;
+            }
+            sb.setLength(mark);
+        }
+        sb.append(encode(NodeValue.makeNode(node)));
+    }
+
+    private static String encode(NodeValue nv) {
+        return ENCODER.eval(nv).getString();
+    }
+
+    /**
+     * Percent-encodes a string, or returns false if it contains an unpaired
+     * surrogate.
+     */
+    private static boolean encodeInline(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length();) {
+            final int cp = s.codePointAt(i);
+            if (cp < 0x80) {
+                sb.append(ASCII[cp]);
+            } else if (cp < 0x800) {
+                appendByte(sb, 0xC0 | (cp >> 6));
+                appendByte(sb, 0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                if (Character.isSurrogate((char) cp)) {
+                    return false;
+                }
+                appendByte(sb, 0xE0 | (cp >> 12));
+                appendByte(sb, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (cp & 0x3F));
+            } else {
+                appendByte(sb, 0xF0 | (cp >> 18));
+                appendByte(sb, 0x80 | ((cp >> 12) & 0x3F));
+                appendByte(sb, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (cp & 0x3F));
+            }
+            i += Character.charCount(cp);
+        }
+        return true;
+    }
+
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+}
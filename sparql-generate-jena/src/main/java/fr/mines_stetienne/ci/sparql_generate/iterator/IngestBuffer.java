@@ -0,0 +1,323 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import org.apache.jena.sparql.expr.NodeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded buffer between a streaming iterator function that receives
+ * messages, and the executor that processes them.
+ *
+ * <p>
+ * The buffer holds at most {@code capacity} rows. A single task drains it on
+ * the executor, so the messages of one iterator are processed in order, and
+ * the queue of the executor holds at most one task per buffer. When the buffer
+ * is full, the {@link Policy} decides what happens to incoming rows.
+ * </p>
+ *
+ * <p>
+ * The buffer keeps track of its depth, of its maximal depth, and of the
+ * number of rows accepted and dropped.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class IngestBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestBuffer.class);
+
+    /**
+     * What happens to incoming rows when the buffer is full.
+     */
+    public enum Policy {
+        /**
+         * The thread that receives messages waits until there is room.
+         */
+        BLOCK,
+        /**
+         * The oldest buffered rows are dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The incoming rows are dropped.
+         */
+        DROP_NEWEST,
+        /**
+         * The incoming rows replace randomly chosen buffered rows, such that
+         * the buffer holds a uniform sample of the rows received while it was
+         * full.
+         */
+        SAMPLE
+    }
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final Policy policy;
+
+    private final Consumer<List<List<NodeValue>>> listListNodeValue;
+
+    private final Deque<List<List<NodeValue>>> queue = new ArrayDeque<>();
+
+    private boolean draining = false;
+
+    private int depth = 0;
+
+    private int maxDepth = 0;
+
+    private long accepted = 0;
+
+    private long dropped = 0;
+
+    private long seenWhileFull = 0;
+
+    /**
+     *
+     * @param executor where the rows are processed
+     * @param capacity the maximal number of buffered rows
+     * @param policy what happens to incoming rows when the buffer is full
+     * @param listListNodeValue where to emit the rows
+     */
+    public IngestBuffer(
+            final Executor executor,
+            final int capacity,
+            final Policy policy,
+            final Consumer<List<List<NodeValue>>> listListNodeValue) {
+        this.executor = executor;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.listListNodeValue = listListNodeValue;
+    }
+
+    /**
+     * Adds rows to the buffer, or drops them, depending on the policy.
+     *
+     * @param rows the rows
+     * @throws java.util.concurrent.RejectedExecutionException if the executor
+     * does not accept the draining task any more
+     */
+    public void offer(final List<List<NodeValue>> rows) {
+        offer(rows, true);
+    }
+
+    /**
+     * Adds rows to the buffer, or drops them, depending on the policy, without
+     * waiting: with policy {@link Policy#BLOCK}, the rows are not added if
+     * there is no room for them.
+     *
+     * @param rows the rows
+     * @return false if the rows were not handled because there is no room for
+     * them
+     * @throws java.util.concurrent.RejectedExecutionException if the executor
+     * does not accept the draining task any more
+     */
+    public boolean tryOffer(final List<List<NodeValue>> rows) {
+        return offer(rows, false);
+    }
+
+    private boolean offer(final List<List<NodeValue>> rows, final boolean mayBlock) {
+        final boolean startDraining;
+        synchronized (this) {
+            if (!mayBlock && policy == Policy.BLOCK && depth > 0 && depth + rows.size() > capacity) {
+                return false;
+            }
+            if (!makeRoom(rows)) {
+                return true;
+            }
+            queue.addLast(rows);
+            depth += rows.size();
+            accepted += rows.size();
+            maxDepth = Math.max(maxDepth, depth);
+            startDraining = !draining;
+            draining = true;
+        }
+        if (startDraining) {
+            try {
+                executor.execute(this::drain);
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    draining = false;
+                }
+                throw ex;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the rows may be added to the queue. Rows can always be
+     * added to an empty queue, even if they exceed the capacity.
+     */
+    private boolean makeRoom(final List<List<NodeValue>> rows) {
+        if (depth == 0 || depth + rows.size() <= capacity) {
+            seenWhileFull = 0;
+            return true;
+        }
+        switch (policy) {
+            case BLOCK:
+                // only wait while the queue is being drained
+                while (draining && depth > 0 && depth + rows.size() > capacity) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        drop(rows.size());
+                        return false;
+                    }
+                }
+                return true;
+            case DROP_OLDEST:
+                while (depth > 0 && depth + rows.size() > capacity) {
+                    drop(removeFirst());
+                }
+                return true;
+            case SAMPLE:
+                seenWhileFull += rows.size();
+                if (ThreadLocalRandom.current().nextDouble() * seenWhileFull >= depth) {
+                    drop(rows.size());
+                    return false;
+                }
+                while (depth > 0 && depth + rows.size() > capacity) {
+                    drop(removeRandom());
+                }
+                return true;
+            case DROP_NEWEST:
+            default:
+                drop(rows.size());
+                return false;
+        }
+    }
+
+    private int removeFirst() {
+        final int size = queue.removeFirst().size();
+        depth -= size;
+        return size;
+    }
+
+    private int removeRandom() {
+        final int index = ThreadLocalRandom.current().nextInt(queue.size());
+        final Iterator<List<List<NodeValue>>> it = queue.iterator();
+        for (int i = 0; i < index; i++) {
+            it.next();
+        }
+        final int size = it.next().size();
+        it.remove();
+        depth -= size;
+        return size;
+    }
+
+    private void drop(final int size) {
+        if (dropped == 0) {
+            LOG.warn("Ingest buffer is full (" + capacity + " rows), dropping rows with policy " + policy);
+        }
+        dropped += size;
+        LOG.trace("Dropped " + size + " rows, " + dropped + " total");
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                final List<List<NodeValue>> rows;
+                synchronized (this) {
+                    rows = queue.pollFirst();
+                    if (rows == null) {
+                        // in the same block as the check, so that the next
+                        // offer schedules a new drain
+                        draining = false;
+                        drained = true;
+                        notifyAll();
+                        return;
+                    }
+                    depth -= rows.size();
+                    notifyAll();
+                }
+                try {
+                    listListNodeValue.accept(rows);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Exception while processing " + rows.size() + " rows", ex);
+                }
+            }
+        } finally {
+            if (!drained) {
+                synchronized (this) {
+                    draining = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of buffered rows
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the maximal number of rows that were buffered at once
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of rows that were accepted in the buffer
+     */
+    public synchronized long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return the number of rows that were dropped
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the maximal number of buffered rows
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return what happens to incoming rows when the buffer is full
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IngestBuffer " + policy + " depth=" + depth + "/" + capacity + " maxDepth=" + maxDepth
+                + " accepted=" + accepted + " dropped=" + dropped;
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * The interface of SPARQL-Generate iterator functions that may be evaluated
+ * for several bindings at once, for instance to group lookups in a single
+ * request. The engine then calls
+ * {@link #exec(List, ExprList, FunctionEnv, BiConsumer)} once per list of
+ * bindings instead of
+ * {@link #exec(Binding, ExprList, FunctionEnv, java.util.function.Consumer)}
+ * once per binding.
+ */
+public interface IteratorBatchFunction extends IteratorFunction {
+
+    /**
+     * Evaluates the iterator function for a list of bindings. For each
+     * binding, values must be emitted along with that binding. Bindings for
+     * which nothing is emitted are considered to have no result.
+     *
+     * @param bindings The current solutions
+     * @param args A list of unevaluated expressions
+     * @param env The execution context
+     * @param nodeValuesStream where to emit new values for a given binding
+     */
+    void exec(List<Binding> bindings, ExprList args, FunctionEnv env,
+            BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream);
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import org.apache.jena.query.QueryBuildException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extension factory that loads the class of the iterator function only when
+ * the iterator function is first used, then instantiates the class each time.
+ *
+ * @author Maxime Lefrançois
+ */
+public class IteratorFunctionFactoryLazy implements IteratorFunctionFactory {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IteratorFunctionFactoryLazy.class);
+
+	private final String className;
+
+	private final ClassLoader classLoader;
+
+	private volatile Class<?> extClass;
+
+	/**
+	 * @param className the name of the class of the iterator function
+	 * @param classLoader the class loader to load the class with
+	 */
+	public IteratorFunctionFactoryLazy(String className, ClassLoader classLoader) {
+		this.className = className;
+		this.classLoader = classLoader;
+	}
+
+	@Override
+	public IteratorFunction create(String uri) {
+		try {
+			return (IteratorFunction) getExtClass(uri).getDeclaredConstructor().newInstance();
+		} catch (QueryBuildException e) {
+			throw e;
+		} catch (Exception | LinkageError e) {
+			LOG.debug("Can't instantiate iterator function for " + uri, e);
+			throw new QueryBuildException("Can't instantiate iterator function for " + uri, e);
+		}
+	}
+
+	private Class<?> getExtClass(String uri) throws ClassNotFoundException {
+		Class<?> c = extClass;
+		if (c == null) {
+			c = Class.forName(className, true, classLoader);
+			if (!IteratorFunction.class.isAssignableFrom(c)) {
+				throw new QueryBuildException("Class " + className + " is not an IteratorFunction, for " + uri);
+			}
+			LOG.trace("Loaded " + className + " for " + uri);
+			extClass = c;
+		}
+		return c;
+	}
+
+}
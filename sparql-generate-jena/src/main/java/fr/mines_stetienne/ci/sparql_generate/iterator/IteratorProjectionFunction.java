@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import java.util.BitSet;
+
+/**
+ * The interface of SPARQL-Generate iterator functions that may skip computing
+ * the outputs that the query does not use, for instance the auxiliary queries
+ * of {@code iter:JSONPath}, or the position and has-next outputs. The engine
+ * calls {@link #setUsedOutputs(BitSet)} once, after {@link #build}, if some
+ * outputs are not used.
+ */
+public interface IteratorProjectionFunction extends IteratorFunction {
+
+    /**
+     * Sets the outputs that the query uses. The iterator function may emit
+     * null for the other outputs.
+     *
+     * @param outputs the indices of the used outputs
+     */
+    void setUsedOutputs(BitSet outputs);
+}
@@ -31,6 +31,8 @@ import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
 /**
  * The base implementation of the {@link IteratorFunction} interface.
  */
@@ -80,6 +82,22 @@ public abstract class IteratorStreamFunctionBase implements IteratorFunction {
             final FunctionEnv env,
             final Consumer<List<List<NodeValue>>> collectionListNodeValue) {
 
+        exec(evalArgs(binding, args, env), collectionListNodeValue);
+    }
+
+    /**
+     * Evaluates the arguments for a binding, and sets the function environment
+     * of this execution. Arguments that cannot be evaluated are null.
+     *
+     * @param binding The current solution
+     * @param args A list of unevaluated expressions
+     * @param env The execution context
+     * @return the list of evaluated arguments
+     */
+    protected final List<NodeValue> evalArgs(
+            final Binding binding,
+            final ExprList args,
+            final FunctionEnv env) {
         this.env = env;
         if (args == null) {
             throw new ARQInternalErrorException("IteratorFunctionBase:"
@@ -96,7 +114,7 @@ public abstract class IteratorStreamFunctionBase implements IteratorFunction {
                 evalArgs.add(null);
             }
         }
-        exec(evalArgs, collectionListNodeValue);
+        return evalArgs;
     }
 
     /**
@@ -108,6 +126,50 @@ public abstract class IteratorStreamFunctionBase implements IteratorFunction {
         return (Context) env.getContext();
     }
 
+    /**
+     * Creates a bounded ingest buffer for streaming iterator functions that
+     * receive messages from another thread. Rows are processed on the executor
+     * of the context. The capacity and policy of the buffer are set with
+     * {@link ContextUtils.Builder#setIngestBuffer(int, IngestBuffer.Policy)}.
+     *
+     * @param collectionListNodeValue - where to emit collections of nodevalues
+     * @return the ingest buffer
+     */
+    protected final IngestBuffer createIngestBuffer(
+            final Consumer<List<List<NodeValue>>> collectionListNodeValue) {
+        final Context context = getContext();
+        final IngestBuffer buffer = new IngestBuffer(
+                ContextUtils.getExecutor(context),
+                ContextUtils.getIngestBufferCapacity(context),
+                ContextUtils.getIngestBufferPolicy(context),
+                collectionListNodeValue);
+        ContextUtils.registerIngestBuffer(context, buffer);
+        return buffer;
+    }
+
+    /**
+     * Creates a micro batcher for streaming iterator functions that receive
+     * messages one at a time. Windows are sized according to
+     * {@link ContextUtils.Builder#setStreamBatching(int, long)}, and go
+     * through an ingest buffer (see {@link #createIngestBuffer(Consumer)}).
+     * The last window is emitted when the context is closed.
+     *
+     * @param collectionListNodeValue - where to emit collections of nodevalues
+     * @return the micro batcher
+     */
+    protected final MicroBatcher createMicroBatcher(
+            final Consumer<List<List<NodeValue>>> collectionListNodeValue) {
+        final Context context = getContext();
+        final IngestBuffer buffer = createIngestBuffer(collectionListNodeValue);
+        final MicroBatcher batcher = new MicroBatcher(
+                ContextUtils.getStreamBatchSize(context),
+                ContextUtils.getStreamBatchLatency(context),
+                buffer::offer,
+                buffer::tryOffer);
+        ContextUtils.addTaskOnClose(context, batcher::close);
+        return batcher;
+    }
+
     /**
      * IteratorFunction call to a list of evaluated argument values.
      *
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.jena.sparql.expr.NodeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the rows that a streaming iterator function receives one at a time
+ * into windows, so that downstream plans process several messages at once.
+ *
+ * <p>
+ * A window is emitted when it contains {@code maxMessages}
+ * rows, or {@code maxLatency} milliseconds after its first row was added,
+ * whichever comes first. With {@code maxMessages} equal to 1, every row is
+ * emitted as it arrives.
+ * </p>
+ *
+ * <p>
+ * Windows are emitted one at a time, in order. Full windows are emitted by
+ * the thread that adds rows, which may wait. Expired windows are emitted by a
+ * timer thread shared by all the micro batchers, which never waits: if the
+ * window cannot be emitted right away, the timer tries again later, and the
+ * window may be emitted by the thread that adds rows in the meantime.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class MicroBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MicroBatcher.class);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread thread = new Thread(r, "sparql-generate-microbatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxMessages;
+
+    private final long maxLatency;
+
+    private final Consumer<List<List<NodeValue>>> listListNodeValue;
+
+    private final Predicate<List<List<NodeValue>>> tryListListNodeValue;
+
+    /**
+     * Guards the window, and serializes the emission of windows.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private List<List<NodeValue>> window = new ArrayList<>();
+
+    private ScheduledFuture<?> timeout;
+
+    /**
+     * Incremented each time a window is taken, so that the timers scheduled
+     * for a window that is already emitted are ignored.
+     */
+    private long generation = 0;
+
+    private boolean closed = false;
+
+    /**
+     *
+     * @param maxMessages the maximal number of rows in a window
+     * @param maxLatency the maximal number of milliseconds a row waits before
+     * being emitted, or 0 for no limit
+     * @param listListNodeValue where to emit windows of rows, this consumer
+     * must not wait
+     */
+    public MicroBatcher(
+            final int maxMessages,
+            final long maxLatency,
+            final Consumer<List<List<NodeValue>>> listListNodeValue) {
+        this(maxMessages, maxLatency, listListNodeValue, (rows) -> {
+            listListNodeValue.accept(rows);
+            return true;
+        });
+    }
+
+    /**
+     *
+     * @param maxMessages the maximal number of rows in a window
+     * @param maxLatency the maximal number of milliseconds a row waits before
+     * being emitted, or 0 for no limit
+     * @param listListNodeValue where to emit full windows of rows, may wait
+     * @param tryListListNodeValue where to emit expired windows of rows,
+     * returns false instead of waiting
+     */
+    public MicroBatcher(
+            final int maxMessages,
+            final long maxLatency,
+            final Consumer<List<List<NodeValue>>> listListNodeValue,
+            final Predicate<List<List<NodeValue>>> tryListListNodeValue) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxLatency = Math.max(0, maxLatency);
+        this.listListNodeValue = listListNodeValue;
+        this.tryListListNodeValue = tryListListNodeValue;
+    }
+
+    /**
+     * Adds a row to the current window, and emits the window if it is full.
+     *
+     * @param row the row
+     * @throws RejectedExecutionException if the window cannot be emitted any
+     * more
+     */
+    public void add(final List<NodeValue> row) {
+        lock.lock();
+        try {
+            if (closed) {
+                LOG.trace("Ignoring row, the micro batcher is closed");
+                return;
+            }
+            window.add(row);
+            if (window.size() < maxMessages) {
+                if (window.size() == 1 && maxLatency > 0) {
+                    final long current = generation;
+                    timeout = SCHEDULER.schedule(() -> onTimeout(current), maxLatency, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            emit(take());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Emits the current window if it is not empty, and ignores the rows that
+     * are added afterwards.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final List<List<NodeValue>> last = take();
+            if (!last.isEmpty()) {
+                try {
+                    emit(last);
+                } catch (RejectedExecutionException ex) {
+                    LOG.debug("Dropping last window of " + last.size() + " rows, the executor is shut down");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onTimeout(final long expected) {
+        if (!lock.tryLock()) {
+            // a window is being emitted, do not hold the timer thread. The
+            // retry is ignored if the window is taken in the meantime
+            retryLater(expected);
+            return;
+        }
+        try {
+            if (expected != generation) {
+                LOG.trace("Ignoring the timer of a window that is already emitted");
+                return;
+            }
+            timeout = null;
+            if (window.isEmpty()) {
+                return;
+            }
+            try {
+                if (!tryListListNodeValue.test(window)) {
+                    LOG.trace("Could not emit expired window of " + window.size() + " rows, trying again later");
+                    timeout = retryLater(expected);
+                    return;
+                }
+                LOG.trace("Emitted expired window of " + window.size() + " rows");
+            } catch (RejectedExecutionException ex) {
+                LOG.debug("Dropping window of " + window.size() + " rows, the executor is shut down");
+            }
+            take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ScheduledFuture<?> retryLater(final long expected) {
+        return SCHEDULER.schedule(() -> onTimeout(expected), Math.max(1, maxLatency / 10), TimeUnit.MILLISECONDS);
+    }
+
+    private List<List<NodeValue>> take() {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        generation++;
+        final List<List<NodeValue>> taken = window;
+        window = new ArrayList<>();
+        return taken;
+    }
+
+    private void emit(final List<List<NodeValue>> rows) {
+        LOG.trace("Emitting window of " + rows.size() + " rows");
+        listListNodeValue.accept(rows);
+    }
+
+}
@@ -15,12 +15,16 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.iterator.library;
 
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorBatchFunction;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorURLAccept;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
@@ -30,17 +34,29 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import org.apache.commons.io.IOUtils;
 import org.apache.jena.atlas.web.TypedInputStream;
 import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.datatypes.TypeMapper;
 import org.apache.jena.riot.SysRIOT;
+import org.apache.jena.sparql.function.FunctionEnv;
 
 /**
  * Iterator function
@@ -61,17 +77,32 @@ import org.apache.jena.riot.SysRIOT;
  * Integer). If not provided, the iterator never ends.</li>
  * </ul>
  * <p>
+ * A response is bound only if it differs from the previous one. Calls are
+ * conditional GET requests when the server provides validators (see
+ * {@link fr.mines_stetienne.ci.sparql_generate.stream.LocatorURLAccept}), and
+ * responses are compared using a hash of their content, unless the server
+ * answers 304 Not Modified.
+ * </p>
+ * <p>
+ * Calls are scheduled on a pool of threads shared by all the pollers, whose
+ * size is set by system property {@code sparql-generate.http.pollThreads}
+ * (default is 4). When the iterator is evaluated for many bindings, all the
+ * URLs are polled at once, and the thread of the iterator emits the responses
+ * of all the pollers as they arrive.
+ * </p>
+ * <p>
  * <b>Example: </b><br>
  * <p>
  * The clause</p>
  * <code>ITERATOR iter:HTTPGet(&lt;https://example.org/room1/temperature>,60) AS ?temperature</code>
  * <p>
- * will fetch the temperature of room 1 every 60 seconds, indefinetely.
+ * will fetch the temperature of room 1 every 60 seconds, indefinetely, and bind
+ * it whenever it changes.
  *
  * @author El-Mehdi Khalfi <el-mehdi.khalfi at emse.fr>
  * @since 2018-09-27
  */
-public class ITER_HTTPGet extends IteratorStreamFunctionBase {
+public class ITER_HTTPGet extends IteratorStreamFunctionBase implements IteratorBatchFunction {
 
     /**
      * The logger.
@@ -83,6 +114,13 @@ public class ITER_HTTPGet extends IteratorStreamFunctionBase {
      */
     public static final String URI = SPARQLExt.ITER + "HTTPGet";
 
+    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(
+            Integer.getInteger("sparql-generate.http.pollThreads", 4), (r) -> {
+                Thread thread = new Thread(r, "sparql-generate-poll");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     @Override
     public void checkBuild(ExprList args) {
         if (args.size() < 2 || args.size() > 3) {
@@ -94,54 +132,246 @@ public class ITER_HTTPGet extends IteratorStreamFunctionBase {
     public void exec(
             final List<NodeValue> args, 
             final Consumer<List<List<NodeValue>>> listNodeValues) {
-        if (!args.get(0).isString() && !args.get(0).isIRI()) {
+        final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        final Poller poller = start(args, null, results);
+        drain(Collections.singletonList(poller), results, (binding, nodeValues) -> listNodeValues.accept(nodeValues),
+                true);
+    }
+
+    @Override
+    public void exec(
+            final List<Binding> bindings,
+            final ExprList args,
+            final FunctionEnv env,
+            final BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream) {
+        final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        final List<Poller> pollers = new ArrayList<>();
+        try {
+            for (Binding binding : bindings) {
+                try {
+                    pollers.add(start(evalArgs(binding, args, env), binding, results));
+                } catch (ExprEvalException ex) {
+                    LOG.debug("No evaluation for " + binding + ", caused by " + ex.getMessage());
+                    if (ContextUtils.isFailOnException(getContext())) {
+                        throw ex;
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            pollers.forEach(Poller::stop);
+            throw ex;
+        }
+        drain(pollers, results, nodeValuesStream, ContextUtils.isFailOnException(getContext()));
+    }
+
+    /**
+     * Checks the arguments, and starts polling the URL.
+     */
+    private Poller start(
+            final List<NodeValue> args,
+            final Binding binding,
+            final BlockingQueue<Result> results) {
+        if (args.get(0) == null || !args.get(0).isString() && !args.get(0).isIRI()) {
             throw new ExprEvalException("First argument must be a string or a URI, got: " + args.get(0));
         }
         final String url_s = args.get(0).isString() ? args.get(0).asString() : args.get(0).asNode().getURI();
         final LookUpRequest req = new LookUpRequest(url_s);
 
-        if (!args.get(1).isInteger() || args.get(1).getInteger().intValue() <= 0) {
+        if (args.get(1) == null || !args.get(1).isInteger() || args.get(1).getInteger().intValue() <= 0) {
             throw new ExprEvalException("Second argument must be an integer, got: " + args.get(1));
         }
         long recurrenceValueNano = (args.get(1).getInteger().longValue() * 1_000_000_000);
 
-        if (args.size() == 3 && (!args.get(2).isInteger() || args.get(2).getInteger().intValue() <= 0)) {
+        if (args.size() == 3 && (args.get(2) == null || !args.get(2).isInteger() || args.get(2).getInteger().intValue() <= 0)) {
             throw new ExprEvalException("Third argument must be a positive integer, got: " + args.get(2));
         }
         int times = args.size() == 3 ? args.get(2).getInteger().intValue() : Integer.MAX_VALUE;
 
         final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) getContext().get(SysRIOT.sysStreamManager);
-        for (int i = 0; i < times; i++) {
-            long start = System.nanoTime();
-            LOG.info("Call HTTPGet #" + i + " to " + url_s);
-            String message;
-            final TypedInputStream tin = sm.open(req);
-            if(tin != null) {
-                tin.getMediaType().toHeaderString();
-                try (InputStream in = tin.getInputStream()) {
-                    message = IOUtils.toString(in, StandardCharsets.UTF_8);
-                    String datatypeUri = "https://www.iana.org/assignments/media-types/application" + tin.getMediaType().toHeaderString();
-                    RDFDatatype dt = TypeMapper.getInstance().getSafeTypeByName(datatypeUri);
-                    NodeValue outNode = new NodeValueNode(NodeFactory.createLiteral(message, dt));
-
-                    if (LOG.isDebugEnabled()) {
-                        String compressed = LogUtils.compress(message);
-                        LOG.debug("Message retrieved: \"\"\"" + compressed + "\"\"\"^^<" + datatypeUri + ">");
+        final Poller poller = new Poller(sm, req, recurrenceValueNano, times, binding, results);
+        ContextUtils.addTaskOnClose(getContext(), poller::stop);
+        poller.schedule(0);
+        return poller;
+    }
+
+    /**
+     * Emits the responses of all the pollers as they arrive, until they all
+     * stopped.
+     */
+    private void drain(
+            final List<Poller> pollers,
+            final BlockingQueue<Result> results,
+            final BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream,
+            final boolean failOnException) {
+        int running = pollers.size();
+        try {
+            while (running > 0) {
+                final Result result = results.take();
+                if (result.value == Poller.END) {
+                    running--;
+                } else if (result.value instanceof ExprEvalException) {
+                    final ExprEvalException ex = (ExprEvalException) result.value;
+                    LOG.debug("Call HTTPGet to " + result.poller.req.getFilenameOrURI() + " failed: " + ex.getMessage());
+                    if (failOnException) {
+                        throw ex;
                     }
+                } else {
+                    nodeValuesStream.accept(result.poller.binding,
+                            Collections.singletonList(Collections.singletonList((NodeValue) result.value)));
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.debug("Call HTTPGET Interrupted");
+            throw new ExprEvalException("Call HTTPGET Interrupted", ex);
+        } finally {
+            pollers.forEach(Poller::stop);
+        }
+    }
+
+    /**
+     * A response, an exception, or the end of a poller.
+     */
+    private static class Result {
+
+        private final Poller poller;
+        private final Object value;
+
+        private Result(Poller poller, Object value) {
+            this.poller = poller;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Polls the URL on the shared scheduler, and hands the responses that
+     * changed to the thread of the iterator, through a queue shared by all
+     * the pollers of this evaluation.
+     */
+    private static class Poller {
+
+        private static final Object END = new Object();
+
+        private final SPARQLExtStreamManager sm;
+        private final LookUpRequest req;
+        private final long recurrenceValueNano;
+        private final int times;
+        private final Binding binding;
+        private final BlockingQueue<Result> results;
+        private int calls = 0;
+        private byte[] lastHash = null;
+        private boolean stopped = false;
+        private ScheduledFuture<?> next;
+
+        private Poller(SPARQLExtStreamManager sm, LookUpRequest req, long recurrenceValueNano, int times,
+                Binding binding, BlockingQueue<Result> results) {
+            this.sm = sm;
+            this.req = req;
+            this.recurrenceValueNano = recurrenceValueNano;
+            this.times = times;
+            this.binding = binding;
+            this.results = results;
+        }
 
-                    listNodeValues.accept(Collections.singletonList(Collections.singletonList(outNode)));
+        private synchronized void schedule(long delayNano) {
+            if (!stopped) {
+                next = SCHEDULER.schedule(this::poll, Math.max(0, delayNano), TimeUnit.NANOSECONDS);
+            }
+        }
 
-                } catch (IOException ex) {
-                    throw new ExprEvalException("An IOException occurred", ex);
+        /**
+         * Stops polling, and signals the end of the poller once.
+         */
+        private void stop() {
+            synchronized (this) {
+                if (stopped) {
+                    return;
                 }
+                stopped = true;
+                if (next != null) {
+                    next.cancel(false);
+                }
+            }
+            results.offer(new Result(this, END));
+        }
+
+        private synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        private void poll() {
+            if (isStopped()) {
+                return;
+            }
+            long start = System.nanoTime();
+            LOG.debug("Call HTTPGet #" + calls + " to " + req.getFilenameOrURI());
+            try {
+                NodeValue outNode = call();
+                if (outNode != null && !isStopped()) {
+                    results.offer(new Result(this, outNode));
+                }
+            } catch (ExprEvalException ex) {
+                results.offer(new Result(this, ex));
+                stop();
+                return;
+            } catch (RuntimeException ex) {
+                LOG.debug("Exception while calling " + req.getFilenameOrURI(), ex);
+                results.offer(new Result(this, new ExprEvalException("Exception while calling " + req.getFilenameOrURI(), ex)));
+                stop();
+                return;
+            }
+            if (++calls >= times) {
+                stop();
+                return;
             }
             long end = System.nanoTime();
+            LOG.trace("Will wait " + recurrenceValueNano + " - " + (end - start) + " = " + (recurrenceValueNano - (end - start)));
+            schedule(recurrenceValueNano - (end - start));
+        }
+
+        /**
+         * Returns the response if it changed, or null.
+         */
+        private NodeValue call() {
+            final TypedInputStream tin = sm.open(req);
+            if (tin == null) {
+                return null;
+            }
+            if (tin instanceof LocatorURLAccept.NotModifiedInputStream && lastHash != null) {
+                LOG.debug("Response of " + req.getFilenameOrURI() + " was not modified");
+                tin.close();
+                return null;
+            }
+            final String contentType = tin.getContentType();
+            final Charset charset = tin.getCharset() != null ? Charset.forName(tin.getCharset()) : StandardCharsets.UTF_8;
+            try (InputStream in = tin.getInputStream()) {
+                String message = IOUtils.toString(in, charset);
+                byte[] hash = hash(contentType, message);
+                if (Arrays.equals(hash, lastHash)) {
+                    LOG.debug("Response of " + req.getFilenameOrURI() + " did not change");
+                    return null;
+                }
+                lastHash = hash;
+                String datatypeUri = "https://www.iana.org/assignments/media-types/" + contentType;
+                RDFDatatype dt = TypeMapper.getInstance().getSafeTypeByName(datatypeUri);
+                if (LOG.isDebugEnabled()) {
+                    String compressed = LogUtils.compress(message);
+                    LOG.debug("Message retrieved: \"\"\"" + compressed + "\"\"\"^^<" + datatypeUri + ">");
+                }
+                return new NodeValueNode(NodeFactory.createLiteral(message, dt));
+            } catch (IOException ex) {
+                throw new ExprEvalException("An IOException occurred", ex);
+            }
+        }
+
+        private static byte[] hash(String contentType, String message) {
             try {
-                LOG.debug("Will sleep  " + recurrenceValueNano + " - " + (end - start )+ " = " + (recurrenceValueNano - (end - start)));
-                TimeUnit.NANOSECONDS.sleep(recurrenceValueNano - (end - start));
-            } catch (InterruptedException ex) {
-                LOG.debug("Call HTTPGET to " + url_s + " Interrupted");
-                throw new ExprEvalException("Call HTTPGET to " + url_s + " Interrupted", ex);
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(contentType.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(message.getBytes(StandardCharsets.UTF_8));
+                return digest.digest();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
             }
         }
     }
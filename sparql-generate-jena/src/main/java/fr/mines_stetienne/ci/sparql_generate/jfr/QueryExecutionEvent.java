@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The execution of a query called by name or by another query, through the query executor.
+ *
+ * @author Maxime Lefrançois
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.QueryExecution")
+@Label("Query Execution")
+@Category("SPARQL-Generate")
+@Description("The execution of a query called by name or by another query, through the query executor.")
+@StackTrace(false)
+public class QueryExecutionEvent extends Event {
+
+	@Label("Query Type")
+	@Description("GENERATE, SELECT, or TEMPLATE")
+	public String queryType;
+
+	@Label("Query")
+	@Description("The query, abbreviated")
+	public String query;
+
+	@Label("Bindings")
+	@Description("The number of calls")
+	public int bindings;
+
+	@Label("Cached")
+	@Description("Whether the result was taken from the cache of the executor")
+	public boolean cached;
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The execution of the SELECT part of a query, excluding the processing of its results by the clauses that follow.
+ *
+ * @author Maxime Lefrançois
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.SelectExecution")
+@Label("SELECT Execution")
+@Category("SPARQL-Generate")
+@Description("The execution of the SELECT part of a query, excluding the processing of its results by the clauses that follow.")
+@StackTrace(false)
+public class SelectExecutionEvent extends Event {
+
+	@Label("Query")
+	@Description("The SELECT query, abbreviated")
+	public String query;
+
+	@Label("Bindings")
+	@Description("The number of bindings in the VALUES block of the query")
+	public int bindings;
+
+	@Label("Results")
+	@Description("The number of results of the query")
+	public int results;
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fetch of a document by a SOURCE clause.
+ *
+ * @author Maxime Lefrançois
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.SourceFetch")
+@Label("Source Fetch")
+@Category("SPARQL-Generate")
+@Description("The fetch of a document by a SOURCE clause.")
+@StackTrace(false)
+public class SourceFetchEvent extends Event {
+
+	@Label("Clause")
+	public String clause;
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Accept")
+	public String accept;
+
+	@Label("Found")
+	public boolean found;
+
+	@Label("Characters")
+	@Description("The number of characters of the document")
+	public long characters;
+
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2020 Ã‰cole des Mines de Saint-Ã‰tienne.
+ * Copyright 2020 MINES Saint-Étienne
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,21 +13,13 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package fr.mines_stetienne.ci.sparql_generate.md;
-
-import org.apache.jena.sparql.function.FunctionRegistry;
-
-import fr.mines_stetienne.ci.sparql_generate.function.FunctionLoader;
-
 /**
+ * Java Flight Recorder events emitted by the engine, in category
+ * SPARQL-Generate. They tell which clause or which query was running when
+ * looking at a recording, e.g., to correlate GC and CPU spikes with specific
+ * ITERATOR or SOURCE clauses. The events have no stack trace, and their
+ * descriptions are only computed when they are recorded.
  *
  * @author Maxime Lefrançois
  */
-public class FunctionsLoader implements FunctionLoader {
-    
-    @Override
-    public void load(FunctionRegistry fnreg) {
-        fnreg.put(FUN_Markdown.URI, FUN_Markdown.class);
-    }
-    
-}
+package fr.mines_stetienne.ci.sparql_generate.jfr;
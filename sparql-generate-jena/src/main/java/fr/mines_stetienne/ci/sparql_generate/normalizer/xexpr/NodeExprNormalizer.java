@@ -15,7 +15,9 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.normalizer.xexpr;
 
+import fr.mines_stetienne.ci.sparql_generate.expr.E_LiteralTemplate;
 import fr.mines_stetienne.ci.sparql_generate.expr.E_URIParam;
+import fr.mines_stetienne.ci.sparql_generate.expr.E_URITemplate;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_Expr;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_ExtendedLiteral;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_ExtendedURI;
@@ -39,10 +41,6 @@ import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.impl.LiteralLabel;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.expr.E_IRI;
-import org.apache.jena.sparql.expr.E_StrConcat;
-import org.apache.jena.sparql.expr.E_StrDatatype;
-import org.apache.jena.sparql.expr.E_StrEncodeForURI;
-import org.apache.jena.sparql.expr.E_StrLang;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.ExprVar;
@@ -55,7 +53,6 @@ import fr.mines_stetienne.ci.sparql_generate.graph.SPARQLExtNodeVisitor;
 import fr.mines_stetienne.ci.sparql_generate.lang.ParserSPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import org.apache.jena.sparql.expr.E_Function;
-import org.apache.jena.sparql.expr.E_Str;
 
 /**
  * Class used to normalize nodes, i.e., take as input a node (potentially an
@@ -190,20 +187,22 @@ public class NodeExprNormalizer implements SPARQLExtNodeVisitor {
         final ExprList args = new ExprList();
         final List<Expr> components = node.getComponents();
         for (Expr e : components) {
-            Expr n = new E_Str(nzer.normalize(e));            
-            args.add(n);
+            args.add(nzer.normalize(e));
         }
-        final Expr str = new E_StrConcat(args);
+        final Expr format;
         if (node.getLang() != null) {
-            Expr expr = new E_StrLang(str, new NodeValueString(node.getLang()));
-            bindings.add(new ElementBind(result, expr));
+            format = new NodeValueString(node.getLang());
         } else if (node.getDatatype() != null) {
             node.getDatatype().visitWith(this);
-            Expr expr = new E_StrDatatype(str, new NodeValueNode(this.result));
-            bindings.add(new ElementBind(result, expr));
+            if (this.result instanceof Var) {
+                format = new ExprVar((Var) this.result);
+            } else {
+                format = new NodeValueNode(this.result);
+            }
         } else {
-            bindings.add(new ElementBind(result, str));
+            format = new NodeValueString("");
         }
+        bindings.add(new ElementBind(result, new E_LiteralTemplate(format, args)));
         cache.put(node, result);
         this.result = result;
         return null;
@@ -223,14 +222,12 @@ public class NodeExprNormalizer implements SPARQLExtNodeVisitor {
         List<Expr> components = node.getComponents();
         for (Expr e : components) {
             if (e instanceof E_URIParam) {
-                Expr subst = new E_StrEncodeForURI(nzer.normalize(((E_URIParam) e).getArg()));
-                args.add(nzer.normalize(subst));
+                args.add(new E_URIParam(nzer.normalize(((E_URIParam) e).getArg())));
             } else {
                 args.add(nzer.normalize(e));
             }
         }
-        Expr str = new E_StrConcat(args);
-        Expr expr = new E_IRI(str);
+        Expr expr = new E_IRI(new E_URITemplate(args));
         bindings.add(new ElementBind(result, expr));
         cache.put(node, result);
         this.result = result;
@@ -155,7 +155,7 @@ public class OutputClauseNormalizer implements SPARQLExtElementVisitor {
 
     @Override
     public void visit(ElementSubExtQuery el) {
-        SPARQLExtQuery nzed = el.getQuery();
+        SPARQLExtQuery nzed = el.getQuery().copyQuery();
         nzed.normalizeXExpr();
         result = new ElementSubExtQuery(nzed);
     }
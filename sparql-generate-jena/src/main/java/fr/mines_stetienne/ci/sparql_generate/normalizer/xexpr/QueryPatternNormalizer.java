@@ -229,7 +229,7 @@ public class QueryPatternNormalizer implements ElementVisitor {
 
     @Override
     public void visit(ElementSubQuery el) {
-        SPARQLExtQuery query = (SPARQLExtQuery) el.getQuery();
+        SPARQLExtQuery query = ((SPARQLExtQuery) el.getQuery()).copyQuery();
         query.normalizeXExpr();
         result = new ElementSubQuery(query);
     }
@@ -207,7 +207,7 @@ public class QueryXExprNormalizer implements SPARQLExtQueryVisitor {
                 Expr nzed = enzer.normalize(fromClause.getName());
                 return new FromClause(fromClause.isNamed(), nzed);
             } else {
-                SPARQLExtQuery gnzed = fromClause.getGenerate();
+                SPARQLExtQuery gnzed = fromClause.getGenerate().copyQuery();
                 gnzed.normalizeXExpr();
                 if (!fromClause.isNamed()) {
                     return new FromClause(gnzed);
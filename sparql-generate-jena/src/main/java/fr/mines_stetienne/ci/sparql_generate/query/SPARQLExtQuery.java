@@ -849,6 +849,21 @@ public class SPARQLExtQuery extends Query {
 		return SPARQLExtQueryCompare.equals(this, (SPARQLExtQuery) other);
 	}
 
+	/**
+	 * Copies this query without serializing and parsing it again. The copy
+	 * shares the elements, expressions and sub-queries of this query, and may
+	 * be normalized without changing this query.
+	 *
+	 * @return the copy
+	 */
+	public SPARQLExtQuery copyQuery() {
+		SPARQLExtQueryCopyVisitor copier = new SPARQLExtQueryCopyVisitor();
+		visit(copier);
+		SPARQLExtQuery copy = copier.getOutput();
+		copy.seenBaseURI = seenBaseURI;
+		return copy;
+	}
+
 	public SPARQLExtQuery cloneQuery() {
 
 		String qs = this.toString();
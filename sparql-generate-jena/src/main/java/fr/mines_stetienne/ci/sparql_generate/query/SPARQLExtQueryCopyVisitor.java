@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.query;
+
+import java.util.ArrayList;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.core.Prologue;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprList;
+
+/**
+ * Copies a query without serializing and parsing it again. This visitor is
+ * instantiated by calls to the method {@code SPARQLExtQuery.copyQuery()}.
+ *
+ * <p>
+ * The elements, expressions and sub-queries are shared with the copied query,
+ * but the lists and the variable-expression lists are new, so that the
+ * normalizers may replace clauses of the copy without changing the copied
+ * query. The normalizers copy a sub-query before they normalize it.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class SPARQLExtQueryCopyVisitor implements SPARQLExtQueryVisitor {
+
+    private SPARQLExtQuery output;
+
+    public SPARQLExtQuery getOutput() {
+        return output;
+    }
+
+    @Override
+    public void startVisit(final Query query) {
+        output = new SPARQLExtQuery(query);
+    }
+
+    @Override
+    public void visitResultForm(final Query q) {
+        SPARQLExtQuery query = asSPARQLExtQuery(q);
+        output.queryType = query.queryType;
+        output.hasEmbeddedExpressions(query.hasEmbeddedExpressions());
+        output.isSubQuery(query.isSubQuery());
+        output.setDistinct(query.isDistinct());
+        output.setReduced(query.isReduced());
+        VarExprList project = query.getProject();
+        project.forEachVar((v) -> {
+            output.addResultVar(v, project.getExpr(v));
+        });
+        output.setQueryResultStar(query.isQueryResultStar());
+    }
+
+    @Override
+    public void visitPrologue(final Prologue prologue) {
+    }
+
+    @Override
+    public void visitSelectResultForm(final Query query) {
+    }
+
+    @Override
+    public void visitConstructResultForm(final Query query) {
+        output.setConstructTemplate(query.getConstructTemplate());
+    }
+
+    @Override
+    public void visitDescribeResultForm(final Query query) {
+        query.getResultURIs().forEach(output::addDescribeNode);
+    }
+
+    @Override
+    public void visitAskResultForm(final Query query) {
+    }
+
+    @Override
+    public void visitJsonResultForm(Query query) {
+    }
+
+    @Override
+    public void visitGenerateClause(SPARQLExtQuery query) {
+        copyCall(query);
+        if (query.hasGenerateClause()) {
+            output.setGenerateClause(new ArrayList<>(query.getGenerateClause()));
+        }
+    }
+
+    @Override
+    public void visitTemplateClause(SPARQLExtQuery query) {
+        copyCall(query);
+        output.setTemplateClauseBefore(query.getTemplateClauseBefore());
+        if (query.hasTemplateClause()) {
+            output.setTemplateClause(new ArrayList<>(query.getTemplateClause()));
+        }
+        output.setTemplateClauseSeparator(query.getTemplateClauseSeparator());
+        output.setTemplateClauseAfter(query.getTemplateClauseAfter());
+    }
+
+    @Override
+    public void visitFunctionExpression(SPARQLExtQuery query) {
+        copyCall(query);
+        output.setFunctionExpression(query.getFunctionExpression());
+    }
+
+    @Override
+    public void visitPerformClause(SPARQLExtQuery query) {
+        copyCall(query);
+        if (query.getPerformClause() != null) {
+            output.setPerformClause(new ArrayList<>(query.getPerformClause()));
+        }
+    }
+
+    @Override
+    public void visitDatasetDecl(final Query q) {
+        SPARQLExtQuery query = asSPARQLExtQuery(q);
+        output.getFromClauses().addAll(query.getFromClauses());
+    }
+
+    @Override
+    public void visitBindingClauses(SPARQLExtQuery query) {
+        if (query.getBindingClauses() != null) {
+            output.setBindingClauses(new ArrayList<>(query.getBindingClauses()));
+        }
+    }
+
+    @Override
+    public void visitQueryPattern(final Query query) {
+        output.setQueryPattern(query.getQueryPattern());
+    }
+
+    @Override
+    public void visitGroupBy(final Query query) {
+        if (query.hasGroupBy()) {
+            VarExprList namedExprs = query.getGroupBy();
+            for (Var var : namedExprs.getVars()) {
+                Expr expr = namedExprs.getExpr(var);
+                if (expr != null) {
+                    output.addGroupBy(var, expr);
+                } else {
+                    output.addGroupBy(var);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void visitHaving(final Query query) {
+        if (query.hasHaving()) {
+            for (Expr expr : query.getHavingExprs()) {
+                output.addHavingCondition(expr);
+            }
+        }
+    }
+
+    @Override
+    public void visitOrderBy(final Query query) {
+        if (query.hasOrderBy()) {
+            for (SortCondition sc : query.getOrderBy()) {
+                output.addOrderBy(sc);
+            }
+        }
+    }
+
+    @Override
+    public void visitLimit(final Query query) {
+        if (query.hasLimit()) {
+            output.setLimit(query.getLimit());
+        }
+    }
+
+    @Override
+    public void visitOffset(final Query query) {
+        if (query.hasOffset()) {
+            output.setOffset(query.getOffset());
+        }
+    }
+
+    @Override
+    public void visitPostSelect(SPARQLExtQuery query) {
+        query.getPostSelect().forEachVarExpr((v, e) -> {
+            if (e != null) {
+                output.addPostSelect(v, e);
+            } else {
+                output.getPostSelect().add(v);
+            }
+        });
+    }
+
+    @Override
+    public void visitValues(final Query query) {
+        if (query.hasValues()) {
+            output.setValuesDataBlock(query.getValuesVariables(), query.getValuesData());
+        }
+    }
+
+    @Override
+    public void visitPragma(SPARQLExtQuery query) {
+    }
+
+    @Override
+    public void finishVisit(final Query query) {
+        query.getAggregators().forEach((agg) -> {
+            output.allocAggregate(agg.getAggregator());
+        });
+    }
+
+    private void copyCall(SPARQLExtQuery query) {
+        output.setName(query.getName());
+        if (query.hasSignature()) {
+            output.setSignature(new ArrayList<>(query.getSignature()));
+        }
+        if (query.hasCallParameters()) {
+            output.setCallParameters(ExprList.copy(query.getCallParameters()));
+        }
+    }
+
+}
@@ -15,7 +15,9 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.serializer;
 
+import fr.mines_stetienne.ci.sparql_generate.expr.E_LiteralTemplate;
 import fr.mines_stetienne.ci.sparql_generate.expr.E_URIParam;
+import fr.mines_stetienne.ci.sparql_generate.expr.E_URITemplate;
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.lib.StrUtils;
 import org.apache.jena.sparql.ARQInternalErrorException;
@@ -133,6 +135,16 @@ public class SPARQLExtFmtExprSPARQL extends FmtExprSPARQL {
 
 		@Override
 		public void visit(ExprFunctionN func) {
+			if (func instanceof E_URITemplate) {
+				((E_URITemplate) func).getEquivalentExpr().visit(this);
+				return;
+			}
+
+			if (func instanceof E_LiteralTemplate) {
+				((E_LiteralTemplate) func).getEquivalentExpr().visit(this);
+				return;
+			}
+
 			if (func instanceof E_OneOf) {
 				E_OneOf oneOf = (E_OneOf) func;
 				out.print("( ");
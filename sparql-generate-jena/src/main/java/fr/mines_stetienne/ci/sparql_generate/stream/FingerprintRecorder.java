@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.stream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the SHA-256 fingerprint of the content of every document opened
+ * through a {@link SPARQLExtStreamManager}, so that a later execution can tell
+ * whether any of them changed.
+ *
+ * <p>
+ * The fingerprint is computed when the end of the stream is reached, or when
+ * the stream is closed, in which case the rest of the content is read first.
+ * The fingerprint of a document that was opened but neither read to the end
+ * nor closed is null.
+ * </p>
+ *
+ * <p>
+ * Sources that are read without the stream manager, e.g., databases or web
+ * APIs called by functions, cannot be fingerprinted. They are recorded as
+ * untracked sources, see {@link SPARQLExtStreamManager#recordUntrackedSource(String)}.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class FingerprintRecorder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FingerprintRecorder.class);
+
+    private final Map<LookUpRequest, String> fingerprints = new HashMap<>();
+
+    private final Set<String> untracked = new LinkedHashSet<>();
+
+    /**
+     * Gets the fingerprints recorded so far.
+     *
+     * @return the fingerprints, by request
+     */
+    public synchronized Map<LookUpRequest, String> getFingerprints() {
+        return Collections.unmodifiableMap(new HashMap<>(fingerprints));
+    }
+
+    /**
+     * Gets the sources that were read without the stream manager.
+     *
+     * @return the untracked sources
+     */
+    public synchronized Set<String> getUntrackedSources() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(untracked));
+    }
+
+    synchronized void recordUntracked(String source) {
+        untracked.add(source);
+    }
+
+    TypedInputStream record(LookUpRequest request, TypedInputStream in) {
+        synchronized (this) {
+            fingerprints.putIfAbsent(request, null);
+        }
+        final InputStream stream = new FingerprintInputStream(in.getInputStream(), request);
+        return new TypedInputStream(stream, in.getMediaType(), in.getBaseURI());
+    }
+
+    private synchronized void put(LookUpRequest request, String fingerprint) {
+        fingerprints.put(request, fingerprint);
+    }
+
+    /**
+     * Computes the fingerprint of a document.
+     *
+     * @param in the content of the document
+     * @return the fingerprint
+     * @throws IOException if the document cannot be read
+     */
+    public static String fingerprint(InputStream in) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, n);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private class FingerprintInputStream extends FilterInputStream {
+
+        private final LookUpRequest request;
+        private final MessageDigest digest = newDigest();
+        private boolean done = false;
+
+        private FingerprintInputStream(InputStream in, LookUpRequest request) {
+            super(in);
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                digest.update((byte) b);
+            } else {
+                finish();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                digest.update(b, off, n);
+            } else if (n < 0) {
+                finish();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                final byte[] buffer = new byte[8192];
+                while (!done && read(buffer, 0, buffer.length) >= 0) {
+                    // read the rest of the content
+                }
+            } catch (IOException ex) {
+                LOG.debug("Could not compute the fingerprint of " + request, ex);
+            } finally {
+                super.close();
+            }
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                put(request, Hex.encodeHexString(digest.digest()));
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.stream;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local store of HTTP representations and of their validators (ETag and
+ * Last-Modified), used to issue conditional GET requests and to serve the
+ * stored representation when the server answers 304 Not Modified.
+ *
+ * <p>
+ * There is no default store unless system property
+ * {@code sparql-generate.http.cache} is {@code true}, or system property
+ * {@code sparql-generate.http.cacheDir} is set. The default store is located
+ * in directory {@code .cache/sparql-generate/http} of the home directory of
+ * the user, or in {@code sparql-generate.http.cacheDir}.
+ * </p>
+ *
+ * <p>
+ * The directory of the store is created with permissions {@code rwx------},
+ * and the store is not used if the directory is accessible to other users.
+ * The store holds at most {@code sparql-generate.http.cacheSize} bytes
+ * (system property, default is 104857600), the least recently used
+ * representations are evicted first. Responses with
+ * {@code Cache-Control: no-store}, and responses to authenticated requests,
+ * must not be stored, see {@link #isStorable(String, boolean)}.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public class HttpRevalidationStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HttpRevalidationStore.class);
+
+	private static final String CONTENT_TYPE = "Content-Type";
+
+	private static final String ETAG = "ETag";
+
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	private static final long MAX_SIZE = Long.getLong("sparql-generate.http.cacheSize", 100L * 1024 * 1024);
+
+	private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+
+	private static final HttpRevalidationStore DEFAULT = createDefault();
+
+	private final Path directory;
+
+	private final long maxSize;
+
+	private final boolean usable;
+
+	/**
+	 *
+	 * @param directory where the representations are stored
+	 */
+	public HttpRevalidationStore(Path directory) {
+		this(directory, MAX_SIZE);
+	}
+
+	/**
+	 *
+	 * @param directory where the representations are stored
+	 * @param maxSize the maximal number of bytes of the stored representations
+	 */
+	public HttpRevalidationStore(Path directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.usable = createPrivateDirectory(directory);
+	}
+
+	/**
+	 * Gets the default store, or null if it is disabled.
+	 *
+	 * @return the default store
+	 */
+	public static HttpRevalidationStore getDefault() {
+		return DEFAULT;
+	}
+
+	private static HttpRevalidationStore createDefault() {
+		String dir = System.getProperty("sparql-generate.http.cacheDir");
+		if (dir == null && Boolean.getBoolean("sparql-generate.http.cache")) {
+			dir = Paths.get(System.getProperty("user.home"), ".cache", "sparql-generate", "http").toString();
+		}
+		if (dir == null || dir.isEmpty()) {
+			return null;
+		}
+		return new HttpRevalidationStore(Paths.get(dir));
+	}
+
+	/**
+	 * Creates the directory of the store if needed, and checks that other users
+	 * cannot access it.
+	 */
+	private static boolean createPrivateDirectory(Path directory) {
+		try {
+			final boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+			if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+				if (posix) {
+					Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PRIVATE));
+				} else {
+					final File file = Files.createDirectories(directory).toFile();
+					file.setReadable(false, false);
+					file.setWritable(false, false);
+					file.setExecutable(false, false);
+					file.setReadable(true, true);
+					file.setWritable(true, true);
+					file.setExecutable(true, true);
+				}
+			}
+			if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+				LOG.warn("HTTP revalidation store " + directory + " is not a directory, it is disabled");
+				return false;
+			}
+			if (posix) {
+				final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory,
+						LinkOption.NOFOLLOW_LINKS);
+				if (!PRIVATE.containsAll(permissions)) {
+					LOG.warn("HTTP revalidation store " + directory + " is accessible to other users ("
+							+ PosixFilePermissions.toString(permissions) + "), it is disabled");
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException | UnsupportedOperationException | SecurityException ex) {
+			LOG.warn("Could not create the HTTP revalidation store " + directory + ", it is disabled", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether a response may be stored.
+	 *
+	 * @param cacheControl the Cache-Control header of the response, or null
+	 * @param authenticated true if the request had credentials
+	 * @return false if the request was authenticated, or if the response has
+	 * directive no-store
+	 */
+	public static boolean isStorable(String cacheControl, boolean authenticated) {
+		if (authenticated) {
+			return false;
+		}
+		if (cacheControl == null) {
+			return true;
+		}
+		for (String directive : cacheControl.split(",")) {
+			if (directive.trim().toLowerCase(Locale.ROOT).equals("no-store")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the stored representation of a resource for an Accept header.
+	 *
+	 * @param uri the URI of the resource
+	 * @param accept the Accept header
+	 * @return the stored representation, or null if there is none
+	 */
+	public Entry get(String uri, String accept) {
+		if (!usable) {
+			return null;
+		}
+		final String key = key(uri, accept);
+		final Path meta = directory.resolve(key + ".properties");
+		final Path body = directory.resolve(key);
+		if (!Files.isRegularFile(meta) || !Files.isRegularFile(body)) {
+			return null;
+		}
+		try {
+			// the modification time orders the representations for eviction
+			Files.setLastModifiedTime(body, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException ex) {
+			LOG.trace("Could not touch " + body, ex);
+		}
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		} catch (IOException ex) {
+			LOG.debug("Could not read the validators of " + uri, ex);
+			return null;
+		}
+		return new Entry(body, properties.getProperty(CONTENT_TYPE), properties.getProperty(ETAG),
+				properties.getProperty(LAST_MODIFIED));
+	}
+
+	/**
+	 * Wraps the body of a response such that it is stored along with its
+	 * validators when it is read to the end. If the stream is closed before, or
+	 * if the store cannot be written, nothing is stored.
+	 *
+	 * @param uri the URI of the resource
+	 * @param accept the Accept header
+	 * @param contentType the Content-Type of the response
+	 * @param etag the ETag of the response, or null
+	 * @param lastModified the Last-Modified date of the response, or null
+	 * @param in the body of the response
+	 * @return the wrapped body
+	 */
+	public InputStream store(String uri, String accept, String contentType, String etag, String lastModified,
+			InputStream in) {
+		if (!usable) {
+			return in;
+		}
+		final String key = key(uri, accept);
+		try {
+			final Path tmp = Files.createTempFile(directory, key, ".tmp");
+			final Properties properties = new Properties();
+			properties.setProperty(CONTENT_TYPE, contentType);
+			if (etag != null) {
+				properties.setProperty(ETAG, etag);
+			}
+			if (lastModified != null) {
+				properties.setProperty(LAST_MODIFIED, lastModified);
+			}
+			return new StoringInputStream(in, uri, key, tmp, properties);
+		} catch (IOException ex) {
+			LOG.debug("Could not store the representation of " + uri, ex);
+			return in;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used representations until the store holds
+	 * at most {@code maxSize} bytes.
+	 */
+	private synchronized void evict() {
+		final List<Path> bodies = new ArrayList<>();
+		long size = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream) {
+				final String name = path.getFileName().toString();
+				if (name.endsWith(".properties") || name.endsWith(".tmp") || !Files.isRegularFile(path)) {
+					continue;
+				}
+				bodies.add(path);
+				size += Files.size(path);
+			}
+		} catch (IOException ex) {
+			LOG.debug("Could not list the HTTP revalidation store " + directory, ex);
+			return;
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		bodies.sort(Comparator.comparing(HttpRevalidationStore::getLastModifiedTime));
+		for (Path body : bodies) {
+			if (size <= maxSize) {
+				break;
+			}
+			try {
+				final long bodySize = Files.size(body);
+				Files.deleteIfExists(directory.resolve(body.getFileName() + ".properties"));
+				Files.deleteIfExists(body);
+				size -= bodySize;
+				LOG.trace("Evicted " + body);
+			} catch (IOException ex) {
+				LOG.debug("Could not evict " + body, ex);
+			}
+		}
+	}
+
+	private static FileTime getLastModifiedTime(Path path) {
+		try {
+			return Files.getLastModifiedTime(path);
+		} catch (IOException ex) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private static String key(String uri, String accept) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(accept.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+			digest.update(uri.getBytes(StandardCharsets.UTF_8));
+			return Hex.encodeHexString(digest.digest());
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * A stored representation of a resource.
+	 */
+	public static class Entry {
+
+		private final Path body;
+		private final String contentType;
+		private final String etag;
+		private final String lastModified;
+
+		private Entry(Path body, String contentType, String etag, String lastModified) {
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public InputStream open() throws IOException {
+			return Files.newInputStream(body);
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+	}
+
+	/**
+	 * Copies the stream to a temporary file, and moves it to the store when
+	 * the end of the stream is reached.
+	 */
+	private class StoringInputStream extends FilterInputStream {
+
+		private final String uri;
+		private final String key;
+		private final Path tmp;
+		private final Properties properties;
+		private OutputStream out;
+
+		private StoringInputStream(InputStream in, String uri, String key, Path tmp, Properties properties)
+				throws IOException {
+			super(in);
+			this.uri = uri;
+			this.key = key;
+			this.tmp = tmp;
+			this.properties = properties;
+			this.out = Files.newOutputStream(tmp);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				commit();
+			} else {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0) {
+				commit();
+			} else {
+				write(b, off, n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			abort();
+			return super.skip(n);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				abort();
+			}
+		}
+
+		private void write(byte[] b, int off, int len) {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.write(b, off, len);
+			} catch (IOException ex) {
+				LOG.debug("Could not store the representation of " + uri, ex);
+				abort();
+			}
+		}
+
+		private void commit() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.close();
+				out = null;
+				Path meta = directory.resolve(key + ".properties");
+				Files.deleteIfExists(meta);
+				Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				try (Writer writer = Files.newBufferedWriter(meta, StandardCharsets.UTF_8)) {
+					properties.store(writer, uri);
+				}
+				LOG.debug("Stored the representation of " + uri);
+				evict();
+			} catch (IOException ex) {
+				LOG.debug("Could not store the representation of " + uri, ex);
+				abort();
+			}
+		}
+
+		private void abort() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					LOG.trace("Exception while closing " + tmp, ex);
+				}
+				out = null;
+			}
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException ex) {
+				LOG.trace("Exception while deleting " + tmp, ex);
+			}
+		}
+	}
+}
@@ -18,12 +18,27 @@ package fr.mines_stetienne.ci.sparql_generate.stream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.input.BOMInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.jena.atlas.web.TypedInputStream;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -31,12 +46,67 @@ import org.slf4j.Logger;
 /**
  * Same as LocatorURL but with content negociation capabilities.
  *
+ * <p>
+ * Requests are executed by a pooled HTTP client that negotiates gzip and
+ * deflate compression, applies timeouts, and follows at most 5 redirects,
+ * never from https to http. If a {@link HttpRevalidationStore} is enabled,
+ * representations that have an ETag or a Last-Modified date are kept in it,
+ * and are revalidated using a conditional GET request the next time they are
+ * looked up.
+ * </p>
+ *
+ * <p>
+ * Timeouts are set in milliseconds by system properties
+ * {@code sparql-generate.http.connectTimeout} (default is 10000) and
+ * {@code sparql-generate.http.socketTimeout} (default is 60000).
+ * </p>
+ *
  * @author Maxime Lefrançois
  */
 public class LocatorURLAccept extends LocatorAcceptBase {
 
 	static Logger log = LoggerFactory.getLogger(LocatorURLAccept.class);
 
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("sparql-generate.http.connectTimeout", 10000);
+
+	private static final int SOCKET_TIMEOUT = Integer.getInteger("sparql-generate.http.socketTimeout", 60000);
+
+	private static final CloseableHttpClient CLIENT = createClient();
+
+	private final HttpRevalidationStore store;
+
+	public LocatorURLAccept() {
+		this(HttpRevalidationStore.getDefault());
+	}
+
+	/**
+	 *
+	 * @param store where representations are kept for revalidation, or null
+	 */
+	public LocatorURLAccept(HttpRevalidationStore store) {
+		this.store = store;
+	}
+
+	private static CloseableHttpClient createClient() {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(30,
+				TimeUnit.SECONDS);
+		connectionManager.setMaxTotal(100);
+		connectionManager.setDefaultMaxPerRoute(10);
+		connectionManager.setValidateAfterInactivity(2000);
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(CONNECT_TIMEOUT)
+				.setConnectionRequestTimeout(CONNECT_TIMEOUT)
+				.setSocketTimeout(SOCKET_TIMEOUT)
+				.setMaxRedirects(5)
+				.build();
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(config)
+				.setRedirectStrategy(new NoDowngradeRedirectStrategy())
+				.useSystemProperties()
+				.build();
+	}
+
 	@Override
 	public boolean equals(Object other) {
 		return other instanceof LocatorURLAccept;
@@ -56,90 +126,113 @@ public class LocatorURLAccept extends LocatorAcceptBase {
 	public TypedInputStream open(LookUpRequest request) {
 		String acceptHeader = request.getAccept();
 		String source = request.getFilenameOrURI();
+		final URI uri;
 		try {
-			URL url = new URL(source);
-			URLConnection conn = (URLConnection) url.openConnection();
-//            conn.setConnectTimeout(200);
-//            conn.setReadTimeout(500);
-			return openConnectionCheckRedirects(url, acceptHeader, conn);
-		} catch (java.io.FileNotFoundException ex) {
-			log.debug("File not found online: " + source);
+			uri = new URI(source);
+		} catch (URISyntaxException ex) {
 			return null;
-		} catch (MalformedURLException ex) {
+		}
+		if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
 			return null;
-		} // IOExceptions that occur sometimes.
-		catch (java.net.UnknownHostException ex) {
+		}
+		HttpGet get = new HttpGet(uri);
+		String userInfo = uri.getRawUserInfo();
+		final boolean authenticated = userInfo != null && !userInfo.isEmpty();
+		if (authenticated) {
+			String encodedUserInfo = new String(Base64.encodeBase64(userInfo.getBytes(StandardCharsets.UTF_8)));
+			get.setHeader("Authorization", "Basic " + encodedUserInfo);
+		}
+		get.setHeader("Accept", acceptHeader);
+		get.setHeader("Accept-Charset", "utf-8,*");
+		// representations of authenticated requests are never stored
+		HttpRevalidationStore.Entry stored = store != null && !authenticated ? store.get(source, acceptHeader) : null;
+		if (stored != null) {
+			if (stored.getETag() != null) {
+				get.setHeader("If-None-Match", stored.getETag());
+			}
+			if (stored.getLastModified() != null) {
+				get.setHeader("If-Modified-Since", stored.getLastModified());
+			}
+		}
+		CloseableHttpResponse response = null;
+		try {
+			response = CLIENT.execute(get);
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_NOT_MODIFIED && stored != null) {
+				response.close();
+				log.debug("Not modified, using the stored representation of " + source);
+				return new NotModifiedInputStream(new BufferedInputStream(new BOMInputStream(stored.open())),
+						stored.getContentType());
+			}
+			HttpEntity entity = response.getEntity();
+			if (status >= 300 || entity == null) {
+				log.debug("Status " + status + " for " + source);
+				response.close();
+				return null;
+			}
+			String contentType = entity.getContentType() != null ? entity.getContentType().getValue() : "text/plain";
+			InputStream in = entity.getContent();
+			String etag = getHeader(response, "ETag");
+			String lastModified = getHeader(response, "Last-Modified");
+			if (store != null && (etag != null || lastModified != null)
+					&& HttpRevalidationStore.isStorable(getHeader(response, "Cache-Control"), authenticated)) {
+				in = store.store(source, acceptHeader, contentType, etag, lastModified, in);
+			}
+			return new TypedInputStream(new BufferedInputStream(new BOMInputStream(in)), contentType);
+		} catch (java.net.UnknownHostException ex) {
 			log.debug("UnknownHostException " + source);
-			return null;
 		} catch (java.net.ConnectException ex) {
 			log.debug("ConnectException " + source);
-			return null;
-		} catch (java.net.SocketException ex) {
-			log.debug("SocketException " + source);
-			return null;
 		} catch (java.net.SocketTimeoutException ex) {
 			log.debug("SocketTimeoutException: " + source + "  " + ex.getMessage());
-			return null;
+		} catch (java.net.SocketException ex) {
+			log.debug("SocketException " + source);
 		} catch (IOException ex) {
 			log.debug("I/O Exception opening URL: " + source + "  " + ex.getMessage());
-			return null;
 		}
+		if (response != null) {
+			try {
+				response.close();
+			} catch (IOException ex) {
+				log.trace("Exception while closing the response for " + source, ex);
+			}
+		}
+		return null;
 	}
 
-	private TypedInputStream openConnectionCheckRedirects(URL url, String acceptHeader, URLConnection c) throws IOException {
-		boolean redir;
-		int redirects = 0;
-		String contentType = null;
-//		String contentEncoding = null;
-		do {
-			if (c instanceof HttpURLConnection) {
-				((HttpURLConnection) c).setInstanceFollowRedirects(false);
-			}
-			String userInfo = url.getUserInfo();
-			if (userInfo != null && !userInfo.isEmpty()) {
-				String encodedUserInfo = new String(Base64.encodeBase64(userInfo.getBytes("UTF-8")));
-				c.setRequestProperty("Authorization", "Basic " + encodedUserInfo);
-			}
-			c.setRequestProperty("Accept", acceptHeader);
-			c.setRequestProperty("Accept-Charset", "utf-8,*");
-
-			// We want to open the input stream before getting headers
-			// because getHeaderField() et al swallow IOExceptions.
-			InputStream in = new BufferedInputStream(new BOMInputStream(c.getInputStream()));
-			contentType = c.getContentType();
-//			contentEncoding = c.getContentEncoding();
-			redir = false;
-			if (c instanceof HttpURLConnection) {
-				HttpURLConnection http = (HttpURLConnection) c;
-				int stat = http.getResponseCode();
-				if (stat >= 300 && stat <= 307 && stat != 306 && stat != HttpURLConnection.HTTP_NOT_MODIFIED) {
-					URL base = http.getURL();
-					String loc = http.getHeaderField("Location");
-					URL target = null;
-					if (loc != null) {
-						target = new URL(base, loc);
-					}
-					http.disconnect();
-					// Redirection should be allowed only for HTTP and HTTPS
-					// and should be limited to 5 redirections at most.
-					if (target == null || !(target.getProtocol().equals("http") || target.getProtocol().equals("https"))
-							|| c.getURL().getProtocol().equals("https") && target.getProtocol().equals("http")
-							|| redirects >= 5) {
-						throw new SecurityException("illegal URL redirect");
-					}
-					redir = true;
-					c = target.openConnection();
-					redirects++;
-				} else {
-					if (contentType == null) {
-						contentType = "text/plain";
-					}
-//					return new TypedInputStream(in, contentType, contentEncoding);
-					return new TypedInputStream(in, contentType);
-				}
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
+	/**
+	 * A stored representation that the server answered 304 Not Modified for.
+	 */
+	public static class NotModifiedInputStream extends TypedInputStream {
+
+		private NotModifiedInputStream(InputStream in, String contentType) {
+			super(in, contentType);
+		}
+	}
+
+	/**
+	 * Redirection is allowed only for HTTP and HTTPS, and never from HTTPS to
+	 * HTTP.
+	 */
+	private static class NoDowngradeRedirectStrategy extends DefaultRedirectStrategy {
+
+		@Override
+		public URI getLocationURI(HttpRequest request, HttpResponse response, HttpContext context)
+				throws ProtocolException {
+			URI target = super.getLocationURI(request, response, context);
+			String scheme = target.getScheme();
+			String from = URI.create(request.getRequestLine().getUri()).getScheme();
+			if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)
+					|| "https".equalsIgnoreCase(from) && "http".equalsIgnoreCase(scheme)) {
+				throw new ProtocolException("illegal URL redirect to " + target);
 			}
-		} while (redir);
-		return null;
+			return target;
+		}
 	}
 
 }
@@ -24,6 +24,8 @@ import org.apache.jena.riot.RiotNotFoundException;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import fr.mines_stetienne.ci.sparql_generate.jfr.DocumentOpenEvent;
+
 /**
  * Extends the StreamManager class with content negociation capabilities.
  *
@@ -33,6 +35,8 @@ public class SPARQLExtStreamManager extends StreamManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(SPARQLExtStreamManager.class);
 
+    private FingerprintRecorder recorder;
+
     private SPARQLExtStreamManager() {
     }
 
@@ -72,13 +76,59 @@ public class SPARQLExtStreamManager extends StreamManager {
         return open(new LookUpRequest(filenameOrURI, LookUpRequest.ACCEPT_ALL));
     }
 
+    /**
+     * Creates a stream manager with the same locators and location mapper,
+     * that records the fingerprint of every document it opens.
+     *
+     * @param recorder where the fingerprints are recorded
+     * @return the new stream manager
+     */
+    public SPARQLExtStreamManager recording(FingerprintRecorder recorder) {
+        SPARQLExtStreamManager sm = new SPARQLExtStreamManager();
+        for (Locator loc : locators()) {
+            sm.addLocator((LocatorAccept) loc);
+        }
+        if (getLocationMapper() != null) {
+            sm.setLocationMapper((LocationMapperAccept) getLocationMapper());
+        }
+        sm.recorder = recorder;
+        return sm;
+    }
+
+    /**
+     * Records that a source was read without this stream manager, e.g., by a
+     * function that queries a database or calls a web API. If this stream
+     * manager records fingerprints, the outputs that depend on the source are
+     * never up to date.
+     *
+     * @param source the URI of the source
+     */
+    public void recordUntrackedSource(String source) {
+        if (recorder != null) {
+            recorder.recordUntracked(source);
+        }
+    }
+
     /**
      * Open a file using the locators of this StreamManager. Returns null if not
      * found.
      */
     public TypedInputStream open(LookUpRequest _request) {
+        final DocumentOpenEvent event = new DocumentOpenEvent();
+        event.begin();
         LookUpRequest request = mapRequest(_request);
-        return openNoMapOrNull(request);
+        TypedInputStream in = openNoMapOrNull(request);
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = _request.getFilenameOrURI();
+            event.accept = _request.getAccept();
+            event.found = in != null;
+            event.commit();
+        }
+        if (in != null && recorder != null) {
+            return recorder.record(_request, in);
+        }
+        return in;
     }
 
     @Deprecated
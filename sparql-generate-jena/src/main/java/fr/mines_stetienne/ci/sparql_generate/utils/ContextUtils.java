@@ -17,14 +17,19 @@ package fr.mines_stetienne.ci.sparql_generate.utils;
 
 import static fr.mines_stetienne.ci.sparql_generate.SPARQLExt.NS;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.web.TypedInputStream;
@@ -54,9 +59,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanProfile;
 import fr.mines_stetienne.ci.sparql_generate.engine.QueryExecutor;
 import fr.mines_stetienne.ci.sparql_generate.function.SPARQLExtFunctionRegistry;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_List;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IngestBuffer;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
@@ -143,6 +150,69 @@ public class ContextUtils {
 		return commons.executor;
 	}
 
+	/**
+	 * Gets the maximal number of messages that streaming iterator functions
+	 * group in a window.
+	 */
+	public static int getStreamBatchSize(Context context) {
+		Commons commons = context.get(COMMONS);
+		return commons.streamBatchSize;
+	}
+
+	/**
+	 * Gets the maximal number of milliseconds a message waits in a window of a
+	 * streaming iterator function before being emitted.
+	 */
+	public static long getStreamBatchLatency(Context context) {
+		Commons commons = context.get(COMMONS);
+		return commons.streamBatchLatency;
+	}
+
+	/**
+	 * Gets the maximal number of rows that the ingest buffer of a streaming
+	 * iterator function holds.
+	 */
+	public static int getIngestBufferCapacity(Context context) {
+		Commons commons = context.get(COMMONS);
+		return commons.ingestBufferCapacity;
+	}
+
+	/**
+	 * Gets what happens to incoming rows when the ingest buffer of a streaming
+	 * iterator function is full.
+	 */
+	public static IngestBuffer.Policy getIngestBufferPolicy(Context context) {
+		Commons commons = context.get(COMMONS);
+		return commons.ingestBufferPolicy;
+	}
+
+	public static void registerIngestBuffer(Context context, IngestBuffer buffer) {
+		Commons commons = context.get(COMMONS);
+		commons.ingestBuffers.add(buffer);
+	}
+
+	/**
+	 * Gets the ingest buffers of the streaming iterator functions, e.g., to
+	 * monitor their depth and the number of dropped rows.
+	 */
+	public static List<IngestBuffer> getIngestBuffers(Context context) {
+		Commons commons = context.get(COMMONS);
+		synchronized (commons.ingestBuffers) {
+			return new ArrayList<>(commons.ingestBuffers);
+		}
+	}
+
+	/**
+	 * Gets the profile where the metrics of the plans executed with this
+	 * context are recorded, for EXPLAIN ANALYZE.
+	 *
+	 * @return the profile, or null
+	 */
+	public static PlanProfile getProfile(Context context) {
+		Commons commons = context.get(COMMONS);
+		return commons != null ? commons.profile : null;
+	}
+
 	public static QueryExecutor getQueryExecutor(Context context) {
 		Commons commons = context.get(COMMONS);
 		return commons.queryExecutor;
@@ -177,11 +247,31 @@ public class ContextUtils {
 		commons.closingTasks.add(task);
 	}
 
+	/**
+	 * Gets a resource that is shared by all the contexts forked from the same
+	 * root context, e.g., a pool of connections. The resource is created the
+	 * first time it is requested. Its creator should register a task to
+	 * release it using {@link #addTaskOnClose(Context, Runnable)}.
+	 *
+	 * @param context the context
+	 * @param key the key of the resource
+	 * @param creator creates the resource for the context
+	 * @return the resource
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T getShared(Context context, String key, Function<Context, T> creator) {
+		Commons commons = context.get(COMMONS);
+		return (T) commons.shared.computeIfAbsent(key, (k) -> creator.apply(context));
+	}
+
 	public static void close(Context context) {
 		Commons commons = context.get(COMMONS);
 		try {
 			LOG.trace("Closing context");
 			commons.closingTasks.forEach(Runnable::run);
+			if (LOG.isDebugEnabled()) {
+				getIngestBuffers(context).forEach((buffer) -> LOG.debug("Closed " + buffer));
+			}
 		} catch (Exception ex) {
 			LOG.warn("Exception while closing context:", ex);
 		}
@@ -250,6 +340,20 @@ public class ContextUtils {
 	}
 
 
+	/**
+	 * Records that a source was read without the stream manager of the
+	 * context, see {@link SPARQLExtStreamManager#recordUntrackedSource(String)}.
+	 *
+	 * @param context the context
+	 * @param source the URI of the source
+	 */
+	public static void recordUntrackedSource(Context context, String source) {
+		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
+		if (sm != null) {
+			sm.recordUntrackedSource(source);
+		}
+	}
+
 	public static TypedInputStream openStream(Context context, String sourceUri, String acceptHeader) {
 		final LookUpRequest request = new LookUpRequest(sourceUri, acceptHeader);
 		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
@@ -453,11 +557,54 @@ public class ContextUtils {
 			return this;
 		}
 
+		/**
+		 * Sets the windows of streaming iterator functions such as
+		 * iter:MQTTSubscribe and iter:WebSocket. Messages are emitted by
+		 * windows of at most maxMessages messages, at most maxLatency
+		 * milliseconds after the first message of the window arrived.
+		 *
+		 * @param maxMessages the maximal number of messages in a window
+		 * @param maxLatency the maximal latency in milliseconds, or 0 for no
+		 * limit
+		 * @return this builder
+		 */
+		public Builder setStreamBatching(int maxMessages, long maxLatency) {
+			commons.streamBatchSize = maxMessages;
+			commons.streamBatchLatency = maxLatency;
+			return this;
+		}
+
+		/**
+		 * Sets the ingest buffer of streaming iterator functions such as
+		 * iter:MQTTSubscribe and iter:WebSocket.
+		 *
+		 * @param capacity the maximal number of buffered rows
+		 * @param policy what happens to incoming rows when the buffer is full
+		 * @return this builder
+		 */
+		public Builder setIngestBuffer(int capacity, IngestBuffer.Policy policy) {
+			commons.ingestBufferCapacity = capacity;
+			commons.ingestBufferPolicy = policy;
+			return this;
+		}
+
 		public Builder setDebugTemplate(boolean debugTemplate) {
 			commons.debugTemplate = debugTemplate;
 			return this;
 		}
 
+		/**
+		 * Records the row counts, batch counts and timings of the plans
+		 * executed with the context in a profile, for EXPLAIN ANALYZE.
+		 *
+		 * @param profile the profile
+		 * @return this builder
+		 */
+		public Builder setProfile(PlanProfile profile) {
+			commons.profile = profile;
+			return this;
+		}
+
 		public Builder setQueryExecutor(QueryExecutor queryExecutor) {
 			commons.queryExecutor = queryExecutor;
 			return this;
@@ -474,10 +621,34 @@ public class ContextUtils {
 		private boolean debugTemplate = false;
 		private ExecutorService executor = Executors.newSingleThreadExecutor();
 		private QueryExecutor queryExecutor = new QueryExecutor();
-		private final Set<Runnable> closingTasks = new HashSet<>();
+		private PlanProfile profile = null;
+		private int streamBatchSize = Integer.getInteger("sparql-generate.stream.batchSize", 1);
+		private long streamBatchLatency = Long.getLong("sparql-generate.stream.batchLatency", 0);
+		private int ingestBufferCapacity = Integer.getInteger("sparql-generate.stream.bufferSize", 10000);
+		private IngestBuffer.Policy ingestBufferPolicy = getDefaultIngestBufferPolicy();
+		private final List<IngestBuffer> ingestBuffers = Collections.synchronizedList(new ArrayList<>());
+		// tasks may be added concurrently, e.g., by the creators of shared resources
+		private final Set<Runnable> closingTasks = ConcurrentHashMap.newKeySet();
+		private final Map<String, Object> shared = new ConcurrentHashMap<>();
 
 		private Commons() {
 		}
 
+		/**
+		 * Reads the policy of ingest buffers from the system property
+		 * {@code sparql-generate.stream.bufferPolicy}, and falls back to BLOCK
+		 * if it is not a valid policy.
+		 */
+		private static IngestBuffer.Policy getDefaultIngestBufferPolicy() {
+			final String value = System.getProperty("sparql-generate.stream.bufferPolicy", "BLOCK");
+			try {
+				return IngestBuffer.Policy.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				LOG.warn("Invalid value for sparql-generate.stream.bufferPolicy: " + value + ", expected one of "
+						+ Arrays.toString(IngestBuffer.Policy.values()) + ", using BLOCK");
+				return IngestBuffer.Policy.BLOCK;
+			}
+		}
+
 	}
 }
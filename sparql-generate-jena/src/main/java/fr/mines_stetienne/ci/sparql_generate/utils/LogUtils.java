@@ -124,6 +124,18 @@ public class LogUtils {
         return n;
     }
 
+    /**
+     * Abbreviates a text on a single line, e.g., a query.
+     *
+     * @param s the text
+     * @param max the maximal length of the result
+     * @return the abbreviated text
+     */
+    public static String abbreviate(String s, int max) {
+        s = s.replaceAll("\\s+", " ").trim();
+        return s.length() > max ? s.substring(0, max - 3) + "..." : s;
+    }
+
     public static String compress(String s) {
         if (s.length() > 60) {
             s = s.substring(0, 40) + "\n"
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+
+/**
+ * Tests the function calls that {@link CommonSubExpressions} binds to a new
+ * variable.
+ *
+ * @author Maxime Lefrançois
+ */
+public class CommonSubExpressionsTest {
+
+	private static final String PROLOGUE = "PREFIX ex: <http://example.org/>\n"
+			+ "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n"
+			+ "GENERATE { ex:s ex:p ?a , ?b , ?c . }\n"
+			+ "BIND (\"x\" AS ?x)\n";
+
+	@BeforeClass
+	public static void registerSideEffectFree() {
+		SPARQLExt.registerSideEffectFree("http://example.org/f");
+		SPARQLExt.registerSideEffectFree("http://example.org/g");
+	}
+
+	@Test
+	public void testRepeatedCallIsShared() {
+		final List<Element> clauses = eliminate("BIND (CONCAT(ex:f(?x), \"a\") AS ?a)\n"
+				+ "BIND (CONCAT(ex:f(?x), \"b\") AS ?b)");
+		assertEquals(1, countShared(clauses));
+		assertEquals(4, clauses.size());
+	}
+
+	@Test
+	public void testConditionIsShared() {
+		final List<Element> clauses = eliminate("BIND (IF(ex:f(?x), \"a\", \"b\") AS ?a)\n"
+				+ "BIND (IF(ex:f(?x), \"c\", \"d\") AS ?b)");
+		assertEquals(1, countShared(clauses));
+	}
+
+	@Test
+	public void testBranchesOfIfAreNotShared() {
+		final List<Element> clauses = eliminate("BIND (IF(?x = \"y\", ex:f(?x), \"a\") AS ?a)\n"
+				+ "BIND (IF(?x = \"z\", \"b\", ex:f(?x)) AS ?b)");
+		assertEquals(0, countShared(clauses));
+	}
+
+	@Test
+	public void testArgumentsOfCoalesceAreNotShared() {
+		final List<Element> clauses = eliminate("BIND (COALESCE(?x, ex:f(?x)) AS ?a)\n"
+				+ "BIND (COALESCE(?x, ex:f(?x)) AS ?b)");
+		assertEquals(0, countShared(clauses));
+	}
+
+	@Test
+	public void testRightOperandsOfLogicalOperatorsAreNotShared() {
+		final List<Element> clauses = eliminate("BIND (?x = \"y\" || ex:f(?x) AS ?a)\n"
+				+ "BIND (?x = \"y\" && ex:f(?x) AS ?b)");
+		assertEquals(0, countShared(clauses));
+	}
+
+	@Test
+	public void testCallAlwaysEvaluatedOnceIsNotShared() {
+		final List<Element> clauses = eliminate("BIND (ex:f(?x) || ex:g(?x) AS ?a)\n"
+				+ "BIND (IF(?x = \"y\", ex:f(?x), \"b\") AS ?b)");
+		assertEquals(0, countShared(clauses));
+	}
+
+	@Test
+	public void testCallAlwaysEvaluatedTwiceIsSharedInBranches() {
+		final List<Element> clauses = eliminate("BIND (STR(ex:f(?x)) AS ?a)\n"
+				+ "BIND (IF(?x = \"y\", ex:f(?x), \"b\") AS ?b)\n"
+				+ "BIND (STRLEN(ex:f(?x)) AS ?c)");
+		assertEquals(1, countShared(clauses));
+		int calls = 0;
+		for (Element clause : clauses) {
+			calls += countCalls(((ElementBind) clause).getExpr());
+		}
+		assertEquals(1, calls);
+	}
+
+	@Test
+	public void testCallsWithSideEffectsAreNotShared() {
+		final List<Element> clauses = eliminate("BIND (STR(<http://w3id.org/sparql-generate/fn/HTTPPost>(?x)) AS ?a)\n"
+				+ "BIND (STRLEN(<http://w3id.org/sparql-generate/fn/HTTPPost>(?x)) AS ?b)\n"
+				+ "BIND (<http://w3id.org/sparql-generate/fn/HTTPDelete>(?x) AS ?c)\n"
+				+ "BIND (<http://w3id.org/sparql-generate/fn/HTTPDelete>(?x) AS ?d)");
+		assertEquals(0, countShared(clauses));
+		assertEquals(5, clauses.size());
+		assertEquals("http://w3id.org/sparql-generate/fn/HTTPDelete",
+				((E_Function) ((ElementBind) clauses.get(4)).getExpr()).getFunctionIRI());
+	}
+
+	@Test
+	public void testCallsOfDifferentFunctionsAreNotConfused() {
+		final List<Element> clauses = eliminate("BIND (CONCAT(ex:f(?x), \"a\") AS ?a)\n"
+				+ "BIND (CONCAT(ex:g(?x), \"a\") AS ?b)");
+		assertEquals(0, countShared(clauses));
+		assertEquals("http://example.org/g",
+				((E_Function) ((ExprFunction) ((ElementBind) clauses.get(2)).getExpr()).getArg(1)).getFunctionIRI());
+	}
+
+	@Test
+	public void testCallsOfUnknownFunctionsAreNotShared() {
+		final List<Element> clauses = eliminate("BIND (CONCAT(ex:unknown(?x), \"a\") AS ?a)\n"
+				+ "BIND (CONCAT(ex:unknown(?x), \"b\") AS ?b)");
+		assertEquals(0, countShared(clauses));
+	}
+
+	@Test
+	public void testCallsOfSideEffectFreeFunctionsAreShared() {
+		final List<Element> clauses = eliminate(
+				"BIND (CONCAT(<http://w3id.org/sparql-generate/fn/titleCase>(?x), \"a\") AS ?a)\n"
+						+ "BIND (CONCAT(<http://w3id.org/sparql-generate/fn/titleCase>(?x), \"b\") AS ?b)\n"
+						+ "BIND (CONCAT(xsd:string(?x), \"a\") AS ?c)\n"
+						+ "BIND (CONCAT(xsd:string(?x), \"b\") AS ?d)");
+		assertEquals(2, countShared(clauses));
+	}
+
+	private static List<Element> eliminate(final String bindingClauses) {
+		final SPARQLExtQuery query = (SPARQLExtQuery) QueryFactory.create(PROLOGUE + bindingClauses,
+				SPARQLExt.SYNTAX);
+		return CommonSubExpressions.eliminate(query).getBindingClauses();
+	}
+
+	private static int countShared(final List<Element> clauses) {
+		int count = 0;
+		for (Element clause : clauses) {
+			if (clause instanceof ElementBind
+					&& ((ElementBind) clause).getVar().getVarName().startsWith("cse_")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int countCalls(final Expr expr) {
+		if (!(expr instanceof ExprFunction)) {
+			return 0;
+		}
+		int count = 0;
+		if (expr instanceof E_Function && ((E_Function) expr).getFunctionIRI().equals("http://example.org/f")) {
+			count++;
+		}
+		for (Expr arg : ((ExprFunction) expr).getArgs()) {
+			count += countCalls(arg);
+		}
+		return count;
+	}
+
+}
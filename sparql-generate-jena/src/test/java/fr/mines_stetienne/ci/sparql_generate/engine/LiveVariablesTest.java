@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_NotEquals;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.util.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * Tests the clauses that {@link LiveVariables} removes and the iterator
+ * outputs it skips, and checks that they do not change the output.
+ *
+ * @author Maxime Lefrançois
+ */
+public class LiveVariablesTest {
+
+	private static final String PROLOGUE = "PREFIX ex: <http://example.org/>\n"
+			+ "PREFIX iter: <http://w3id.org/sparql-generate/iter/>\n"
+			+ "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n";
+
+	private boolean optimizing;
+
+	@Before
+	public void saveOptimizing() {
+		optimizing = PlanFactory.isOptimizing();
+	}
+
+	@After
+	public void restoreOptimizing() {
+		PlanFactory.setOptimizing(optimizing);
+	}
+
+	@Test
+	public void testDeadClausesAreRemoved() {
+		final List<Element> clauses = eliminate("GENERATE { ex:s ex:p ?a . }\n"
+				+ "SOURCE <http://example.org/doc> AS ?doc\n"
+				+ "BIND (\"x\" AS ?a)\n"
+				+ "BIND (CONCAT(?a, \"y\") AS ?b)");
+		assertEquals(1, clauses.size());
+		assertEquals(Var.alloc("a"), ((ElementBind) clauses.get(0)).getVar());
+	}
+
+	@Test
+	public void testClausesUsedByDeadClausesAreRemoved() {
+		final List<Element> clauses = eliminate("GENERATE { ex:s ex:p ex:o . }\n"
+				+ "BIND (\"x\" AS ?a)\n"
+				+ "BIND (CONCAT(?a, \"y\") AS ?b)");
+		assertEquals(0, clauses.size());
+	}
+
+	@Test
+	public void testClausesWithSideEffectsAreKept() {
+		final List<Element> clauses = eliminate("GENERATE { ex:s ex:p ex:o . }\n"
+				+ "BIND (<http://w3id.org/sparql-generate/fn/HTTPPost>(\"http://example.org/\", \"x\") AS ?posted)\n"
+				+ "BIND (<http://w3id.org/sparql-generate/fn/log>(\"x\") AS ?logged)\n"
+				+ "BIND (ex:unknown(\"x\") AS ?unknown)\n"
+				+ "BIND (STRLEN(xsd:string(\"x\")) AS ?length)");
+		assertEquals(3, clauses.size());
+		assertEquals(Var.alloc("posted"), ((ElementBind) clauses.get(0)).getVar());
+		assertEquals(Var.alloc("logged"), ((ElementBind) clauses.get(1)).getVar());
+		assertEquals(Var.alloc("unknown"), ((ElementBind) clauses.get(2)).getVar());
+	}
+
+	@Test
+	public void testVariablesOfSubQueriesAreUsed() {
+		final List<Element> clauses = eliminate("GENERATE { GENERATE { ex:s ex:p ?a . } WHERE { BIND (?b AS ?c) } . }\n"
+				+ "BIND (\"x\" AS ?a)\n"
+				+ "BIND (\"y\" AS ?b)\n"
+				+ "BIND (\"z\" AS ?d)");
+		assertEquals(2, clauses.size());
+	}
+
+	@Test
+	public void testVariablesOfTheWhereClauseAreUsed() {
+		final List<Element> clauses = eliminate("GENERATE { ex:s ex:p ex:o . }\n"
+				+ "BIND (\"x\" AS ?a)\n"
+				+ "BIND (\"y\" AS ?b)\n"
+				+ "BIND (\"z\" AS ?d)\n"
+				+ "WHERE { FILTER EXISTS { ?a ex:p ?o } { SELECT ?b WHERE { ?b ex:p ?o } } }");
+		assertEquals(2, clauses.size());
+	}
+
+	@Test
+	public void testVariablesOfEmbeddedQueriesAreUsed() {
+		final SPARQLExtQuery query = parse("GENERATE { ex:s ex:p ex:o . }\n"
+				+ "BIND (\"x\" AS ?a)\n"
+				+ "BIND (\"y\" AS ?d)");
+		final NodeValue embedded = NodeValue.makeNode("SELECT * WHERE { ?a <http://example.org/p> ?o }", null,
+				SPARQLExt.MEDIA_TYPE_URI);
+		final ElementGroup pattern = new ElementGroup();
+		pattern.addElementFilter(new ElementFilter(new E_NotEquals(embedded, NodeValue.makeString(""))));
+		query.setQueryPattern(pattern);
+		final List<Element> clauses = LiveVariables.eliminate(query).getBindingClauses();
+		assertEquals(1, clauses.size());
+		assertEquals(Var.alloc("a"), ((ElementBind) clauses.get(0)).getVar());
+	}
+
+	@Test
+	public void testUnusedOutputsAreSkipped() {
+		final SPARQLExtQuery query = parse("GENERATE { ex:s ex:p ?a . }\n"
+				+ "ITERATOR iter:regex(\"a1b\", \"([a-z])([0-9])([a-z])\", 1, 2, 3) AS ?a ?b ?c\n"
+				+ "BIND (?b AS ?d)");
+		final ElementIterator iterator = (ElementIterator) query.getBindingClauses().get(0);
+		final BitSet outputs = LiveVariables.of(query).getUsedOutputs(0, iterator.getVars());
+		final BitSet expected = new BitSet();
+		expected.set(0);
+		assertEquals(expected, outputs);
+	}
+
+	@Test
+	public void testAllOutputsAreUsedInTemplates() {
+		final SPARQLExtQuery query = parse("GENERATE { <http://example.org/{ ?c }> ex:p ?a . }\n"
+				+ "ITERATOR iter:regex(\"a1b\", \"([a-z])([0-9])([a-z])\", 1, 2, 3) AS ?a ?b ?c");
+		final ElementIterator iterator = (ElementIterator) query.getBindingClauses().get(0);
+		assertNull(LiveVariables.of(query).getUsedOutputs(0, iterator.getVars()));
+	}
+
+	@Test
+	public void testSameOutput() {
+		final String doc = LiveVariablesTest.class.getResource("/generate/errors/documentset/people.csv").toString();
+		final String query = "GENERATE { ?s ex:letter ?letter ; ex:number ?n ; ex:next ?next . }\n"
+				+ "SOURCE <" + doc + "> AS ?doc\n"
+				+ "ITERATOR iter:regex(\"a1b c2d e3f gXh\", \"([a-z])([0-9X])([a-z])\", 1, 2, 3) AS ?letter ?digit ?last\n"
+				+ "BIND (IRI(CONCAT(\"http://example.org/\", ?letter)) AS ?s)\n"
+				+ "BIND (xsd:integer(?digit) AS ?n)\n"
+				+ "BIND (?n + 1 AS ?next)\n"
+				+ "BIND (CONCAT(?last, ?letter) AS ?dead)\n"
+				+ "BIND (xsd:integer(?last) AS ?deadError)";
+		final Model optimized = exec(query, true);
+		final Model plain = exec(query, false);
+		assertEquals(10, optimized.size());
+		assertTrue("The optimizations change the output", optimized.isIsomorphicWith(plain));
+	}
+
+	private static SPARQLExtQuery parse(final String query) {
+		return (SPARQLExtQuery) QueryFactory.create(PROLOGUE + query, SPARQLExt.SYNTAX);
+	}
+
+	private static List<Element> eliminate(final String query) {
+		final SPARQLExtQuery eliminated = LiveVariables.eliminate(parse(query));
+		return eliminated.hasBindingClauses() ? eliminated.getBindingClauses() : new ArrayList<>();
+	}
+
+	private static Model exec(final String query, final boolean optimizing) {
+		PlanFactory.setOptimizing(optimizing);
+		final Context context = ContextUtils.build().build();
+		try {
+			return PlanFactory.create(parse(query)).execGenerate(context);
+		} finally {
+			ContextUtils.close(context);
+		}
+	}
+
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.nodevalue.NodeValueNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORParser;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
+import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
+
+/**
+ * Streaming decoder for CBOR documents, shared by
+ * {@link FUN_CBOR} and {@link ITER_CBOR}.
+ *
+ * <p>
+ * The binary payload is read token by token with a Jackson
+ * {@link CBORParser}, and is never converted to JSON text. Selection uses a
+ * forward-only subset of JSONPath: {@code $}, {@code .key},
+ * {@code ['key']}, {@code [n]}, {@code .*} and {@code [*]}. Parts of the
+ * document that do not match the path are skipped without being
+ * materialized. Other JSONPath expressions are evaluated on a Jackson tree
+ * decoded from the CBOR payload.
+ * </p>
+ *
+ * <p>
+ * Scalar values are bound as typed literals (string, integer, decimal,
+ * float, double, boolean, and {@code xsd:base64Binary} for byte strings;
+ * CBOR tags 0 and 1 are bound as {@code xsd:dateTime}). Maps and arrays are
+ * re-encoded as base64 CBOR literals, so they can be fed to
+ * {@code fun:CBOR} or {@code iter:CBOR} again.
+ * </p>
+ *
+ * <p>
+ * A payload is decoded as CBOR, unless its datatype or media type is JSON. For
+ * backward compatibility, a payload that cannot be decoded as CBOR, such as
+ * base64 encoded JSON text, is then parsed with the Jackson JSON parser, as
+ * long as no value was selected yet.
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class CBORDecoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CBORDecoder.class);
+
+    /**
+     * The CBOR media type URI.
+     */
+    public static final String DATATYPE_URI = "https://www.iana.org/assignments/media-types/application/cbor";
+
+    /**
+     * The JSON media type URI.
+     */
+    public static final String JSON_DATATYPE_URI = "https://www.iana.org/assignments/media-types/application/json";
+
+    private static final RDFDatatype DT = TypeMapper.getInstance().getSafeTypeByName(DATATYPE_URI);
+
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(CBOR_FACTORY);
+
+    private static final Configuration TREE_CONF = Configuration.builder()
+            .jsonProvider(new JacksonJsonNodeJsonProvider())
+            .mappingProvider(new JacksonMappingProvider())
+            .options(EnumSet.of(Option.ALWAYS_RETURN_LIST))
+            .build();
+
+    private static final int TAG_DATETIME_STRING = 0;
+
+    private static final int TAG_EPOCH_DATETIME = 1;
+
+    private final Step[] steps;
+
+    private final JsonPath treePath;
+
+    private final String path;
+
+    private CBORDecoder(final String path, final Step[] steps, final JsonPath treePath) {
+        this.path = path;
+        this.steps = steps;
+        this.treePath = treePath;
+    }
+
+    /**
+     * Compiles a JSONPath expression. Expressions in the forward-only subset
+     * are evaluated while streaming, others on a decoded tree.
+     *
+     * @param path the JSONPath expression
+     * @return the decoder
+     */
+    public static CBORDecoder compile(final String path) {
+        final Step[] steps = parseSteps(path);
+        if (steps != null) {
+            return new CBORDecoder(path, steps, null);
+        }
+        LOG.debug("JSONPath " + path + " is not forward-only, will decode a tree");
+        return new CBORDecoder(path, null, JsonPath.compile(path));
+    }
+
+    /**
+     * Opens a stream over the binary payload of a CBOR literal. The base64
+     * lexical form is decoded on the fly.
+     *
+     * @param cbor the literal
+     * @return the stream of bytes
+     */
+    public static InputStream open(final NodeValue cbor) {
+        if (!cbor.isLiteral()) {
+            throw new ExprEvalException("Expecting a CBOR literal, got " + cbor);
+        }
+        if (cbor.getDatatypeURI() != null
+                && !cbor.getDatatypeURI().equals(DATATYPE_URI)
+                && !cbor.getDatatypeURI().equals(JSON_DATATYPE_URI)
+                && !cbor.getDatatypeURI().equals(XSDDatatype.XSDstring.getURI())) {
+            LOG.debug("The datatype of the CBOR literal should be <" + DATATYPE_URI + "> or <"
+                    + XSDDatatype.XSDstring.getURI() + ">. Got <" + cbor.getDatatypeURI() + ">");
+        }
+        final byte[] lexical = cbor.asNode().getLiteralLexicalForm().getBytes(StandardCharsets.US_ASCII);
+        return Base64.getMimeDecoder().wrap(new ByteArrayInputStream(lexical));
+    }
+
+    /**
+     * Checks whether the datatype of a literal says that it is JSON text.
+     *
+     * @param value the literal
+     * @return true if the literal is JSON text
+     */
+    public static boolean isJson(final NodeValue value) {
+        return value.isLiteral() && JSON_DATATYPE_URI.equals(value.getDatatypeURI());
+    }
+
+    /**
+     * Checks whether a media type is a JSON media type.
+     *
+     * @param contentType the media type, may be null
+     * @return true for {@code application/json} and {@code +json} media types
+     */
+    public static boolean isJsonMediaType(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        return type.equals("application/json") || type.endsWith("+json");
+    }
+
+    /**
+     * Decodes the document and emits every selected value, until the
+     * consumer returns false.
+     *
+     * <p>
+     * The document is decoded as CBOR, unless {@code json} is true. If it
+     * cannot be decoded as CBOR before any value is selected, it is opened
+     * again and parsed as JSON text.
+     * </p>
+     *
+     * @param source opens the payload
+     * @param json true if the datatype or media type of the payload is JSON
+     * @param consumer receives every selected value, or null for CBOR
+     * {@code null}. Returns false to stop decoding.
+     */
+    public void select(final Source source, final boolean json, final Predicate<NodeValue> consumer) {
+        if (json) {
+            select(source, JSON_FACTORY, consumer);
+            return;
+        }
+        final boolean[] selected = new boolean[1];
+        try {
+            select(source, CBOR_FACTORY, (nodeValue) -> {
+                selected[0] = true;
+                return consumer.test(nodeValue);
+            });
+        } catch (ExprEvalException ex) {
+            if (selected[0]) {
+                throw ex;
+            }
+            LOG.debug("Could not decode the document as CBOR, parsing it as JSON text: " + ex.getMessage());
+            try {
+                select(source, JSON_FACTORY, consumer);
+            } catch (ExprEvalException ex2) {
+                ex.addSuppressed(ex2);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Returns the first value selected in the document.
+     *
+     * @param source opens the payload
+     * @param json true if the datatype or media type of the payload is JSON
+     * @return the first value.
+     * @throws ExprEvalException if nothing is selected.
+     */
+    public NodeValue first(final Source source, final boolean json) {
+        final List<NodeValue> result = new ArrayList<>(1);
+        select(source, json, (nodeValue) -> {
+            result.add(nodeValue);
+            return false;
+        });
+        if (result.isEmpty() || result.get(0) == null) {
+            throw new ExprEvalException("No value selected by " + path);
+        }
+        return result.get(0);
+    }
+
+    /**
+     * Decodes the document with one parser. A document that is followed by
+     * other data is rejected, unless the consumer stopped the decoding.
+     */
+    private void select(final Source source, final JsonFactory factory, final Predicate<NodeValue> consumer) {
+        final String format = factory == CBOR_FACTORY ? "CBOR" : "JSON";
+        try (InputStream in = source.open(); JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() == null) {
+                throw new ExprEvalException("Empty " + format + " document");
+            }
+            if (!selectRoot(parser, consumer)) {
+                return;
+            }
+            if (parser.nextToken() != null) {
+                throw new ExprEvalException("Unexpected data after the " + format + " document");
+            }
+        } catch (IOException ex) {
+            throw new ExprEvalException("Error while decoding " + format + " for " + path, ex);
+        } catch (ExprEvalException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw new ExprEvalException("Error while decoding " + format + " for " + path, ex);
+        }
+    }
+
+    /**
+     * @return false if the consumer asked to stop.
+     */
+    private boolean selectRoot(final JsonParser parser, final Predicate<NodeValue> consumer) throws IOException {
+        if (steps != null) {
+            return match(parser, 0, consumer);
+        }
+        final JsonNode tree = MAPPER.readTree(parser);
+        final JsonNode values = JsonPath.using(TREE_CONF).parse(tree).read(treePath);
+        for (JsonNode value : values) {
+            if (!consumer.test(nodeForTree(value))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walks the value at the current token. On return, the parser is
+     * positioned on the last token of that value.
+     *
+     * @return false if the consumer asked to stop.
+     */
+    private boolean match(final JsonParser parser, final int step, final Predicate<NodeValue> consumer)
+            throws IOException {
+        if (step == steps.length) {
+            return consumer.test(readValue(parser));
+        }
+        final Step s = steps[step];
+        final JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if (s.matches(name)) {
+                    if (!match(parser, step + 1, consumer)) {
+                        return false;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            int i = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (s.matches(i++)) {
+                    if (!match(parser, step + 1, consumer)) {
+                        return false;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return true;
+    }
+
+    private NodeValue readValue(final JsonParser parser) throws IOException {
+        final int tag = parser instanceof CBORParser ? ((CBORParser) parser).getCurrentTag() : -1;
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+            case START_ARRAY:
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+                    generator.copyCurrentStructure(parser);
+                }
+                return makeCBOR(out.toByteArray());
+            case VALUE_STRING:
+                if (tag == TAG_DATETIME_STRING) {
+                    return NodeValue.makeNode(parser.getText(), XSDDatatype.XSDdateTime);
+                }
+                return NodeValue.makeString(parser.getText());
+            case VALUE_NUMBER_INT:
+                if (tag == TAG_EPOCH_DATETIME) {
+                    return makeDateTime(parser.getLongValue() * 1000);
+                }
+                switch (parser.getNumberType()) {
+                    case BIG_INTEGER:
+                        return NodeValue.makeInteger(parser.getBigIntegerValue());
+                    default:
+                        return NodeValue.makeInteger(parser.getLongValue());
+                }
+            case VALUE_NUMBER_FLOAT:
+                if (tag == TAG_EPOCH_DATETIME) {
+                    return makeDateTime((long) (parser.getDoubleValue() * 1000));
+                }
+                switch (parser.getNumberType()) {
+                    case FLOAT:
+                        return NodeValue.makeFloat(parser.getFloatValue());
+                    case BIG_DECIMAL:
+                        return NodeValue.makeDecimal(parser.getDecimalValue());
+                    default:
+                        return NodeValue.makeDouble(parser.getDoubleValue());
+                }
+            case VALUE_TRUE:
+                return NodeValue.TRUE;
+            case VALUE_FALSE:
+                return NodeValue.FALSE;
+            case VALUE_EMBEDDED_OBJECT:
+                final String base64 = Base64.getEncoder().encodeToString(parser.getBinaryValue());
+                return NodeValue.makeNode(base64, XSDDatatype.XSDbase64Binary);
+            default:
+                return null;
+        }
+    }
+
+    private NodeValue nodeForTree(final JsonNode value) throws IOException {
+        if (value == null || value.isNull() || value.isMissingNode()) {
+            return null;
+        } else if (value.isContainerNode()) {
+            return makeCBOR(MAPPER.writeValueAsBytes(value));
+        } else if (value.isTextual()) {
+            return NodeValue.makeString(value.textValue());
+        } else if (value.isBoolean()) {
+            return NodeValue.makeBoolean(value.booleanValue());
+        } else if (value.isBigInteger()) {
+            return NodeValue.makeInteger(value.bigIntegerValue());
+        } else if (value.isIntegralNumber()) {
+            return NodeValue.makeInteger(value.longValue());
+        } else if (value.isFloat()) {
+            return NodeValue.makeFloat(value.floatValue());
+        } else if (value.isBigDecimal()) {
+            return NodeValue.makeDecimal(value.decimalValue());
+        } else if (value.isNumber()) {
+            return NodeValue.makeDouble(value.doubleValue());
+        } else if (value.isBinary()) {
+            final String base64 = Base64.getEncoder().encodeToString(value.binaryValue());
+            return NodeValue.makeNode(base64, XSDDatatype.XSDbase64Binary);
+        }
+        return NodeValue.makeString(value.asText());
+    }
+
+    private static NodeValue makeCBOR(final byte[] bytes) {
+        final String base64 = Base64.getEncoder().encodeToString(bytes);
+        return new NodeValueNode(NodeFactory.createLiteral(base64, DT));
+    }
+
+    private static NodeValue makeDateTime(final long epochMillis) {
+        return NodeValue.makeNode(Instant.ofEpochMilli(epochMillis).toString(), XSDDatatype.XSDdateTime);
+    }
+
+    /**
+     * Parses a forward-only JSONPath expression.
+     *
+     * @return the steps, or null if the expression is not forward-only.
+     */
+    private static Step[] parseSteps(final String path) {
+        final String p = path.trim();
+        if (!p.startsWith("$")) {
+            return null;
+        }
+        final List<Step> steps = new ArrayList<>();
+        int i = 1;
+        while (i < p.length()) {
+            final char c = p.charAt(i);
+            if (c == '.') {
+                if (i + 1 < p.length() && p.charAt(i + 1) == '.') {
+                    return null;
+                }
+                int end = i + 1;
+                while (end < p.length() && p.charAt(end) != '.' && p.charAt(end) != '[') {
+                    end++;
+                }
+                final String name = p.substring(i + 1, end);
+                if (name.isEmpty()) {
+                    return null;
+                }
+                steps.add(name.equals("*") ? Step.WILDCARD : Step.field(name));
+                i = end;
+            } else if (c == '[') {
+                final int end = p.indexOf(']', i);
+                if (end < 0) {
+                    return null;
+                }
+                final String inner = p.substring(i + 1, end).trim();
+                if (inner.equals("*")) {
+                    steps.add(Step.WILDCARD);
+                } else if (inner.length() >= 2
+                        && (inner.charAt(0) == '\'' || inner.charAt(0) == '"')
+                        && inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                    final String name = inner.substring(1, inner.length() - 1);
+                    if (name.indexOf('\'') >= 0 || name.indexOf('"') >= 0) {
+                        return null;
+                    }
+                    steps.add(Step.field(name));
+                } else {
+                    try {
+                        final int index = Integer.parseInt(inner);
+                        if (index < 0) {
+                            return null;
+                        }
+                        steps.add(Step.index(index));
+                    } catch (NumberFormatException ex) {
+                        return null;
+                    }
+                }
+                i = end + 1;
+            } else {
+                return null;
+            }
+        }
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    /**
+     * Opens the payload of a document. It may be called a second time, if the
+     * document cannot be decoded as CBOR.
+     */
+    @FunctionalInterface
+    public interface Source {
+
+        /**
+         * @return a new stream over the payload
+         * @throws IOException if the payload cannot be opened
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * One step of a forward-only path.
+     */
+    private static final class Step {
+
+        static final Step WILDCARD = new Step(null, -1);
+
+        final String name;
+
+        final int index;
+
+        private Step(final String name, final int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        static Step field(final String name) {
+            return new Step(name, -1);
+        }
+
+        static Step index(final int index) {
+            return new Step(null, index);
+        }
+
+        boolean matches(final String field) {
+            return this == WILDCARD || field.equals(name);
+        }
+
+        boolean matches(final int i) {
+            return this == WILDCARD || (name == null && i == index);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CBORDecoder " + path;
+    }
+}
@@ -15,111 +15,73 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.json;
 
-import com.jayway.jsonpath.JsonPath;
-import java.math.BigDecimal;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.NodeValue;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueBoolean;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueDecimal;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueDouble;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueFloat;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueInteger;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueString;
 import org.apache.jena.sparql.function.FunctionBase2;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
-import java.util.Base64;
-import org.apache.jena.graph.Node;
-import org.apache.jena.graph.NodeFactory;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueNode;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 /**
  * Binding function
  * <a href="http://w3id.org/sparql-generate/fn/CBOR">fun:CBOR</a> takes as input
- * a CBOR document, decodes it, and return a sub-JSON document according to a
- * JSONPath expression.
+ * a CBOR document, decodes it in a streaming fashion, and returns the first
+ * value selected by a JSONPath expression. Decoding stops as soon as the value
+ * is found. See {@link CBORDecoder} for the supported JSONPath subset and how
+ * values are bound.
  *
  *
  * <ul>
  * <li>Param 1 (cbor) is a base64 encoding of the CBOR document in a RDF Literal
  * with datatype URI
  * {@code <https://www.iana.org/assignments/media-types/application/cbor>} or
- * {@code xsd:string}</li>
+ * {@code xsd:string}, or of JSON text with datatype URI
+ * {@code <https://www.iana.org/assignments/media-types/application/json>}</li>
  * <li>Param 2 is the JSONPath query. See https://github.com/json-path/JsonPath
  * for the syntax specification;</li>
+ * <li>Result is a typed literal, or a base64 CBOR literal for maps and
+ * arrays.</li>
  * </ul>
  *
  * @author Noorani Bakerally <noorani.bakerally at emse.fr>
  */
 public final class FUN_CBOR extends FunctionBase2 {
-    //TODO write multiple unit tests for this class.
 
     private static final Logger LOG = LoggerFactory.getLogger(FUN_CBOR.class);
 
     public static final String URI = SPARQLExt.FUN + "CBOR";
 
-    private static final String datatypeUri = "https://www.iana.org/assignments/media-types/application/cbor";
+    /**
+     * Compiled paths, as the same few paths are evaluated for every binding.
+     */
+    private static final Cache<String, CBORDecoder> DECODERS = CacheBuilder.newBuilder().maximumSize(1000).build();
 
     @Override
     public NodeValue exec(NodeValue cbor, NodeValue jsonpath) {
         if(cbor == null) {
-        	String msg = "No JSON provided";
+        	String msg = "No CBOR provided";
             LOG.debug(msg);
         	throw new ExprEvalException(msg);
         }
-        if(jsonpath == null) {
+        if(jsonpath == null || !jsonpath.isString()) {
         	String msg = "No JSONPath provided";
             LOG.debug(msg);
         	throw new ExprEvalException(msg);
         }
-        if (cbor.getDatatypeURI() != null
-                && !cbor.getDatatypeURI().equals(datatypeUri)
-                && !cbor.getDatatypeURI().equals("http://www.w3.org/2001/XMLSchema#string")) {
-            LOG.debug("The URI of NodeValue1 MUST be <" + datatypeUri + ">"
-                    + "or <http://www.w3.org/2001/XMLSchema#string>."
-            );
-        }
-
-        String json = new String(Base64.getDecoder().decode(cbor.asNode().getLiteralLexicalForm().getBytes()));
+        final String path = jsonpath.getString();
         try {
-            Object value = JsonPath.parse(json)
-                    .limit(1).read(jsonpath.getString());
-
-            if (value instanceof String) {
-                return new NodeValueString((String) value);
-            } else if (value instanceof Float) {
-                return new NodeValueFloat((Float) value);
-            } else if (value instanceof Boolean) {
-                return new NodeValueBoolean((Boolean) value);
-            } else if (value instanceof Integer) {
-                return new NodeValueInteger((Integer) value);
-            } else if (value instanceof Double) {
-                return new NodeValueDouble((Double) value);
-            } else if (value instanceof BigDecimal) {
-                return new NodeValueDecimal((BigDecimal) value);
-            } else {
-                String strValue = String.valueOf(value);
-
-                JsonParser parser = new JsonParser();
-                JsonElement valElement = parser.parse(strValue);
-                JsonArray list = valElement.getAsJsonArray();
-
-                if (list.size() == 1) {
-                    String jsonstring = list.get(0).getAsString();
-                    Node node = NodeFactory.createLiteral(jsonstring);
-                    NodeValue nodeValue = new NodeValueNode(node);
-                    return nodeValue;
-
-                } else {
-                    return new NodeValueString(String.valueOf(value));
-                }
+            CBORDecoder decoder = DECODERS.getIfPresent(path);
+            if (decoder == null) {
+                decoder = CBORDecoder.compile(path);
+                DECODERS.put(path, decoder);
             }
-        } catch (Exception ex) {
+            return decoder.first(() -> CBORDecoder.open(cbor), CBORDecoder.isJson(cbor));
+        } catch (RuntimeException ex) {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("No evaluation of " + jsonpath + "  on " + LogUtils.compress(cbor.asNode()), ex);
             }
@@ -15,131 +15,188 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.json;
 
-import com.google.gson.Gson;
-import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.Option;
-import com.jayway.jsonpath.spi.json.JacksonJsonProvider;
-import com.jayway.jsonpath.spi.json.JsonProvider;
-import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
-import com.jayway.jsonpath.spi.mapper.MappingProvider;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
-import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionBase2;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-import org.apache.jena.datatypes.RDFDatatype;
-import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.atlas.web.TypedInputStream;
 import org.apache.jena.graph.Node;
-import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.riot.SysRIOT;
 import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueNode;
+import org.apache.jena.sparql.expr.nodevalue.NodeValueInteger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 /**
  * Iterator function
  * <a href="http://w3id.org/sparql-generate/iter/CBOR">iter:CBOR</a>
- * takes as input a CBOR document, decodes it, and extracts a list of sub-JSON
- * documents according to a JSONPath expression.
+ * takes as input a CBOR document, decodes it in a streaming fashion, and
+ * extracts a list of values according to a JSONPath expression. See
+ * {@link CBORDecoder} for the supported JSONPath subset and how values are
+ * bound.
  *
  * <ul>
  * <li>Param 1: (cbor) is a base64 encoding of the CBOR document in a RDF
  * Literal with datatype URI
  * {@code <https://www.iana.org/assignments/media-types/application/cbor>} or
- * {@code xsd:string}</li>
+ * {@code xsd:string}, or the URI of a binary CBOR document;</li>
  * <li>Param 2: (jsonpath) is the JSONPath expression in a RDF Literal with
- * datatype {@code xsd:string}</li>
+ * datatype {@code xsd:string};</li>
+ * <li>Param 3: (integer: batch) Optional number of rows per batch (by default,
+ * all the CBOR document is processed as one batch).</li>
  * </ul>
  *
+ * The following variables may be bound:
+ *
+ * <ul>
+ * <li>Output 1: the selected value, as a typed literal, or as a base64 CBOR
+ * literal for maps and arrays;</li>
+ * <li>Output 2: (integer) the position of the result in the list.</li>
+ * </ul>
+ *
+ * <p>
+ * The selected values are bound as typed literals, and maps and arrays as
+ * base64 CBOR literals. Earlier versions bound every value as its JSON
+ * serialization, in a literal with the CBOR datatype. Queries that
+ * parse these values as JSON should now use {@code fun:CBOR} or
+ * {@code iter:CBOR} on them instead.
+ * </p>
+ *
  * @author Noorani Bakerally <noorani.bakerally at emse.fr>
  */
-public class ITER_CBOR extends IteratorFunctionBase2 {
-
-    static {
-        Configuration.setDefaults(new Configuration.Defaults() {
-
-            private final JsonProvider jsonProvider = new JacksonJsonProvider();
-            private final MappingProvider mappingProvider
-                    = new JacksonMappingProvider();
-
-            @Override
-            public JsonProvider jsonProvider() {
-                return jsonProvider;
-            }
-
-            @Override
-            public MappingProvider mappingProvider() {
-                return mappingProvider;
-            }
-
-            @Override
-            public Set<Option> options() {
-                return EnumSet.noneOf(Option.class);
-            }
-        });
-    }
+public class ITER_CBOR extends IteratorStreamFunctionBase {
 
     private static final Logger LOG = LoggerFactory.getLogger(ITER_CBOR.class);
 
     public static final String URI = SPARQLExt.ITER + "CBOR";
 
-    private static final String datatypeUri = "https://www.iana.org/assignments/media-types/application/cbor";
+    @Override
+    public void checkBuild(ExprList args) {
+        if (args.size() < 2 || args.size() > 3) {
+            throw new QueryBuildException("Function '"
+                    + this.getClass().getName() + "' takes two or three arguments");
+        }
+    }
 
     @Override
-    public List<List<NodeValue>> exec(NodeValue cbor, NodeValue jsonpath) {
-        if(cbor == null) {
-        	String msg = "No JSON provided";
+    public void exec(final List<NodeValue> args, final Consumer<List<List<NodeValue>>> nodeValuesStream) {
+        Objects.nonNull(args);
+        if (args.size() < 2) {
+            LOG.debug("Expecting at least two arguments.");
+            throw new ExprEvalException("Expecting at least two arguments.");
+        }
+        final NodeValue cbor = args.get(0);
+        final NodeValue jsonpath = args.get(1);
+        if (cbor == null) {
+            String msg = "No CBOR provided";
             LOG.debug(msg);
-        	throw new ExprEvalException(msg);
+            throw new ExprEvalException(msg);
         }
-        if(jsonpath == null) {
-        	String msg = "No JSONPath provided";
+        if (jsonpath == null || !jsonpath.isString()) {
+            String msg = "No JSONPath provided";
             LOG.debug(msg);
-        	throw new ExprEvalException(msg);
+            throw new ExprEvalException(msg);
+        }
+        final int rowsInABatch = getRowsInABatch(args);
+        final CBORDecoder decoder = CBORDecoder.compile(jsonpath.getString());
+        final Batch batch = new Batch(nodeValuesStream, rowsInABatch);
+        try {
+            select(decoder, cbor, batch::add);
+            batch.send();
+        } catch (RuntimeException ex) {
+            if (LOG.isDebugEnabled()) {
+                Node compressed = LogUtils.compress(cbor.asNode());
+                LOG.debug("No evaluation of " + compressed + ", " + jsonpath, ex);
+            }
+            throw new ExprEvalException("No evaluation of " + jsonpath, ex);
         }
-        if (cbor.getDatatypeURI() != null
-                && !cbor.getDatatypeURI().equals(datatypeUri)
-                && !cbor.getDatatypeURI().equals("http://www.w3.org/2001/XMLSchema#string")) {
-            LOG.debug("The URI of NodeValue1 MUST be"
-                    + " <" + datatypeUri + "> or"
-                    + " <http://www.w3.org/2001/XMLSchema#string>. Got <"
-                    + cbor.getDatatypeURI() + ">. Returning null.");
+    }
+
+    /**
+     * Decodes a CBOR literal, or a CBOR document looked up by its URI. The
+     * document is parsed as JSON text if its media type is JSON.
+     */
+    private void select(final CBORDecoder decoder, final NodeValue cbor, final Predicate<NodeValue> consumer) {
+        if (!cbor.isIRI()) {
+            decoder.select(() -> CBORDecoder.open(cbor), CBORDecoder.isJson(cbor), consumer);
+            return;
         }
+        final String uri = cbor.asNode().getURI();
+        final TypedInputStream[] opened = { open(uri) };
+        final boolean json = CBORDecoder.isJsonMediaType(opened[0].getContentType());
+        decoder.select(() -> {
+            final TypedInputStream tin = opened[0];
+            opened[0] = null;
+            return tin != null ? tin : open(uri);
+        }, json, consumer);
+    }
 
-        Configuration conf = Configuration.builder()
-                .options(Option.ALWAYS_RETURN_LIST).build();
+    private TypedInputStream open(final String uri) throws ExprEvalException {
+        final LookUpRequest req = new LookUpRequest(uri, "application/cbor");
+        final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) getContext().get(SysRIOT.sysStreamManager);
+        Objects.requireNonNull(sm);
+        final TypedInputStream tin = sm.open(req);
+        if (tin == null) {
+            String message = String.format("Could not look up CBOR document %s", uri);
+            LOG.warn(message);
+            throw new ExprEvalException(message);
+        }
+        return tin;
+    }
 
-        String json = new String(Base64.getDecoder().decode(cbor.asNode().getLiteralLexicalForm().getBytes()));
+    private int getRowsInABatch(final List<NodeValue> args) {
+        if (args.size() > 2 && args.get(2) != null && args.get(2).isInteger()) {
+            final int batch = args.get(2).getInteger().intValue();
+            if (batch > 0) {
+                LOG.trace("  With batches of " + batch + " results.");
+                return batch;
+            }
+        }
+        LOG.trace("  As one batch");
+        return 0;
+    }
 
-        Gson gson = new Gson();
-        RDFDatatype dt = TypeMapper.getInstance().getSafeTypeByName(datatypeUri);
-        
-        try {
-            List<Object> values = JsonPath
-                    .using(conf)
-                    .parse(json)
-                    .read(jsonpath.getString());
-
-            final List<List<NodeValue>> nodeValues = new ArrayList<>();
-
-            Node node;
-            NodeValue nodeValue;
-            for (Object value : values) {
-                String jsonstring = gson.toJson(value);
-                node = NodeFactory.createLiteral(jsonstring, dt);
-                nodeValue = new NodeValueNode(node);
-                nodeValues.add(Collections.singletonList(nodeValue));
+    private static class Batch {
+
+        private final Consumer<List<List<NodeValue>>> nodeValuesStream;
+        private final int rowsInABatch;
+        private List<List<NodeValue>> listNodeValues = new ArrayList<>();
+        private int total = 0;
+
+        Batch(final Consumer<List<List<NodeValue>>> nodeValuesStream, final int rowsInABatch) {
+            this.nodeValuesStream = nodeValuesStream;
+            this.rowsInABatch = rowsInABatch;
+        }
+
+        boolean add(final NodeValue value) {
+            final List<NodeValue> nodeValues = new ArrayList<>(2);
+            nodeValues.add(value);
+            nodeValues.add(new NodeValueInteger(total++));
+            listNodeValues.add(nodeValues);
+            if (rowsInABatch > 0 && listNodeValues.size() >= rowsInABatch) {
+                LOG.trace("New batch of " + listNodeValues.size() + " rows, " + total + " total");
+                send();
             }
-            return nodeValues;
-        } catch (Exception ex) {
-            if(LOG.isDebugEnabled()) {
-                Node compressed = LogUtils.compress(cbor.asNode());
-                LOG.debug("No evaluation of " + compressed + ", " + jsonpath, ex);
+            return true;
+        }
+
+        void send() {
+            if (listNodeValues.isEmpty() && total > 0) {
+                return;
             }
-            throw new ExprEvalException("No evaluation of " + jsonpath, ex);
+            nodeValuesStream.accept(listNodeValues);
+            listNodeValues = new ArrayList<>();
         }
     }
 }
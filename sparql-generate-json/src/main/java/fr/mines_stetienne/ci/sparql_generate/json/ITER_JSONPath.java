@@ -16,6 +16,7 @@
 package fr.mines_stetienne.ci.sparql_generate.json;
 
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorProjectionFunction;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.InvalidPathException;
@@ -81,7 +82,7 @@ import org.slf4j.Logger;
  *
  * @author Maxime Lefrançois
  */
-public class ITER_JSONPath extends IteratorFunctionBase {
+public class ITER_JSONPath extends IteratorFunctionBase implements IteratorProjectionFunction {
 
     private static final Logger LOG = LoggerFactory.getLogger(ITER_JSONPath.class);
 
@@ -95,6 +96,8 @@ public class ITER_JSONPath extends IteratorFunctionBase {
 
     private final FUN_JSONPath function = new FUN_JSONPath();
 
+    private BitSet usedOutputs = null;
+
 
     private final static Configuration conf = Configuration.builder()
             .options(Option.ALWAYS_RETURN_LIST).build();
@@ -177,12 +180,18 @@ public class ITER_JSONPath extends IteratorFunctionBase {
                     .read(jsonquery.getString());
             int size = values.size();
             List<List<NodeValue>> listNodeValues = new ArrayList<>(size);
+            final boolean subqueriesUsed = isUsed(1, subqueries.length);
             for (int i = 0; i < size; i++) {
                 Object value = values.get(i);
                 List<NodeValue> nodeValues = new ArrayList<>(args.size() + 1);
-                nodeValues.add(function.nodeForObject(value));
-                DocumentContext context = JsonPath.parse(value);
-                for (JsonPath subquery : subqueries) {
+                nodeValues.add(isUsed(0, 1) ? function.nodeForObject(value) : null);
+                DocumentContext context = subqueriesUsed ? JsonPath.parse(value) : null;
+                for (int j = 0; j < subqueries.length; j++) {
+                    final JsonPath subquery = subqueries[j];
+                    if (!isUsed(j + 1, 1)) {
+                        nodeValues.add(null);
+                        continue;
+                    }
                 	if(subquery == null) {
                         nodeValues.add(null);
                 	}
@@ -194,7 +203,7 @@ public class ITER_JSONPath extends IteratorFunctionBase {
                         nodeValues.add(null);
                     }
                 }
-                nodeValues.add(new NodeValueInteger(i));
+                nodeValues.add(isUsed(subqueries.length + 1, 1) ? new NodeValueInteger(i) : null);
                 nodeValues.add((i == size - 1) ? FALSE : TRUE);
                 listNodeValues.add(nodeValues);
             }
@@ -239,4 +248,20 @@ public class ITER_JSONPath extends IteratorFunctionBase {
     public void checkBuild(ExprList args) {
         Objects.nonNull(args);
     }
+
+    @Override
+    public void setUsedOutputs(BitSet outputs) {
+        this.usedOutputs = outputs;
+    }
+
+    /**
+     * Checks whether one of the outputs in a range is used.
+     */
+    private boolean isUsed(int from, int length) {
+        if (usedOutputs == null) {
+            return true;
+        }
+        final int next = usedOutputs.nextSetBit(from);
+        return next >= 0 && next < from + length;
+    }
 }
@@ -18,6 +18,7 @@ package fr.mines_stetienne.ci.sparql_generate.mqtt;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.iterator.MicroBatcher;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -30,7 +31,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -72,6 +72,10 @@ import org.apache.jena.sparql.util.Context;
  * The MQTT message (byte[]) is assumed to be a UTF-8 string. This behaviour may
  * may changed using {@link #setParser} static method.
  * </p>
+ * <p>
+ * Messages may be emitted by windows of several messages, see
+ * {@link ContextUtils.Builder#setStreamBatching(int, long)}.
+ * </p>
  *
  * @author Maxime Lefrançois
  * <maxime.lefrancois at emse.fr>
@@ -148,6 +152,7 @@ public class ITER_MQTTSubscribe extends IteratorStreamFunctionBase {
             }
         }
         final Executor executor = ContextUtils.getExecutor(getContext());
+        final MicroBatcher batcher = createMicroBatcher(listListNodeValue);
         try {
             IMqttClient mqttClient = new MqttClient(url_s, MqttClient.generateClientId());
 
@@ -159,22 +164,20 @@ public class ITER_MQTTSubscribe extends IteratorStreamFunctionBase {
                     executor.execute(() -> {
                         LOG.debug("MQTT Connection is lost", cause);
                     });
+                    batcher.close();
                     semaphore.complete(null);
                 }
 
                 @Override
                 public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    LOG.debug("MQTT message arrived");
-                    executor.execute(() -> {
-                        LOG.debug("MQTT message arrived " + topic);
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("MQTT message arrived " + topic + " -> " + LogUtils.compress(PARSER.apply(message.getPayload()).asNode()));
-                        }
-                        List<NodeValue> nv = new ArrayList<>();
-                        nv.add(new NodeValueString(topic));
-                        nv.add(PARSER.apply(message.getPayload()));
-                        listListNodeValue.accept(Collections.singletonList(nv));
-                    });
+                    LOG.debug("MQTT message arrived " + topic);
+                    List<NodeValue> nv = new ArrayList<>();
+                    nv.add(new NodeValueString(topic));
+                    nv.add(PARSER.apply(message.getPayload()));
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("MQTT message arrived " + topic + " -> " + LogUtils.compress(nv.get(1).asNode()));
+                    }
+                    batcher.add(nv);
                 }
 
                 @Override
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2020 École des Mines de Saint-Étienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.api;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of workers shared by all the sessions of the server.
+ *
+ * <p>
+ * Each session has its own queue of jobs, and the workers serve the sessions
+ * that have pending jobs in a round-robin fashion, so that a session that
+ * submits many jobs does not delay the others. Jobs are rejected when the
+ * total number of queued jobs, or the number of jobs queued by the session,
+ * exceeds a limit.
+ * </p>
+ *
+ * <p>
+ * The following environment variables configure the scheduler:
+ * </p>
+ * <ul>
+ * <li>{@code SPARQL_GENERATE_WORKERS}: the number of workers (default is the
+ * number of processors);</li>
+ * <li>{@code SPARQL_GENERATE_MAX_QUEUED}: the maximal number of queued jobs
+ * (default is 100);</li>
+ * <li>{@code SPARQL_GENERATE_MAX_QUEUED_PER_SESSION}: the maximal number of
+ * queued jobs per session (default is 4).</li>
+ * </ul>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class JobScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobScheduler.class);
+
+	private static final JobScheduler INSTANCE = new JobScheduler(
+			getEnv("SPARQL_GENERATE_WORKERS", Runtime.getRuntime().availableProcessors()),
+			getEnv("SPARQL_GENERATE_MAX_QUEUED", 100),
+			getEnv("SPARQL_GENERATE_MAX_QUEUED_PER_SESSION", 4));
+
+	private final int maxQueued;
+
+	private final int maxQueuedPerSession;
+
+	private final int workers;
+
+	private final LinkedHashMap<String, Deque<Job>> queues = new LinkedHashMap<>();
+
+	private final Map<String, Set<Job>> running = new HashMap<>();
+
+	private int queued = 0;
+
+	private int active = 0;
+
+	private long submitted = 0;
+
+	private long rejected = 0;
+
+	private long completed = 0;
+
+	private long started = 0;
+
+	private long totalWaitNanos = 0;
+
+	private long maxWaitNanos = 0;
+
+	private JobScheduler(int workers, int maxQueued, int maxQueuedPerSession) {
+		this.workers = Math.max(1, workers);
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerSession = maxQueuedPerSession;
+		for (int i = 0; i < this.workers; i++) {
+			Thread thread = new Thread(this::work, "sparql-generate-worker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		LOG.info("Started " + this.workers + " workers, with at most " + maxQueued + " queued jobs");
+	}
+
+	public static JobScheduler get() {
+		return INSTANCE;
+	}
+
+	static int getEnv(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			LOG.warn(String.format("Could not parse the %s environment variable", name));
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Queues a job for a session.
+	 *
+	 * @param sessionId the identifier of the session
+	 * @param task the job
+	 * @return the job
+	 * @throws RejectedExecutionException if too many jobs are queued
+	 */
+	public synchronized Job submit(String sessionId, Runnable task) {
+		Deque<Job> queue = queues.get(sessionId);
+		if (queued >= maxQueued || queue != null && queue.size() >= maxQueuedPerSession) {
+			rejected++;
+			LOG.warn("Rejected job for session " + sessionId + ", " + queued + " jobs are queued");
+			throw new RejectedExecutionException("The server is busy, " + queued + " jobs are queued. Please retry later.");
+		}
+		Job job = new Job(sessionId, task);
+		if (queue == null) {
+			queue = new ArrayDeque<>();
+			queues.put(sessionId, queue);
+		}
+		queue.addLast(job);
+		queued++;
+		submitted++;
+		notify();
+		return job;
+	}
+
+	/**
+	 * Cancels the queued and running jobs of a session.
+	 *
+	 * @param sessionId the identifier of the session
+	 */
+	public synchronized void cancel(String sessionId) {
+		Deque<Job> queue = queues.remove(sessionId);
+		if (queue != null) {
+			queued -= queue.size();
+			queue.forEach((job) -> job.cancel(false));
+		}
+		Set<Job> jobs = running.get(sessionId);
+		if (jobs != null) {
+			jobs.forEach((job) -> job.cancel(true));
+		}
+	}
+
+	private synchronized Job take() throws InterruptedException {
+		while (queued == 0) {
+			wait();
+		}
+		Iterator<Map.Entry<String, Deque<Job>>> it = queues.entrySet().iterator();
+		Map.Entry<String, Deque<Job>> entry = it.next();
+		it.remove();
+		Job job = entry.getValue().pollFirst();
+		if (!entry.getValue().isEmpty()) {
+			// the session goes to the end of the round
+			queues.put(entry.getKey(), entry.getValue());
+		}
+		queued--;
+		active++;
+		started++;
+		running.computeIfAbsent(job.sessionId, (k) -> new HashSet<>()).add(job);
+		long wait = System.nanoTime() - job.submittedAt;
+		totalWaitNanos += wait;
+		maxWaitNanos = Math.max(maxWaitNanos, wait);
+		return job;
+	}
+
+	private synchronized void done(Job job) {
+		active--;
+		completed++;
+		Set<Job> jobs = running.get(job.sessionId);
+		if (jobs != null) {
+			jobs.remove(job);
+			if (jobs.isEmpty()) {
+				running.remove(job.sessionId);
+			}
+		}
+		// clear the interrupted status set by a cancellation
+		Thread.interrupted();
+	}
+
+	private void work() {
+		while (true) {
+			Job job;
+			try {
+				job = take();
+			} catch (InterruptedException ex) {
+				LOG.debug("Worker interrupted");
+				return;
+			}
+			try {
+				job.started.countDown();
+				job.run();
+			} catch (RuntimeException ex) {
+				LOG.warn("Exception in job of session " + job.sessionId, ex);
+			} finally {
+				done(job);
+			}
+		}
+	}
+
+	/**
+	 * @return the metrics of the queue
+	 */
+	public synchronized Metrics getMetrics() {
+		Metrics metrics = new Metrics();
+		metrics.workers = workers;
+		metrics.maxQueued = maxQueued;
+		metrics.queued = queued;
+		metrics.active = active;
+		metrics.sessions = queues.size();
+		metrics.submitted = submitted;
+		metrics.rejected = rejected;
+		metrics.completed = completed;
+		metrics.averageWaitMillis = started > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / started) : 0;
+		metrics.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+		return metrics;
+	}
+
+	/**
+	 * A job of a session.
+	 */
+	public static final class Job extends FutureTask<Void> {
+
+		private final String sessionId;
+
+		private final long submittedAt = System.nanoTime();
+
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private Job(String sessionId, Runnable task) {
+			super(task, null);
+			this.sessionId = sessionId;
+		}
+
+		/**
+		 * Waits until a worker starts the job, or the job is cancelled.
+		 *
+		 * @throws InterruptedException if the current thread is interrupted
+		 */
+		public void awaitStart() throws InterruptedException {
+			while (!started.await(100, TimeUnit.MILLISECONDS)) {
+				if (isCancelled()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of the metrics of the queue.
+	 */
+	public static final class Metrics {
+		public int workers;
+		public int maxQueued;
+		public int queued;
+		public int active;
+		public int sessions;
+		public long submitted;
+		public long rejected;
+		public long completed;
+		public long averageWaitMillis;
+		public long maxWaitMillis;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 École des Mines de Saint-Étienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.api;
+
+import java.io.StringReader;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+
+/**
+ * Caches the parsed and normalized queries, keyed by the text of the query,
+ * and the parsed graphs, keyed by their Turtle serialization. Queries and
+ * graphs are shared by the requests of all the sessions. Plans are not
+ * shared, as iterator functions keep the environment of their execution:
+ * every job makes its own plan from the cached normalized query, see
+ * {@link CompiledQuery#newPlan()}. The cached graphs are read-only.
+ *
+ * <p>
+ * The number of cached queries is set by environment variable
+ * {@code SPARQL_GENERATE_PLAN_CACHE_SIZE} (default is 256), and the total size
+ * of the cached graphs, in characters, by
+ * {@code SPARQL_GENERATE_GRAPH_CACHE_SIZE} (default is 64M).
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class QueryCache {
+
+	private static final Cache<String, CompiledQuery> QUERIES = CacheBuilder.newBuilder()
+			.maximumSize(JobScheduler.getEnv("SPARQL_GENERATE_PLAN_CACHE_SIZE", 256))
+			.recordStats().build();
+
+	private static final Cache<String, Model> GRAPHS = CacheBuilder.newBuilder()
+			.maximumWeight(JobScheduler.getEnv("SPARQL_GENERATE_GRAPH_CACHE_SIZE", 64 * 1024 * 1024))
+			.<String, Model>weigher((key, model) -> key.length())
+			.recordStats().build();
+
+	private QueryCache() {
+	}
+
+	/**
+	 * Gets the parsed query and its normalized form.
+	 *
+	 * @param query the text of the query
+	 * @return the parsed query and its normalized form
+	 * @throws Exception if the query cannot be parsed or normalized
+	 */
+	public static CompiledQuery getQuery(String query) throws Exception {
+		try {
+			return QUERIES.get(query, () -> {
+				SPARQLExtQuery q = (SPARQLExtQuery) QueryFactory.create(query, SPARQLExt.SYNTAX);
+				return new CompiledQuery(q, PlanFactory.create(q).getQuery());
+			});
+		} catch (ExecutionException | UncheckedExecutionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		}
+	}
+
+	/**
+	 * Gets the read-only graph parsed from a Turtle document.
+	 *
+	 * @param turtle the Turtle document
+	 * @param base the base IRI
+	 * @return the read-only graph
+	 * @throws Exception if the document cannot be parsed
+	 */
+	public static Model getGraph(String turtle, String base) throws Exception {
+		try {
+			return GRAPHS.get(base + "\n" + turtle, () -> {
+				Model model = ModelFactory.createDefaultModel();
+				RDFDataMgr.read(model, new StringReader(turtle), base, Lang.TTL);
+				return ModelFactory.createModelForGraph(new GraphReadOnly(model.getGraph()));
+			});
+		} catch (ExecutionException | UncheckedExecutionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		}
+	}
+
+	public static CacheStats getQueryStats() {
+		return QUERIES.stats();
+	}
+
+	public static CacheStats getGraphStats() {
+		return GRAPHS.stats();
+	}
+
+	/**
+	 * A parsed query and its normalized form.
+	 */
+	public static final class CompiledQuery {
+
+		public final SPARQLExtQuery query;
+
+		private final SPARQLExtQuery normalized;
+
+		private CompiledQuery(SPARQLExtQuery query, SPARQLExtQuery normalized) {
+			this.query = query;
+			this.normalized = normalized;
+		}
+
+		/**
+		 * Makes a new plan for the query, to be used by a single job.
+		 *
+		 * @return the plan
+		 */
+		public RootPlan newPlan() {
+			return PlanFactory.create(normalized.copyQuery());
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 École des Mines de Saint-Étienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Response;
+
+import com.google.common.cache.CacheStats;
+import com.google.gson.Gson;
+
+/**
+ * Exposes the metrics of the job queue and of the plan and graph caches.
+ *
+ * @author Maxime Lefrançois
+ */
+@Path("/metrics")
+public class QueueMetrics extends HttpServlet {
+
+	private static final Gson GSON = new Gson();
+
+	@GET
+	public Response doGet() {
+		Map<String, Object> metrics = new LinkedHashMap<>();
+		metrics.put("queue", JobScheduler.get().getMetrics());
+		metrics.put("queries", toMap(QueryCache.getQueryStats()));
+		metrics.put("graphs", toMap(QueryCache.getGraphStats()));
+		return Response.ok(GSON.toJson(metrics), "application/json").build();
+	}
+
+	private static Map<String, Object> toMap(CacheStats stats) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("hitCount", stats.hitCount());
+		map.put("missCount", stats.missCount());
+		map.put("evictionCount", stats.evictionCount());
+		map.put("hitRate", stats.hitRate());
+		return map;
+	}
+}
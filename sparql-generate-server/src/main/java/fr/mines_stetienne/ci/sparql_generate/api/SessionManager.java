@@ -17,15 +17,12 @@ package fr.mines_stetienne.ci.sparql_generate.api;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import javax.websocket.Session;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.log4j.Level;
 
 import com.google.gson.Gson;
@@ -47,8 +44,6 @@ public class SessionManager {
     private final List<Response> responses = new ArrayList<>();
 
     private final ScheduledExecutorService service;
-    
-    private final ExecutorService executor;
 
     private Level level = Level.TRACE;
 
@@ -56,8 +51,6 @@ public class SessionManager {
         this.session = session;
         service = Executors.newScheduledThreadPool(1);
         service.scheduleAtFixedRate(this::flush, 0, 200, TimeUnit.MILLISECONDS);
-        ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("session-" + session.getId()).build();
-        executor = Executors.newSingleThreadExecutor(tf);
     }
 
     public Level getLevel() {
@@ -72,10 +65,6 @@ public class SessionManager {
         return session.getId();
     }
     
-    public ExecutorService getExecutor() {
-		return executor;
-	}
-
     public void appendLog(String log) {
         append(new Response.Log(log));
     }
@@ -15,51 +15,57 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.api;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.security.Signature;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServlet;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
-import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.ServerErrorException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
-import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.query.ResultSetFormatter;
-import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.binding.BindingBuilder;
-import org.apache.jena.sparql.expr.nodevalue.NodeValueString;
-import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.FmtUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import fr.mines_stetienne.ci.sparql_generate.JerseyApp;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
-import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanProfile;
 import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
@@ -75,6 +81,9 @@ public class Transform extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(Transform.class);
 
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("transform-watchdog").setDaemon(true).build());
+
     String query;
     
     @GET
@@ -94,8 +103,106 @@ public class Transform extends HttpServlet {
     }
 
     
+    @GET
+    @Path("/explain")
+    public Response doGetExplain(
+            final @QueryParam("query") String query,
+            final @QueryParam("queryurl") String queryurl,
+            final @QueryParam("param") List<String> params) throws ServerErrorException {
+        return doExplain(query, queryurl, params);
+    }
+
+    @POST
+    @Path("/explain")
+    public Response doPostExplain(
+            final @FormParam("query") String query,
+            final @FormParam("queryurl") String queryurl,
+            final @FormParam("param") List<String> params) throws WebApplicationException {
+        return doExplain(query, queryurl, params);
+    }
+
     private Response doTransform(
             String query, String queryurl, List<String> params) {
+		final Execution execution = prepare(query, queryurl, params);
+		final SPARQLExtQuery q = execution.query;
+		final RootPlan plan = execution.plan;
+		final List<Binding> values = execution.values;
+
+		// the output is written to the client as it is generated
+		final StreamingOutput output = (os) -> {
+			final boolean timedOut = execWithTimeout(() -> {
+				if (q.isGenerateType()) {
+					StreamRDF out = StreamRDFLib.writer(os);
+					plan.execGenerateStream(values, ContextUtils.build().setGenerateOutput(out).build());
+				} else if (q.isSelectType()) {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+					TSVOutput out = new TSVOutput(writer);
+					plan.execSelectStream(values, ContextUtils.build().setSelectOutput(out).build());
+					writer.flush();
+				} else {
+					IndentedWriter out = new IndentedWriter(os);
+					plan.execTemplateStream(values, ContextUtils.build().setTemplateOutput(out).build());
+					out.flush();
+				}
+			});
+			if (timedOut) {
+				LOG.warn(String.format("Request timeout of %s s exceeded, the output is truncated", JerseyApp.MAX_TIME));
+				throw new IOException(String.format("In this API, request timeout is set at %s s. Please use the executable jar instead.", JerseyApp.MAX_TIME));
+			}
+		};
+		final String mediaType;
+		final String fileName;
+		if (q.isGenerateType()) {
+			mediaType = "application/n-triples";
+			fileName = "message.nt";
+		} else if (q.isSelectType()) {
+			mediaType = "text/tab-separated-values";
+			fileName = "message.tsv";
+		} else {
+			mediaType = "text/plain";
+			fileName = "message.txt";
+		}
+		return Response.ok(output, mediaType)
+				.header("Content-Disposition", "filename= " + fileName + ";")
+				.build();
+    }
+
+	/**
+	 * Executes the query, discards its output, and returns the plan of the
+	 * query annotated with the actual number of rows, batches, and time of each
+	 * clause.
+	 */
+	private Response doExplain(String query, String queryurl, List<String> params) {
+		final Execution execution = prepare(query, queryurl, params);
+		final SPARQLExtQuery q = execution.query;
+		final RootPlan plan = execution.plan;
+		final List<Binding> values = execution.values;
+		final PlanProfile profile = new PlanProfile();
+		final ContextUtils.Builder builder = ContextUtils.build().setProfile(profile);
+		final boolean timedOut;
+		try {
+			timedOut = execWithTimeout(() -> {
+				if (q.isGenerateType()) {
+					plan.execGenerateStream(values, builder.setGenerateOutput(StreamRDFLib.sinkNull()).build());
+				} else if (q.isSelectType()) {
+					plan.execSelectStream(values, builder.setSelectOutput(ResultSetFormatter::consume).build());
+				} else {
+					IndentedWriter out = new IndentedWriter(OutputStream.nullOutputStream());
+					plan.execTemplateStream(values, builder.setTemplateOutput(out).build());
+				}
+			});
+		} catch (IOException ex) {
+			throw new ServerErrorException(Response.Status.INTERNAL_SERVER_ERROR, ex);
+		}
+		String explain = profile.explain(plan);
+		if (timedOut) {
+			explain = String.format("Execution interrupted after the request timeout of %s s\n", JerseyApp.MAX_TIME)
+					+ explain;
+		}
+		return Response.ok(explain, "text/plain").build();
+	}
+
+	private static Execution prepare(String query, String queryurl, List<String> params) {
     	if(query == null && queryurl == null) {
     		throw new BadRequestException("One of parameters query or queryurl must be set.");
     	}
@@ -112,14 +219,14 @@ public class Transform extends HttpServlet {
     		}
     	}
     	
-		SPARQLExtQuery q;
-    	RootPlan plan;
+		QueryCache.CompiledQuery compiled;
 		try {
-			q = (SPARQLExtQuery) QueryFactory.create(query, SPARQLExt.SYNTAX);
-    		plan = PlanFactory.create(q);
+			compiled = QueryCache.getQuery(query);
 		} catch (Exception ex) {
         	throw new BadRequestException("Exception while building the plan for the query " + query, ex);
-		}    	
+		}
+		SPARQLExtQuery q = compiled.query;
+		RootPlan plan = compiled.newPlan();
 		
 		List<Var> signature = q.getSignature();
 		BindingBuilder bindingBuilder = Binding.builder();
@@ -139,45 +246,107 @@ public class Transform extends HttpServlet {
 		}
 		List<Binding> values = new ArrayList();
 		values.add(bindingBuilder.build());
-		Context context = ContextUtils.createSimple();
-		
-        final ExecutorService service = Executors.newSingleThreadExecutor();
-        try {
-            final Future<Response> f = service.submit(() -> {
-        		if(q.isGenerateType()) {
-                    Model model = plan.execGenerate(values, context);
-                    StringWriter sw = new StringWriter();
-                    model.write(sw, "TTL");
-                    return Response.ok(sw.toString(), "text/turtle")
-                    		.header("Content-Disposition", "filename= message.ttl;")
-                			.build();
-        		} else if(q.isSelectType()) {
-        			ResultSet resultSet = plan.execSelect(values, context);
-                    StringWriter sw = new StringWriter();
-                    ByteArrayOutputStream  baos = new ByteArrayOutputStream();
-                    ResultSetFormatter.outputAsJSON(baos, resultSet);
-        			return Response.ok(baos.toString(), "application/sparql-results+json")
-                    		.header("Content-Disposition", "filename= message.ttl;")
-                			.build();
-        		} else if(q.isTemplateType()) {
-        			String result = plan.execTemplate(values, context);
-        			return Response.ok(result, "text/plain")
-                    		.header("Content-Disposition", "filename= message.ttl;")
-                			.build();
-        		} else {
-        			throw new BadRequestException("The request should be a SELECT, GENERATE, or TEMPLATE query");
-        		}
-            });
-            return f.get(JerseyApp.MAX_TIME, TimeUnit.SECONDS);
-        } catch (final TimeoutException ex) {
-             return Response.status(Response.Status.REQUEST_TIMEOUT)
-                    .entity(String.format("In this API, request timeout is set at %s s. Please use the executable jar instead.", JerseyApp.MAX_TIME))
-                    .build();
-        } catch (final Exception ex) {
-        	throw new InternalServerErrorException(ex);
-        } finally {
-            service.shutdown();
-        }
-    }
+		if(!q.isGenerateType() && !q.isSelectType() && !q.isTemplateType()) {
+			throw new BadRequestException("The request should be a SELECT, GENERATE, or TEMPLATE query");
+		}
+		return new Execution(q, plan, values);
+	}
+
+	/**
+	 * Executes the plan, and interrupts it if it takes longer than the request
+	 * timeout.
+	 *
+	 * @return true if the execution was interrupted
+	 */
+	private static boolean execWithTimeout(IORunnable runnable) throws IOException {
+		final Thread thread = Thread.currentThread();
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		final ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+			synchronized (finished) {
+				if (!finished.get()) {
+					timedOut.set(true);
+					thread.interrupt();
+				}
+			}
+		}, JerseyApp.MAX_TIME, TimeUnit.SECONDS);
+		try {
+			runnable.run();
+		} catch (SPARQLExtException ex) {
+			if (!timedOut.get()) {
+				throw ex;
+			}
+		} finally {
+			watchdog.cancel(false);
+			synchronized (finished) {
+				finished.set(true);
+			}
+			if (timedOut.get()) {
+				// clear the interrupted status of the container thread
+				Thread.interrupted();
+			}
+		}
+		return timedOut.get();
+	}
+
+	private interface IORunnable {
+		void run() throws IOException;
+	}
+
+	private static class Execution {
+
+		private final SPARQLExtQuery query;
+		private final RootPlan plan;
+		private final List<Binding> values;
+
+		private Execution(SPARQLExtQuery query, RootPlan plan, List<Binding> values) {
+			this.query = query;
+			this.plan = plan;
+			this.values = values;
+		}
+	}
+
+
+	/**
+	 * Writes the result sets of a SELECT query as one TSV document, with the
+	 * header row taken from the first result set.
+	 */
+	private static class TSVOutput implements Consumer<ResultSet> {
+
+		private final Writer writer;
+
+		private List<String> vars;
+
+		private TSVOutput(Writer writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void accept(ResultSet resultSet) {
+			try {
+				if (vars == null) {
+					vars = resultSet.getResultVars();
+					writer.write(vars.stream().map((v) -> "?" + v).collect(Collectors.joining("\t")));
+					writer.write("\n");
+				}
+				while (resultSet.hasNext()) {
+					Binding binding = resultSet.nextBinding();
+					for (int i = 0; i < vars.size(); i++) {
+						if (i > 0) {
+							writer.write('\t');
+						}
+						Node node = binding.get(Var.alloc(vars.get(i)));
+						if (node != null) {
+							writer.write(FmtUtils.stringForNode(node));
+						}
+					}
+					writer.write('\n');
+				}
+				writer.flush();
+			} catch (IOException ex) {
+				throw new SPARQLExtException(ex);
+			}
+		}
+	}
 
 }
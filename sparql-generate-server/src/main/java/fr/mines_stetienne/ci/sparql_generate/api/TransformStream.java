@@ -22,11 +22,11 @@ import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.EnumSet;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Supplier;
 
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
@@ -35,19 +35,15 @@ import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.WriterOutputStream;
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
-import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
-import org.apache.jena.riot.Lang;
-import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.system.StreamRDF;
 import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.sparql.serializer.SerializationContext;
@@ -66,9 +62,7 @@ import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
 import com.jayway.jsonpath.spi.mapper.MappingProvider;
 
 import fr.mines_stetienne.ci.sparql_generate.JerseyApp;
-import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.api.entities.Request;
-import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
 import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.stream.LocatorStringMap;
@@ -100,10 +94,13 @@ public class TransformStream {
 	@OnClose
 	public void close(Session session) {
 		LOG.info("Closing session " + session.getId());
+		JobScheduler.get().cancel(session.getId());
 	}
 
 	@OnMessage
 	public void handleMessage(String message, Session session) {
+		// a new message supersedes the transformation in progress
+		JobScheduler.get().cancel(session.getId());
 		final SessionManager sessionManager = new SessionManager(session);
 		final SessionManager oldSessionManager = APPENDER.putSessionManager(session.getId(), sessionManager);
 		if (oldSessionManager != null) {
@@ -148,30 +145,24 @@ public class TransformStream {
 			return;
 		}
 
-		final SPARQLExtQuery q;
+		final QueryCache.CompiledQuery compiled;
+		final RootPlan plan;
 		try {
-			q = supply(sessionManager,
-					() -> (SPARQLExtQuery) QueryFactory.create(request.defaultquery, SPARQLExt.SYNTAX));
-		} catch (InterruptedException | ExecutionException ex) {
+			compiled = QueryCache.getQuery(request.defaultquery);
+			plan = compiled.newPlan();
+		} catch (Exception ex) {
 			logError(sessionManager, "ERROR: while parsing query:", ex);
 			return;
 		}
+		final SPARQLExtQuery q = compiled.query;
 
 		final ContextUtils.Builder contextBuilder = ContextUtils.build().setStreamManager(sm)
 				.setDebugTemplate(request.debugTemplate).setPrefixMapping(q.getPrefixMapping())
 				.setInputDataset(dataset);
 
-		final RootPlan plan;
-		try {
-			plan = supply(sessionManager, () -> PlanFactory.create(q));
-		} catch (InterruptedException | ExecutionException ex) {
-			logError(sessionManager, "ERROR: while creating execution plan:", ex);
-			return;
-		}
-		
-
+		final JobScheduler.Job job;
 		try {
-			sessionManager.getExecutor().submit(() -> {
+			job = JobScheduler.get().submit(session.getId(), () -> {
 				if (!request.stream) {
 					Context context = contextBuilder.build();
 					if (q.isGenerateType()) {
@@ -215,12 +206,26 @@ public class TransformStream {
 						logError(sessionManager, "Error: unknown query type:", null);
 					}
 				}
-			}).get(JerseyApp.MAX_TIME, TimeUnit.SECONDS);
+			});
+		} catch (RejectedExecutionException ex) {
+			logError(sessionManager, "ERROR: " + ex.getMessage(), null);
+			sessionManager.close();
+			return;
+		}
+
+		try {
+			// the time limit applies to the execution, not to the wait in the queue
+			job.awaitStart();
+			job.get(JerseyApp.MAX_TIME, TimeUnit.SECONDS);
 		} catch (TimeoutException ex) {
+			job.cancel(true);
 			logError(sessionManager,
 					"In this web interface query execution cannot exceed 10 s. Consider using the executable jar instead.",
 					ex);
+		} catch (CancellationException ex) {
+			logError(sessionManager, "INFO: transformation cancelled", null);
 		} catch (final InterruptedException ex) {
+			job.cancel(true);
 			logError(sessionManager, "Interrupted while executing the request", ex);
 		} catch (final ExecutionException ex) {
 			logError(sessionManager, "An exception occurred", ex);
@@ -263,17 +268,16 @@ public class TransformStream {
 		});
 	}
 
-	private Dataset getDataset(SessionManager sessionManager, Request request) throws IOException {
+	private Dataset getDataset(SessionManager sessionManager, Request request) throws Exception {
 		Dataset dataset = DatasetFactory.create();
-		Model g = ModelFactory.createDefaultModel();
-		RDFDataMgr.read(g, IOUtils.toInputStream(request.defaultgraph, "UTF-8"), BASE, Lang.TTL);
-		dataset.setDefaultModel(g);
+		dataset.setDefaultModel(QueryCache.getGraph(request.defaultgraph, BASE));
 		request.namedgraphs.forEach((ng) -> {
-			Model model = ModelFactory.createDefaultModel();
+			Model model;
 			try {
-				RDFDataMgr.read(model, IOUtils.toInputStream(ng.string, "UTF-8"), BASE, Lang.TTL);
+				model = QueryCache.getGraph(ng.string, BASE);
 			} catch (Exception ex) {
 				logError(sessionManager, "WARN: unable to parse graph " + ng.uri, ex);
+				model = ModelFactory.createDefaultModel();
 			}
 			dataset.addNamedModel(ng.uri, model);
 		});
@@ -307,10 +311,6 @@ public class TransformStream {
 		sessionManager.flush();
 	}
 
-    private <T> T supply(SessionManager sessionManager, Supplier<T> task) throws InterruptedException, ExecutionException {
-        return CompletableFuture.supplyAsync(task, sessionManager.getExecutor()).get();
-    }
-
 	private void setLevel(SessionManager sessionManager, Request request) {
 		sessionManager.setLevel(LEVELS[request.loglevel]);
 	}
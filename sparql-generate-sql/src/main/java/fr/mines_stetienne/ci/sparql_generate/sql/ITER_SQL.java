@@ -15,8 +15,8 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.sql;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -26,13 +26,23 @@ import java.sql.Types;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
@@ -44,11 +54,14 @@ import org.apache.jena.sparql.expr.nodevalue.NodeValueFloat;
 import org.apache.jena.sparql.expr.nodevalue.NodeValueInteger;
 import org.apache.jena.sparql.expr.nodevalue.NodeValueNode;
 import org.apache.jena.sparql.expr.nodevalue.NodeValueString;
+import org.apache.jena.sparql.function.FunctionEnv;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
-import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase2;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorBatchFunction;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 
 /**
  * Iterator function <a href="http://w3id.org/sparql-generate/iter/SQL">SQL</a>
@@ -57,6 +70,12 @@ import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase
  * <ul>
  * <li>Param 1: (database): the JDBC URI of the database</li>
  * <li>Param 2: (sql) the SQL query;</li>
+ * <li>Param 3: (integer: batch) Optional number of rows per batch (by default,
+ * all the result set is processed as one batch);</li>
+ * <li>Param 4: (integer: fetchSize) Optional number of rows fetched from the
+ * database at a time (by default, the batch size, or 1000);</li>
+ * <li>Param N-P+1 .. N: one value for each of the P {@code ?} placeholders in
+ * the SQL query.</li>
  * </ul>
  *
  * The following variables may be bound:
@@ -66,11 +85,39 @@ import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase
  * double, integer, string, dateTimeStamp, as it best fits.</li>
  * </ul>
  *
+ * <p>
+ * Connections are pooled per JDBC URI (see {@link SQLConnectionPool}), and any
+ * JDBC 4 driver on the classpath may be used. The result set is read forward
+ * only with the given fetch size, so drivers that support cursors stream it
+ * instead of loading it in memory. For MySQL, add
+ * {@code useCursorFetch=true} to the JDBC URI.
+ * </p>
+ *
+ * <p>
+ * The number of placeholders is given by the {@link java.sql.ParameterMetaData}
+ * of the prepared query, or, if the driver does not support it, by counting
+ * the {@code ?} outside quotes and comments.
+ * </p>
+ *
+ * <p>
+ * When the iterator is evaluated for many upstream bindings, the bindings are
+ * grouped by database and query, and the distinct tuples of parameters are
+ * looked up in batches: up to {@code sparql-generate.sql.lookupBatchSize}
+ * (system property, default is 100) tuples are sent in a single
+ * {@code UNION ALL} statement ordered by tuple. The rows are streamed to their
+ * originating bindings, in batches of at most the given number of rows.
+ * Queries with {@code ORDER BY}, {@code LIMIT}, {@code OFFSET}, {@code FETCH}
+ * or {@code TOP} are executed once per tuple, as these clauses are not
+ * applied in the same way in a derived table. If a batched statement fails,
+ * its tuples are looked up one by one, and a tuple whose lookup fails only
+ * discards its own bindings.
+ * </p>
+ *
  * @author Omar Qawasmeh, Maxime Lefrançois
  *
  * @organization Ecole des Mines de Saint Etienne
  */
-public class ITER_SQL extends IteratorStreamFunctionBase2 {
+public class ITER_SQL extends IteratorStreamFunctionBase implements IteratorBatchFunction {
 
 	/**
 	 * The logger.
@@ -81,8 +128,30 @@ public class ITER_SQL extends IteratorStreamFunctionBase2 {
 	 * The SPARQL function URI.
 	 */
 	public static final String URI = SPARQLExt.ITER + "SQL";
+
+	/**
+	 * The connection properties for MySQL databases.
+	 */
 	public static final Properties properties = new Properties();
 
+	private static final int DEFAULT_FETCH_SIZE = 1000;
+
+	private static final int LOOKUP_BATCH_SIZE = Integer.getInteger("sparql-generate.sql.lookupBatchSize", 100);
+
+	private static final String KEY_COLUMN = "sg_key";
+
+	/**
+	 * Clauses that do not apply in the same way once the query is wrapped in
+	 * a derived table.
+	 */
+	private static final Pattern NOT_BATCHABLE = Pattern.compile("\\b(ORDER\\s+BY|LIMIT|OFFSET|FETCH|TOP)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The number of placeholders of each database and query.
+	 */
+	private final Map<List<Node>, Integer> parameterCounts = new ConcurrentHashMap<>();
+
 	static {
 		properties.setProperty("user", "root"); // username
 		properties.setProperty("password", "password"); // password
@@ -93,21 +162,48 @@ public class ITER_SQL extends IteratorStreamFunctionBase2 {
 		return properties;
 	}
 
-	@Override
-	public void exec(NodeValue nodeSQL, NodeValue querySQL, Consumer<List<List<NodeValue>>> consumer) {
-		if (nodeSQL == null) {
-			LOG.debug("Must have two arguments, the URI to the data base and the SQL query");
-			throw new ExprEvalException("Must have two arguments, the URI to the data base and the SQL query");
+	/**
+	 * Gets the connection properties for a JDBC URI. Other drivers than MySQL
+	 * get their settings from the JDBC URI itself.
+	 *
+	 * @param url the JDBC URI
+	 * @return the connection properties
+	 */
+	public static Properties getProperties(String url) {
+		if (url.startsWith("jdbc:mysql:")) {
+			return properties;
 		}
-		if (querySQL == null) {
-			LOG.debug("Must have two arguments, the URI to the data base and the SQL query");
-			throw new ExprEvalException("Must have two arguments, the URI to the data base and the SQL query");
+		return new Properties();
+	}
+
+	@Override
+	public void checkBuild(ExprList args) {
+		if (args.size() < 2) {
+			throw new QueryBuildException("Function '"
+					+ this.getClass().getName() + "' takes at least two arguments");
 		}
+	}
 
-		LOG.trace("Executing SQL with variables: the data base at URI: " + nodeSQL + "\t with query:\t" + querySQL);
-		try (Connection connectionSQL = getConnection(nodeSQL)){
-			LOG.trace("Connected successfully to " + nodeSQL);
-			getListSQL(connectionSQL, querySQL, consumer);
+	@Override
+	public void exec(List<NodeValue> args, Consumer<List<List<NodeValue>>> consumer) {
+		final Call call = new Call(args);
+		LOG.trace("Executing SQL with variables: the data base at URI: " + call.database + "\t with query:\t" + call.query);
+		try (Connection connectionSQL = getConnection(call.database)){
+			LOG.trace("Connected successfully to " + call.database);
+			connectionSQL.setAutoCommit(false);
+			try (PreparedStatement ps = prepare(connectionSQL, call.query)) {
+				call.setParameterCount(getParameterCount(ps, call.query.asString()));
+				ps.setFetchSize(call.fetchSize);
+				setParameters(ps, call.parameters, 0);
+				try (ResultSet rs = ps.executeQuery()) {
+					emit(rs, call.rowsInABatch, consumer);
+				}
+			}
+		} catch (ExprEvalException ex) {
+			throw ex;
+		} catch (SQLException ex) {
+			LOG.warn(ex.getMessage());
+			throw new ExprEvalException(ex);
 		} catch (Exception ex) {
 			LOG.warn("Can not connect to the data base", ex);
 			throw new ExprEvalException("Can not connect to the data base", ex);
@@ -115,13 +211,448 @@ public class ITER_SQL extends IteratorStreamFunctionBase2 {
 
 	}
 
+	@Override
+	public void exec(List<Binding> bindings, ExprList args, FunctionEnv env,
+			BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream) {
+		// group bindings by database and query, then by parameters
+		final Map<List<Node>, Map<List<Node>, List<Binding>>> groups = new LinkedHashMap<>();
+		final Map<List<Node>, Call> calls = new HashMap<>();
+		for (Binding binding : bindings) {
+			final Call call;
+			try {
+				call = new Call(evalArgs(binding, args, env));
+				call.setParameterCount(getParameterCount(call));
+			} catch (ExprEvalException ex) {
+				LOG.debug("No evaluation for " + binding + ", caused by " + ex.getMessage());
+				if (ContextUtils.isFailOnException(getContext())) {
+					throw ex;
+				}
+				continue;
+			}
+			final List<Node> key = Arrays.asList(call.database.asNode(), call.query.asNode());
+			calls.putIfAbsent(key, call);
+			groups.computeIfAbsent(key, (k) -> new LinkedHashMap<>())
+					.computeIfAbsent(call.getParametersKey(), (k) -> new ArrayList<>())
+					.add(binding);
+		}
+		for (Map.Entry<List<Node>, Map<List<Node>, List<Binding>>> group : groups.entrySet()) {
+			final Call call = calls.get(group.getKey());
+			if (call.database.isIRI()) {
+				// the rows cannot be fingerprinted by incremental executions
+				ContextUtils.recordUntrackedSource(env.getContext(), call.database.asNode().getURI());
+			}
+			lookup(call, group.getValue(), nodeValuesStream);
+		}
+	}
+
+	/**
+	 * Looks up all the distinct tuples of parameters of a given query, and
+	 * emits the rows for every binding that has these parameters.
+	 */
+	private void lookup(Call call, Map<List<Node>, List<Binding>> tuples,
+			BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream) {
+		final List<List<Node>> keys = new ArrayList<>(tuples.keySet());
+		LOG.debug("Looking up " + keys.size() + " distinct tuples for " + tuples.values().stream().mapToInt(List::size).sum()
+				+ " bindings with query " + call.query);
+		try (Connection connectionSQL = getConnection(call.database)) {
+			connectionSQL.setAutoCommit(false);
+			boolean batched = !call.parameters.isEmpty() && keys.size() > 1 && LOOKUP_BATCH_SIZE > 1
+					&& isBatchable(call.query.asString());
+			for (int start = 0; start < keys.size(); start += LOOKUP_BATCH_SIZE) {
+				final List<List<Node>> batch = keys.subList(start, Math.min(start + LOOKUP_BATCH_SIZE, keys.size()));
+				if (!batched) {
+					lookupOneByOne(connectionSQL, call, batch, tuples, nodeValuesStream);
+					continue;
+				}
+				final Demultiplexer demultiplexer = new Demultiplexer(batch, tuples, call.rowsInABatch, nodeValuesStream);
+				try {
+					lookupBatch(connectionSQL, call, demultiplexer);
+				} catch (SQLException | ExprEvalException ex) {
+					LOG.debug("Batched lookup failed for " + call.query + ", looking up the tuples one by one, caused by "
+							+ ex.getMessage());
+					connectionSQL.rollback();
+					int from = demultiplexer.getCompleted();
+					if (demultiplexer.isPartial()) {
+						LOG.warn("Some rows were already emitted for parameters " + batch.get(from)
+								+ " when the batched lookup failed, its other rows are discarded");
+						from++;
+					} else if (from == 0) {
+						// the statement itself is probably not supported
+						batched = false;
+					}
+					lookupOneByOne(connectionSQL, call, batch.subList(from, batch.size()), tuples, nodeValuesStream);
+				}
+			}
+		} catch (ExprEvalException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			LOG.warn("Exception while looking up " + call.query, ex);
+			throw new ExprEvalException("Exception while looking up " + call.query, ex);
+		}
+	}
+
+	/**
+	 * Looks up the tuples one at a time. A tuple whose lookup fails only
+	 * discards its own bindings.
+	 */
+	private void lookupOneByOne(Connection conn, Call call, List<List<Node>> keys,
+			Map<List<Node>, List<Binding>> tuples, BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream)
+			throws SQLException {
+		if (keys.isEmpty()) {
+			return;
+		}
+		try (PreparedStatement ps = prepare(conn, call.query)) {
+			ps.setFetchSize(call.fetchSize);
+			for (List<Node> key : keys) {
+				final List<Binding> bindings = tuples.get(key);
+				try {
+					setParameters(ps, toNodeValues(key), 0);
+					try (ResultSet rs = ps.executeQuery()) {
+						emit(rs, call.rowsInABatch, (rows) -> bindings.forEach((b) -> nodeValuesStream.accept(b, rows)));
+					}
+				} catch (SQLException | ExprEvalException ex) {
+					LOG.debug("No evaluation of " + call.query + " for parameters " + key + ", caused by "
+							+ ex.getMessage());
+					if (ContextUtils.isFailOnException(getContext())) {
+						throw ex;
+					}
+					// some databases, e.g., PostgreSQL, abort the transaction on errors
+					conn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up a batch of tuples with a single statement, ordered by tuple, and
+	 * streams the rows to the demultiplexer.
+	 */
+	private void lookupBatch(Connection conn, Call call, Demultiplexer demultiplexer) throws SQLException {
+		final List<List<Node>> keys = demultiplexer.keys;
+		final String query = stripSemicolon(call.query.asString());
+		final StringBuilder sb = new StringBuilder("SELECT * FROM (");
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) {
+				sb.append(" UNION ALL ");
+			}
+			sb.append("SELECT ").append(i).append(" AS ").append(KEY_COLUMN).append(", sg_t").append(i)
+					.append(".* FROM (").append(query).append(") sg_t").append(i);
+		}
+		sb.append(") sg_u ORDER BY ").append(KEY_COLUMN);
+		try (PreparedStatement ps = conn.prepareStatement(sb.toString(), ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY)) {
+			ps.setFetchSize(call.fetchSize);
+			final int size = call.parameters.size();
+			for (int i = 0; i < keys.size(); i++) {
+				setParameters(ps, toNodeValues(keys.get(i)), i * size);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				final ResultSetMetaData rsmd = rs.getMetaData();
+				final int[] columnTypes = getColumnTypes(rsmd);
+				while (rs.next()) {
+					final int index = rs.getInt(1);
+					final List<NodeValue> listRow = new ArrayList<>(columnTypes.length - 2);
+					for (int i = 2; i < columnTypes.length; i++) {
+						listRow.add(getNodeValueForCell(rs, columnTypes[i], i));
+					}
+					demultiplexer.add(index, listRow);
+				}
+			}
+		}
+		demultiplexer.finish();
+	}
+
+	/**
+	 * Dispatches the rows of a batched lookup, ordered by tuple, to the
+	 * bindings of each tuple, in batches of at most {@code rowsInABatch} rows.
+	 * As in {@link ITER_SQL#emit(ResultSet, int, Consumer)}, a tuple without
+	 * rows gets one empty batch.
+	 */
+	private static class Demultiplexer {
+
+		final List<List<Node>> keys;
+		final Map<List<Node>, List<Binding>> tuples;
+		final int rowsInABatch;
+		final BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream;
+		int current = 0;
+		int total = 0;
+		List<List<NodeValue>> rows = new ArrayList<>();
+
+		Demultiplexer(List<List<Node>> keys, Map<List<Node>, List<Binding>> tuples, int rowsInABatch,
+				BiConsumer<Binding, List<List<NodeValue>>> nodeValuesStream) {
+			this.keys = keys;
+			this.tuples = tuples;
+			this.rowsInABatch = rowsInABatch;
+			this.nodeValuesStream = nodeValuesStream;
+		}
+
+		void add(int index, List<NodeValue> row) throws SQLException {
+			if (index < current || index >= keys.size()) {
+				throw new SQLException("Unexpected tuple index " + index + " in batched lookup");
+			}
+			completeUntil(index);
+			rows.add(row);
+			total++;
+			if (rowsInABatch > 0 && rows.size() >= rowsInABatch) {
+				dispatch();
+			}
+		}
+
+		void finish() {
+			completeUntil(keys.size());
+		}
+
+		/**
+		 * @return the number of tuples whose rows were all emitted
+		 */
+		int getCompleted() {
+			return current;
+		}
+
+		/**
+		 * @return true if some rows of the current tuple were emitted
+		 */
+		boolean isPartial() {
+			return current < keys.size() && total > rows.size();
+		}
+
+		private void completeUntil(int index) {
+			while (current < index) {
+				if (!rows.isEmpty() || total == 0) {
+					dispatch();
+				}
+				current++;
+				total = 0;
+			}
+		}
+
+		private void dispatch() {
+			final List<List<NodeValue>> batch = rows;
+			rows = new ArrayList<>();
+			tuples.get(keys.get(current)).forEach((b) -> nodeValuesStream.accept(b, batch));
+		}
+	}
+
+	/**
+	 * Checks whether a query gives the same rows when it is wrapped in a
+	 * derived table of a batched lookup.
+	 */
+	static boolean isBatchable(String query) {
+		return !NOT_BATCHABLE.matcher(stripQuotesAndComments(query)).find();
+	}
+
+	private static String stripSemicolon(String query) {
+		String q = query.trim();
+		while (q.endsWith(";")) {
+			q = q.substring(0, q.length() - 1).trim();
+		}
+		return q;
+	}
+
+	private static List<NodeValue> toNodeValues(List<Node> key) {
+		final List<NodeValue> nodeValues = new ArrayList<>(key.size());
+		for (Node n : key) {
+			nodeValues.add(n == null ? null : NodeValue.makeNode(n));
+		}
+		return nodeValues;
+	}
+
+	private PreparedStatement prepare(Connection conn, NodeValue querySQL) throws SQLException {
+		LOG.trace("Executing the query: " + querySQL.asString());
+		// some drivers, e.g., PostgreSQL, only use cursors in a transaction
+		conn.setAutoCommit(false);
+		return conn.prepareStatement(querySQL.asString(), ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+	}
+
+	/**
+	 * Gets the number of placeholders of a query, preparing it once per
+	 * database and query.
+	 */
+	private int getParameterCount(Call call) {
+		final List<Node> key = Arrays.asList(call.database.asNode(), call.query.asNode());
+		final Integer count = parameterCounts.get(key);
+		if (count != null) {
+			return count;
+		}
+		try (Connection connectionSQL = getConnection(call.database);
+				PreparedStatement ps = prepare(connectionSQL, call.query)) {
+			final int newCount = getParameterCount(ps, call.query.asString());
+			parameterCounts.put(key, newCount);
+			return newCount;
+		} catch (ExprEvalException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			LOG.debug("Could not prepare " + call.query, ex);
+			throw new ExprEvalException("Could not prepare " + call.query, ex);
+		}
+	}
+
+	/**
+	 * Gets the number of placeholders of a prepared query from its
+	 * {@link java.sql.ParameterMetaData}, or by counting them if the driver
+	 * does not support it.
+	 */
+	private static int getParameterCount(PreparedStatement ps, String query) {
+		try {
+			return ps.getParameterMetaData().getParameterCount();
+		} catch (SQLException ex) {
+			LOG.debug("No parameter metadata for " + query + ", counting the placeholders: " + ex.getMessage());
+			return countPlaceholders(query);
+		}
+	}
+
+	private void setParameters(PreparedStatement ps, List<NodeValue> parameters, int offset) throws SQLException {
+		if (parameters == null) {
+			return;
+		}
+		for (int i = 0; i < parameters.size(); i++) {
+			final int index = offset + i + 1;
+			final NodeValue nv = parameters.get(i);
+			if (nv == null) {
+				ps.setNull(index, Types.NULL);
+			} else if (nv.isBoolean()) {
+				ps.setBoolean(index, nv.getBoolean());
+			} else if (nv.isInteger()) {
+				if (nv.getInteger().bitLength() < 64) {
+					ps.setLong(index, nv.getInteger().longValue());
+				} else {
+					ps.setBigDecimal(index, new BigDecimal(nv.getInteger()));
+				}
+			} else if (nv.isDecimal()) {
+				ps.setBigDecimal(index, nv.getDecimal());
+			} else if (nv.isFloat()) {
+				ps.setFloat(index, nv.getFloat());
+			} else if (nv.isDouble()) {
+				ps.setDouble(index, nv.getDouble());
+			} else if (nv.isDateTime()) {
+				ps.setTimestamp(index, new Timestamp(nv.getDateTime().toGregorianCalendar().getTimeInMillis()));
+			} else if (nv.isIRI()) {
+				ps.setString(index, nv.asNode().getURI());
+			} else if (nv.isLiteral()) {
+				ps.setString(index, nv.asNode().getLiteralLexicalForm());
+			} else {
+				throw new ExprEvalException("Cannot bind " + nv + " to a SQL parameter");
+			}
+		}
+	}
+
+	/**
+	 * Counts the {@code ?} placeholders of a SQL query, outside quoted strings,
+	 * identifiers and comments.
+	 */
+	static int countPlaceholders(String query) {
+		final String stripped = stripQuotesAndComments(query);
+		int count = 0;
+		for (int i = 0; i < stripped.length(); i++) {
+			if (stripped.charAt(i) == '?') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Replaces quoted strings, quoted identifiers and comments of a SQL query
+	 * by spaces.
+	 */
+	static String stripQuotesAndComments(String query) {
+		final StringBuilder sb = new StringBuilder(query.length());
+		int i = 0;
+		while (i < query.length()) {
+			final char c = query.charAt(i);
+			if (c == '\'' || c == '"' || c == '`') {
+				final int end = query.indexOf(c, i + 1);
+				i = end < 0 ? query.length() : end + 1;
+				sb.append(' ');
+			} else if (query.startsWith("--", i)) {
+				final int end = query.indexOf('\n', i);
+				i = end < 0 ? query.length() : end + 1;
+				sb.append(' ');
+			} else if (query.startsWith("/*", i)) {
+				final int end = query.indexOf("*/", i + 2);
+				i = end < 0 ? query.length() : end + 2;
+				sb.append(' ');
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The evaluated arguments of a call to the iterator.
+	 */
+	private static class Call {
+
+		final NodeValue database;
+		final NodeValue query;
+		final List<NodeValue> extraArgs;
+		int rowsInABatch;
+		int fetchSize;
+		List<NodeValue> parameters;
+
+		Call(List<NodeValue> args) {
+			Objects.nonNull(args);
+			if (args.size() < 2 || args.get(0) == null || args.get(1) == null) {
+				LOG.debug("Must have two arguments, the URI to the data base and the SQL query");
+				throw new ExprEvalException("Must have two arguments, the URI to the data base and the SQL query");
+			}
+			database = args.get(0);
+			query = args.get(1);
+			if (!query.isString()) {
+				String message = String.format("Second argument (the query) must be a String");
+				LOG.warn(message);
+				throw new ExprEvalException(message);
+			}
+			extraArgs = new ArrayList<>(args.subList(2, args.size()));
+		}
+
+		/**
+		 * Splits the arguments after the query into options and parameters.
+		 *
+		 * @param nbParameters the number of placeholders of the query
+		 */
+		void setParameterCount(int nbParameters) {
+			final int nbOptions = extraArgs.size() - nbParameters;
+			if (nbOptions < 0 || nbOptions > 2) {
+				throw new ExprEvalException("The SQL query has " + nbParameters + " placeholders, but "
+						+ extraArgs.size() + " arguments were given after the query");
+			}
+			rowsInABatch = nbOptions > 0 ? getInteger(extraArgs.get(0), 0) : 0;
+			fetchSize = nbOptions > 1 ? getInteger(extraArgs.get(1), getDefaultFetchSize()) : getDefaultFetchSize();
+			parameters = new ArrayList<>(extraArgs.subList(nbOptions, extraArgs.size()));
+		}
+
+		private int getDefaultFetchSize() {
+			return rowsInABatch > 0 ? rowsInABatch : DEFAULT_FETCH_SIZE;
+		}
+
+		List<Node> getParametersKey() {
+			final List<Node> key = new ArrayList<>(parameters.size());
+			for (NodeValue nv : parameters) {
+				key.add(nv == null ? null : nv.asNode());
+			}
+			return key;
+		}
+
+		private static int getInteger(NodeValue nv, int defaultValue) {
+			if (nv != null && nv.isInteger()) {
+				int value = nv.getInteger().intValue();
+				if (value > 0) {
+					return value;
+				}
+			}
+			return defaultValue;
+		}
+	}
+
 	public Connection getConnection(NodeValue sql) throws Exception {
 		if (sql.isIRI()) {
 			String sqlPath = sql.asNode().getURI();
 			try {
-				Class.forName("com.mysql.cj.jdbc.Driver");
-				Connection conn = DriverManager.getConnection(sqlPath, properties);
-				return conn;
+				return SQLConnectionPool.get(sqlPath, getProperties(sqlPath)).getConnection();
 			} catch (Exception e) {
 				LOG.warn("Can not connect to the data base", e);
 				throw new ExprEvalException("Can not connect to the data base", e);
@@ -133,47 +664,56 @@ public class ITER_SQL extends IteratorStreamFunctionBase2 {
 		}
 	}
 
-	public void getListSQL(Connection conn, NodeValue querySQL, Consumer<List<List<NodeValue>>> consumer) {
-		if (!querySQL.isString()) {
-			String message = String.format("Second argument (the query) must be a String");
-			LOG.warn(message);
-			throw new ExprEvalException(message);
-		} else {
-			LOG.trace("Executing the query: " + querySQL.asString());
-			try (PreparedStatement ps = conn.prepareStatement(querySQL.asString()); ResultSet rs = ps.executeQuery()) {
-				ResultSetMetaData rsmd = rs.getMetaData();
-				int columnCount = rsmd.getColumnCount();
-				while (rs.next()) {
-					List<NodeValue> listRow = new ArrayList<>();
-					int i = 1;
-					while (i <= columnCount) {
-						NodeValue nv = getNodeValueForCell(rs, rsmd, i++);
-						listRow.add(nv);
-					}
-					consumer.accept(List.of(listRow));
-				}
-			} catch (SQLException e) {
-				LOG.warn(e.getMessage());
-				throw new ExprEvalException(e);
+	private void emit(ResultSet rs, int rowsInABatch, Consumer<List<List<NodeValue>>> consumer)
+			throws SQLException {
+		int[] columnTypes = getColumnTypes(rs.getMetaData());
+		int columnCount = columnTypes.length - 1;
+		int total = 0;
+		List<List<NodeValue>> nodeValues = new ArrayList<>();
+		while (rs.next()) {
+			List<NodeValue> listRow = new ArrayList<>(columnCount);
+			for (int i = 1; i <= columnCount; i++) {
+				listRow.add(getNodeValueForCell(rs, columnTypes[i], i));
+			}
+			nodeValues.add(listRow);
+			total++;
+			if (rowsInABatch > 0 && nodeValues.size() >= rowsInABatch) {
+				LOG.trace("New batch of " + nodeValues.size() + " rows, " + total + " total");
+				consumer.accept(nodeValues);
+				nodeValues = new ArrayList<>();
 			}
 		}
+		if (!nodeValues.isEmpty() || total == 0) {
+			LOG.trace("Last batch of " + nodeValues.size() + " rows, " + total + " total.");
+			consumer.accept(nodeValues);
+		}
 	}
 
-	private NodeValue getNodeValueForCell(ResultSet rs, ResultSetMetaData rsmd, int i) throws SQLException {
+	private int[] getColumnTypes(ResultSetMetaData rsmd) throws SQLException {
+		int columnCount = rsmd.getColumnCount();
+		int[] columnTypes = new int[columnCount + 1];
+		for (int i = 1; i <= columnCount; i++) {
+			columnTypes[i] = rsmd.getColumnType(i);
+		}
+		return columnTypes;
+	}
+
+	private NodeValue getNodeValueForCell(ResultSet rs, int columnType, int i) throws SQLException {
 		if (rs.getObject(i) == null) {
 			return null;
 		}
 
-		switch (rsmd.getColumnType(i)) {
+		switch (columnType) {
 		case Types.NULL:
 			return null;
 		case Types.BOOLEAN:
 			return new NodeValueBoolean(rs.getBoolean(i));
 		case Types.INTEGER:
-		case Types.BIGINT:
 		case Types.SMALLINT:
 		case Types.TINYINT:
 			return new NodeValueInteger(rs.getInt(i));
+		case Types.BIGINT:
+			return new NodeValueInteger(rs.getLong(i));
 		case Types.DECIMAL:
 		case Types.REAL:
 			return new NodeValueDecimal(rs.getBigDecimal(i));
@@ -197,8 +737,4 @@ public class ITER_SQL extends IteratorStreamFunctionBase2 {
 
 	}
 
-	@Override
-	public void checkBuild(ExprList args) {
-	}
-
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2020 Ecole des Mines de Saint-Etienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.sql;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of JDBC connections, keyed by JDBC URL and connection properties.
+ *
+ * <p>
+ * Connections are obtained from the {@link DriverManager}, so any JDBC 4
+ * driver on the classpath may be used. Closing a connection obtained from
+ * {@link #getConnection()} returns it to the pool. Idle connections are
+ * validated before being reused.
+ * </p>
+ *
+ * <p>
+ * The maximum number of open connections per pool is set by system property
+ * {@code sparql-generate.sql.maxTotal} (default is 16). When they are all
+ * borrowed, {@link #getConnection()} waits for one to be returned, at most
+ * {@code sparql-generate.sql.borrowTimeout} milliseconds (default is 30000).
+ * The maximum number of idle connections per pool is set by system property
+ * {@code sparql-generate.sql.maxIdle} (default is 8).
+ * </p>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class SQLConnectionPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SQLConnectionPool.class);
+
+	private static final Map<Key, SQLConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+	private static final int MAX_TOTAL = Integer.getInteger("sparql-generate.sql.maxTotal", 16);
+
+	private static final int MAX_IDLE = Integer.getInteger("sparql-generate.sql.maxIdle", 8);
+
+	private static final long BORROW_TIMEOUT_MILLIS = Long.getLong("sparql-generate.sql.borrowTimeout", 30000);
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(SQLConnectionPool::closeAll));
+	}
+
+	private final String url;
+
+	private final Properties properties;
+
+	private final int maxTotal;
+
+	private final long borrowTimeoutMillis;
+
+	/**
+	 * The idle connections, guarded by this pool.
+	 */
+	private final Deque<Connection> idle = new ArrayDeque<>();
+
+	/**
+	 * The number of open connections, borrowed or idle, guarded by this pool.
+	 */
+	private int open = 0;
+
+	SQLConnectionPool(final String url, final Properties properties, final int maxTotal,
+			final long borrowTimeoutMillis) {
+		this.url = url;
+		this.properties = properties;
+		this.maxTotal = Math.max(1, maxTotal);
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * Gets the pool for a JDBC URL and connection properties.
+	 *
+	 * @param url the JDBC URL
+	 * @param properties the connection properties
+	 * @return the pool
+	 */
+	public static SQLConnectionPool get(final String url, final Properties properties) {
+		final Properties copy = new Properties();
+		if (properties != null) {
+			copy.putAll(properties);
+		}
+		return POOLS.computeIfAbsent(new Key(url, copy),
+				(k) -> new SQLConnectionPool(url, copy, MAX_TOTAL, BORROW_TIMEOUT_MILLIS));
+	}
+
+	/**
+	 * Closes all the idle connections of all the pools.
+	 */
+	public static void closeAll() {
+		POOLS.values().forEach(SQLConnectionPool::close);
+	}
+
+	/**
+	 * Borrows a connection. Closing it returns it to the pool. If all the
+	 * connections are borrowed, waits for one to be returned.
+	 *
+	 * @return the connection
+	 * @throws SQLTimeoutException if no connection was returned in time
+	 * @throws SQLException if no connection can be established
+	 */
+	public Connection getConnection() throws SQLException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		while (true) {
+			Connection connection = null;
+			synchronized (this) {
+				while (idle.isEmpty() && open >= maxTotal) {
+					final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0) {
+						throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis
+								+ " ms waiting for one of the " + maxTotal + " connections to " + url);
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a connection to " + url, ex);
+					}
+				}
+				if (!idle.isEmpty()) {
+					connection = idle.pollFirst();
+				} else {
+					open++;
+				}
+			}
+			if (connection == null) {
+				LOG.debug("Opening new connection to " + url);
+				try {
+					return wrap(DriverManager.getConnection(url, properties));
+				} catch (SQLException | RuntimeException ex) {
+					discarded();
+					throw ex;
+				}
+			}
+			if (isValid(connection)) {
+				LOG.trace("Reusing connection to " + url);
+				return wrap(connection);
+			}
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Closes all the idle connections of this pool.
+	 */
+	public void close() {
+		while (true) {
+			final Connection connection;
+			synchronized (this) {
+				connection = idle.pollFirst();
+			}
+			if (connection == null) {
+				return;
+			}
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * @return the number of open connections, borrowed or idle
+	 */
+	synchronized int getOpenConnections() {
+		return open;
+	}
+
+	private void release(final Connection connection) {
+		try {
+			if (connection.isClosed()) {
+				discarded();
+				return;
+			}
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			synchronized (this) {
+				if (idle.size() < MAX_IDLE) {
+					idle.offerFirst(connection);
+					notifyAll();
+					return;
+				}
+			}
+		} catch (SQLException ex) {
+			LOG.debug("Discarding connection to " + url, ex);
+		}
+		closeQuietly(connection);
+	}
+
+	/**
+	 * Records that a connection was closed, or could not be opened.
+	 */
+	private synchronized void discarded() {
+		open--;
+		notifyAll();
+	}
+
+	private boolean isValid(final Connection connection) {
+		try {
+			return !connection.isClosed() && connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	private void closeQuietly(final Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException ex) {
+			LOG.debug("Exception while closing connection to " + url, ex);
+		} finally {
+			discarded();
+		}
+	}
+
+	private Connection wrap(final Connection connection) {
+		final boolean[] released = new boolean[] { false };
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "close":
+						if (!released[0]) {
+							released[0] = true;
+							release(connection);
+						}
+						return null;
+					case "isClosed":
+						return released[0] || connection.isClosed();
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						if (released[0]) {
+							throw new SQLException("Connection was returned to the pool");
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException ex) {
+							throw ex.getCause();
+						}
+					}
+				});
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SQLConnectionPool " + url + " (" + open + " open, " + idle.size() + " idle)";
+	}
+
+	/**
+	 * The key of a pool: the JDBC URL and the connection properties.
+	 */
+	private static final class Key {
+
+		private final String url;
+
+		private final Map<Object, Object> properties;
+
+		Key(final String url, final Properties properties) {
+			this.url = url;
+			this.properties = new HashMap<>(properties);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return url.equals(other.url) && properties.equals(other.properties);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(url, properties);
+		}
+	}
+}
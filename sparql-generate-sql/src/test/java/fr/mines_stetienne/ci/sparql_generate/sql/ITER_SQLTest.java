@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Ecole des Mines de Saint-Etienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * Tests {@link ITER_SQL} against an embedded H2 database.
+ *
+ * @author Maxime Lefrançois
+ */
+public class ITER_SQLTest {
+
+	private static final String URL = "jdbc:h2:mem:itersqltest;DB_CLOSE_DELAY=-1";
+
+	private static final NodeValue DATABASE = NodeValue.makeNode(NodeFactory.createURI(URL));
+
+	@BeforeClass
+	public static void createDatabase() throws Exception {
+		try (Connection connection = DriverManager.getConnection(URL);
+				Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE person (id INT PRIMARY KEY, name VARCHAR(20), age INT)");
+			statement.execute("INSERT INTO person VALUES (1, 'alice', 30), (2, 'bob', NULL), (3, 'carol', 25),"
+					+ " (4, 'dave', 41), (5, 'eve', 19)");
+		}
+	}
+
+	@Test
+	public void testOneBatch() {
+		final List<List<List<NodeValue>>> batches = exec(
+				NodeValue.makeString("SELECT id, name, age FROM person ORDER BY id"));
+		assertEquals(1, batches.size());
+		final List<List<NodeValue>> rows = batches.get(0);
+		assertEquals(5, rows.size());
+		assertEquals(NodeValue.makeInteger(1), rows.get(0).get(0));
+		assertEquals(NodeValue.makeString("alice"), rows.get(0).get(1));
+		assertEquals(NodeValue.makeInteger(30), rows.get(0).get(2));
+		assertNull(rows.get(1).get(2));
+	}
+
+	@Test
+	public void testBatchesAndFetchSize() {
+		final List<List<List<NodeValue>>> batches = exec(
+				NodeValue.makeString("SELECT name FROM person ORDER BY id"),
+				NodeValue.makeInteger(2), NodeValue.makeInteger(1));
+		assertEquals(3, batches.size());
+		assertEquals(2, batches.get(0).size());
+		assertEquals(2, batches.get(1).size());
+		assertEquals(1, batches.get(2).size());
+		assertEquals(NodeValue.makeString("eve"), batches.get(2).get(0).get(0));
+	}
+
+	@Test
+	public void testEmptyResultIsOneEmptyBatch() {
+		final List<List<List<NodeValue>>> batches = exec(
+				NodeValue.makeString("SELECT name FROM person WHERE id > 100"));
+		assertEquals(1, batches.size());
+		assertEquals(0, batches.get(0).size());
+	}
+
+	@Test
+	public void testParameters() {
+		final List<List<List<NodeValue>>> batches = exec(
+				NodeValue.makeString("SELECT name FROM person WHERE age > ? AND name <> ? ORDER BY id"),
+				NodeValue.makeInteger(20), NodeValue.makeString("alice"));
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+		assertEquals(NodeValue.makeString("carol"), batches.get(0).get(0).get(0));
+		assertEquals(NodeValue.makeString("dave"), batches.get(0).get(1).get(0));
+	}
+
+	@Test
+	public void testCountPlaceholders() {
+		assertEquals(1, ITER_SQL.countPlaceholders("SELECT ? -- why?\n /* ? */ FROM t WHERE a = '?' AND \"b?\" = 1"));
+	}
+
+	@Test
+	public void testIsBatchable() {
+		assertTrue(ITER_SQL.isBatchable("SELECT name FROM person WHERE id = ? -- ORDER BY id"));
+		assertTrue(ITER_SQL.isBatchable("SELECT name FROM person WHERE name = 'limit'"));
+		assertFalse(ITER_SQL.isBatchable("SELECT name FROM person WHERE age > ? ORDER BY age"));
+		assertFalse(ITER_SQL.isBatchable("SELECT name FROM person WHERE age > ? limit 1"));
+	}
+
+	@Test
+	public void testBatchedLookup() {
+		final Map<Binding, List<List<List<NodeValue>>>> results = exec("SELECT name FROM person WHERE id = ?", 1, 2, 1,
+				100);
+		assertEquals(4, results.size());
+		for (Map.Entry<Binding, List<List<List<NodeValue>>>> result : results.entrySet()) {
+			final int id = ((Number) result.getKey().get(Var.alloc("p")).getLiteralValue()).intValue();
+			assertEquals(1, result.getValue().size());
+			final List<List<NodeValue>> rows = result.getValue().get(0);
+			if (id == 100) {
+				assertEquals(0, rows.size());
+			} else {
+				assertEquals(1, rows.size());
+				assertEquals(NodeValue.makeString(id == 1 ? "alice" : "bob"), rows.get(0).get(0));
+			}
+		}
+	}
+
+	@Test
+	public void testLimitIsAppliedPerTuple() {
+		final Map<Binding, List<List<List<NodeValue>>>> results = exec(
+				"SELECT name FROM person WHERE age > ? ORDER BY age LIMIT 1", 20, 26);
+		assertEquals(2, results.size());
+		for (Map.Entry<Binding, List<List<List<NodeValue>>>> result : results.entrySet()) {
+			final int age = ((Number) result.getKey().get(Var.alloc("p")).getLiteralValue()).intValue();
+			final List<List<NodeValue>> rows = result.getValue().get(0);
+			assertEquals(1, rows.size());
+			assertEquals(NodeValue.makeString(age == 20 ? "carol" : "alice"), rows.get(0).get(0));
+		}
+	}
+
+	@Test
+	public void testFailingTupleOnlyDropsItsBindings() {
+		final Map<Binding, List<List<List<NodeValue>>>> results = exec(
+				"SELECT 10 / CAST(? AS INT) AS x FROM person WHERE id = 1", 2, 0, 5);
+		assertEquals(2, results.size());
+		for (Map.Entry<Binding, List<List<List<NodeValue>>>> result : results.entrySet()) {
+			final int p = ((Number) result.getKey().get(Var.alloc("p")).getLiteralValue()).intValue();
+			assertEquals(NodeValue.makeInteger(10 / p), result.getValue().get(0).get(0).get(0));
+		}
+	}
+
+	/**
+	 * Executes a query with one parameter {@code ?p} for several bindings, and
+	 * collects the batches of rows of each binding.
+	 */
+	private static Map<Binding, List<List<List<NodeValue>>>> exec(final String query, final int... values) {
+		final List<Binding> bindings = new ArrayList<>();
+		for (int value : values) {
+			bindings.add(BindingFactory.binding(Var.alloc("p"), NodeValue.makeInteger(value).asNode()));
+		}
+		final ExprList args = new ExprList();
+		args.add(DATABASE);
+		args.add(NodeValue.makeString(query));
+		args.add(new ExprVar("p"));
+		final Map<Binding, List<List<List<NodeValue>>>> results = new IdentityHashMap<>();
+		new ITER_SQL().exec(bindings, args, new FunctionEnvBase(ContextUtils.build().build()),
+				(binding, rows) -> results.computeIfAbsent(binding, (b) -> new ArrayList<>()).add(rows));
+		return results;
+	}
+
+	private static List<List<List<NodeValue>>> exec(final NodeValue query, final NodeValue... options) {
+		final List<NodeValue> args = new ArrayList<>();
+		args.add(DATABASE);
+		args.add(query);
+		args.addAll(Arrays.asList(options));
+		final List<List<List<NodeValue>>> batches = new ArrayList<>();
+		new ITER_SQL().exec(args, batches::add);
+		return batches;
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Ecole des Mines de Saint-Etienne.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SQLConnectionPool} against an embedded H2 database.
+ *
+ * @author Maxime Lefrançois
+ */
+public class SQLConnectionPoolTest {
+
+	private static final String URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+
+	@Test
+	public void testReusesIdleConnections() throws Exception {
+		final SQLConnectionPool pool = new SQLConnectionPool(URL, new Properties(), 4, 1000);
+		try (Connection connection = pool.getConnection()) {
+			assertTrue(connection.isValid(1));
+		}
+		try (Connection connection = pool.getConnection()) {
+			assertTrue(connection.isValid(1));
+		}
+		assertEquals(1, pool.getOpenConnections());
+		pool.close();
+		assertEquals(0, pool.getOpenConnections());
+	}
+
+	@Test
+	public void testClosedConnectionIsReturned() throws Exception {
+		final SQLConnectionPool pool = new SQLConnectionPool(URL, new Properties(), 4, 1000);
+		final Connection connection = pool.getConnection();
+		connection.close();
+		assertTrue(connection.isClosed());
+		try {
+			connection.createStatement();
+			fail("A returned connection must not be usable");
+		} catch (SQLException ex) {
+			// expected
+		}
+		pool.close();
+	}
+
+	@Test
+	public void testBorrowWaitsForMaxTotal() throws Exception {
+		final SQLConnectionPool pool = new SQLConnectionPool(URL, new Properties(), 2, 200);
+		final Connection first = pool.getConnection();
+		final Connection second = pool.getConnection();
+		assertEquals(2, pool.getOpenConnections());
+		try {
+			pool.getConnection();
+			fail("Borrowing more than maxTotal connections must time out");
+		} catch (SQLTimeoutException ex) {
+			// expected
+		}
+		final Thread returner = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+				first.close();
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+		returner.start();
+		try (Connection third = pool.getConnection()) {
+			assertFalse(third.isClosed());
+		}
+		returner.join();
+		second.close();
+		assertEquals(2, pool.getOpenConnections());
+		pool.close();
+		assertEquals(0, pool.getOpenConnections());
+	}
+
+	@Test
+	public void testPoolsAreKeyedByProperties() {
+		final Properties alice = new Properties();
+		alice.setProperty("user", "alice");
+		final Properties bob = new Properties();
+		bob.setProperty("user", "bob");
+		final Properties alice2 = new Properties();
+		alice2.setProperty("user", "alice");
+		assertNotSame(SQLConnectionPool.get(URL, alice), SQLConnectionPool.get(URL, bob));
+		assertSame(SQLConnectionPool.get(URL, alice), SQLConnectionPool.get(URL, alice2));
+	}
+
+}
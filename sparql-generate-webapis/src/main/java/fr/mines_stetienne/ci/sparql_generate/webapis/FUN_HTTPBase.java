@@ -18,39 +18,66 @@ package fr.mines_stetienne.ci.sparql_generate.webapis;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.jena.atlas.lib.Lib;
 import org.apache.jena.query.QueryBuildException;
 import org.apache.jena.sparql.ARQInternalErrorException;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.expr.nodevalue.NodeValueString;
-import org.apache.jena.sparql.function.FunctionBase;
+import org.apache.jena.sparql.function.Function;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class FUN_HTTPBase extends FunctionBase {
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The base implementation of the HTTP functions. Requests are executed with
+ * the HTTP client shared by the execution context (see
+ * {@link SharedHttpClient}), so connections are reused across calls.
+ *
+ * @author Maxime Lefrançois
+ */
+public abstract class FUN_HTTPBase implements Function {
 
 	private static final Logger LOG = LoggerFactory.getLogger(FUN_HTTPBase.class);
 
 	@Override
+	public final void build(String uri, ExprList args) {
+		checkBuild(uri, args);
+	}
+
 	public void checkBuild(String uri, ExprList args) {
 		if (args.size() != 1 && args.size() != 2 && args.size() != 3)
 			throw new QueryBuildException("Function '" + Lib.className(this) + "' Wrong number of arguments: Wanted 1, 2, or 3.");
 	}
 
 	@Override
-	public final NodeValue exec(List<NodeValue> args) {
+	public final NodeValue exec(Binding binding, ExprList args, String uri, FunctionEnv env) {
+		if (args == null) {
+			throw new ARQInternalErrorException(Lib.className(this) + ": Null args list");
+		}
+		List<NodeValue> evalArgs = new ArrayList<>();
+		for (Expr e : args) {
+			evalArgs.add(e.eval(binding, env));
+		}
+		return exec(evalArgs, env.getContext());
+	}
+
+	private NodeValue exec(List<NodeValue> args, Context context) {
 		if (args == null) {
 			throw new ARQInternalErrorException(Lib.className(this) + ": Null args list");
 		}
@@ -59,7 +86,9 @@ public abstract class FUN_HTTPBase extends FunctionBase {
 					Lib.className(this) + ": Wrong number of arguments: Wanted 1, 2, or 3. got " + args.size());
 		}
 		String fileURI = processIRI(args.get(0));
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+		// the responses cannot be fingerprinted by incremental executions
+		ContextUtils.recordUntrackedSource(context, fileURI);
+		try {
 			HttpRequestBase req = createRequest(fileURI);
 			if (args.size() >= 2) {
 				processHeaders(req, args.get(1));
@@ -67,10 +96,8 @@ public abstract class FUN_HTTPBase extends FunctionBase {
 			if (args.size() >= 3) {
 				processBody(req, args.get(2));
 			}
-			try (CloseableHttpResponse res = httpclient.execute(req)) {
-				String response = generateResponse(res);
-				return new NodeValueString(response);
-			}
+			String response = SharedHttpClient.get(context).execute(req, this::generateResponse);
+			return new NodeValueString(response);
 		} catch (IOException ex) {
 			LOG.debug("Exception while executing the HTTP request", ex);
 			throw new ExprEvalException(ex);
@@ -129,7 +156,7 @@ public abstract class FUN_HTTPBase extends FunctionBase {
 	}
 
 	private String generateResponse(CloseableHttpResponse res) throws IOException {
-		StringBuffer response = new StringBuffer();
+		StringBuilder response = new StringBuilder();
 		response.append(res.getStatusLine() + "\n");
 		Header[] headerList = res.getAllHeaders();
 		for (int i = 0; i < headerList.length; i++) {
@@ -137,7 +164,7 @@ public abstract class FUN_HTTPBase extends FunctionBase {
 		}
 		if (res.getEntity() != null) {
 			response.append("\n");
-			String body = IOUtils.toString(res.getEntity().getContent(), StandardCharsets.UTF_8);
+			String body = EntityUtils.toString(res.getEntity(), StandardCharsets.UTF_8);
 			response.append(body);
 		}
 		return response.toString();
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.webapis;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The HTTP client shared by the HTTP functions of an execution. Connections are
+ * pooled and kept alive between calls, and the client is closed when the
+ * execution context is closed.
+ *
+ * <p>
+ * The client is configured with the following system properties:
+ * </p>
+ * <ul>
+ * <li>{@code sparql-generate.http.maxTotal}: maximal number of connections
+ * (default is 200);</li>
+ * <li>{@code sparql-generate.http.maxPerRoute}: maximal number of connections
+ * per route (default is 20);</li>
+ * <li>{@code sparql-generate.http.connectTimeout}: connect timeout in
+ * milliseconds (default is 10000);</li>
+ * <li>{@code sparql-generate.http.socketTimeout}: socket timeout in
+ * milliseconds (default is 60000);</li>
+ * <li>{@code sparql-generate.http.maxInFlight}: maximal number of requests
+ * executed at the same time, or 0 for no limit (default is 0).</li>
+ * </ul>
+ *
+ * @author Maxime Lefrançois
+ */
+public final class SharedHttpClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedHttpClient.class);
+
+	private static final String KEY = SharedHttpClient.class.getName();
+
+	private static final int MAX_TOTAL = Integer.getInteger("sparql-generate.http.maxTotal", 200);
+
+	private static final int MAX_PER_ROUTE = Integer.getInteger("sparql-generate.http.maxPerRoute", 20);
+
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("sparql-generate.http.connectTimeout", 10000);
+
+	private static final int SOCKET_TIMEOUT = Integer.getInteger("sparql-generate.http.socketTimeout", 60000);
+
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("sparql-generate.http.maxInFlight", 0);
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient client;
+
+	private final Semaphore inFlight;
+
+	private SharedHttpClient() {
+		connectionManager = new PoolingHttpClientConnectionManager(30, TimeUnit.SECONDS);
+		connectionManager.setMaxTotal(MAX_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+		connectionManager.setValidateAfterInactivity(2000);
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(CONNECT_TIMEOUT)
+				.setConnectionRequestTimeout(CONNECT_TIMEOUT)
+				.setSocketTimeout(SOCKET_TIMEOUT)
+				.build();
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(config)
+				.useSystemProperties()
+				.build();
+		inFlight = MAX_IN_FLIGHT > 0 ? new Semaphore(MAX_IN_FLIGHT, true) : null;
+	}
+
+	/**
+	 * Gets the HTTP client of an execution context.
+	 *
+	 * @param context the execution context
+	 * @return the HTTP client
+	 */
+	public static SharedHttpClient get(Context context) {
+		return ContextUtils.getShared(context, KEY, (ctx) -> {
+			LOG.debug("Creating the HTTP client, with at most " + MAX_PER_ROUTE + " connections per route");
+			SharedHttpClient client = new SharedHttpClient();
+			ContextUtils.addTaskOnClose(ctx, client::close);
+			return client;
+		});
+	}
+
+	/**
+	 * Executes a request, and handles the response. The response is closed
+	 * after being handled, and the connection is released to the pool if the
+	 * entity was fully consumed.
+	 *
+	 * @param request the request
+	 * @param handler handles the response
+	 * @return the result of the handler
+	 * @throws IOException if an error occurs
+	 */
+	public <T> T execute(HttpRequestBase request, ResponseHandler<T> handler) throws IOException {
+		acquire();
+		try (CloseableHttpResponse response = client.execute(request)) {
+			return handler.handle(response);
+		} finally {
+			if (inFlight != null) {
+				inFlight.release();
+			}
+		}
+	}
+
+	private void acquire() throws IOException {
+		if (inFlight == null) {
+			return;
+		}
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to execute the HTTP request", ex);
+		}
+	}
+
+	private void close() {
+		try {
+			LOG.trace("Closing the HTTP client");
+			client.close();
+		} catch (IOException ex) {
+			LOG.debug("Exception while closing the HTTP client", ex);
+		}
+	}
+
+	/**
+	 * Handles a HTTP response.
+	 */
+	@FunctionalInterface
+	public interface ResponseHandler<T> {
+
+		T handle(CloseableHttpResponse response) throws IOException;
+
+	}
+
+}
@@ -18,6 +18,7 @@ package fr.mines_stetienne.ci.sparql_generate.ws;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.iterator.MicroBatcher;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
@@ -35,7 +36,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 import org.apache.jena.graph.Node;
@@ -85,6 +85,10 @@ import org.apache.jena.query.QueryBuildException;
  * ?events => {"type":"update","eventId":4568099531,"timestamp":1537974020,"timestampms":1537974020726,"socket_sequence":11,"events":[{"type":"change","side":"bid","price":"1.00","remaining":"5666","delta":"-0.001","reason":"cancel"}]}
  * ?events => {"type":"update","eventId":4568099631,"timestamp":1537974021,"timestampms":1537974021785,"socket_sequence":12,"events":[{"type":"change","side":"bid","price":"6504.37","remaining":"1","delta":"1","reason":"place"}]}
  * </pre>
+ * <p>
+ * Messages may be emitted by windows of several messages, see
+ * {@link ContextUtils.Builder#setStreamBatching(int, long)}.
+ * </p>
  *
  * @author El-Mehdi Khalfi <el-mehdi.khalfi at emse.fr>
  * @since 2018-09-26
@@ -129,7 +133,7 @@ public class ITER_WebSocket extends IteratorStreamFunctionBase {
         }
         String query = args.size() == 2 ? args.get(1).asString() : "";
 
-        final Executor executor = ContextUtils.getExecutor(getContext());
+        final MicroBatcher batcher = createMicroBatcher(listListNodeValue);
         try {
             WebSocketClient webSocketClient = new WebSocketClient(new URI(url_s)) {
                 @Override
@@ -139,19 +143,18 @@ public class ITER_WebSocket extends IteratorStreamFunctionBase {
 
                 @Override
                 public void onMessage(String s) {
-                    executor.execute(() -> {
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("Message arrived " + LogUtils.compress(s));
-                        }
-                        Node node = NodeFactory.createLiteral(s);
-                        NodeValue nodeValue = new NodeValueNode(node);
-                        listListNodeValue.accept(Collections.singletonList(Collections.singletonList(nodeValue)));
-                    });
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Message arrived " + LogUtils.compress(s));
+                    }
+                    Node node = NodeFactory.createLiteral(s);
+                    NodeValue nodeValue = new NodeValueNode(node);
+                    batcher.add(Collections.singletonList(nodeValue));
                 }
 
                 @Override
                 public void onClose(int i, String s, boolean b) {
                     LOG.debug("Websocket connection closed, stopping iterator.");
+                    batcher.close();
                     semaphore.complete(null);
                 }
 
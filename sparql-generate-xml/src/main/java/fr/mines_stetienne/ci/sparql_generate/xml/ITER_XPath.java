@@ -19,8 +19,10 @@ import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.xml.FUN_XPath;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionBase;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorProjectionFunction;
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
 import java.io.IOException;
@@ -95,7 +97,7 @@ import org.slf4j.Logger;
  *
  * @author Maxime Lefrançois
  */
-public class ITER_XPath extends IteratorFunctionBase {
+public class ITER_XPath extends IteratorFunctionBase implements IteratorProjectionFunction {
 
     private static final Logger LOG = LoggerFactory.getLogger(ITER_XPath.class);
 
@@ -116,6 +118,8 @@ public class ITER_XPath extends IteratorFunctionBase {
     private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
 
     private static final CleanerProperties props = new CleanerProperties();
+
+    private BitSet usedOutputs = null;
     
     static {
         builderFactory.setNamespaceAware(true);
@@ -192,12 +196,18 @@ public class ITER_XPath extends IteratorFunctionBase {
                     .evaluate(document, XPathConstants.NODESET);
             int size = nodeList.getLength();
             final List<List<NodeValue>> listNodeValues = new ArrayList<>(size);
+            final boolean subqueriesUsed = isUsed(1, subqueries.length);
             for (int i = 0; i < size; i++) {
                 org.w3c.dom.Node value = nodeList.item(i);
                 List<NodeValue> nodeValues = new ArrayList<>(args.size() + 1);
-                NodeValue nodeValue = function.nodeForNode(value);
-                nodeValues.add(nodeValue);
-                for (String subquery : subqueries) {
+                NodeValue nodeValue = isUsed(0, 1) || subqueriesUsed ? function.nodeForNode(value) : null;
+                nodeValues.add(isUsed(0, 1) ? nodeValue : null);
+                for (int j = 0; j < subqueries.length; j++) {
+                    final String subquery = subqueries[j];
+                    if (!isUsed(j + 1, 1)) {
+                        nodeValues.add(null);
+                        continue;
+                    }
                     try {
                         InputStream subis = new ByteArrayInputStream(nodeValue.asString().getBytes("UTF-8"));
                         Document subDocument = builder.parse(subis);
@@ -211,7 +221,7 @@ public class ITER_XPath extends IteratorFunctionBase {
                         nodeValues.add(null);
                     }
                 }
-                nodeValues.add(new NodeValueInteger(i));
+                nodeValues.add(isUsed(subqueries.length + 1, 1) ? new NodeValueInteger(i) : null);
                 nodeValues.add((i == size - 1) ? FALSE : TRUE);
                 listNodeValues.add(nodeValues);
             }
@@ -267,4 +277,20 @@ public class ITER_XPath extends IteratorFunctionBase {
     public void checkBuild(ExprList args) {
         Objects.nonNull(args);
     }
+
+    @Override
+    public void setUsedOutputs(BitSet outputs) {
+        this.usedOutputs = outputs;
+    }
+
+    /**
+     * Checks whether one of the outputs in a range is used.
+     */
+    private boolean isUsed(int from, int length) {
+        if (usedOutputs == null) {
+            return true;
+        }
+        final int next = usedOutputs.nextSetBit(from);
+        return next >= 0 && next < from + length;
+    }
 }